@@ -0,0 +1,77 @@
+package com.gmpatter.shorty;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Runs the JMH benchmarks once for each thread count, writing the results of
+ * each run as JSON so that runs can be compared.
+ *
+ * <p>Configured with system properties:
+ * <ul>
+ *   <li><b>bench.include</b> - a regular expression of the benchmarks to run</li>
+ *   <li><b>bench.threads</b> - comma separated thread counts, defaults to
+ *   1, 2, 4 and the number of processors</li>
+ *   <li><b>bench.output</b> - the directory for the JSON results</li>
+ *   <li><b>bench.gc</b> - true to add the allocation rate and garbage
+ *   collections of each benchmark to its results</li>
+ * </ul>
+ *
+ * <p>Benchmarks that are only meaningful single threaded, such as purging
+ * and the execution modes (which run their own threads), are only run with
+ * one thread.
+ *
+ * @author Gareth Patterson
+ */
+public class BenchmarkMain {
+
+  private static final String SINGLE_THREADED = ".*(PurgeBenchmark|ExecutionModeBenchmark).*";
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args unused
+   * @throws RunnerException if a benchmark fails
+   * @throws IOException if the output directory can't be created
+   */
+  public static void main(String[] args) throws RunnerException, IOException {
+    String include = System.getProperty("bench.include", "com\\.gmpatter\\.shorty\\..*Benchmark.*");
+    Path output = Path.of(System.getProperty("bench.output", "target/jmh"));
+    Files.createDirectories(output);
+    int[] threadCounts = threadCounts(System.getProperty("bench.threads", ""));
+    boolean gc = Boolean.getBoolean("bench.gc");
+
+    for (int threads : threadCounts) {
+      OptionsBuilder options = new OptionsBuilder();
+      options.include(include)
+          .threads(threads)
+          .resultFormat(ResultFormatType.JSON)
+          .result(output.resolve("results-" + threads + "-threads.json").toString());
+      if (gc) {
+        options.addProfiler(GCProfiler.class);
+      }
+      if (threads > 1) {
+        options.exclude(SINGLE_THREADED);
+      }
+      Options built = options.build();
+      new Runner(built).run();
+    }
+  }
+
+  private static int[] threadCounts(String property) {
+    if (!property.isBlank()) {
+      return Arrays.stream(property.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+    }
+    int processors = Runtime.getRuntime().availableProcessors();
+    return Arrays.stream(new int[] {1, 2, 4, processors}).filter(n -> n <= processors).distinct().toArray();
+  }
+}
@@ -0,0 +1,173 @@
+package com.gmpatter.shorty;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.MapUrlRepository;
+import com.gmpatter.shorty.persistence.UrlRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Benchmarks of request throughput in each {@link ExecutionMode} when the
+ * repository is slow, such as a repository on disk or in a database.
+ *
+ * <p>Each invocation submits a burst of requests to the executor, as the web
+ * server does for concurrent clients, and waits for them all to complete.
+ * Each request reads from a repository that blocks for a fixed time before
+ * every read.
+ *
+ * @author Gareth Patterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionModeBenchmark {
+
+  static final int REQUESTS = 1000;
+  private static final int SIZE = 10000;
+
+  @Param({"platform", "virtual"})
+  private String mode;
+
+  @Param({"0", "1", "10"})
+  private int storeLatencyMillis;
+
+  @Param({"32"})
+  private int platformThreads;
+
+  private ExecutorService executor;
+  private UrlRepository repository;
+  private String[] tokens;
+
+  /**
+   * Creates the executor and fills the repository with urls.
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    executor = ExecutionMode.of(mode).createExecutor(platformThreads, "benchmark");
+    UrlRepository delegate = MapUrlRepository.getInstance();
+    tokens = new String[SIZE];
+    long expiryTime = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+    for (int i = 0; i < SIZE; i++) {
+      tokens[i] = "t" + i;
+      delegate.createUrl(new ShortUrl.Builder()
+          .token(tokens[i])
+          .originalUrl("https://www.example.com/" + i)
+          .expiryTime(expiryTime)
+          .build());
+    }
+    repository = new SlowUrlRepository(delegate, storeLatencyMillis);
+  }
+
+  /**
+   * Stops the executor.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Benchmark a burst of concurrent redirect lookups.
+   */
+  @Benchmark
+  @OperationsPerInvocation(REQUESTS)
+  public void handleRequests(Blackhole blackhole) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(REQUESTS);
+    for (int i = 0; i < REQUESTS; i++) {
+      String token = tokens[i % SIZE];
+      executor.execute(() -> {
+        blackhole.consume(repository.getOriginalUrl(token));
+        done.countDown();
+      });
+    }
+    done.await();
+  }
+
+  /**
+   * A repository that blocks for a fixed time before each operation.
+   */
+  static final class SlowUrlRepository implements UrlRepository {
+    private final UrlRepository delegate;
+    private final long latencyMillis;
+
+    SlowUrlRepository(UrlRepository delegate, long latencyMillis) {
+      this.delegate = delegate;
+      this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public ShortUrl getUrl(String token) {
+      block();
+      return delegate.getUrl(token);
+    }
+
+    @Override
+    public String getOriginalUrl(String token) {
+      block();
+      return delegate.getOriginalUrl(token);
+    }
+
+    @Override
+    public ShortUrl createUrl(ShortUrl shortUrl) {
+      block();
+      return delegate.createUrl(shortUrl);
+    }
+
+    @Override
+    public void deleteUrl(String token) {
+      block();
+      delegate.deleteUrl(token);
+    }
+
+    @Override
+    public void purgeExpiredUrls() {
+      delegate.purgeExpiredUrls();
+    }
+
+    @Override
+    public void forEachUrl(Consumer<ShortUrl> action) {
+      delegate.forEachUrl(action);
+    }
+
+    @Override
+    public int size() {
+      return delegate.size();
+    }
+
+    @Override
+    public int countExpired(long currentTime) {
+      return delegate.countExpired(currentTime);
+    }
+
+    private void block() {
+      if (latencyMillis > 0) {
+        try {
+          Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
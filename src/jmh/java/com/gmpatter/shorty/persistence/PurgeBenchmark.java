@@ -0,0 +1,88 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of {@link UrlRepository#purgeExpiredUrls()} for repositories of
+ * different sizes with different fractions of expired urls.
+ *
+ * <p>Each purge is timed once on a freshly filled repository.
+ *
+ * @author Gareth Patterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PurgeBenchmark {
+
+  @Param({"map", "compact", "jdbc"})
+  public String type;
+
+  @Param({"10000", "100000", "1000000"})
+  public int size;
+
+  @Param({"0.01", "0.1", "0.5"})
+  public double expiredFraction;
+
+  private final TokenCodec codec = new TokenCodec(UrlRepositoryBenchmark.TOKEN_CHARACTERS);
+  private UrlRepository repository;
+
+  /**
+   * Fills a new repository, with the expired urls spread evenly through it.
+   */
+  @Setup(Level.Invocation)
+  public void setup() throws Exception {
+    repository = new UrlRepositoryBenchmark().createRepository(type);
+    long now = System.currentTimeMillis();
+    // Expired in an earlier bucket, so every expired url is purged
+    long expired = now - 5000;
+    long live = now + TimeUnit.HOURS.toMillis(1);
+    int expiredEvery = (int) Math.round(1 / expiredFraction);
+    List<ShortUrl> batch = new ArrayList<>(UrlRepositoryBenchmark.FILL_BATCH);
+    for (int i = 0; i < size; i++) {
+      batch.add(UrlRepositoryBenchmark.shortUrl(codec.decode(i + 1), i % expiredEvery == 0 ? expired : live));
+      if (batch.size() == UrlRepositoryBenchmark.FILL_BATCH || i == size - 1) {
+        repository.createUrls(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Closes the repository, dropping any in-memory database.
+   */
+  @TearDown(Level.Invocation)
+  public void tearDown() throws Exception {
+    if (repository instanceof AutoCloseable) {
+      ((AutoCloseable) repository).close();
+    }
+  }
+
+  /**
+   * Benchmark purging the expired urls.
+   */
+  @Benchmark
+  public void purgeExpiredUrls() {
+    repository.purgeExpiredUrls();
+  }
+}
@@ -0,0 +1,208 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of reads and writes against each {@link UrlRepository}.
+ *
+ * <p>The heap taken by each in-memory repository once it is filled is also
+ * measured, and printed with the trial's output as bytes per url, to
+ * compare the footprint of the compact repository with the map.
+ *
+ * @author Gareth Patterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlRepositoryBenchmark {
+
+  static final char[] TOKEN_CHARACTERS =
+      "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+  @Param({"map", "compact", "segment", "jdbc"})
+  public String type;
+
+  // Urls are filled in batches, as the jdbc repository creates single urls in a transaction each
+  static final int FILL_BATCH = 1000;
+
+  @Param({"100000", "1000000"})
+  public int size;
+
+  private final TokenCodec codec = new TokenCodec(TOKEN_CHARACTERS);
+  private final AtomicInteger threadIndex = new AtomicInteger();
+  private UrlRepository repository;
+  private String[] tokens;
+  private Path directory;
+
+  /**
+   * Creates the repository and fills it with urls.
+   */
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    tokens = new String[size];
+    for (int i = 0; i < size; i++) {
+      tokens[i] = codec.decode(i + 1);
+    }
+    long heapBefore = usedHeap();
+    repository = createRepository(type);
+    long expiryTime = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+    List<ShortUrl> batch = new ArrayList<>(FILL_BATCH);
+    for (int i = 0; i < size; i++) {
+      // A token of its own, as the repository would hold in the server
+      batch.add(shortUrl(codec.decode(i + 1), expiryTime));
+      if (batch.size() == FILL_BATCH || i == size - 1) {
+        repository.createUrls(batch);
+        batch.clear();
+      }
+    }
+    if (type.equals("map") || type.equals("compact")) {
+      System.out.printf("%nFootprint of the %s repository: %d bytes per url%n", type,
+          (usedHeap() - heapBefore) / size);
+    }
+  }
+
+  /**
+   * Returns the heap in use after collecting garbage, the lowest of a few
+   * collections as one can leave some garbage behind.
+   */
+  static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+    }
+    return used;
+  }
+
+  /**
+   * Compacts the segments garbage from creating and deleting urls.
+   */
+  @TearDown(Level.Iteration)
+  public void compact() {
+    if (repository instanceof SegmentUrlRepository) {
+      ((SegmentUrlRepository) repository).compact();
+    }
+  }
+
+  /**
+   * Closes the repository and deletes any files.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (repository instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) repository).close();
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+    if (directory != null) {
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+      }
+    }
+  }
+
+  UrlRepository createRepository(String type) throws IOException {
+    switch (type) {
+      case "map":
+        return new MapUrlRepository();
+      case "compact":
+        return new CompactUrlRepository(TOKEN_CHARACTERS, 7, 64);
+      case "segment":
+        directory = Files.createTempDirectory("shorty-bench");
+        return new SegmentUrlRepository(TOKEN_CHARACTERS, directory, 64 * 1024 * 1024, 0.5, 0);
+      case "jdbc":
+        // A new in-memory H2 database for each repository
+        return new JdbcUrlRepository(new JdbcConnectionPool(
+            "jdbc:h2:mem:shorty-bench-" + System.nanoTime() + ";DB_CLOSE_DELAY=-1", null, null, 16, 5000),
+            64, 1000);
+      default:
+        throw new IllegalArgumentException("Unknown repository type " + type + ".");
+    }
+  }
+
+  static ShortUrl shortUrl(String token, long expiryTime) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl("https://www.example.com/some/fairly/typical/path?id=" + token)
+        .expiryTime(expiryTime)
+        .build();
+  }
+
+  /**
+   * The tokens each thread creates, which don't overlap the tokens of the
+   * urls the repository was filled with or other threads' tokens.
+   */
+  @State(Scope.Thread)
+  public static class ThreadTokens {
+    long next;
+
+    /**
+     * Starts the thread's tokens in its own range.
+     *
+     * @param benchmark the benchmark state
+     */
+    @Setup(Level.Trial)
+    public void setup(UrlRepositoryBenchmark benchmark) {
+      next = (benchmark.threadIndex.incrementAndGet() + 1L) << 32;
+    }
+  }
+
+  /**
+   * Benchmark getting a random url.
+   */
+  @Benchmark
+  public ShortUrl getUrl() {
+    return repository.getUrl(tokens[ThreadLocalRandom.current().nextInt(size)]);
+  }
+
+  /**
+   * Benchmark getting the original url of a random url, as redirects do.
+   */
+  @Benchmark
+  public String getOriginalUrl() {
+    return repository.getOriginalUrl(tokens[ThreadLocalRandom.current().nextInt(size)]);
+  }
+
+  /**
+   * Benchmark creating and then deleting a url, keeping the size of the
+   * repository constant.
+   */
+  @Benchmark
+  public void createAndDeleteUrl(ThreadTokens threadTokens) {
+    String token = codec.decode(threadTokens.next++);
+    repository.createUrl(shortUrl(token, System.currentTimeMillis() + 60000));
+    repository.deleteUrl(token);
+  }
+}
@@ -0,0 +1,111 @@
+package com.gmpatter.shorty.rest;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.json.Json;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of building the JSON responses of the url endpoints, comparing
+ * the <code>JsonObject</code> tree they were built with to the
+ * {@link ShortUrlJsonEncoder}. Run with <b>-Dbench.gc=true</b> to compare
+ * their allocation rates.
+ *
+ * @author Gareth Patterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShortUrlJsonBenchmark {
+
+  private final ShortUrl shortUrl = new ShortUrl.Builder()
+      .token("aZ3kP9q")
+      .originalUrl("https://www.example.com/some/fairly/typical/path?id=12345&utm_source=newsletter")
+      .expiryTime(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1))
+      .build();
+
+  private final ShortUrlJsonEncoder encoder = ShortUrlJsonEncoder.getInstance();
+
+  /**
+   * Benchmark building the short url JSON response body as a
+   * <code>JsonObject</code> tree and encoding its string, as the endpoints
+   * did before the encoder.
+   */
+  @Benchmark
+  public byte[] buildShortUrlJson() {
+    String baseUrl = "http://localhost:8080";
+    return Json.createObjectBuilder()
+        .add(UrlEndpoints.SHORT_URL_FIELD, baseUrl + UrlEndpoints.REDIRECT_CONTEXT_ROOT + "/" + shortUrl.getToken())
+        .add(UrlEndpoints.URL_FIELD, shortUrl.getOriginalUrl())
+        .add(UrlEndpoints.EXPIRY_FIELD, shortUrl.getExpiry())
+        .add(UrlEndpoints.TOKEN_FIELD, shortUrl.getToken())
+        .build()
+        .toString()
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Benchmark encoding the short url JSON response body with the encoder,
+   * including the host lookup.
+   */
+  @Benchmark
+  public byte[] encodeShortUrl() {
+    return encoder.encodeShortUrl(encoder.getHost("http", "localhost:8080"), shortUrl);
+  }
+
+  /**
+   * Benchmark writing the short url JSON response body straight to an
+   * output stream with the encoder, as the JAX-RS endpoints do.
+   */
+  @Benchmark
+  public void writeShortUrl(Blackhole blackhole) throws IOException {
+    encoder.writeShortUrl(new BlackholeOutputStream(blackhole), encoder.getHost("http", "localhost:8080"), shortUrl);
+  }
+
+  /**
+   * Benchmark encoding an error response body with the encoder.
+   */
+  @Benchmark
+  public byte[] encodeError() {
+    return encoder.encodeError("Url not found for token " + shortUrl.getToken() + ".");
+  }
+
+  /**
+   * An output stream that consumes what is written to it.
+   */
+  private static class BlackholeOutputStream extends OutputStream {
+
+    private final Blackhole blackhole;
+
+    BlackholeOutputStream(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b) {
+      blackhole.consume(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      blackhole.consume(b);
+      blackhole.consume(len);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.gmpatter.shorty.service;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the {@link UrlService}, with the repository configured in
+ * application.yaml.
+ *
+ * @author Gareth Patterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlServiceBenchmark {
+
+  private static final int SIZE = 100000;
+
+  private UrlService urlService;
+  private String[] tokens;
+
+  /**
+   * Fills the repository with urls.
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    urlService = UrlService.getInstance();
+    tokens = new String[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      tokens[i] = urlService.createUrl("https://www.example.com/" + i, 3).getToken();
+    }
+  }
+
+  /**
+   * Benchmark generating a token.
+   */
+  @Benchmark
+  public String generateToken() {
+    return urlService.generateToken();
+  }
+
+  /**
+   * Benchmark getting a random url.
+   */
+  @Benchmark
+  public ShortUrl getUrl() {
+    return urlService.getUrl(tokens[ThreadLocalRandom.current().nextInt(SIZE)]);
+  }
+
+  /**
+   * Benchmark creating and then deleting a url.
+   */
+  @Benchmark
+  public void createAndDeleteUrl() {
+    ShortUrl shortUrl = urlService.createUrl("https://www.example.com/new", 3);
+    urlService.deleteUrl(shortUrl.getToken());
+  }
+}
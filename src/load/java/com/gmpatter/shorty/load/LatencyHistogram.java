@@ -0,0 +1,115 @@
+package com.gmpatter.shorty.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of latencies in nanoseconds, with log-linear
+ * buckets accurate to within 1/{@value #SUB_BUCKETS} of the value, from 1
+ * microsecond up to about 71 minutes.
+ *
+ * <p>Each power of two range of values is split into {@value #SUB_BUCKETS}
+ * equal buckets, in the same way as HdrHistogram, so recording is a few
+ * arithmetic operations and an atomic increment.
+ *
+ * @author Gareth Patterson
+ */
+class LatencyHistogram {
+
+  static final int SUB_BUCKET_BITS = 7;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values are recorded in units of 1 microsecond, up to 2^32 microseconds
+  static final long UNIT_NANOS = 1000;
+  static final long MAX_VALUE = (1L << 32) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  void record(long nanos) {
+    long value = Math.min(Math.max(nanos / UNIT_NANOS, 0), MAX_VALUE);
+    counts.incrementAndGet(indexOf(value));
+    total.increment();
+    sum.add(nanos);
+    if (nanos > max.get()) {
+      max.accumulateAndGet(nanos, Math::max);
+    }
+  }
+
+  /**
+   * Returns the number of recorded latencies.
+   *
+   * @return the count.
+   */
+  long count() {
+    return total.sum();
+  }
+
+  /**
+   * Returns the mean latency.
+   *
+   * @return the mean in nanoseconds.
+   */
+  double mean() {
+    long count = count();
+    return count == 0 ? 0 : (double) sum.sum() / count;
+  }
+
+  /**
+   * Returns the largest recorded latency.
+   *
+   * @return the maximum in nanoseconds.
+   */
+  long max() {
+    return max.get();
+  }
+
+  /**
+   * Returns the latency that the given percentage of recorded latencies are
+   * at or below.
+   *
+   * @param percentile the percentile, from 0 to 100
+   * @return the latency in nanoseconds, the upper bound of its bucket.
+   */
+  long percentile(double percentile) {
+    long count = count();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i) * UNIT_NANOS, max());
+      }
+    }
+    return max();
+  }
+
+  /**
+   * Returns the bucket for the value. Values below 2 * {@value #SUB_BUCKETS}
+   * have a bucket each, and above that each doubling of the value has
+   * {@value #SUB_BUCKETS} buckets.
+   */
+  static int indexOf(long value) {
+    int exponent = Math.max(0, Long.SIZE - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS + 1));
+    return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+  }
+
+  static long upperBound(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS - 1;
+    long subBucket = index - (long) exponent * SUB_BUCKETS;
+    return ((subBucket + 1) << exponent) - 1;
+  }
+}
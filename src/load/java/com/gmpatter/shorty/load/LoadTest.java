@@ -0,0 +1,603 @@
+package com.gmpatter.shorty.load;
+
+import com.gmpatter.shorty.ServerMain;
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.service.UrlService;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.webserver.WebServer;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+import javax.json.JsonWriterFactory;
+import javax.json.stream.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.helidon.config.ConfigSources.classpath;
+
+/**
+ * An end-to-end load test, which starts the server in-process on a random
+ * port and sends it a mix of create, redirect, lookup and delete requests
+ * over HTTP. It can instead start a cluster of servers, each with its own
+ * partition of the urls, and spread the requests across them as a load
+ * balancer would, to compare throughput with the number of members. Or it
+ * can start a replication leader and followers, sending creates and deletes
+ * to the leader and spreading redirects and lookups across the followers,
+ * to compare read throughput with the number of followers.
+ *
+ * <p>Requests are sent at a constant rate whether or not earlier requests
+ * have completed (an open model), as real clients don't wait for each other.
+ * Each request's latency is measured from the time it was scheduled to be
+ * sent rather than when it was sent, so a stall in the server or the load
+ * generator is charged to every request that should have been sent during
+ * it, correcting for coordinated omission.
+ *
+ * <p>Redirects and lookups choose from the preloaded urls with a Zipf
+ * distribution. Deletes remove urls created by the test, and are sent as
+ * creates until there are some to delete.
+ *
+ * <p>Requests shed by the server's concurrency limit with a 503 are counted
+ * on their own rather than as errors, and aren't included in the latencies,
+ * so the latency of the requests that were served can be compared with the
+ * limit on and off.
+ *
+ * <p>The time taken to start the servers is reported with the results, to
+ * compare the startup of the REST implementations.
+ *
+ * <p>Configured with system properties:
+ * <ul>
+ *   <li><b>load.rate</b> - requests per second, defaults to 1000</li>
+ *   <li><b>load.duration-seconds</b> - how long to measure for, defaults to 60</li>
+ *   <li><b>load.warmup-seconds</b> - how long to send requests before measuring, defaults to 10</li>
+ *   <li><b>load.mix</b> - the weight of each operation, defaults to
+ *   <code>create=10,redirect=80,lookup=8,delete=2</code></li>
+ *   <li><b>load.urls</b> - the number of urls to preload, defaults to 100000</li>
+ *   <li><b>load.zipf-exponent</b> - the skew of redirects and lookups, defaults to 1.0</li>
+ *   <li><b>load.execution-mode</b> - "platform" or "virtual", overriding
+ *   <code>shorty.execution.mode</code> for the server</li>
+ *   <li><b>load.rest-implementation</b> - "jaxrs" or "native", overriding
+ *   <code>shorty.rest.implementation</code> for the server</li>
+ *   <li><b>load.fast-path</b> - true or false, overriding
+ *   <code>shorty.redirect.fast-path</code> for the server</li>
+ *   <li><b>load.concurrency-limit</b> - true or false, overriding
+ *   <code>shorty.concurrency-limit.enabled</code> for the server</li>
+ *   <li><b>load.cluster-nodes</b> - the number of cluster members to start,
+ *   defaults to 0 for a single server that isn't clustered</li>
+ *   <li><b>load.followers</b> - the number of replication followers to start
+ *   with a leader, defaults to 0 for a single server that isn't replicated</li>
+ *   <li><b>load.output</b> - the JSON results file, defaults to target/load/results.json</li>
+ * </ul>
+ *
+ * @author Gareth Patterson
+ */
+public class LoadTest {
+
+  private static final String DEFAULT_MIX = "create=10,redirect=80,lookup=8,delete=2";
+  private static final int PRELOAD_BATCH_SIZE = 1000;
+  private static final long START_TIMEOUT_SECONDS = 10;
+  private static final long CATCH_UP_TIMEOUT_SECONDS = 60;
+  private static final long DRAIN_TIMEOUT_SECONDS = 30;
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final int SERVICE_UNAVAILABLE = 503;
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  /**
+   * The operations sent by the load test.
+   */
+  enum Operation {
+    CREATE(201),
+    REDIRECT(301),
+    LOOKUP(200),
+    DELETE(204);
+
+    private final int status;
+
+    Operation(int status) {
+      this.status = status;
+    }
+
+    boolean isSuccess(int status) {
+      // Any redirect status is fine, the status used is configurable
+      return this == REDIRECT ? status / 100 == 3 : status == this.status;
+    }
+  }
+
+  private final HttpClient client = HttpClient.newBuilder()
+      // Without this every new connection first tries to upgrade to HTTP/2
+      .version(HttpClient.Version.HTTP_1_1)
+      .followRedirects(HttpClient.Redirect.NEVER)
+      .build();
+  private final List<String> baseUrls;
+  private final List<String> writeBaseUrls;
+  private final List<String> tokens;
+  private final ZipfGenerator zipf;
+  private final Operation[] operations;
+  private final int[] weights;
+  private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> shed = new EnumMap<>(Operation.class);
+  private final Queue<String> createdTokens = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  // Only used by the thread sending requests
+  private long created;
+
+  /**
+   * Creates a load test.
+   *
+   * @param baseUrls the urls of the servers, such as <code>http://localhost:8080</code>
+   * @param writeBaseUrls the urls of the servers to send creates and deletes to
+   * @param tokens the tokens of the preloaded urls, most popular first
+   * @param zipfExponent the skew of redirects and lookups
+   * @param mix the weight of each operation
+   */
+  LoadTest(List<String> baseUrls, List<String> writeBaseUrls, List<String> tokens, double zipfExponent,
+           Map<Operation, Integer> mix) {
+    this.baseUrls = baseUrls;
+    this.writeBaseUrls = writeBaseUrls;
+    this.tokens = tokens;
+    this.zipf = new ZipfGenerator(tokens.size(), zipfExponent);
+    this.operations = mix.keySet().toArray(new Operation[0]);
+    this.weights = new int[operations.length];
+    int total = 0;
+    for (int i = 0; i < operations.length; i++) {
+      total += mix.get(operations[i]);
+      weights[i] = total;
+    }
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new LatencyHistogram());
+      errors.put(operation, new LongAdder());
+      shed.put(operation, new LongAdder());
+    }
+  }
+
+  /**
+   * Runs the load test.
+   *
+   * @param args unused
+   * @throws IOException if the results can't be written
+   * @throws InterruptedException if interrupted while running
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    double rate = Double.parseDouble(System.getProperty("load.rate", "1000"));
+    int durationSeconds = Integer.getInteger("load.duration-seconds", 60);
+    int warmupSeconds = Integer.getInteger("load.warmup-seconds", 10);
+    Map<Operation, Integer> mix = parseMix(System.getProperty("load.mix", DEFAULT_MIX));
+    int urls = Integer.getInteger("load.urls", 100000);
+    double zipfExponent = Double.parseDouble(System.getProperty("load.zipf-exponent", "1.0"));
+    Path output = Path.of(System.getProperty("load.output", "target/load/results.json"));
+    int clusterNodes = Integer.getInteger("load.cluster-nodes", 0);
+    int followers = Integer.getInteger("load.followers", 0);
+
+    Map<String, String> overrides = new HashMap<>();
+    overrides.put("server.port", "0");
+    // The load generator is a single client standing in for many
+    overrides.put("shorty.rate-limit.enabled", "false");
+    String executionMode = System.getProperty("load.execution-mode", "");
+    if (!executionMode.isBlank()) {
+      overrides.put("shorty.execution.mode", executionMode);
+    }
+    String restImplementation = System.getProperty("load.rest-implementation", "");
+    if (!restImplementation.isBlank()) {
+      overrides.put("shorty.rest.implementation", restImplementation);
+    }
+    String fastPath = System.getProperty("load.fast-path", "");
+    if (!fastPath.isBlank()) {
+      overrides.put("shorty.redirect.fast-path", fastPath);
+    }
+    String concurrencyLimit = System.getProperty("load.concurrency-limit", "");
+    if (!concurrencyLimit.isBlank()) {
+      overrides.put("shorty.concurrency-limit.enabled", concurrencyLimit);
+    }
+    long startupStart = System.nanoTime();
+    List<WebServer> servers = new ArrayList<>();
+    List<String> baseUrls = new ArrayList<>();
+    List<String> writeBaseUrls = baseUrls;
+    List<UrlService> followerServices = new ArrayList<>();
+    UrlService urlService;
+    if (followers > 0) {
+      for (int node = 0; node <= followers; node++) {
+        try (ServerSocket socket = new ServerSocket(0)) {
+          baseUrls.add("http://localhost:" + socket.getLocalPort());
+        }
+      }
+      // The first server is the leader, and only takes writes
+      writeBaseUrls = List.of(baseUrls.remove(0));
+      String replicationSecret = UUID.randomUUID().toString();
+      Map<String, String> leaderOverrides = new HashMap<>(overrides);
+      leaderOverrides.put("shorty.replication.secret", replicationSecret);
+      leaderOverrides.put("server.port", port(writeBaseUrls.get(0)));
+      leaderOverrides.put("shorty.replication.role", "leader");
+      Config leaderConfig = Config.builder()
+          .sources(ConfigSources.create(leaderOverrides), classpath("application.yaml"))
+          .build();
+      urlService = new UrlService(leaderConfig);
+      servers.add(ServerMain.startServer(leaderConfig, urlService));
+      for (String baseUrl : baseUrls) {
+        Map<String, String> followerOverrides = new HashMap<>(overrides);
+        followerOverrides.put("server.port", port(baseUrl));
+        followerOverrides.put("shorty.replication.role", "follower");
+        followerOverrides.put("shorty.replication.leader", writeBaseUrls.get(0));
+        followerOverrides.put("shorty.replication.secret", replicationSecret);
+        Config config = Config.builder()
+            .sources(ConfigSources.create(followerOverrides), classpath("application.yaml"))
+            .build();
+        followerServices.add(new UrlService(config));
+        servers.add(ServerMain.startServer(config, followerServices.get(followerServices.size() - 1)));
+      }
+    } else if (clusterNodes > 0) {
+      for (int node = 0; node < clusterNodes; node++) {
+        try (ServerSocket socket = new ServerSocket(0)) {
+          baseUrls.add("http://localhost:" + socket.getLocalPort());
+        }
+      }
+      List<UrlService> services = new ArrayList<>();
+      String clusterSecret = UUID.randomUUID().toString();
+      for (int node = 0; node < clusterNodes; node++) {
+        Map<String, String> nodeOverrides = new HashMap<>(overrides);
+        nodeOverrides.put("server.port", port(baseUrls.get(node)));
+        nodeOverrides.put("shorty.token.node-id", String.valueOf(node));
+        nodeOverrides.put("shorty.token.node-count", String.valueOf(clusterNodes));
+        nodeOverrides.put("shorty.cluster.self", baseUrls.get(node));
+        nodeOverrides.put("shorty.cluster.secret", clusterSecret);
+        for (int member = 0; member < clusterNodes; member++) {
+          nodeOverrides.put("shorty.cluster.members." + member, baseUrls.get(member));
+        }
+        Config config = Config.builder()
+            .sources(ConfigSources.create(nodeOverrides), classpath("application.yaml"))
+            .build();
+        services.add(new UrlService(config));
+        servers.add(ServerMain.startServer(config, services.get(node)));
+      }
+      urlService = services.get(0);
+    } else {
+      // Sources added first take precedence
+      Config config = Config.builder()
+          .sources(ConfigSources.create(overrides), classpath("application.yaml"))
+          .build();
+      servers.add(ServerMain.startServer(config));
+      urlService = UrlService.getInstance();
+    }
+    try {
+      for (WebServer server : servers) {
+        awaitStarted(server);
+      }
+      long startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startupStart);
+      System.out.printf("Started %d servers in %d ms.%n", servers.size(), startupMillis);
+      if (baseUrls.isEmpty()) {
+        baseUrls.add("http://localhost:" + servers.get(0).port());
+      }
+      System.out.printf("Preloading %d urls.%n", urls);
+      List<String> tokens = preload(urlService, urls);
+      if (followers > 0) {
+        awaitCaughtUp(urlService, followerServices);
+      }
+      LoadTest test = new LoadTest(baseUrls, writeBaseUrls, tokens, zipfExponent, mix);
+      System.out.printf("Sending %.0f requests per second for %d seconds after %d seconds of warmup.%n",
+          rate, durationSeconds, warmupSeconds);
+      test.run(rate, warmupSeconds, durationSeconds);
+      test.printResults(durationSeconds);
+      test.writeResults(output, rate, durationSeconds, clusterNodes, followers,
+          restImplementation.isBlank() ? "default" : restImplementation, startupMillis);
+      System.out.printf("Results written to %s.%n", output);
+    } finally {
+      servers.forEach(WebServer::shutdown);
+    }
+    // The url service's background threads would otherwise keep the JVM running
+    System.exit(0);
+  }
+
+  /**
+   * Sends requests at a constant rate, recording the latency of those
+   * scheduled after the warmup, then waits for them to complete.
+   *
+   * @param rate requests per second
+   * @param warmupSeconds how long to send requests before recording
+   * @param durationSeconds how long to record for
+   * @throws InterruptedException if interrupted while running
+   */
+  void run(double rate, int warmupSeconds, int durationSeconds) throws InterruptedException {
+    Random random = new Random();
+    double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    long start = System.nanoTime();
+    long recordFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    long end = recordFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+    for (long i = 0; ; i++) {
+      // Computed from the start rather than the previous send, so delays don't accumulate
+      long scheduled = start + (long) (i * intervalNanos);
+      if (scheduled >= end) {
+        break;
+      }
+      long delay;
+      while ((delay = scheduled - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(delay);
+      }
+      send(nextOperation(random), random, scheduled, scheduled >= recordFrom);
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+    while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Returns the latencies of an operation.
+   *
+   * @param operation the operation
+   * @return the latency histogram.
+   */
+  LatencyHistogram getLatencies(Operation operation) {
+    return latencies.get(operation);
+  }
+
+  /**
+   * Returns the number of failed requests for an operation.
+   *
+   * @param operation the operation
+   * @return the error count.
+   */
+  long getErrors(Operation operation) {
+    return errors.get(operation).sum();
+  }
+
+  /**
+   * Returns the number of requests for an operation shed by the server.
+   *
+   * @param operation the operation
+   * @return the shed count.
+   */
+  long getShed(Operation operation) {
+    return shed.get(operation).sum();
+  }
+
+  private Operation nextOperation(Random random) {
+    int choice = random.nextInt(weights[weights.length - 1]);
+    for (int i = 0; i < weights.length; i++) {
+      if (choice < weights[i]) {
+        return operations[i];
+      }
+    }
+    return operations[operations.length - 1];
+  }
+
+  private void send(Operation operation, Random random, long scheduled, boolean record) {
+    // Spread requests across the servers, as a load balancer would
+    List<String> targets = operation == Operation.REDIRECT || operation == Operation.LOOKUP
+        ? baseUrls
+        : writeBaseUrls;
+    String baseUrl = targets.get(targets.size() == 1 ? 0 : random.nextInt(targets.size()));
+    HttpRequest request;
+    switch (operation) {
+      case REDIRECT:
+        request = HttpRequest.newBuilder(URI.create(baseUrl + "/go/" + popularToken(random))).GET().build();
+        break;
+      case LOOKUP:
+        request = HttpRequest.newBuilder(URI.create(baseUrl + "/shorty/v1/url/" + popularToken(random)))
+            .GET()
+            .build();
+        break;
+      case DELETE:
+        String token = createdTokens.poll();
+        if (token != null) {
+          request = HttpRequest.newBuilder(URI.create(baseUrl + "/shorty/v1/url/" + token)).DELETE().build();
+          break;
+        }
+        // Nothing to delete yet
+        operation = Operation.CREATE;
+        // fall through
+      default:
+        String body = "{\"url\":\"https://www.example.com/load/" + created++ + "\",\"expiryCode\":\"1\"}";
+        request = HttpRequest.newBuilder(URI.create(baseUrl + "/shorty/v1/url"))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+    }
+
+    Operation sent = operation;
+    inFlight.incrementAndGet();
+    client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+      long latency = System.nanoTime() - scheduled;
+      boolean success = error == null && sent.isSuccess(response.statusCode());
+      if (record) {
+        if (error == null && response.statusCode() == SERVICE_UNAVAILABLE) {
+          shed.get(sent).increment();
+        } else {
+          latencies.get(sent).record(latency);
+          if (!success) {
+            errors.get(sent).increment();
+          }
+        }
+      }
+      if (success && sent == Operation.CREATE) {
+        try (JsonReader reader = Json.createReader(new StringReader(response.body()))) {
+          createdTokens.add(reader.readObject().getString("token"));
+        }
+      }
+      inFlight.decrementAndGet();
+    });
+  }
+
+  private String popularToken(Random random) {
+    return tokens.get(zipf.next(random));
+  }
+
+  private void printResults(int durationSeconds) {
+    System.out.printf("%-10s %10s %8s %8s %10s %10s %10s %10s %10s %10s%n",
+        "operation", "count", "errors", "shed", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    for (Operation operation : Operation.values()) {
+      LatencyHistogram histogram = latencies.get(operation);
+      System.out.printf(Locale.ROOT, "%-10s %10d %8d %8d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+          operation.name().toLowerCase(Locale.ROOT),
+          histogram.count(),
+          getErrors(operation),
+          getShed(operation),
+          (double) histogram.count() / durationSeconds,
+          millis(histogram.percentile(PERCENTILES[0])),
+          millis(histogram.percentile(PERCENTILES[1])),
+          millis(histogram.percentile(PERCENTILES[2])),
+          millis(histogram.percentile(PERCENTILES[3])),
+          millis(histogram.max()));
+    }
+  }
+
+  private void writeResults(Path output, double rate, int durationSeconds, int clusterNodes, int followers,
+                            String restImplementation, long startupMillis) throws IOException {
+    JsonObjectBuilder results = Json.createObjectBuilder()
+        .add("rate", rate)
+        .add("durationSeconds", durationSeconds)
+        .add("clusterNodes", clusterNodes)
+        .add("followers", followers)
+        .add("restImplementation", restImplementation)
+        .add("startupMillis", startupMillis);
+    JsonObjectBuilder operationResults = Json.createObjectBuilder();
+    for (Operation operation : Operation.values()) {
+      LatencyHistogram histogram = latencies.get(operation);
+      JsonObjectBuilder result = Json.createObjectBuilder()
+          .add("count", histogram.count())
+          .add("errors", getErrors(operation))
+          .add("shed", getShed(operation))
+          .add("throughput", (double) histogram.count() / durationSeconds)
+          .add("meanMillis", histogram.mean() / TimeUnit.MILLISECONDS.toNanos(1));
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        result.add(PERCENTILE_NAMES[i] + "Millis", millis(histogram.percentile(PERCENTILES[i])));
+      }
+      result.add("maxMillis", millis(histogram.max()));
+      operationResults.add(operation.name().toLowerCase(Locale.ROOT), result);
+    }
+    results.add("operations", operationResults);
+
+    if (output.getParent() != null) {
+      Files.createDirectories(output.getParent());
+    }
+    JsonWriterFactory factory = Json.createWriterFactory(Map.of(JsonGenerator.PRETTY_PRINTING, true));
+    try (Writer out = Files.newBufferedWriter(output);
+         JsonWriter writer = factory.createWriter(out)) {
+      writer.writeObject(results.build());
+    }
+  }
+
+  /**
+   * Parses an operation mix such as <code>create=10,redirect=90</code>.
+   *
+   * @param mix the mix
+   * @return the weight of each operation in the mix.
+   * @throws IllegalArgumentException if the mix is invalid
+   */
+  static Map<Operation, Integer> parseMix(String mix) {
+    Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+    for (String entry : mix.split(",")) {
+      String[] parts = entry.trim().split("=");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Invalid load mix entry \"" + entry + "\".");
+      }
+      int weight = Integer.parseInt(parts[1].trim());
+      if (weight < 0) {
+        throw new IllegalArgumentException("Invalid load mix weight \"" + entry + "\".");
+      }
+      if (weight > 0) {
+        weights.put(Operation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)), weight);
+      }
+    }
+    if (weights.isEmpty()) {
+      throw new IllegalArgumentException("The load mix must include an operation.");
+    }
+    return weights;
+  }
+
+  /**
+   * Creates urls to redirect to and look up, directly through the url
+   * service so that preloading isn't part of the test.
+   *
+   * @param urlService the url service to create the urls with
+   * @param count the number of urls
+   * @return the tokens of the urls, in random order.
+   */
+  private static List<String> preload(UrlService urlService, int count) {
+    List<String> tokens = new ArrayList<>(count);
+    List<String> urls = new ArrayList<>(PRELOAD_BATCH_SIZE);
+    List<Integer> expiryCodes = new ArrayList<>(PRELOAD_BATCH_SIZE);
+    for (int i = 0; i < count; i++) {
+      urls.add("https://www.example.com/preload/" + i);
+      // 1 year, so the urls don't expire during the test
+      expiryCodes.add(3);
+      if (urls.size() == PRELOAD_BATCH_SIZE || i == count - 1) {
+        for (ShortUrl shortUrl : urlService.createUrls(urls, expiryCodes)) {
+          if (shortUrl != null) {
+            tokens.add(shortUrl.getToken());
+          }
+        }
+        urls.clear();
+        expiryCodes.clear();
+      }
+    }
+    Collections.shuffle(tokens);
+    return tokens;
+  }
+
+  /**
+   * Waits for the followers to apply every change made on the leader, so
+   * the preloaded urls can be read from any of them.
+   *
+   * @param leader the url service of the leader
+   * @param followers the url services of the followers
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private static void awaitCaughtUp(UrlService leader, List<UrlService> followers) throws InterruptedException {
+    long offset = leader.getLeaderRepository().getChangeLog().getEndOffset();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CATCH_UP_TIMEOUT_SECONDS);
+    for (UrlService follower : followers) {
+      while (follower.getFollowerRepository().getOffset() < offset) {
+        if (System.nanoTime() > deadline) {
+          throw new IllegalStateException("Followers did not catch up within " + CATCH_UP_TIMEOUT_SECONDS
+              + " seconds.");
+        }
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  private static String port(String baseUrl) {
+    return baseUrl.substring(baseUrl.lastIndexOf(':') + 1);
+  }
+
+  private static void awaitStarted(WebServer server) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(START_TIMEOUT_SECONDS);
+    while (!server.isRunning()) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("Server did not start within " + START_TIMEOUT_SECONDS + " seconds.");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private static double millis(long nanos) {
+    return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,51 @@
+package com.gmpatter.shorty.load;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates ranks from 0 to n - 1 following a Zipf distribution, where rank
+ * k is chosen with probability proportional to 1 / (k + 1)^s, so a few urls
+ * get most of the redirects as they do in practice.
+ *
+ * <p>The cumulative distribution is computed once, and each rank is found
+ * by a binary search of it.
+ *
+ * @author Gareth Patterson
+ */
+class ZipfGenerator {
+
+  private final double[] cumulative;
+
+  /**
+   * Creates a generator.
+   *
+   * @param n the number of ranks
+   * @param exponent the exponent s, 0 for a uniform distribution
+   */
+  ZipfGenerator(int n, double exponent) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("The number of ranks must be greater than 0.");
+    }
+    cumulative = new double[n];
+    double sum = 0;
+    for (int k = 0; k < n; k++) {
+      sum += 1 / Math.pow(k + 1, exponent);
+      cumulative[k] = sum;
+    }
+    for (int k = 0; k < n; k++) {
+      cumulative[k] /= sum;
+    }
+  }
+
+  /**
+   * Returns the next rank.
+   *
+   * @param random the source of randomness
+   * @return a rank from 0 to n - 1.
+   */
+  int next(Random random) {
+    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+    return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+  }
+}
@@ -0,0 +1,93 @@
+package com.gmpatter.shorty;
+
+import io.helidon.webserver.Handler;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How blocking request handling is run, configured by
+ * <code>shorty.execution.mode</code>.
+ *
+ * <p>With platform threads the number of JAX-RS requests handled at once is
+ * capped by the size of the pool, so a slow repository, such as one on disk,
+ * queues requests behind the ones waiting for it. With virtual threads every
+ * request gets its own thread, and a thread waiting for the repository only
+ * holds on to its stack, not a carrier thread.
+ *
+ * @author Gareth Patterson
+ */
+public enum ExecutionMode {
+
+  /**
+   * JAX-RS requests run on a fixed pool of platform threads, and redirects
+   * run on the web server's I/O threads.
+   */
+  PLATFORM,
+
+  /**
+   * JAX-RS requests and redirects each run on a new virtual thread.
+   */
+  VIRTUAL;
+
+  /**
+   * Returns the mode with the given name, ignoring case.
+   *
+   * @param name the name, "platform" or "virtual"
+   * @return the execution mode.
+   * @throws IllegalArgumentException if there is no mode with the name
+   */
+  public static ExecutionMode of(String name) {
+    try {
+      return valueOf(name.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown execution mode " + name + ".", e);
+    }
+  }
+
+  /**
+   * Creates the executor to run blocking request handling on.
+   *
+   * @param platformThreads the size of the pool of platform threads, ignored
+   *     for virtual threads
+   * @param name the prefix of the thread names
+   * @return the executor.
+   */
+  public ExecutorService createExecutor(int platformThreads, String name) {
+    if (this == VIRTUAL) {
+      return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory = r -> {
+      Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+    return Executors.newFixedThreadPool(platformThreads, factory);
+  }
+
+  /**
+   * Wraps a handler so that it runs on the executor in virtual mode, rather
+   * than on the web server's I/O thread.
+   *
+   * @param handler the handler
+   * @param executor the executor from {@link #createExecutor(int, String)}
+   * @return the handler to route requests to.
+   */
+  public Handler wrap(Handler handler, ExecutorService executor) {
+    if (this == VIRTUAL) {
+      return (req, res) -> executor.execute(() -> {
+        try {
+          handler.accept(req, res);
+        } catch (RuntimeException e) {
+          // Pass the error back to the routing, as it isn't on this thread
+          req.next(e);
+        }
+      });
+    }
+    return handler;
+  }
+}
@@ -1,16 +1,32 @@
 package com.gmpatter.shorty;
 
+import com.gmpatter.shorty.cluster.ClusterService;
+import com.gmpatter.shorty.concurrency.ConcurrencyLimitHandler;
+import com.gmpatter.shorty.metrics.Histogram;
+import com.gmpatter.shorty.metrics.MetricsHandler;
+import com.gmpatter.shorty.metrics.MetricsRegistry;
 import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.ratelimit.RateLimitHandler;
+import com.gmpatter.shorty.redirect.HttpCachePolicy;
+import com.gmpatter.shorty.redirect.RedirectHandler;
+import com.gmpatter.shorty.replication.ReplicationService;
 import com.gmpatter.shorty.rest.ShortyV1Application;
+import com.gmpatter.shorty.rest.UrlRoutingService;
+import com.gmpatter.shorty.security.SharedSecretHandler;
 import com.gmpatter.shorty.service.UrlService;
 import io.helidon.common.http.Http;
 import io.helidon.config.Config;
 import io.helidon.openapi.OpenAPISupport;
+import io.helidon.webserver.Handler;
 import io.helidon.webserver.Routing;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
 import io.helidon.webserver.WebServer;
 import io.helidon.webserver.jersey.JerseySupport;
 import io.helidon.webserver.staticcontent.StaticContentSupport;
 
+import java.util.concurrent.ExecutorService;
+
 import static io.helidon.config.ConfigSources.classpath;
 
 /**
@@ -20,6 +36,10 @@ import static io.helidon.config.ConfigSources.classpath;
  */
 public class ServerMain {
 
+  static final int DEFAULT_PLATFORM_THREADS = 32;
+
+  private static final Histogram SERVICE_REDIRECT_LATENCY = UrlService.operationLatency("redirect");
+
   public static void main(String[] args) {
     // Initialize Helidon config, including classpath application.yaml
     // containing our default configuration
@@ -35,39 +55,134 @@ public class ServerMain {
    * @return the web server instance.
    */
   public static WebServer startServer(Config config) {
+    return startServer(config, UrlService.getInstance());
+  }
+
+  /**
+   * Start and return a Helidon web server using the given url service, so
+   * several servers with their own repositories can run in one process, such
+   * as the members of a local cluster.
+   *
+   * @param config the root configuration
+   * @param urlService the url service for the server's requests
+   * @return the web server instance.
+   */
+  public static WebServer startServer(Config config, UrlService urlService) {
+    // Run blocking request handling on platform or virtual threads
+    Config executionConfig = config.get("shorty.execution");
+    ExecutionMode executionMode = ExecutionMode.of(executionConfig.get("mode").asString().orElse("platform"));
+    ExecutorService executor = executionMode.createExecutor(
+        executionConfig.get("platform-threads").asInt().orElse(DEFAULT_PLATFORM_THREADS), "shorty-request");
+
+    // The redirect status, and the caching headers of redirects and lookups
+    HttpCachePolicy cachePolicy = HttpCachePolicy.create(config);
+
+    // Use the fast path redirect handler unless configured otherwise
+    Handler redirectHandler = executionMode.wrap(
+        config.get("shorty.redirect.fast-path").asBoolean().orElse(true)
+            ? new RedirectHandler(urlService, cachePolicy,
+                config.get("shorty.rate-limit.trust-forwarded-for").asBoolean().orElse(false))
+            : (req, res) -> serviceRedirect(urlService, req, res),
+        executor);
+
+    Routing.Builder routing = Routing.builder();
+    // Shed load beyond an adaptive limit on requests in flight, ahead of
+    // every other handler so rejected requests cost as little as possible
+    ConcurrencyLimitHandler concurrencyLimitHandler = ConcurrencyLimitHandler.create(
+        config.get("shorty.concurrency-limit"));
+    if (concurrencyLimitHandler != null) {
+      routing.any(concurrencyLimitHandler);
+    }
+    routing
+        // Register our static content routing to render the UI
+        .register("/", StaticContentSupport.builder("/web/static")
+            .welcomeFileName("layout/index.html")
+            .build())
+        // Redirect request handling, redirect requests to
+        // "/go/{token}" to the original url for the token
+        .get("/go/{token}", redirectHandler)
+        // Metrics in the Prometheus text format
+        .get("/metrics", new MetricsHandler(MetricsRegistry.getInstance()))
+        // Register OpenApi support
+        .register(OpenAPISupport.create(config));
+    // Exports and imports read and write every url, so are only for callers
+    // with the admin secret, and rejected if there isn't one
+    Handler adminOnly = new SharedSecretHandler(config.get("shorty.admin.secret").asString().orElse(null), "admin");
+    routing.get("/shorty/v1/url/export", adminOnly)
+        .post("/shorty/v1/url/import", adminOnly);
+    // Rate limit each client's creates and deletes, ahead of either url api
+    RateLimitHandler rateLimitHandler = RateLimitHandler.create(config.get("shorty.rate-limit"));
+    if (rateLimitHandler != null) {
+      routing.post("/shorty/v1/url[/{*}]", rateLimitHandler)
+          .delete("/shorty/v1/url/{*}", rateLimitHandler);
+    }
+    // Serve the url api with the jaxrs application, or directly on the routing
+    String restImplementation = config.get("shorty.rest.implementation").asString().orElse("jaxrs");
+    switch (restImplementation) {
+      case "jaxrs":
+        routing.register("/shorty/v1", JerseySupport.builder(new ShortyV1Application(urlService, cachePolicy))
+            .executorService(executor)
+            .build());
+        break;
+      case "native":
+        routing.register("/shorty/v1", new UrlRoutingService(urlService, cachePolicy, executor));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown rest implementation " + restImplementation + ".");
+    }
+    // Endpoints the other cluster members forward to, when clustered, only
+    // for callers with the cluster secret
+    if (urlService.getShardedRepository() != null) {
+      routing.any(ClusterService.CONTEXT_ROOT + "[/{+}]",
+              new SharedSecretHandler(config.get("shorty.cluster.secret").asString().get(), "cluster"))
+          .register(ClusterService.CONTEXT_ROOT, new ClusterService(urlService.getShardedRepository()));
+    }
+    // Changes and snapshots for the followers, only for callers with the
+    // replication secret, or a follower's status, when replicated
+    if (urlService.getLeaderRepository() != null) {
+      Handler followersOnly = new SharedSecretHandler(config.get("shorty.replication.secret").asString().get(),
+          "replication");
+      routing.get(ReplicationService.CONTEXT_ROOT + "/changes", followersOnly)
+          .get(ReplicationService.CONTEXT_ROOT + "/snapshot", followersOnly)
+          .register(ReplicationService.CONTEXT_ROOT, new ReplicationService(urlService.getLeaderRepository()));
+    } else if (urlService.getFollowerRepository() != null) {
+      routing.register(ReplicationService.CONTEXT_ROOT, new ReplicationService(urlService.getFollowerRepository()));
+    }
+
     // Build and start the Helidon server registering our JAXRS application
-    WebServer webServer = WebServer.builder(
-            Routing.builder()
-                // Register our static content routing to render the UI
-                .register("/", StaticContentSupport.builder("/web/static")
-                    .welcomeFileName("layout/index.html")
-                    .build())
-                // Redirect request handling, redirect requests to
-                // "/go/{token}" to the original url for the token
-                .get("/go/{token}", (req, res) -> {
-                  String token = req.path().param("token");
-                  ShortUrl url = UrlService.getInstance().getUrl(token);
-                  // If url isn't found then return a 404
-                  if (url == null) {
-                    res.status(Http.Status.NOT_FOUND_404);
-                    res.send();
-                  } else {
-                    // Return a redirect to the original URL
-                    // retrieved from the url service
-                    res.status(Http.Status.MOVED_PERMANENTLY_301);
-                    res.addHeader(Http.Header.LOCATION, url.getOriginalUrl());
-                    res.send();
-                  }
-                })
-                // Registry or shorty jaxrs application with the web server
-                .register("/shorty/v1", JerseySupport.create(new ShortyV1Application()))
-                // Register OpenApi support
-                .register(OpenAPISupport.create(config))
-                .build())
+    WebServer webServer = WebServer.builder(routing.build())
         // Pass any "server" configuration (e.g. port) to the web server builder
         .config(config.get("server"))
         .build();
+    webServer.whenShutdown().thenRun(executor::shutdown);
     webServer.start();
     return webServer;
   }
+
+  /**
+   * The original redirect request handling, kept as it was for comparison
+   * with the {@link RedirectHandler} fast path: a blocking, logged lookup of
+   * the short url, and a 301 without caching headers or click counting.
+   *
+   * @param urlService the url service
+   * @param req the server request
+   * @param res the server response
+   */
+  static void serviceRedirect(UrlService urlService, ServerRequest req, ServerResponse res) {
+    long start = System.nanoTime();
+    String token = req.path().param("token");
+    ShortUrl url = urlService.getUrl(token);
+    // If url isn't found then return a 404
+    if (url == null) {
+      res.status(Http.Status.NOT_FOUND_404);
+      res.send();
+    } else {
+      // Return a redirect to the original URL
+      // retrieved from the url service
+      res.status(Http.Status.MOVED_PERMANENTLY_301);
+      res.addHeader(Http.Header.LOCATION, url.getOriginalUrl());
+      res.send();
+    }
+    SERVICE_REDIRECT_LATENCY.recordSince(start);
+  }
 }
@@ -0,0 +1,298 @@
+package com.gmpatter.shorty.cluster;
+
+import com.gmpatter.shorty.persistence.UrlArchive;
+import io.helidon.common.http.Http;
+import io.helidon.common.http.MediaType;
+import io.helidon.webserver.Routing;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+import io.helidon.webserver.Service;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Helidon service for the endpoints the members of a cluster call on each
+ * other, under "/cluster/v1".
+ *
+ * <p>The url endpoints only read and write this member's partition, as the
+ * caller has already found the owner of the token. They return as soon as
+ * the local repository has, so lookups don't block the I/O thread. Batches
+ * and membership changes may block while they are stored or handed over, so
+ * they run on virtual threads.
+ *
+ * <ul>
+ *   <li>GET /urls/{token} - the short url as JSON, or 404</li>
+ *   <li>PUT /urls/{token} - store the short url in the JSON body, or 409 if
+ *       the token is already in use</li>
+ *   <li>DELETE /urls/{token} - delete the short url</li>
+ *   <li>POST /urls - store the short urls in the NDJSON body, returning the
+ *       tokens that were already in use as a JSON array under "inUse"</li>
+ *   <li>GET /members - this member, the members, and the local url count</li>
+ *   <li>PUT /members - change the members to the JSON array in the body, on
+ *       every member unless announce=false, returning once the urls have
+ *       been handed over</li>
+ * </ul>
+ *
+ * <p>These endpoints aren't public, so are routed behind a
+ * {@link com.gmpatter.shorty.security.SharedSecretHandler} requiring the
+ * cluster secret. The members also name themselves in the
+ * <code>X-Shorty-Member</code> header, and requests from members this member
+ * doesn't know are rejected with a 403. Only an operator's membership change,
+ * which is announced to every member, is accepted without the header.
+ *
+ * @author Gareth Patterson
+ */
+public class ClusterService implements Service {
+
+  public static final String CONTEXT_ROOT = "/cluster/v1";
+  public static final String MEMBER_HEADER = "X-Shorty-Member";
+  // The field of a batch store's response listing the tokens already in use
+  static final String IN_USE_FIELD = "inUse";
+
+  private final ShardedUrlRepository repository;
+  // Runs batch stores and handoffs, which wait on the repository and other members
+  private final ExecutorService executor =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("shorty-cluster-", 0).factory());
+
+  /**
+   * Creates the service.
+   *
+   * @param repository the sharded repository of this member
+   */
+  public ClusterService(ShardedUrlRepository repository) {
+    this.repository = repository;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void update(Routing.Rules rules) {
+    rules.any("/urls[/{*}]", this::requireKnownMember)
+        .get("/urls/{token}", this::getUrl)
+        .put("/urls/{token}", this::createUrl)
+        .delete("/urls/{token}", this::deleteUrl)
+        .post("/urls", this::createUrls)
+        .get("/members", this::getMembers)
+        .put("/members", this::setMembers);
+  }
+
+  /**
+   * Passes url operations on if they come from a known member, otherwise
+   * rejects them.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void requireKnownMember(ServerRequest req, ServerResponse res) {
+    String member = req.headers().first(MEMBER_HEADER).orElse(null);
+    if (member != null && repository.isKnownMember(member)) {
+      req.next();
+    } else {
+      forbidden(res, member);
+    }
+  }
+
+  /**
+   * Returns the short url for the token from the local partition.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void getUrl(ServerRequest req, ServerResponse res) {
+    repository.getLocalAsyncRepository().getUrl(req.path().param("token"))
+        .whenComplete((shortUrl, error) -> {
+          if (error != null) {
+            req.next(error);
+          } else if (shortUrl == null) {
+            res.status(Http.Status.NOT_FOUND_404).send();
+          } else {
+            res.headers().contentType(MediaType.APPLICATION_JSON);
+            res.send(HttpShardClient.toJson(shortUrl).toString());
+          }
+        });
+  }
+
+  /**
+   * Stores the short url in the body in the local partition.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void createUrl(ServerRequest req, ServerResponse res) {
+    req.content().as(String.class)
+        .thenCompose(body -> {
+          try (JsonReader reader = Json.createReader(new StringReader(body))) {
+            return repository.getLocalAsyncRepository().createUrl(HttpShardClient.fromJson(reader.readObject()));
+          }
+        })
+        .whenComplete((shortUrl, error) -> {
+          if (error == null && shortUrl == null) {
+            res.status(Http.Status.CONFLICT_409).send();
+          } else {
+            respond(req, res, error);
+          }
+        });
+  }
+
+  /**
+   * Deletes the short url for the token from the local partition.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void deleteUrl(ServerRequest req, ServerResponse res) {
+    repository.deleteLocalUrl(req.path().param("token"))
+        .whenComplete((ignored, error) -> respond(req, res, error));
+  }
+
+  /**
+   * Stores the batch of short urls in the body in the local partition,
+   * returning the tokens that were already in use.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void createUrls(ServerRequest req, ServerResponse res) {
+    req.content().as(byte[].class)
+        .thenCompose(body -> CompletableFuture.supplyAsync(() -> {
+          JsonArrayBuilder inUse = Json.createArrayBuilder();
+          try {
+            UrlArchive.importUrls(new ByteArrayInputStream(body), repository.getLocalRepository(),
+                UrlArchive.Format.NDJSON, null, shortUrl -> inUse.add(shortUrl.getToken()));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          return Json.createObjectBuilder().add(IN_USE_FIELD, inUse).build().toString();
+        }, executor))
+        .whenComplete((json, error) -> {
+          if (error != null) {
+            req.next(error);
+            return;
+          }
+          res.headers().contentType(MediaType.APPLICATION_JSON);
+          res.send(json);
+        });
+  }
+
+  /**
+   * Returns this member, the members of the cluster, and the number of urls
+   * in the local partition.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void getMembers(ServerRequest req, ServerResponse res) {
+    JsonArrayBuilder members = Json.createArrayBuilder();
+    repository.getMembers().forEach(members::add);
+    res.headers().contentType(MediaType.APPLICATION_JSON);
+    res.send(Json.createObjectBuilder()
+        .add("self", repository.getSelf())
+        .add("members", members)
+        .add("urls", repository.getLocalRepository().size())
+        .build()
+        .toString());
+  }
+
+  /**
+   * Changes the members of the cluster, returning the number of urls this
+   * member handed over.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void setMembers(ServerRequest req, ServerResponse res) {
+    boolean announce = req.queryParams().first("announce").map(Boolean::parseBoolean).orElse(true);
+    String sender = req.headers().first(MEMBER_HEADER).orElse(null);
+    req.content().as(String.class).thenAccept(body -> {
+      List<String> members;
+      try (JsonReader reader = Json.createReader(new StringReader(body))) {
+        members = reader.readArray().getValuesAs(JsonString.class).stream()
+            .map(JsonString::getString)
+            .collect(Collectors.toList());
+      } catch (JsonException | ClassCastException e) {
+        res.status(Http.Status.BAD_REQUEST_400).send("The body must be a JSON array of member addresses.");
+        return;
+      }
+      String invalid = members.stream().filter(member -> !isAddress(member)).findFirst().orElse(null);
+      if (invalid != null) {
+        res.status(Http.Status.BAD_REQUEST_400).send("Member " + invalid + " isn't an http or https address.");
+        return;
+      }
+      // Members announcing a change must be known before or after it, and
+      // only an operator's announcement comes without a member
+      if (sender == null ? !announce : !repository.isKnownMember(sender) && !members.contains(sender)) {
+        forbidden(res, sender);
+        return;
+      }
+      CompletableFuture.supplyAsync(
+              () -> announce ? repository.announceMembers(members) : repository.setMembers(members), executor)
+          .whenComplete((count, error) -> {
+            if (error != null) {
+              req.next(error);
+            } else {
+              res.headers().contentType(MediaType.APPLICATION_JSON);
+              res.send(Json.createObjectBuilder().add("handedOver", count).build().toString());
+            }
+          });
+    }).exceptionally(error -> {
+      req.next(error);
+      return null;
+    });
+  }
+
+  /**
+   * Returns true if a member address is an absolute http or https uri.
+   *
+   * @param member the member address
+   * @return true if the address is valid.
+   */
+  private static boolean isAddress(String member) {
+    try {
+      URI uri = new URI(member);
+      return ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) && uri.getHost() != null;
+    } catch (URISyntaxException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Rejects a request from a member this member doesn't know.
+   *
+   * @param res the server response
+   * @param member the member the request came from, or null
+   */
+  private static void forbidden(ServerResponse res, String member) {
+    res.status(Http.Status.FORBIDDEN_403).send("Unknown cluster member " + member + ".");
+  }
+
+  /**
+   * Sends an empty response, or passes the error on to the routing.
+   *
+   * @param req the server request
+   * @param res the server response
+   * @param error the error, or null if the operation succeeded
+   */
+  private static void respond(ServerRequest req, ServerResponse res, Throwable error) {
+    if (error != null) {
+      req.next(error);
+    } else {
+      res.status(Http.Status.NO_CONTENT_204).send();
+    }
+  }
+}
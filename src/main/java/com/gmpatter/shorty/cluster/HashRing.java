@@ -0,0 +1,101 @@
+package com.gmpatter.shorty.cluster;
+
+import com.gmpatter.shorty.stats.Hashing;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * An immutable consistent hash ring assigning tokens to cluster members.
+ *
+ * <p>Each member is placed at a number of virtual node positions on a ring of
+ * 64 bit hashes, and a token belongs to the member at the first position at
+ * or after the token's hash. With enough virtual nodes each member owns close
+ * to an equal share of the ring, and when a member joins or leaves only the
+ * tokens next to its positions change owner, about 1/N of them.
+ *
+ * <p>Positions are kept in a sorted array, so finding an owner is a binary
+ * search without allocating. Membership changes build a new ring.
+ *
+ * @author Gareth Patterson
+ */
+public final class HashRing {
+
+  private final List<String> members;
+  private final int virtualNodes;
+  private final long[] positions;
+  // The index in members of the member at each position
+  private final int[] owners;
+
+  /**
+   * Creates a ring.
+   *
+   * @param members the addresses of the members, which must be distinct
+   * @param virtualNodes the number of positions for each member
+   * @throws IllegalArgumentException if there are no members, a member is
+   *     repeated, or the number of virtual nodes isn't positive
+   */
+  public HashRing(List<String> members, int virtualNodes) {
+    if (members.isEmpty()) {
+      throw new IllegalArgumentException("A hash ring needs at least one member.");
+    }
+    if (new LinkedHashSet<>(members).size() != members.size()) {
+      throw new IllegalArgumentException("Hash ring members must be distinct.");
+    }
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("A hash ring needs at least one virtual node per member.");
+    }
+    this.members = List.copyOf(members);
+    this.virtualNodes = virtualNodes;
+    int size = members.size() * virtualNodes;
+    // Sort the positions with their owners packed alongside, so ties are broken by member
+    long[][] entries = new long[size][];
+    for (int member = 0; member < members.size(); member++) {
+      for (int i = 0; i < virtualNodes; i++) {
+        entries[member * virtualNodes + i] = new long[] {
+            Hashing.hash(members.get(member) + "#" + i), member};
+      }
+    }
+    Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    positions = new long[size];
+    owners = new int[size];
+    for (int i = 0; i < size; i++) {
+      positions[i] = entries[i][0];
+      owners[i] = (int) entries[i][1];
+    }
+  }
+
+  /**
+   * Returns the member that owns the token.
+   *
+   * @param token the token
+   * @return the address of the owning member.
+   */
+  public String ownerOf(String token) {
+    int index = Arrays.binarySearch(positions, Hashing.hash(token));
+    if (index < 0) {
+      index = -index - 1;
+    }
+    // Past the last position wraps around to the first
+    return members.get(owners[index == positions.length ? 0 : index]);
+  }
+
+  /**
+   * Returns the members of the ring.
+   *
+   * @return the addresses of the members, in the order they were given.
+   */
+  public List<String> getMembers() {
+    return members;
+  }
+
+  /**
+   * Returns the number of positions for each member.
+   *
+   * @return the number of virtual nodes.
+   */
+  public int getVirtualNodes() {
+    return virtualNodes;
+  }
+}
@@ -0,0 +1,251 @@
+package com.gmpatter.shorty.cluster;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.UrlArchive;
+import com.gmpatter.shorty.security.SharedSecretHandler;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A {@link ShardClient} that calls the other members' {@link ClusterService}
+ * endpoints over HTTP, without blocking.
+ *
+ * <p>Short urls are sent as JSON objects with the same fields as a
+ * {@link UrlArchive}, and batches in the archive's NDJSON format. Every
+ * request carries the cluster secret, and names this member so the other
+ * members can reject members they don't know.
+ *
+ * @author Gareth Patterson
+ */
+public class HttpShardClient implements ShardClient {
+
+  private static final String JSON = "application/json";
+  private static final String NDJSON = "application/x-ndjson";
+
+  private final String self;
+  private final String authorization;
+  private final HttpClient httpClient;
+  private final Duration timeout;
+
+  /**
+   * Creates a client.
+   *
+   * @param self the address of this member, as the other members know it
+   * @param secret the secret shared by the members
+   * @param timeoutMillis the time to wait for a member to answer a url
+   *     operation, membership changes wait for as long as the handoff takes
+   */
+  public HttpShardClient(String self, String secret, long timeoutMillis) {
+    this.self = self;
+    this.authorization = SharedSecretHandler.authorization(secret);
+    this.timeout = Duration.ofMillis(timeoutMillis);
+    // Members talk plain HTTP/1.1, so don't try to upgrade each connection
+    this.httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(timeout)
+        .build();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<ShortUrl> getUrl(String member, String token) {
+    HttpRequest request = request(urlUri(member, token))
+        .timeout(timeout)
+        .GET()
+        .build();
+    return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        .thenCompose(response -> {
+          if (response.statusCode() == 404) {
+            return CompletableFuture.completedStage(null);
+          }
+          if (response.statusCode() != 200) {
+            return CompletableFuture.failedStage(failure(member, response));
+          }
+          try (JsonReader reader = Json.createReader(new StringReader(response.body()))) {
+            return CompletableFuture.completedStage(fromJson(reader.readObject()));
+          }
+        });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<ShortUrl> createUrl(String member, ShortUrl shortUrl) {
+    HttpRequest request = request(urlUri(member, shortUrl.getToken()))
+        .timeout(timeout)
+        .header("Content-Type", JSON)
+        .PUT(HttpRequest.BodyPublishers.ofString(toJson(shortUrl).toString()))
+        .build();
+    return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+        .thenCompose(response -> {
+          if (response.statusCode() == 409) {
+            return CompletableFuture.completedStage(null);
+          }
+          return response.statusCode() / 100 == 2
+              ? CompletableFuture.completedStage(shortUrl)
+              : CompletableFuture.failedStage(failure(member, response));
+        });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<BitSet> createUrls(String member, List<ShortUrl> shortUrls) {
+    StringBuilder body = new StringBuilder(shortUrls.size() * 64);
+    for (ShortUrl shortUrl : shortUrls) {
+      body.append(toJson(shortUrl)).append('\n');
+    }
+    HttpRequest request = request(URI.create(member + ClusterService.CONTEXT_ROOT + "/urls"))
+        .timeout(timeout)
+        .header("Content-Type", NDJSON)
+        .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+        .build();
+    return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        .thenCompose(response -> {
+          if (response.statusCode() != 200) {
+            return CompletableFuture.failedStage(failure(member, response));
+          }
+          Map<String, Integer> indexes = new HashMap<>();
+          for (int i = 0; i < shortUrls.size(); i++) {
+            indexes.put(shortUrls.get(i).getToken(), i);
+          }
+          BitSet inUse = new BitSet();
+          try (JsonReader reader = Json.createReader(new StringReader(response.body()))) {
+            for (JsonString token : reader.readObject().getJsonArray(ClusterService.IN_USE_FIELD)
+                .getValuesAs(JsonString.class)) {
+              Integer index = indexes.get(token.getString());
+              if (index != null) {
+                inUse.set(index);
+              }
+            }
+          }
+          return CompletableFuture.completedStage(inUse);
+        });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<Void> deleteUrl(String member, String token) {
+    return send(member, request(urlUri(member, token))
+        .timeout(timeout)
+        .DELETE()
+        .build());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<Void> setMembers(String member, List<String> members) {
+    JsonArrayBuilder array = Json.createArrayBuilder();
+    members.forEach(array::add);
+    return send(member, request(
+            URI.create(member + ClusterService.CONTEXT_ROOT + "/members?announce=false"))
+        .header("Content-Type", JSON)
+        .PUT(HttpRequest.BodyPublishers.ofString(array.build().toString()))
+        .build());
+  }
+
+  /**
+   * Converts a short url to the JSON sent between members.
+   *
+   * @param shortUrl the short url
+   * @return the JSON object.
+   */
+  static JsonObject toJson(ShortUrl shortUrl) {
+    return Json.createObjectBuilder()
+        .add(UrlArchive.TOKEN_FIELD, shortUrl.getToken())
+        .add(UrlArchive.URL_FIELD, shortUrl.getOriginalUrl())
+        .add(UrlArchive.EXPIRY_TIME_FIELD, shortUrl.getExpiryTime())
+        .build();
+  }
+
+  /**
+   * Converts the JSON sent between members to a short url.
+   *
+   * @param json the JSON object
+   * @return the short url.
+   */
+  static ShortUrl fromJson(JsonObject json) {
+    return new ShortUrl.Builder()
+        .token(json.getString(UrlArchive.TOKEN_FIELD))
+        .originalUrl(json.getString(UrlArchive.URL_FIELD))
+        .expiryTime(json.getJsonNumber(UrlArchive.EXPIRY_TIME_FIELD).longValue())
+        .build();
+  }
+
+  /**
+   * Starts building a request to a member, with the cluster secret and this
+   * member's address.
+   *
+   * @param uri the uri on the member
+   * @return the request builder.
+   */
+  private HttpRequest.Builder request(URI uri) {
+    return HttpRequest.newBuilder(uri)
+        .header("Authorization", authorization)
+        .header(ClusterService.MEMBER_HEADER, self);
+  }
+
+  /**
+   * Sends a request whose response has no body.
+   *
+   * @param member the address of the member
+   * @param request the request
+   * @return a stage completed when the member has answered with success.
+   */
+  private CompletionStage<Void> send(String member, HttpRequest request) {
+    return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+        .thenCompose(response -> response.statusCode() / 100 == 2
+            ? CompletableFuture.<Void>completedStage(null)
+            : CompletableFuture.failedStage(failure(member, response)));
+  }
+
+  /**
+   * Returns the uri of a short url on a member.
+   *
+   * @param member the address of the member
+   * @param token the token for the short url
+   * @return the uri.
+   */
+  private static URI urlUri(String member, String token) {
+    return URI.create(member + ClusterService.CONTEXT_ROOT + "/urls/"
+        + URLEncoder.encode(token, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the error for a member answering with a failure.
+   *
+   * @param member the address of the member
+   * @param response the response
+   * @return the error.
+   */
+  private static IOException failure(String member, HttpResponse<?> response) {
+    return new IOException("Cluster member " + member + " returned status " + response.statusCode() + ".");
+  }
+}
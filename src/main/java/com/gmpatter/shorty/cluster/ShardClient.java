@@ -0,0 +1,69 @@
+package com.gmpatter.shorty.cluster;
+
+import com.gmpatter.shorty.model.ShortUrl;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Sends repository operations to the partition held by another member of the
+ * cluster.
+ *
+ * <p>Operations return stages that complete exceptionally with an
+ * {@link java.io.IOException} if the member can't be reached or fails the
+ * request.
+ *
+ * @author Gareth Patterson
+ */
+public interface ShardClient {
+
+  /**
+   * Returns the short url for the given token from a member.
+   *
+   * @param member the address of the member
+   * @param token the token for the short url
+   * @return a stage completed with the short url, or null if the member
+   *     doesn't have it.
+   */
+  CompletionStage<ShortUrl> getUrl(String member, String token);
+
+  /**
+   * Stores a short url on a member.
+   *
+   * @param member the address of the member
+   * @param shortUrl the short url
+   * @return a stage completed with the short url when it has been stored,
+   *     or with null if its token was already in use on the member.
+   */
+  CompletionStage<ShortUrl> createUrl(String member, ShortUrl shortUrl);
+
+  /**
+   * Stores a batch of short urls on a member, for bulk creates and for
+   * handing urls over when the cluster is rebalanced.
+   *
+   * @param member the address of the member
+   * @param shortUrls the short urls
+   * @return a stage completed when the urls have been stored, with the
+   *     indexes of the urls whose token was already in use on the member.
+   */
+  CompletionStage<BitSet> createUrls(String member, List<ShortUrl> shortUrls);
+
+  /**
+   * Deletes the short url for the given token from a member.
+   *
+   * @param member the address of the member
+   * @param token the token for the short url
+   * @return a stage completed when the url has been deleted.
+   */
+  CompletionStage<Void> deleteUrl(String member, String token);
+
+  /**
+   * Tells a member about a change to the members of the cluster.
+   *
+   * @param member the address of the member to tell
+   * @param members the addresses of the new members
+   * @return a stage completed when the member has accepted the change.
+   */
+  CompletionStage<Void> setMembers(String member, List<String> members);
+}
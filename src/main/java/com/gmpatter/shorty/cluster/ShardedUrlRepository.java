@@ -0,0 +1,613 @@
+package com.gmpatter.shorty.cluster;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.AsyncUrlRepository;
+import com.gmpatter.shorty.persistence.AsyncUrlRepositoryAdapter;
+import com.gmpatter.shorty.persistence.UrlRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A {@link UrlRepository} partitioned across the members of a cluster by a
+ * consistent {@link HashRing}.
+ *
+ * <p>Each member holds the urls whose tokens it owns in its local repository.
+ * Operations on a token owned by another member are forwarded to it with a
+ * {@link ShardClient}, so any member can serve any request. Purges, scans,
+ * and sizes only cover the local partition, as each member purges and reports
+ * on its own urls.
+ *
+ * <p>When the members change, each member hands the urls it no longer owns
+ * over to their new owners in batches. Until that has finished a url may
+ * still be on its previous owner, so for a grace period after a change a
+ * lookup that misses on the owner is retried on the previous owner, and
+ * deletes are sent to both, the previous owner first. The previous owner
+ * remembers the tokens deleted while it is handing urls over, skips them,
+ * and deletes any that reached the new owner in a batch, so a handoff
+ * doesn't bring a deleted url back.
+ *
+ * @author Gareth Patterson
+ */
+public class ShardedUrlRepository implements UrlRepository {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardedUrlRepository.class);
+
+  static final int HANDOFF_BATCH_SIZE = 1000;
+
+  private final String self;
+  private final UrlRepository local;
+  private final AsyncUrlRepository localAsync;
+  private final ShardClient client;
+  private final long handoffGraceMillis;
+  // Used by the blocking operations, which may wait on the local repository
+  private final AsyncUrlRepository inline;
+
+  private volatile HashRing ring;
+  // The ring before the last membership change, while it may still hold urls
+  private volatile HashRing previousRing;
+  private volatile long previousRingExpiry;
+
+  // Held while changing members, a lock rather than synchronized so a
+  // virtual thread waiting on the other members doesn't pin its carrier
+  private final ReentrantLock membershipLock = new ReentrantLock();
+  // The tokens deleted from the local partition while handing urls over
+  private final Set<String> handoffDeletes = ConcurrentHashMap.newKeySet();
+  private volatile boolean handingOff;
+
+  private final LongAdder forwards = new LongAdder();
+  private final LongAdder handoffs = new LongAdder();
+
+  /**
+   * Creates a sharded repository.
+   *
+   * @param self the address of this member, as the other members know it
+   * @param members the addresses of the members
+   * @param virtualNodes the number of hash ring positions for each member
+   * @param local the repository holding this member's partition
+   * @param localAsync the same repository adapted to the non-blocking API
+   * @param client the client for forwarding to the other members
+   * @param handoffGraceMillis how long after a membership change lookups
+   *     fall back to the previous owner
+   */
+  public ShardedUrlRepository(String self, List<String> members, int virtualNodes, UrlRepository local,
+                              AsyncUrlRepository localAsync, ShardClient client, long handoffGraceMillis) {
+    this.self = self;
+    this.local = local;
+    this.localAsync = localAsync;
+    this.client = client;
+    this.handoffGraceMillis = handoffGraceMillis;
+    this.ring = new HashRing(members, virtualNodes);
+    this.inline = new ShardedAsyncUrlRepository(AsyncUrlRepositoryAdapter.inline(local));
+  }
+
+  /**
+   * Returns a non-blocking view of the repository, which applies local
+   * operations to the local repository's non-blocking view.
+   *
+   * @return the non-blocking repository.
+   */
+  public AsyncUrlRepository async() {
+    return new ShardedAsyncUrlRepository(localAsync);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl getUrl(String token) {
+    return await(inline.getUrl(token));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    return await(inline.getOriginalUrl(token));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl createUrl(ShortUrl shortUrl) {
+    return await(inline.createUrl(shortUrl));
+  }
+
+  /**
+   * Creates the short urls, sending each member its urls in one batch and
+   * waiting for all of them.
+   *
+   * @param shortUrls the short urls to create
+   * @return the indexes of the urls whose token was already in use on their
+   *     owner.
+   */
+  @Override
+  public BitSet createUrls(List<ShortUrl> shortUrls) {
+    HashRing current = ring;
+    Map<String, List<Integer>> byOwner = new LinkedHashMap<>();
+    for (int i = 0; i < shortUrls.size(); i++) {
+      byOwner.computeIfAbsent(current.ownerOf(shortUrls.get(i).getToken()), owner -> new ArrayList<>()).add(i);
+    }
+    BitSet skipped = new BitSet();
+    List<CompletableFuture<Void>> pending = new ArrayList<>();
+    for (Map.Entry<String, List<Integer>> entry : byOwner.entrySet()) {
+      List<Integer> indexes = entry.getValue();
+      List<ShortUrl> urls = new ArrayList<>(indexes.size());
+      for (int index : indexes) {
+        urls.add(shortUrls.get(index));
+      }
+      if (entry.getKey().equals(self)) {
+        addSkipped(skipped, indexes, local.createUrls(urls));
+      } else {
+        forwards.increment();
+        pending.add(client.createUrls(entry.getKey(), urls)
+            .thenAccept(ownerSkipped -> addSkipped(skipped, indexes, ownerSkipped))
+            .toCompletableFuture());
+      }
+    }
+    await(CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])));
+    return skipped;
+  }
+
+  /**
+   * Adds the urls one owner skipped to the urls skipped from the whole
+   * batch.
+   *
+   * @param skipped the indexes skipped from the whole batch
+   * @param indexes the index in the whole batch of each url sent to the owner
+   * @param ownerSkipped the indexes the owner skipped from its urls
+   */
+  private static void addSkipped(BitSet skipped, List<Integer> indexes, BitSet ownerSkipped) {
+    synchronized (skipped) {
+      ownerSkipped.stream().forEach(i -> skipped.set(indexes.get(i)));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void deleteUrl(String token) {
+    await(inline.deleteUrl(token));
+  }
+
+  /**
+   * Purges expired urls from the local partition.
+   */
+  @Override
+  public void purgeExpiredUrls() {
+    local.purgeExpiredUrls();
+  }
+
+  /**
+   * Performs the action for each url in the local partition.
+   *
+   * @param action the action to perform
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    local.forEachUrl(action);
+  }
+
+  /**
+   * Returns the number of urls in the local partition.
+   *
+   * @return the number of urls.
+   */
+  @Override
+  public int size() {
+    return local.size();
+  }
+
+  /**
+   * Returns the number of expired urls in the local partition.
+   *
+   * @param currentTime the current time in milliseconds
+   * @return the number of expired urls.
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    return local.countExpired(currentTime);
+  }
+
+  /**
+   * Changes the members of the cluster and hands the local urls that now
+   * belong to other members over to them. Calling this again with the same
+   * members hands over any urls written to this member while the cluster was
+   * changing.
+   *
+   * <p>This only changes this member, see {@link #announceMembers(List)}.
+   *
+   * @param members the addresses of the new members, without this member if
+   *     it is leaving the cluster
+   * @return the number of urls handed over.
+   * @throws UncheckedIOException if a member couldn't take its urls, in which
+   *     case the urls that weren't handed over are kept
+   */
+  public long setMembers(List<String> members) {
+    membershipLock.lock();
+    try {
+      return changeMembers(members);
+    } finally {
+      membershipLock.unlock();
+    }
+  }
+
+  /**
+   * Changes the members and hands urls over, with the membership lock held.
+   *
+   * @param members the addresses of the new members
+   * @return the number of urls handed over.
+   */
+  private long changeMembers(List<String> members) {
+    handingOff = true;
+    try {
+      return handOff(members);
+    } finally {
+      handingOff = false;
+      handoffDeletes.clear();
+    }
+  }
+
+  /**
+   * Changes the ring and hands urls over, with deletes being remembered.
+   *
+   * @param members the addresses of the new members
+   * @return the number of urls handed over.
+   */
+  private long handOff(List<String> members) {
+    HashRing next = new HashRing(members, ring.getVirtualNodes());
+    if (!next.getMembers().equals(ring.getMembers())) {
+      previousRing = ring;
+      previousRingExpiry = System.currentTimeMillis() + handoffGraceMillis;
+      ring = next;
+      LOGGER.info("Cluster members changed to {}.", members);
+    }
+
+    // Collect the urls to move first, as the local repository may not allow
+    // deleting while it is being scanned
+    List<ShortUrl> moving = new ArrayList<>();
+    local.forEachUrl(shortUrl -> {
+      if (!next.ownerOf(shortUrl.getToken()).equals(self)) {
+        moving.add(shortUrl);
+      }
+    });
+    long count = 0;
+    for (Map.Entry<String, List<ShortUrl>> entry : groupByOwner(moving, next).entrySet()) {
+      List<ShortUrl> urls = entry.getValue();
+      long handed = 0;
+      for (int from = 0; from < urls.size(); from += HANDOFF_BATCH_SIZE) {
+        List<ShortUrl> batch = new ArrayList<>(HANDOFF_BATCH_SIZE);
+        for (ShortUrl shortUrl : urls.subList(from, Math.min(from + HANDOFF_BATCH_SIZE, urls.size()))) {
+          if (!handoffDeletes.contains(shortUrl.getToken())) {
+            batch.add(shortUrl);
+          }
+        }
+        await(client.createUrls(entry.getKey(), batch));
+        // A url deleted while the batch was on its way may have reached the
+        // new owner after the delete did
+        for (ShortUrl shortUrl : batch) {
+          if (handoffDeletes.contains(shortUrl.getToken())) {
+            await(client.deleteUrl(entry.getKey(), shortUrl.getToken()));
+          }
+          local.deleteUrl(shortUrl.getToken());
+        }
+        handed += batch.size();
+        handoffs.add(batch.size());
+      }
+      count += handed;
+      LOGGER.info("Handed {} urls over to {}.", handed, entry.getKey());
+    }
+    return count;
+  }
+
+  /**
+   * Changes the members of the cluster on every current and new member,
+   * including this one, waiting for each of them to hand their urls over.
+   *
+   * @param members the addresses of the new members
+   * @return the number of urls this member handed over.
+   * @throws UncheckedIOException if a member couldn't be changed
+   */
+  public long announceMembers(List<String> members) {
+    Set<String> affected = new LinkedHashSet<>(ring.getMembers());
+    affected.addAll(members);
+    affected.remove(self);
+    List<CompletableFuture<Void>> pending = new ArrayList<>();
+    for (String member : affected) {
+      pending.add(client.setMembers(member, members).toCompletableFuture());
+    }
+    long count = setMembers(members);
+    await(CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])));
+    return count;
+  }
+
+  /**
+   * Returns the member that owns the token.
+   *
+   * @param token the token
+   * @return the address of the owning member.
+   */
+  public String ownerOf(String token) {
+    return ring.ownerOf(token);
+  }
+
+  /**
+   * Returns the members of the cluster.
+   *
+   * @return the addresses of the members.
+   */
+  public List<String> getMembers() {
+    return ring.getMembers();
+  }
+
+  /**
+   * Returns true if the address is a member of the cluster, or was one
+   * before the last membership change and may still be handing urls over.
+   *
+   * @param address the address of the member
+   * @return true if the member is known.
+   */
+  public boolean isKnownMember(String address) {
+    if (ring.getMembers().contains(address)) {
+      return true;
+    }
+    HashRing previous = previousRing();
+    return previous != null && previous.getMembers().contains(address);
+  }
+
+  /**
+   * Returns the address of this member.
+   *
+   * @return the address.
+   */
+  public String getSelf() {
+    return self;
+  }
+
+  /**
+   * Returns the repository holding this member's partition, which the other
+   * members' forwarded operations are applied to.
+   *
+   * @return the local repository.
+   */
+  public UrlRepository getLocalRepository() {
+    return local;
+  }
+
+  /**
+   * Returns the repository holding this member's partition, adapted to the
+   * non-blocking API.
+   *
+   * @return the non-blocking local repository.
+   */
+  public AsyncUrlRepository getLocalAsyncRepository() {
+    return localAsync;
+  }
+
+  /**
+   * Deletes the short url for the token from the local partition, for the
+   * other members' forwarded deletes. A delete during a handoff is
+   * remembered, so the url isn't handed over.
+   *
+   * @param token the token for the short url
+   * @return a stage completed when the url has been deleted.
+   */
+  public CompletionStage<Void> deleteLocalUrl(String token) {
+    return deleteLocalUrl(localAsync, token);
+  }
+
+  /**
+   * Deletes the short url for the token from a view of the local partition.
+   *
+   * @param localAsync the view of the local partition
+   * @param token the token for the short url
+   * @return a stage completed when the url has been deleted.
+   */
+  private CompletionStage<Void> deleteLocalUrl(AsyncUrlRepository localAsync, String token) {
+    if (handingOff) {
+      handoffDeletes.add(token);
+    }
+    return localAsync.deleteUrl(token);
+  }
+
+  /**
+   * Returns the number of operations forwarded to other members.
+   *
+   * @return the forward count.
+   */
+  public long getForwardCount() {
+    return forwards.sum();
+  }
+
+  /**
+   * Returns the number of urls handed over to other members after
+   * membership changes.
+   *
+   * @return the handoff count.
+   */
+  public long getHandoffCount() {
+    return handoffs.sum();
+  }
+
+  /**
+   * Returns the ring before the last membership change, if it is still
+   * within the grace period.
+   *
+   * @return the previous ring, or null.
+   */
+  private HashRing previousRing() {
+    HashRing previous = previousRing;
+    return previous != null && System.currentTimeMillis() < previousRingExpiry ? previous : null;
+  }
+
+  /**
+   * Groups short urls by their owner on a ring.
+   *
+   * @param shortUrls the short urls
+   * @param ring the ring
+   * @return the urls of each owner.
+   */
+  private static Map<String, List<ShortUrl>> groupByOwner(List<ShortUrl> shortUrls, HashRing ring) {
+    Map<String, List<ShortUrl>> byOwner = new LinkedHashMap<>();
+    for (ShortUrl shortUrl : shortUrls) {
+      byOwner.computeIfAbsent(ring.ownerOf(shortUrl.getToken()), owner -> new ArrayList<>()).add(shortUrl);
+    }
+    return byOwner;
+  }
+
+  /**
+   * Waits for a stage, rethrowing a failure to reach a member as an
+   * {@link UncheckedIOException}.
+   *
+   * @param stage the stage
+   * @return the result of the stage.
+   */
+  private static <T> T await(CompletionStage<T> stage) {
+    try {
+      return stage.toCompletableFuture().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw new UncheckedIOException((IOException) e.getCause());
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * A non-blocking view of the repository, applying local operations to a
+   * non-blocking view of the local repository.
+   */
+  private final class ShardedAsyncUrlRepository implements AsyncUrlRepository {
+
+    private final AsyncUrlRepository localAsync;
+
+    /**
+     * Creates a view.
+     *
+     * @param localAsync the local repository adapted to the non-blocking API
+     */
+    ShardedAsyncUrlRepository(AsyncUrlRepository localAsync) {
+      this.localAsync = localAsync;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletionStage<ShortUrl> getUrl(String token) {
+      String owner = ring.ownerOf(token);
+      CompletionStage<ShortUrl> stage = getUrl(owner, token);
+      HashRing previous = previousRing();
+      String previousOwner = previous != null ? previous.ownerOf(token) : owner;
+      if (previousOwner.equals(owner)) {
+        return stage;
+      }
+      // The previous owner may not have handed the url over yet, and may have left
+      return stage.thenCompose(shortUrl -> shortUrl != null
+          ? CompletableFuture.completedStage(shortUrl)
+          : getUrl(previousOwner, token).exceptionally(error -> null));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletionStage<String> getOriginalUrl(String token) {
+      // Only the local repository can look up the url without building a ShortUrl
+      if (ring.ownerOf(token).equals(self) && previousRing() == null) {
+        return localAsync.getOriginalUrl(token);
+      }
+      return getUrl(token).thenApply(shortUrl -> shortUrl != null ? shortUrl.getOriginalUrl() : null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletionStage<ShortUrl> createUrl(ShortUrl shortUrl) {
+      String owner = ring.ownerOf(shortUrl.getToken());
+      if (owner.equals(self)) {
+        return localAsync.createUrl(shortUrl);
+      }
+      forwards.increment();
+      return client.createUrl(owner, shortUrl);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletionStage<Void> deleteUrl(String token) {
+      String owner = ring.ownerOf(token);
+      HashRing previous = previousRing();
+      String previousOwner = previous != null ? previous.ownerOf(token) : owner;
+      if (previousOwner.equals(owner)) {
+        return deleteUrl(owner, token);
+      }
+      // The previous owner first, so that it stops handing the url over, or
+      // deletes it from the owner if it has already sent it. It may have left.
+      return deleteUrl(previousOwner, token).exceptionally(error -> null)
+          .thenCompose(ignored -> deleteUrl(owner, token));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletionStage<Void> purgeExpiredUrls() {
+      return localAsync.purgeExpiredUrls();
+    }
+
+    /**
+     * Returns the short url for the token from a member.
+     *
+     * @param member the address of the member
+     * @param token the token for the short url
+     * @return a stage completed with the short url, or null.
+     */
+    private CompletionStage<ShortUrl> getUrl(String member, String token) {
+      if (member.equals(self)) {
+        return localAsync.getUrl(token);
+      }
+      forwards.increment();
+      return client.getUrl(member, token);
+    }
+
+    /**
+     * Deletes the short url for the token from a member.
+     *
+     * @param member the address of the member
+     * @param token the token for the short url
+     * @return a stage completed when the url has been deleted.
+     */
+    private CompletionStage<Void> deleteUrl(String member, String token) {
+      if (member.equals(self)) {
+        return deleteLocalUrl(localAsync, token);
+      }
+      forwards.increment();
+      return client.deleteUrl(member, token);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package com.gmpatter.shorty.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the requests in flight to a limit adjusted from their latency, so
+ * requests beyond what the server can handle are rejected rather than
+ * queued.
+ *
+ * <p>The limit follows the gradient of the latency, as in TCP Vegas. The
+ * latencies sampled in a short window are averaged, and compared with the
+ * latency without load, the lowest window average. While the window latency
+ * is within <code>tolerance</code> of the latency without load the limit
+ * grows by its square root each window, and as requests queue up and the
+ * window latency grows the limit shrinks in proportion, by at most half.
+ * Changes are smoothed, and the limit only grows while at least half of it
+ * is in use, so a quiet server doesn't build up a limit it hasn't shown it
+ * can handle.
+ *
+ * <p>The latency without load drifts slowly up towards the window latency,
+ * so a lasting change, such as a slower database, is followed. It drifts
+ * slowly enough that the queueing of an overload isn't mistaken for one, as
+ * once the limit has fallen the window latency is only the tolerance above
+ * it.
+ *
+ * <p>Requests are admitted up to a share of the limit, so that lower
+ * priority requests are rejected first as the server fills up.
+ *
+ * @author Gareth Patterson
+ */
+public class AdaptiveConcurrencyLimiter {
+
+  // The shortest time a window is sampled for, and the fewest samples
+  private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int WINDOW_SAMPLES = 10;
+  // How many windows the latency without load drifts up over
+  private static final int DRIFT_WINDOWS = 600;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double smoothing;
+  private final double tolerance;
+  private final LongSupplier clock;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile int limit;
+
+  // The current window and latency without load, guarded by this
+  private double estimatedLimit;
+  private long windowStart;
+  private long windowNanos;
+  private int windowCount;
+  private int windowMaxInFlight;
+  private double noLoadRtt;
+
+  /**
+   * Creates a limiter.
+   *
+   * @param initialLimit the limit before any latency has been sampled
+   * @param minLimit the lowest the limit can fall to
+   * @param maxLimit the highest the limit can grow to
+   * @param smoothing the fraction of each change made, from 0 exclusive to 1
+   * @param tolerance how many times the latency without load requests can
+   *     take before the limit is reduced, at least 1
+   */
+  public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double smoothing,
+                                    double tolerance) {
+    this(initialLimit, minLimit, maxLimit, smoothing, tolerance, System::nanoTime);
+  }
+
+  /**
+   * Creates a limiter with the given clock, for tests.
+   *
+   * @param initialLimit the limit before any latency has been sampled
+   * @param minLimit the lowest the limit can fall to
+   * @param maxLimit the highest the limit can grow to
+   * @param smoothing the fraction of each change made, from 0 exclusive to 1
+   * @param tolerance how many times the latency without load requests can
+   *     take before the limit is reduced, at least 1
+   * @param clock the clock in nanoseconds
+   */
+  AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double smoothing, double tolerance,
+                             LongSupplier clock) {
+    if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("The limits must be positive and min <= initial <= max, were "
+          + minLimit + ", " + initialLimit + " and " + maxLimit + ".");
+    }
+    if (smoothing <= 0 || smoothing > 1 || tolerance < 1) {
+      throw new IllegalArgumentException("The smoothing must be in (0, 1] and the tolerance at least 1, were "
+          + smoothing + " and " + tolerance + ".");
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.smoothing = smoothing;
+    this.tolerance = tolerance;
+    this.clock = clock;
+    this.limit = initialLimit;
+    this.estimatedLimit = initialLimit;
+    this.windowStart = clock.getAsLong();
+  }
+
+  /**
+   * Admits a request if the requests in flight are below its share of the
+   * limit. An admitted request must be released when it completes.
+   *
+   * @param share the fraction of the limit the request may use, from 0
+   *     exclusive to 1
+   * @return true if the request was admitted.
+   */
+  public boolean tryAcquire(double share) {
+    int allowed = Math.max(1, (int) (limit * share));
+    while (true) {
+      int current = inFlight.get();
+      if (current >= allowed) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases an admitted request, sampling its latency.
+   *
+   * @param latencyNanos the time the request took, or a negative value to
+   *     not sample it, such as for a request that is expected to be slow
+   */
+  public void release(long latencyNanos) {
+    int current = inFlight.getAndDecrement();
+    if (latencyNanos >= 0) {
+      sample(latencyNanos, current);
+    }
+  }
+
+  /**
+   * Returns the current limit.
+   *
+   * @return the limit.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the number of requests in flight.
+   *
+   * @return the requests in flight.
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Adds a latency to the current window, and adjusts the limit when the
+   * window ends.
+   *
+   * @param latencyNanos the latency of a request
+   * @param inFlight the requests in flight when it completed
+   */
+  private synchronized void sample(long latencyNanos, int inFlight) {
+    windowNanos += latencyNanos;
+    windowCount++;
+    windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+    long now = clock.getAsLong();
+    if (windowCount < WINDOW_SAMPLES || now - windowStart < WINDOW_NANOS) {
+      return;
+    }
+    double shortRtt = (double) windowNanos / windowCount;
+    int maxInFlight = windowMaxInFlight;
+    windowStart = now;
+    windowNanos = 0;
+    windowCount = 0;
+    windowMaxInFlight = 0;
+
+    if (noLoadRtt == 0 || shortRtt < noLoadRtt) {
+      noLoadRtt = shortRtt;
+    } else {
+      noLoadRtt += (shortRtt - noLoadRtt) / DRIFT_WINDOWS;
+    }
+
+    double gradient = Math.max(0.5, Math.min(1.0, tolerance * noLoadRtt / shortRtt));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    if (newLimit > estimatedLimit && maxInFlight < estimatedLimit / 2) {
+      // Don't grow a limit that isn't being used
+      return;
+    }
+    newLimit = estimatedLimit * (1 - smoothing) + newLimit * smoothing;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    limit = (int) estimatedLimit;
+  }
+}
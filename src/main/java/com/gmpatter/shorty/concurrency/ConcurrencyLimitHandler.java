@@ -0,0 +1,180 @@
+package com.gmpatter.shorty.concurrency;
+
+import com.gmpatter.shorty.cluster.ClusterService;
+import com.gmpatter.shorty.metrics.MetricsRegistry;
+import com.gmpatter.shorty.replication.ReplicationService;
+import com.gmpatter.shorty.rest.UrlEndpoints;
+import io.helidon.common.http.Http;
+import io.helidon.config.Config;
+import io.helidon.webserver.Handler;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helidon handler that sheds load with an
+ * {@link AdaptiveConcurrencyLimiter}, routed in front of every other handler.
+ * Requests within the limit are passed on to the next handler, and released
+ * with their latency when their response has been sent. The rest are
+ * rejected straight away with a 503 and a <code>Retry-After</code> header,
+ * without a body, so rejecting them costs as little as possible.
+ *
+ * <p>Redirects may use the whole limit, the REST API
+ * <code>api-share</code> of it, and anything else, such as the UI,
+ * <code>static-share</code> of it, so as the server fills up the UI is shed
+ * first and then the API, keeping redirects fast. Bulk creates, exports and
+ * imports stream for as long as their body takes, however loaded the server
+ * is, so rather than holding slots of the adaptive limit they have a small
+ * fixed limit of their own. Metrics, and the cluster and replication endpoints, which are
+ * long polled by the other servers, aren't limited.
+ *
+ * @author Gareth Patterson
+ */
+public class ConcurrencyLimitHandler implements Handler {
+
+  private static final String API_CONTEXT_ROOT = "/shorty/";
+  private static final String REDIRECT_CONTEXT_ROOT = UrlEndpoints.REDIRECT_CONTEXT_ROOT + "/";
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  private final AdaptiveConcurrencyLimiter limiter;
+  private final double apiShare;
+  private final double staticShare;
+  private final Semaphore streamingPermits;
+  private final LongAdder redirectsShed;
+  private final LongAdder apiShed;
+  private final LongAdder staticShed;
+  private final LongAdder streamingShed;
+
+  /**
+   * Creates a concurrency limit handler.
+   *
+   * @param limiter the limit on requests in flight
+   * @param apiShare the fraction of the limit REST API requests may use
+   * @param staticShare the fraction of the limit other requests may use
+   * @param streamingLimit the most bulk creates, exports and imports in flight
+   */
+  public ConcurrencyLimitHandler(AdaptiveConcurrencyLimiter limiter, double apiShare, double staticShare,
+                                 int streamingLimit) {
+    if (apiShare <= 0 || apiShare > 1 || staticShare <= 0 || staticShare > 1) {
+      throw new IllegalArgumentException("The shares must be in (0, 1], were "
+          + apiShare + " and " + staticShare + ".");
+    }
+    if (streamingLimit < 1) {
+      throw new IllegalArgumentException("The streaming limit must be at least 1, was " + streamingLimit + ".");
+    }
+    this.limiter = limiter;
+    this.apiShare = apiShare;
+    this.staticShare = staticShare;
+    this.streamingPermits = new Semaphore(streamingLimit);
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    String help = "Requests rejected by the adaptive concurrency limit";
+    redirectsShed = metrics.counter("shorty_concurrency_shed_total", help, "class", "redirect");
+    apiShed = metrics.counter("shorty_concurrency_shed_total", help, "class", "api");
+    staticShed = metrics.counter("shorty_concurrency_shed_total", help, "class", "static");
+    streamingShed = metrics.counter("shorty_concurrency_shed_total", help, "class", "streaming");
+    metrics.gauge("shorty_concurrency_limit", "The adaptive limit on requests in flight",
+        limiter::getLimit);
+    metrics.gauge("shorty_concurrency_in_flight", "Requests in flight within the concurrency limit",
+        limiter::getInFlight);
+  }
+
+  /**
+   * Creates the concurrency limit handler configured by
+   * <code>shorty.concurrency-limit</code>.
+   *
+   * @param config the concurrency limit configuration
+   * @return the handler, or null if concurrency limiting isn't enabled.
+   */
+  public static ConcurrencyLimitHandler create(Config config) {
+    if (!config.get("enabled").asBoolean().orElse(true)) {
+      return null;
+    }
+    return new ConcurrencyLimitHandler(
+        new AdaptiveConcurrencyLimiter(
+            config.get("initial-limit").asInt().orElse(20),
+            config.get("min-limit").asInt().orElse(4),
+            config.get("max-limit").asInt().orElse(1000),
+            config.get("smoothing").asDouble().orElse(0.2),
+            config.get("tolerance").asDouble().orElse(1.5)),
+        config.get("api-share").asDouble().orElse(0.8),
+        config.get("static-share").asDouble().orElse(0.5),
+        config.get("streaming-limit").asInt().orElse(4));
+  }
+
+  /**
+   * Passes the request on if it is within its share of the limit, otherwise
+   * rejects it.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  @Override
+  public void accept(ServerRequest req, ServerResponse res) {
+    String path = req.path().absolute().toString();
+    double share;
+    LongAdder shed;
+    if (isStreaming(path)) {
+      acceptStreaming(req, res);
+      return;
+    }
+    if (path.startsWith(REDIRECT_CONTEXT_ROOT)) {
+      share = 1;
+      shed = redirectsShed;
+    } else if (path.startsWith(API_CONTEXT_ROOT)) {
+      share = apiShare;
+      shed = apiShed;
+    } else if (path.equals("/metrics") || path.startsWith(ClusterService.CONTEXT_ROOT)
+        || path.startsWith(ReplicationService.CONTEXT_ROOT)) {
+      req.next();
+      return;
+    } else {
+      share = staticShare;
+      shed = staticShed;
+    }
+
+    if (!limiter.tryAcquire(share)) {
+      reject(res, shed);
+      return;
+    }
+    long start = System.nanoTime();
+    res.whenSent().whenComplete((sent, error) -> limiter.release(System.nanoTime() - start));
+    req.next();
+  }
+
+  /**
+   * Passes a bulk create, export or import on if it is within the streaming
+   * limit, otherwise rejects it.
+   */
+  private void acceptStreaming(ServerRequest req, ServerResponse res) {
+    if (!streamingPermits.tryAcquire()) {
+      reject(res, streamingShed);
+      return;
+    }
+    res.whenSent().whenComplete((sent, error) -> streamingPermits.release());
+    req.next();
+  }
+
+  /**
+   * Rejects a request with a 503, counting it as shed.
+   */
+  private static void reject(ServerResponse res, LongAdder shed) {
+    shed.increment();
+    res.status(Http.Status.SERVICE_UNAVAILABLE_503);
+    res.headers().put(Http.Header.RETRY_AFTER, RETRY_AFTER_SECONDS);
+    res.send();
+  }
+
+  /**
+   * Returns whether a request is one of the bulk operations, whose latency
+   * depends on their size rather than the load.
+   *
+   * @param path the request path
+   * @return true if the request streams.
+   */
+  private static boolean isStreaming(String path) {
+    return path.startsWith(API_CONTEXT_ROOT)
+        && (path.endsWith("/bulk") || path.endsWith("/export") || path.endsWith("/import"));
+  }
+}
@@ -0,0 +1,115 @@
+package com.gmpatter.shorty.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Prometheus histogram of durations, with fixed bucket bounds.
+ *
+ * <p>Each bucket is a {@link LongAdder}, so recording a duration is a scan
+ * of the bounds and an uncontended increment, without allocating or locking.
+ * Buckets are only made cumulative when written out.
+ *
+ * @author Gareth Patterson
+ */
+public class Histogram implements MetricsRegistry.Sample {
+
+  /**
+   * Bucket bounds in seconds for request latencies, from 50 microseconds to
+   * 10 seconds.
+   */
+  public static final double[] LATENCY_BUCKETS = {
+      0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+      2.5, 5, 10};
+
+  /**
+   * Bucket bounds in seconds for background tasks, from 1 millisecond to
+   * 5 minutes.
+   */
+  public static final double[] TASK_BUCKETS = {
+      0.001, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+  private final long[] boundNanos;
+  private final String[] boundLabels;
+  // One more than the bounds, for durations above the largest bound
+  private final LongAdder[] counts;
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * Creates a histogram.
+   *
+   * @param bucketSeconds the upper bound of each bucket in seconds, in
+   *     increasing order
+   */
+  public Histogram(double[] bucketSeconds) {
+    boundNanos = new long[bucketSeconds.length];
+    boundLabels = new String[bucketSeconds.length];
+    counts = new LongAdder[bucketSeconds.length + 1];
+    for (int i = 0; i < bucketSeconds.length; i++) {
+      if (i > 0 && bucketSeconds[i] <= bucketSeconds[i - 1]) {
+        throw new IllegalArgumentException("Histogram buckets must be in increasing order.");
+      }
+      boundNanos[i] = (long) (bucketSeconds[i] * TimeUnit.SECONDS.toNanos(1));
+      boundLabels[i] = BigDecimal.valueOf(bucketSeconds[i]).stripTrailingZeros().toPlainString();
+    }
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos the duration in nanoseconds
+   */
+  public void record(long nanos) {
+    int bucket = 0;
+    while (bucket < boundNanos.length && nanos > boundNanos[bucket]) {
+      bucket++;
+    }
+    counts[bucket].increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Records the time since the start of an operation.
+   *
+   * @param startNanos the start time, from {@link System#nanoTime()}
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Returns the number of recorded durations.
+   *
+   * @return the count.
+   */
+  public long getCount() {
+    long count = 0;
+    for (LongAdder bucket : counts) {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(StringBuilder out, String name, String labels) {
+    String separator = labels.isEmpty() ? "" : ",";
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i].sum();
+      out.append(name).append("_bucket{").append(labels).append(separator)
+          .append("le=\"").append(i < boundLabels.length ? boundLabels[i] : "+Inf").append("\"} ")
+          .append(cumulative).append('\n');
+    }
+    String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+    out.append(name).append("_sum").append(braces).append(' ')
+        .append((double) sumNanos.sum() / TimeUnit.SECONDS.toNanos(1)).append('\n');
+    out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+  }
+}
@@ -0,0 +1,39 @@
+package com.gmpatter.shorty.metrics;
+
+import io.helidon.common.http.Http;
+import io.helidon.webserver.Handler;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+
+/**
+ * Helidon handler for "/metrics", returning the metrics in the Prometheus
+ * text format.
+ *
+ * @author Gareth Patterson
+ */
+public class MetricsHandler implements Handler {
+
+  private final MetricsRegistry registry;
+
+  /**
+   * Creates a new metrics handler.
+   *
+   * @param registry the metrics to return
+   */
+  public MetricsHandler(MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * Returns the metrics.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  @Override
+  public void accept(ServerRequest req, ServerResponse res) {
+    res.status(Http.Status.OK_200);
+    res.headers().put(Http.Header.CONTENT_TYPE, MetricsRegistry.CONTENT_TYPE);
+    res.send(registry.scrape());
+  }
+}
@@ -0,0 +1,219 @@
+package com.gmpatter.shorty.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The application's metrics, written out in the Prometheus text format.
+ *
+ * <p>Metrics are registered once, and the recorders returned are kept by
+ * the code that updates them, so updating a metric never looks it up or
+ * allocates. Gauges and counters that are already tracked elsewhere, such as
+ * the repository size or the cache hit count, are registered as functions
+ * that are only called when the metrics are written.
+ *
+ * <p>Registering a metric that is already registered with the same name and
+ * labels returns the existing recorder, or replaces the existing function.
+ * Metrics whose functions read an object that may be discarded, such as a
+ * url service, are removed when it is.
+ *
+ * @author Gareth Patterson
+ */
+public class MetricsRegistry {
+
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static MetricsRegistry INSTANCE;
+
+  // Guarded by this
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  /**
+   * Creates a new registry. Outside of tests use {@link #getInstance()}.
+   */
+  MetricsRegistry() {
+  }
+
+  /**
+   * Returns the singleton instance of <code>MetricsRegistry</code>.
+   *
+   * @return the instance of <code>MetricsRegistry</code>.
+   */
+  public static MetricsRegistry getInstance() {
+    if (INSTANCE == null) {
+      INSTANCE = new MetricsRegistry();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * Registers a histogram of durations.
+   *
+   * @param name the metric name, ending with <code>_seconds</code>
+   * @param help the description of the metric
+   * @param bucketSeconds the upper bound of each bucket in seconds
+   * @param labels label names and values, alternating
+   * @return the histogram.
+   */
+  public synchronized Histogram histogram(String name, String help, double[] bucketSeconds,
+                                          String... labels) {
+    return (Histogram) family(name, help, "histogram")
+        .samples.computeIfAbsent(formatLabels(labels), l -> new Histogram(bucketSeconds));
+  }
+
+  /**
+   * Registers a counter.
+   *
+   * @param name the metric name, ending with <code>_total</code>
+   * @param help the description of the metric
+   * @param labels label names and values, alternating
+   * @return the counter.
+   */
+  public synchronized LongAdder counter(String name, String help, String... labels) {
+    return ((CounterSample) family(name, help, "counter")
+        .samples.computeIfAbsent(formatLabels(labels), l -> new CounterSample())).counter;
+  }
+
+  /**
+   * Registers a counter whose value is kept elsewhere.
+   *
+   * @param name the metric name, ending with <code>_total</code>
+   * @param help the description of the metric
+   * @param value returns the current value
+   * @param labels label names and values, alternating
+   */
+  public synchronized void counter(String name, String help, LongSupplier value, String... labels) {
+    family(name, help, "counter").samples.put(formatLabels(labels),
+        (out, metric, l) -> writeValue(out, metric, l, Long.toString(value.getAsLong())));
+  }
+
+  /**
+   * Registers a gauge.
+   *
+   * @param name the metric name
+   * @param help the description of the metric
+   * @param value returns the current value
+   * @param labels label names and values, alternating
+   */
+  public synchronized void gauge(String name, String help, DoubleSupplier value, String... labels) {
+    family(name, help, "gauge").samples.put(formatLabels(labels),
+        (out, metric, l) -> writeValue(out, metric, l, formatDouble(value.getAsDouble())));
+  }
+
+  /**
+   * Removes a metric, with every set of labels registered for it.
+   *
+   * @param name the metric name
+   */
+  public synchronized void remove(String name) {
+    families.remove(name);
+  }
+
+  /**
+   * Writes every metric in the Prometheus text format.
+   *
+   * @return the metrics.
+   */
+  public synchronized String scrape() {
+    StringBuilder out = new StringBuilder(4096);
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Sample> sample : family.samples.entrySet()) {
+        sample.getValue().write(out, name, sample.getKey());
+      }
+    }
+    return out.toString();
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is already registered as a "
+          + family.type + ".");
+    }
+    return family;
+  }
+
+  private static String formatLabels(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be names and values.");
+    }
+    StringBuilder formatted = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        formatted.append(',');
+      }
+      formatted.append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+          .append('"');
+    }
+    return formatted.toString();
+  }
+
+  private static void writeValue(StringBuilder out, String name, String labels, String value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static String formatDouble(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    return value == Math.rint(value) && Math.abs(value) < 1e15
+        ? Long.toString((long) value)
+        : Double.toString(value);
+  }
+
+  /**
+   * A metric with a given set of labels, written out when metrics are scraped.
+   */
+  interface Sample {
+
+    /**
+     * Writes the sample's lines in the Prometheus text format.
+     *
+     * @param out the output
+     * @param name the metric name
+     * @param labels the formatted labels, or an empty string
+     */
+    void write(StringBuilder out, String name, String labels);
+  }
+
+  /**
+   * The samples sharing a metric name.
+   */
+  private static final class Family {
+    private final String help;
+    private final String type;
+    private final Map<String, Sample> samples = new LinkedHashMap<>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  /**
+   * A counter updated by the application.
+   */
+  private static final class CounterSample implements Sample {
+    private final LongAdder counter = new LongAdder();
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+      writeValue(out, name, labels, Long.toString(counter.sum()));
+    }
+  }
+}
@@ -1,9 +1,17 @@
 package com.gmpatter.shorty.model;
 
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
 /**
  * Model class for representing short urls.
  *
- * <p>Instances are created via a <code>Builder</code>.
+ * <p>Instances are created via a <code>Builder</code>. A short url built
+ * from an expiry time only formats its expiry date when it is first asked
+ * for, as redirects only need the time. Its entity tag for HTTP caching is
+ * also formatted when first asked for, and kept, so redirects of a url held
+ * in memory don't format it each time.
  *
  * @author Gareth Patterson
  */
@@ -12,11 +20,14 @@ public class ShortUrl {
   private String token;
   private String originalUrl;
   private String expiry;
+  private long expiryTime;
+  private String etag;
 
   private ShortUrl(Builder builder) {
     this.token = builder.token;
     this.originalUrl = builder.originalUrl;
     this.expiry = builder.expiry;
+    this.expiryTime = builder.expiryTime;
   }
 
   /**
@@ -43,9 +54,48 @@ public class ShortUrl {
    * @return the expiry.
    */
   public String getExpiry() {
+    // Racing threads format the same value
+    if (expiry == null) {
+      expiry = LocalDateTime.ofInstant(Instant.ofEpochMilli(expiryTime), ZoneId.systemDefault())
+          .toString();
+    }
     return expiry;
   }
 
+  /**
+   * Returns the expiry for the short url as epoch milliseconds.
+   *
+   * @return the expiry time.
+   */
+  public long getExpiryTime() {
+    return expiryTime;
+  }
+
+  /**
+   * Returns the entity tag of the short url for HTTP caching, of its token
+   * and expiry time, which changes if the url is ever stored again with a
+   * different expiry.
+   *
+   * @return the quoted entity tag.
+   */
+  public String getETag() {
+    // Racing threads format the same value
+    if (etag == null) {
+      etag = "\"" + token + "-" + Long.toString(expiryTime, 36) + "\"";
+    }
+    return etag;
+  }
+
+  /**
+   * Returns true if the short url has expired at the given time.
+   *
+   * @param currentTime the current time in epoch milliseconds
+   * @return true if the short url is expired.
+   */
+  public boolean isExpired(long currentTime) {
+    return expiryTime < currentTime;
+  }
+
   /**
    * Builder class for building instances of {@link ShortUrl}.
    */
@@ -53,13 +103,25 @@ public class ShortUrl {
     private String token;
     private String originalUrl;
     private String expiry;
+    private long expiryTime;
+    private boolean expiryTimeSet;
 
     /**
      * Build a new instance of <code>ShortUrl</code>.
      *
+     * <p>Only one of the expiry date or expiry time needs to be set, the
+     * other is derived from it using the system time zone, the expiry date
+     * when it is first asked for.
+     *
      * @return the new short url instance.
      */
     public ShortUrl build() {
+      if (expiry != null && !expiryTimeSet) {
+        expiryTime = LocalDateTime.parse(expiry)
+            .atZone(ZoneId.systemDefault())
+            .toInstant()
+            .toEpochMilli();
+      }
       return new ShortUrl(this);
     }
 
@@ -95,5 +157,17 @@ public class ShortUrl {
       this.expiry = expiry;
       return this;
     }
+
+    /**
+     * Set the expiry time for the short url.
+     *
+     * @param expiryTime the expiry time in epoch milliseconds
+     * @return the current builder.
+     */
+    public Builder expiryTime(long expiryTime) {
+      this.expiryTime = expiryTime;
+      this.expiryTimeSet = true;
+      return this;
+    }
   }
 }
@@ -0,0 +1,66 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A non-blocking variant of {@link UrlRepository}, for callers that must
+ * not block their thread, such as handlers running on the web server's I/O
+ * threads.
+ *
+ * <p>Each method returns a stage that completes when the operation has
+ * completed, or completes exceptionally if it failed. Stages may already be
+ * complete when they are returned, in which case dependent actions run on
+ * the calling thread, so the actions must not block either.
+ *
+ * @author Gareth Patterson
+ */
+public interface AsyncUrlRepository {
+
+  /**
+   * Returns the short url for the given token.
+   *
+   * @param token the token for the short url
+   * @return a stage completed with the short url, or null if there is no url
+   *     for the token.
+   */
+  CompletionStage<ShortUrl> getUrl(String token);
+
+  /**
+   * Returns the original url for the given token, for redirecting.
+   *
+   * <p>Implementations should override this to avoid building a
+   * <code>ShortUrl</code> where they can.
+   *
+   * @param token the token for the short url
+   * @return a stage completed with the original url, or null if there is no
+   *     url for the token.
+   */
+  default CompletionStage<String> getOriginalUrl(String token) {
+    return getUrl(token).thenApply(shortUrl -> shortUrl != null ? shortUrl.getOriginalUrl() : null);
+  }
+
+  /**
+   * Creates a new short url in the repository.
+   *
+   * @param shortUrl the short url to create
+   * @return a stage completed with the newly created short url.
+   */
+  CompletionStage<ShortUrl> createUrl(ShortUrl shortUrl);
+
+  /**
+   * Deletes the short url for the given token.
+   *
+   * @param token the token for the short url
+   * @return a stage completed when the url has been deleted.
+   */
+  CompletionStage<Void> deleteUrl(String token);
+
+  /**
+   * Finds and deletes any expired short urls in the repository.
+   *
+   * @return a stage completed when the purge has finished.
+   */
+  CompletionStage<Void> purgeExpiredUrls();
+}
@@ -0,0 +1,128 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Adapts a {@link UrlRepository} to the {@link AsyncUrlRepository} API.
+ *
+ * <p>Operations that don't block, such as reads and writes of the in-memory
+ * repositories, are run on the calling thread and return completed stages,
+ * so they cost no more than calling the repository directly. Operations that
+ * may block, such as writes to a {@link DurableUrlRepository} that wait for
+ * the log to be synced, are run on an executor instead.
+ *
+ * @author Gareth Patterson
+ */
+public class AsyncUrlRepositoryAdapter implements AsyncUrlRepository {
+
+  private final UrlRepository delegate;
+  private final Executor readExecutor;
+  private final Executor writeExecutor;
+
+  /**
+   * Creates an adapter.
+   *
+   * @param delegate the repository to adapt
+   * @param readExecutor the executor for reads, or null to read on the
+   *     calling thread
+   * @param writeExecutor the executor for creates, deletes and purges, or
+   *     null to write on the calling thread
+   */
+  public AsyncUrlRepositoryAdapter(UrlRepository delegate, Executor readExecutor, Executor writeExecutor) {
+    this.delegate = delegate;
+    this.readExecutor = readExecutor;
+    this.writeExecutor = writeExecutor;
+  }
+
+  /**
+   * Creates an adapter for a repository that never blocks, which runs every
+   * operation on the calling thread.
+   *
+   * @param delegate the repository to adapt
+   * @return the adapter.
+   */
+  public static AsyncUrlRepositoryAdapter inline(UrlRepository delegate) {
+    return new AsyncUrlRepositoryAdapter(delegate, null, null);
+  }
+
+  /**
+   * Returns the repository if reads run on the calling thread, so callers
+   * on a hot path can read it directly rather than through a completed
+   * stage.
+   *
+   * @return the repository, or null if reads run on an executor.
+   */
+  public UrlRepository getInlineReadRepository() {
+    return readExecutor == null ? delegate : null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<ShortUrl> getUrl(String token) {
+    return call(() -> delegate.getUrl(token), readExecutor);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<String> getOriginalUrl(String token) {
+    return call(() -> delegate.getOriginalUrl(token), readExecutor);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<ShortUrl> createUrl(ShortUrl shortUrl) {
+    return call(() -> delegate.createUrl(shortUrl), writeExecutor);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<Void> deleteUrl(String token) {
+    return call(() -> {
+      delegate.deleteUrl(token);
+      return null;
+    }, writeExecutor);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletionStage<Void> purgeExpiredUrls() {
+    return call(() -> {
+      delegate.purgeExpiredUrls();
+      return null;
+    }, writeExecutor);
+  }
+
+  /**
+   * Runs an operation on the executor, or on the calling thread if there is
+   * no executor.
+   *
+   * @param operation the operation
+   * @param executor the executor, or null
+   * @return a stage completed with the result of the operation.
+   */
+  private static <T> CompletionStage<T> call(Supplier<T> operation, Executor executor) {
+    if (executor != null) {
+      return CompletableFuture.supplyAsync(operation, executor);
+    }
+    try {
+      return CompletableFuture.completedFuture(operation.get());
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+}
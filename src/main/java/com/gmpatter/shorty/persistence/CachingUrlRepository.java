@@ -0,0 +1,306 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.stats.StripedBuffer;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A {@link UrlRepository} that caches the most frequently read short urls of
+ * another repository in memory.
+ *
+ * <p>The cache is split into independently locked stripes, each holding an
+ * access ordered map and a {@link FrequencySketch} of recent reads. When a
+ * stripe is full a url read from the delegate is only cached if it has been
+ * read more often than the least recently used url it would evict
+ * ("TinyLFU" admission), so a burst of reads of rarely used urls can't flush
+ * the popular urls out of the cache.
+ *
+ * <p>Hits don't lock. The cached urls are also kept in a concurrent map,
+ * which reads go to, and each read only appends its token to a
+ * {@link StripedBuffer}. The buffered reads are applied to the sketches and
+ * the recency order by whichever thread finds the buffer full, or misses,
+ * and can take the drain lock without waiting. Reads are dropped from the
+ * order rather than waiting when the buffer is full and being drained, as
+ * the order only has to be approximate.
+ *
+ * <p>Deletes invalidate the cached url, and cached urls are checked for expiry
+ * when read, so purging doesn't need to touch the cache. When the delegate
+ * is shared with other servers, which may delete urls without this cache
+ * seeing it, cached urls can also be bounded by a time to live.
+ *
+ * @author Gareth Patterson
+ */
+public class CachingUrlRepository implements UrlRepository {
+
+  static final int STRIPE_BITS = 4;
+  static final int STRIPES = 1 << STRIPE_BITS;
+  static final int READ_BUFFER_SIZE = 256;
+
+  private final UrlRepository delegate;
+  private final long ttlMillis;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final StripedBuffer<String> reads = new StripedBuffer<>(READ_BUFFER_SIZE);
+  private final ReentrantLock drainLock = new ReentrantLock();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Creates a new caching repository, keeping urls until they expire.
+   *
+   * @param delegate the repository to cache
+   * @param maximumSize the maximum number of urls to cache
+   */
+  public CachingUrlRepository(UrlRepository delegate, int maximumSize) {
+    this(delegate, maximumSize, 0);
+  }
+
+  /**
+   * Creates a new caching repository, keeping urls for at most the time to
+   * live.
+   *
+   * @param delegate the repository to cache
+   * @param maximumSize the maximum number of urls to cache
+   * @param ttlMillis the milliseconds a url is cached for before being read
+   *     from the delegate again, or 0 to cache it until it expires
+   */
+  public CachingUrlRepository(UrlRepository delegate, int maximumSize, long ttlMillis) {
+    if (ttlMillis < 0) {
+      throw new IllegalArgumentException("The time to live can't be negative, was " + ttlMillis + ".");
+    }
+    this.delegate = delegate;
+    this.ttlMillis = ttlMillis;
+    int stripeCapacity = Math.max(1, maximumSize / STRIPES);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(stripeCapacity);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl getUrl(String token) {
+    int hash = spread(token.hashCode());
+    Stripe stripe = stripeFor(hash);
+    if (!reads.offer(token)) {
+      drainReads();
+    }
+    ShortUrl cached = stripe.get(token, System.currentTimeMillis(), ttlMillis);
+    if (cached != null) {
+      hits.increment();
+      return cached;
+    }
+    misses.increment();
+    long invalidations = stripe.invalidations;
+    ShortUrl shortUrl = delegate.getUrl(token);
+    if (shortUrl != null) {
+      // Count the buffered reads, including this one, before admission
+      drainReads();
+      stripe.admit(token, hash, shortUrl, invalidations, System.currentTimeMillis());
+    }
+    return shortUrl;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    ShortUrl shortUrl = getUrl(token);
+    return shortUrl != null ? shortUrl.getOriginalUrl() : null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl createUrl(ShortUrl shortUrl) {
+    return delegate.createUrl(shortUrl);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public BitSet createUrls(List<ShortUrl> shortUrls) {
+    return delegate.createUrls(shortUrls);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void deleteUrl(String token) {
+    delegate.deleteUrl(token);
+    int hash = spread(token.hashCode());
+    stripeFor(hash).invalidate(token);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void purgeExpiredUrls() {
+    delegate.purgeExpiredUrls();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    delegate.forEachUrl(action);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    return delegate.countExpired(currentTime);
+  }
+
+  /**
+   * Returns the number of reads answered from the cache.
+   *
+   * @return the hit count.
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * Returns the number of reads passed to the delegate repository.
+   *
+   * @return the miss count.
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Applies the buffered reads to the stripes, unless another thread is
+   * already doing so.
+   */
+  private void drainReads() {
+    if (drainLock.tryLock()) {
+      try {
+        reads.drainTo(token -> {
+          int hash = spread(token.hashCode());
+          stripeFor(hash).read(token, hash);
+        });
+      } finally {
+        drainLock.unlock();
+      }
+    }
+  }
+
+  private Stripe stripeFor(int hash) {
+    // The high bits choose the stripe, as the sketch uses the low bits
+    return stripes[hash >>> (Integer.SIZE - STRIPE_BITS)];
+  }
+
+  private static int spread(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x45d9f3b;
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * A cached url, and when it was read from the delegate.
+   */
+  private static final class Entry {
+    private final ShortUrl shortUrl;
+    private final long loadedAt;
+
+    Entry(ShortUrl shortUrl, long loadedAt) {
+      this.shortUrl = shortUrl;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  /**
+   * A part of the cache. Its urls are read without locking, and changed,
+   * along with the recency order and sketch, under its own lock.
+   */
+  private static final class Stripe {
+    private final int capacity;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // The recency order of the entries, guarded by this
+    private final LinkedHashMap<String, Entry> order;
+    private final FrequencySketch sketch;
+    // Incremented by each invalidation, so that a url read from the delegate
+    // isn't cached if it may have been deleted while it was being read
+    private volatile long invalidations;
+
+    Stripe(int capacity) {
+      this.capacity = capacity;
+      this.order = new LinkedHashMap<>(capacity * 2, 0.75f, true);
+      this.sketch = new FrequencySketch(capacity);
+    }
+
+    ShortUrl get(String token, long now, long ttlMillis) {
+      Entry entry = entries.get(token);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.shortUrl.isExpired(now) || (ttlMillis > 0 && now - entry.loadedAt >= ttlMillis)) {
+        remove(token, entry);
+        return null;
+      }
+      return entry.shortUrl;
+    }
+
+    synchronized void read(String token, int hash) {
+      sketch.increment(hash);
+      order.get(token);
+    }
+
+    synchronized void admit(String token, int hash, ShortUrl shortUrl, long invalidationsBefore, long now) {
+      if (invalidations != invalidationsBefore) {
+        return;
+      }
+      if (order.size() >= capacity && !order.containsKey(token)) {
+        Iterator<Map.Entry<String, Entry>> eldest = order.entrySet().iterator();
+        String victim = eldest.next().getKey();
+        if (sketch.frequency(hash) <= sketch.frequency(spread(victim.hashCode()))) {
+          return;
+        }
+        eldest.remove();
+        entries.remove(victim);
+      }
+      Entry entry = new Entry(shortUrl, now);
+      order.put(token, entry);
+      entries.put(token, entry);
+    }
+
+    synchronized void remove(String token, Entry entry) {
+      if (entries.remove(token, entry)) {
+        order.remove(token);
+      }
+    }
+
+    synchronized void invalidate(String token) {
+      invalidations++;
+      entries.remove(token);
+      order.remove(token);
+    }
+  }
+}
@@ -0,0 +1,498 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * A memory efficient implementation of {@link UrlRepository} that stores
+ * short urls in primitive arrays rather than as <code>ShortUrl</code> objects.
+ *
+ * <p>Tokens are encoded as <code>long</code> keys by a {@link TokenCodec} and
+ * stored in open-addressing hash tables split into independently locked
+ * segments. Each entry costs three array slots (key, url reference and expiry)
+ * plus the UTF-8 bytes of the original url, which are appended to a shared
+ * byte array per segment. With urls of about 60 characters the
+ * {@code UrlRepositoryBenchmark} measures around 125-160 bytes per url,
+ * depending on how full the tables are, against around 270 bytes for a
+ * <code>ConcurrentHashMap</code> of <code>ShortUrl</code> instances, and the
+ * collector only has a handful of large arrays to trace.
+ *
+ * <p>Reads use an optimistic stamp and only fall back to a read lock when a
+ * write to the same segment races with them.
+ *
+ * <p>Each segment also keeps the keys of its urls in one second buckets by
+ * expiry time, so that purging only visits the urls that have expired. Keys
+ * of deleted urls are left in their bucket and skipped when it is purged.
+ *
+ * @author Gareth Patterson
+ */
+public class CompactUrlRepository implements UrlRepository {
+
+  public static final int DEFAULT_SEGMENTS = 64;
+  static final int INITIAL_SEGMENT_CAPACITY = 1024;
+  static final long EXPIRY_BUCKET_MILLIS = 1000;
+
+  private final TokenCodec codec;
+  private final Segment[] segments;
+  private final int segmentMask;
+
+  /**
+   * Creates a new repository for tokens made up of the given characters.
+   *
+   * @param tokenCharacters the characters used in tokens
+   * @param tokenLength the length of generated tokens
+   * @param segmentCount the number of independently locked segments, a power of two
+   * @throws IllegalArgumentException if tokens of the given length can't be
+   *     encoded as a long, or the segment count isn't a power of two
+   */
+  public CompactUrlRepository(char[] tokenCharacters, int tokenLength, int segmentCount) {
+    codec = new TokenCodec(tokenCharacters);
+    if (tokenLength > codec.getMaxLength()) {
+      throw new IllegalArgumentException("Tokens longer than " + codec.getMaxLength()
+          + " characters can't be stored in the compact repository.");
+    }
+    if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1) {
+      throw new IllegalArgumentException("Segment count must be a power of two.");
+    }
+    segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new Segment();
+    }
+    segmentMask = segmentCount - 1;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl getUrl(String token) {
+    long key = codec.encode(token);
+    if (key <= 0) {
+      return null;
+    }
+    long hash = hash(key);
+    return segmentFor(hash).get(token, key, hash, System.currentTimeMillis(), Segment::toShortUrl);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Only the url is decoded, without building a <code>ShortUrl</code>.
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    long key = codec.encode(token);
+    if (key <= 0) {
+      return null;
+    }
+    long hash = hash(key);
+    return segmentFor(hash).get(token, key, hash, System.currentTimeMillis(), Segment::toOriginalUrl);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl createUrl(ShortUrl shortUrl) {
+    long key = codec.encode(shortUrl.getToken());
+    if (key <= 0) {
+      throw new IllegalArgumentException("Token " + shortUrl.getToken()
+          + " can't be stored in the compact repository.");
+    }
+    byte[] url = shortUrl.getOriginalUrl().getBytes(StandardCharsets.UTF_8);
+    long hash = hash(key);
+    return segmentFor(hash).putIfAbsent(key, hash, url, shortUrl.getExpiryTime()) ? shortUrl : null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void deleteUrl(String token) {
+    long key = codec.encode(token);
+    if (key > 0) {
+      long hash = hash(key);
+      segmentFor(hash).remove(key, hash);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void purgeExpiredUrls() {
+    long now = System.currentTimeMillis();
+    for (Segment segment : segments) {
+      segment.removeExpired(now);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Each segment is copied under its read lock, so the urls are passed to
+   * the action without holding any locks.
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    for (Segment segment : segments) {
+      segment.forEach(codec, System.currentTimeMillis(), action);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    int count = 0;
+    for (Segment segment : segments) {
+      count += segment.countExpired(currentTime);
+    }
+    return count;
+  }
+
+  private Segment segmentFor(long hash) {
+    // Slots are chosen from the low bits of the hash, so use the high bits
+    return segments[(int) (hash >>> 32) & segmentMask];
+  }
+
+  /**
+   * Spreads the bits of the key so that sequential tokens are distributed
+   * evenly across segments and slots (the MurmurHash3 finalizer).
+   */
+  static long hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  /**
+   * A linear probing hash table guarded by a {@link StampedLock}.
+   *
+   * <p>Slot <code>i</code> holds the token key in <code>keys[i]</code>, the
+   * offset and length of the url bytes in <code>refs[i]</code>, and the expiry
+   * time in <code>expiries[i]</code>. Empty slots have a key of 0. Url bytes are
+   * only ever appended to <code>arena</code>, and the arena is replaced rather
+   * than rewritten when it is compacted, so bytes referenced by a validated
+   * read are never modified.
+   */
+  static final class Segment {
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    private final StampedLock lock = new StampedLock();
+    private long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+    private long[] refs = new long[INITIAL_SEGMENT_CAPACITY];
+    private long[] expiries = new long[INITIAL_SEGMENT_CAPACITY];
+    private byte[] arena = new byte[INITIAL_SEGMENT_CAPACITY * 32];
+    private int size;
+    private int arenaUsed;
+    private int arenaGarbage;
+    private final TreeMap<Long, KeyList> expiryBuckets = new TreeMap<>();
+
+    <T> T get(String token, long key, long hash, long now, EntryReader<T> reader) {
+      long stamp = lock.tryOptimisticRead();
+      if (stamp != 0) {
+        long[] k = keys;
+        long[] r = refs;
+        long[] e = expiries;
+        byte[] a = arena;
+        long ref = 0;
+        long expiry = 0;
+        boolean found = false;
+        // Arrays may be from different generations if a resize is racing
+        // with us, in which case validation below will fail anyway
+        if (k.length == r.length && k.length == e.length) {
+          int mask = k.length - 1;
+          int slot = (int) hash & mask;
+          for (int probes = 0; probes < k.length; probes++) {
+            long candidate = k[slot];
+            if (candidate == key) {
+              ref = r[slot];
+              expiry = e[slot];
+              found = true;
+              break;
+            }
+            if (candidate == 0) {
+              break;
+            }
+            slot = (slot + 1) & mask;
+          }
+        }
+        if (lock.validate(stamp)) {
+          // Expired urls that haven't been purged yet are treated as absent
+          return found && expiry >= now ? reader.read(token, a, ref, expiry) : null;
+        }
+      }
+      stamp = lock.readLock();
+      try {
+        int slot = find(key, hash);
+        if (slot < 0 || expiries[slot] < now) {
+          return null;
+        }
+        return reader.read(token, arena, refs[slot], expiries[slot]);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    boolean putIfAbsent(long key, long hash, byte[] url, long expiry) {
+      long stamp = lock.writeLock();
+      try {
+        if (find(key, hash) >= 0) {
+          return false;
+        }
+        long ref = append(url);
+        if ((size + 1) * 100L > keys.length * (long) MAX_LOAD_PERCENT) {
+          resize(keys.length * 2);
+        }
+        insert(key, hash, ref, expiry);
+        size++;
+        expiryBuckets.computeIfAbsent(Math.floorDiv(expiry, EXPIRY_BUCKET_MILLIS), k -> new KeyList())
+            .add(key);
+        return true;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    void remove(long key, long hash) {
+      long stamp = lock.writeLock();
+      try {
+        int slot = find(key, hash);
+        if (slot >= 0) {
+          removeSlot(slot);
+        }
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    void removeExpired(long now) {
+      long stamp = lock.writeLock();
+      try {
+        // Buckets before the current bucket have fully elapsed
+        NavigableMap<Long, KeyList> elapsed =
+            expiryBuckets.headMap(Math.floorDiv(now, EXPIRY_BUCKET_MILLIS), false);
+        for (Map.Entry<Long, KeyList> bucket : elapsed.entrySet()) {
+          KeyList expired = bucket.getValue();
+          for (int i = 0; i < expired.size(); i++) {
+            long key = expired.get(i);
+            int slot = find(key, hash(key));
+            // The url may have been deleted, or deleted and created again
+            if (slot >= 0 && expiries[slot] < now) {
+              removeSlot(slot);
+            }
+          }
+        }
+        elapsed.clear();
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    void forEach(TokenCodec codec, long now, Consumer<ShortUrl> action) {
+      long[] k;
+      long[] r;
+      long[] e;
+      byte[] a;
+      long stamp = lock.readLock();
+      try {
+        k = keys.clone();
+        r = refs.clone();
+        e = expiries.clone();
+        a = arena;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+      for (int i = 0; i < k.length; i++) {
+        if (k[i] != 0 && e[i] >= now) {
+          action.accept(toShortUrl(codec.decode(k[i]), a, r[i], e[i]));
+        }
+      }
+    }
+
+    int size() {
+      long stamp = lock.readLock();
+      try {
+        return size;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    int countExpired(long now) {
+      long stamp = lock.readLock();
+      try {
+        int count = 0;
+        for (KeyList expired
+            : expiryBuckets.headMap(Math.floorDiv(now, EXPIRY_BUCKET_MILLIS), false).values()) {
+          count += expired.size();
+        }
+        return count;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    private int find(long key, long hash) {
+      int mask = keys.length - 1;
+      int slot = (int) hash & mask;
+      while (true) {
+        long candidate = keys[slot];
+        if (candidate == key) {
+          return slot;
+        }
+        if (candidate == 0) {
+          return -1;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private void insert(long key, long hash, long ref, long expiry) {
+      int mask = keys.length - 1;
+      int slot = (int) hash & mask;
+      while (keys[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      refs[slot] = ref;
+      expiries[slot] = expiry;
+      keys[slot] = key;
+    }
+
+    /**
+     * Removes the entry in the slot using backward shift deletion, so that
+     * no tombstones are needed to keep later probe sequences intact.
+     */
+    private void removeSlot(int slot) {
+      arenaGarbage += (int) refs[slot];
+      size--;
+      int mask = keys.length - 1;
+      int hole = slot;
+      int next = (hole + 1) & mask;
+      while (keys[next] != 0) {
+        int home = (int) hash(keys[next]) & mask;
+        // Move the entry back if the hole lies between its home slot and
+        // its current slot, wrapping around the end of the table
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          keys[hole] = keys[next];
+          refs[hole] = refs[next];
+          expiries[hole] = expiries[next];
+          hole = next;
+        }
+        next = (next + 1) & mask;
+      }
+      keys[hole] = 0;
+      refs[hole] = 0;
+      expiries[hole] = 0;
+    }
+
+    private void resize(int capacity) {
+      long[] oldKeys = keys;
+      long[] oldRefs = refs;
+      long[] oldExpiries = expiries;
+      keys = new long[capacity];
+      refs = new long[capacity];
+      expiries = new long[capacity];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != 0) {
+          insert(oldKeys[i], hash(oldKeys[i]), oldRefs[i], oldExpiries[i]);
+        }
+      }
+    }
+
+    /**
+     * Appends the url bytes to the arena, returning the packed offset and
+     * length. The arena is compacted into a new array when more than half
+     * of it is garbage from deleted entries, otherwise it is grown.
+     */
+    private long append(byte[] url) {
+      if (arenaUsed + url.length > arena.length) {
+        if (arenaGarbage > arenaUsed / 2) {
+          compactArena(url.length);
+        } else {
+          arena = Arrays.copyOf(arena, newArenaLength(arenaUsed + url.length));
+        }
+      }
+      long ref = ((long) arenaUsed << 32) | url.length;
+      System.arraycopy(url, 0, arena, arenaUsed, url.length);
+      arenaUsed += url.length;
+      return ref;
+    }
+
+    private void compactArena(int extra) {
+      int live = arenaUsed - arenaGarbage;
+      byte[] compacted = new byte[newArenaLength(live + extra)];
+      int used = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0) {
+          int offset = (int) (refs[i] >>> 32);
+          int length = (int) refs[i];
+          System.arraycopy(arena, offset, compacted, used, length);
+          refs[i] = ((long) used << 32) | length;
+          used += length;
+        }
+      }
+      arena = compacted;
+      arenaUsed = used;
+      arenaGarbage = 0;
+    }
+
+    private int newArenaLength(int required) {
+      long length = Math.max((long) arena.length, 1024L);
+      while (length < required) {
+        length *= 2;
+      }
+      if (length > Integer.MAX_VALUE - 8) {
+        if (required > Integer.MAX_VALUE - 8) {
+          throw new IllegalStateException("Compact repository segment is full.");
+        }
+        length = Integer.MAX_VALUE - 8;
+      }
+      return (int) length;
+    }
+
+    private static String toOriginalUrl(String token, byte[] arena, long ref, long expiry) {
+      return new String(arena, (int) (ref >>> 32), (int) ref, StandardCharsets.UTF_8);
+    }
+
+    private static ShortUrl toShortUrl(String token, byte[] arena, long ref, long expiry) {
+      return new ShortUrl.Builder()
+          .token(token)
+          .originalUrl(new String(arena, (int) (ref >>> 32), (int) ref, StandardCharsets.UTF_8))
+          .expiryTime(expiry)
+          .build();
+    }
+  }
+
+  /**
+   * Reads a value from an entry found in a segment.
+   */
+  @FunctionalInterface
+  interface EntryReader<T> {
+    T read(String token, byte[] arena, long ref, long expiry);
+  }
+}
@@ -0,0 +1,400 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link UrlRepository} that makes an in-memory repository durable, by
+ * logging every create and delete the in-memory repository applies to a
+ * {@link WriteAheadLog}, and only returning once it is written.
+ *
+ * <p>Changes are applied before they are logged, so creates the in-memory
+ * repository rejects, because their token is in use or can't be stored,
+ * are never logged to be replayed on recovery. Each change is applied and
+ * queued for the log under a lock striped by token, so the changes to a
+ * token are logged in the order they were applied, and the wait for the
+ * write is made after the lock is released, so concurrent writes still
+ * share a sync.
+ *
+ * <p>A snapshot of the repository is written periodically. Each snapshot
+ * starts by rolling the log to a new file, then writes every url to the
+ * snapshot file, and finally removes the older log files and snapshots. The
+ * snapshot is not a point in time copy, but as every change made while it was
+ * being written is in the new log file, loading the newest snapshot and then
+ * replaying the log files from the snapshot's sequence number onwards always
+ * rebuilds the repository.
+ *
+ * <p>Expired urls are skipped when snapshotting and recovering, so purges
+ * don't need to be logged.
+ *
+ * @author Gareth Patterson
+ */
+public class DurableUrlRepository implements UrlRepository, AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DurableUrlRepository.class);
+
+  private static final Pattern LOG_FILE = Pattern.compile("wal-(\\d{20})\\.log");
+  private static final Pattern SNAPSHOT_FILE = Pattern.compile("snapshot-(\\d{20})\\.dat");
+
+  private final UrlRepository delegate;
+  private final Path directory;
+  private final WriteAheadLog log;
+  // Writes hold the read lock while logging and applying a change, so that
+  // rolling the log for a snapshot waits for changes in the old log file
+  private final ReadWriteLock rollLock = new ReentrantReadWriteLock();
+  // One lock for each bit of a long, so a batch can note the stripes it needs in one
+  private final ReentrantLock[] writeLocks = new ReentrantLock[Long.SIZE];
+  private final ScheduledExecutorService snapshotExecutor;
+
+  /**
+   * Creates a durable repository, recovering the contents of the delegate
+   * repository from the snapshot and log files in the directory.
+   *
+   * @param delegate the in-memory repository, which should be empty
+   * @param directory the directory for the log and snapshot files
+   * @param fsync true if log writes should be synced to disk
+   * @param snapshotIntervalMinutes the minutes between snapshots, or 0 to
+   *     disable periodic snapshots
+   */
+  public DurableUrlRepository(UrlRepository delegate, Path directory, boolean fsync,
+                              long snapshotIntervalMinutes) {
+    this.delegate = delegate;
+    this.directory = directory;
+    for (int i = 0; i < writeLocks.length; i++) {
+      writeLocks[i] = new ReentrantLock();
+    }
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to create directory " + directory + ".", e);
+    }
+    long nextSequence = recover();
+    this.log = new WriteAheadLog(directory, nextSequence, fsync);
+    if (snapshotIntervalMinutes > 0) {
+      snapshotExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shorty-snapshot");
+        thread.setDaemon(true);
+        return thread;
+      });
+      snapshotExecutor.scheduleWithFixedDelay(this::scheduledSnapshot,
+          snapshotIntervalMinutes, snapshotIntervalMinutes, TimeUnit.MINUTES);
+    } else {
+      snapshotExecutor = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl getUrl(String token) {
+    return delegate.getUrl(token);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    return delegate.getOriginalUrl(token);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl createUrl(ShortUrl shortUrl) {
+    rollLock.readLock().lock();
+    try {
+      ShortUrl created;
+      CompletableFuture<Void> written;
+      ReentrantLock lock = writeLocks[stripe(shortUrl.getToken())];
+      lock.lock();
+      try {
+        created = delegate.createUrl(shortUrl);
+        if (created == null) {
+          return null;
+        }
+        written = log.queueCreate(created);
+      } finally {
+        lock.unlock();
+      }
+      WriteAheadLog.await(written);
+      return created;
+    } finally {
+      rollLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The urls stored are logged with a single write.
+   */
+  @Override
+  public BitSet createUrls(List<ShortUrl> shortUrls) {
+    long stripes = 0;
+    for (ShortUrl shortUrl : shortUrls) {
+      stripes |= 1L << stripe(shortUrl.getToken());
+    }
+    rollLock.readLock().lock();
+    try {
+      BitSet skipped;
+      CompletableFuture<Void> written = null;
+      // Locked in stripe order, so batches can't deadlock each other
+      for (long rest = stripes; rest != 0; rest &= rest - 1) {
+        writeLocks[Long.numberOfTrailingZeros(rest)].lock();
+      }
+      try {
+        skipped = delegate.createUrls(shortUrls);
+        List<ShortUrl> stored = shortUrls;
+        if (!skipped.isEmpty()) {
+          stored = new ArrayList<>(shortUrls.size() - skipped.cardinality());
+          for (int i = skipped.nextClearBit(0); i < shortUrls.size(); i = skipped.nextClearBit(i + 1)) {
+            stored.add(shortUrls.get(i));
+          }
+        }
+        if (!stored.isEmpty()) {
+          written = log.queueCreates(stored);
+        }
+      } finally {
+        for (long rest = stripes; rest != 0; rest &= rest - 1) {
+          writeLocks[Long.numberOfTrailingZeros(rest)].unlock();
+        }
+      }
+      if (written != null) {
+        WriteAheadLog.await(written);
+      }
+      return skipped;
+    } finally {
+      rollLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void deleteUrl(String token) {
+    rollLock.readLock().lock();
+    try {
+      CompletableFuture<Void> written;
+      ReentrantLock lock = writeLocks[stripe(token)];
+      lock.lock();
+      try {
+        delegate.deleteUrl(token);
+        written = log.queueDelete(token);
+      } finally {
+        lock.unlock();
+      }
+      WriteAheadLog.await(written);
+    } finally {
+      rollLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the write lock stripe for a token.
+   *
+   * @param token the token
+   * @return the index of its lock.
+   */
+  private int stripe(String token) {
+    int hash = token.hashCode();
+    return (hash ^ (hash >>> 16)) & (writeLocks.length - 1);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void purgeExpiredUrls() {
+    delegate.purgeExpiredUrls();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    delegate.forEachUrl(action);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    return delegate.countExpired(currentTime);
+  }
+
+  /**
+   * Writes a snapshot of the repository, and removes the log files and
+   * snapshots it replaces.
+   *
+   * @return the sequence number of the snapshot.
+   */
+  public synchronized long snapshot() {
+    long sequence;
+    rollLock.writeLock().lock();
+    try {
+      sequence = log.roll();
+    } finally {
+      rollLock.writeLock().unlock();
+    }
+
+    Path snapshot = snapshotFile(sequence);
+    Path tmp = directory.resolve(snapshot.getFileName() + ".tmp");
+    long start = System.currentTimeMillis();
+    long[] count = new long[1];
+    try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+         BufferedOutputStream out = new BufferedOutputStream(file, 1 << 20)) {
+      delegate.forEachUrl(shortUrl -> {
+        try {
+          out.write(WriteAheadLog.encodeCreate(shortUrl));
+          count[0]++;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      out.flush();
+      file.getFD().sync();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to write snapshot " + snapshot + ".", e);
+    }
+    try {
+      Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to write snapshot " + snapshot + ".", e);
+    }
+    LOGGER.info("Wrote snapshot of {} urls in {}ms.", count[0], System.currentTimeMillis() - start);
+
+    // Everything before the new snapshot is no longer needed
+    for (Path file : listFiles(LOG_FILE)) {
+      if (sequenceOf(file, LOG_FILE) < sequence) {
+        delete(file);
+      }
+    }
+    for (Path file : listFiles(SNAPSHOT_FILE)) {
+      if (sequenceOf(file, SNAPSHOT_FILE) < sequence) {
+        delete(file);
+      }
+    }
+    return sequence;
+  }
+
+  /**
+   * Stops taking snapshots and closes the log.
+   */
+  @Override
+  public void close() {
+    if (snapshotExecutor != null) {
+      snapshotExecutor.shutdown();
+    }
+    log.close();
+  }
+
+  /**
+   * Loads the newest snapshot and replays the log files after it.
+   *
+   * @return the sequence number for the next log file.
+   */
+  private long recover() {
+    long start = System.currentTimeMillis();
+    long now = start;
+    long snapshotSequence = -1;
+    long records = 0;
+    List<Path> snapshots = listFiles(SNAPSHOT_FILE);
+    if (!snapshots.isEmpty()) {
+      Path newest = snapshots.get(snapshots.size() - 1);
+      snapshotSequence = sequenceOf(newest, SNAPSHOT_FILE);
+      records += WriteAheadLog.replay(newest, delegate, now);
+    }
+    long nextSequence = Math.max(snapshotSequence, 0);
+    for (Path file : listFiles(LOG_FILE)) {
+      long sequence = sequenceOf(file, LOG_FILE);
+      if (sequence >= snapshotSequence) {
+        records += WriteAheadLog.replay(file, delegate, now);
+      }
+      nextSequence = Math.max(nextSequence, sequence + 1);
+    }
+    LOGGER.info("Recovered {} records from {} in {}ms.", records, directory,
+        System.currentTimeMillis() - start);
+    return nextSequence;
+  }
+
+  private void scheduledSnapshot() {
+    try {
+      snapshot();
+    } catch (RuntimeException e) {
+      LOGGER.error("Unable to write snapshot.", e);
+    }
+  }
+
+  private Path snapshotFile(long sequence) {
+    return directory.resolve(String.format("snapshot-%020d.dat", sequence));
+  }
+
+  /**
+   * Returns the files in the directory matching the pattern, in order of
+   * their sequence numbers.
+   */
+  private List<Path> listFiles(Pattern pattern) {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(file -> pattern.matcher(file.getFileName().toString()).matches())
+          .sorted()
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to list " + directory + ".", e);
+    }
+  }
+
+  private static long sequenceOf(Path file, Pattern pattern) {
+    Matcher matcher = pattern.matcher(file.getFileName().toString());
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("Unexpected file " + file + ".");
+    }
+    return Long.parseLong(matcher.group(1));
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to delete {}.", file, e);
+    }
+  }
+}
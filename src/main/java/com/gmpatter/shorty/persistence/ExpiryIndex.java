@@ -0,0 +1,157 @@
+package com.gmpatter.shorty.persistence;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * A time-bucketed index of items by expiry time.
+ *
+ * <p>Items are grouped into buckets covering a fixed span of time, ordered by
+ * the start of the span. Finding expired items only visits the buckets that
+ * have fully elapsed, so the cost of a purge is proportional to the number of
+ * expired items rather than the number of items in the index. Items in the
+ * current, partially elapsed bucket are left for a later purge.
+ *
+ * @param <T> the type of item being indexed
+ * @author Gareth Patterson
+ */
+public class ExpiryIndex<T> {
+
+  static final long DEFAULT_BUCKET_MILLIS = 1000;
+
+  private final long bucketMillis;
+  private final ConcurrentSkipListMap<Long, Bucket<T>> buckets = new ConcurrentSkipListMap<>();
+
+  /**
+   * Creates a new index with one second buckets.
+   */
+  public ExpiryIndex() {
+    this(DEFAULT_BUCKET_MILLIS);
+  }
+
+  /**
+   * Creates a new index with buckets covering the given span of time.
+   *
+   * @param bucketMillis the span of each bucket in milliseconds
+   */
+  public ExpiryIndex(long bucketMillis) {
+    if (bucketMillis <= 0) {
+      throw new IllegalArgumentException("Bucket span must be positive.");
+    }
+    this.bucketMillis = bucketMillis;
+  }
+
+  /**
+   * Adds an item to the index.
+   *
+   * @param expiryTime the expiry time of the item in epoch milliseconds
+   * @param item the item to add
+   */
+  public void add(long expiryTime, T item) {
+    Long key = Math.floorDiv(expiryTime, bucketMillis);
+    // A bucket that is being drained is closed, in which case it has already
+    // been removed from the map and the next attempt creates a fresh bucket
+    while (!buckets.computeIfAbsent(key, k -> new Bucket<>()).add(item)) {
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Removes an item from the index.
+   *
+   * @param expiryTime the expiry time the item was added with
+   * @param item the item to remove
+   */
+  public void remove(long expiryTime, T item) {
+    Bucket<T> bucket = buckets.get(Math.floorDiv(expiryTime, bucketMillis));
+    if (bucket != null) {
+      bucket.remove(item);
+    }
+  }
+
+  /**
+   * Removes every bucket that has fully elapsed at the given time, passing
+   * each of the items in those buckets to the consumer.
+   *
+   * @param currentTime the current time in epoch milliseconds
+   * @param consumer the consumer of expired items
+   * @return the number of items passed to the consumer.
+   */
+  public int pollExpired(long currentTime, Consumer<T> consumer) {
+    // Buckets before the current bucket have fully elapsed
+    ConcurrentNavigableMap<Long, Bucket<T>> elapsed =
+        buckets.headMap(Math.floorDiv(currentTime, bucketMillis), false);
+    int count = 0;
+    Map.Entry<Long, Bucket<T>> entry;
+    while ((entry = elapsed.pollFirstEntry()) != null) {
+      List<T> items = entry.getValue().close();
+      items.forEach(consumer);
+      count += items.size();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of items in the buckets that have fully elapsed at
+   * the given time, which the next call to {@link #pollExpired(long, Consumer)}
+   * would remove.
+   *
+   * @param currentTime the current time in epoch milliseconds
+   * @return the number of expired items.
+   */
+  public int countExpired(long currentTime) {
+    int count = 0;
+    for (Bucket<T> bucket : buckets.headMap(Math.floorDiv(currentTime, bucketMillis), false).values()) {
+      count += bucket.size();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of items in the index.
+   *
+   * @return the number of indexed items.
+   */
+  public int size() {
+    int size = 0;
+    for (Bucket<T> bucket : buckets.values()) {
+      size += bucket.size();
+    }
+    return size;
+  }
+
+  /**
+   * The items expiring within a single span of time.
+   */
+  private static final class Bucket<T> {
+    private final Set<T> items = new HashSet<>();
+    private boolean closed;
+
+    synchronized boolean add(T item) {
+      if (closed) {
+        return false;
+      }
+      items.add(item);
+      return true;
+    }
+
+    synchronized void remove(T item) {
+      items.remove(item);
+    }
+
+    synchronized List<T> close() {
+      closed = true;
+      return new ArrayList<>(items);
+    }
+
+    synchronized int size() {
+      return items.size();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.gmpatter.shorty.persistence;
+
+/**
+ * A Count-Min sketch of 4-bit counters, estimating how often each item has
+ * been accessed recently, for TinyLFU cache admission.
+ *
+ * <p>Each item increments one counter in each of four rows, and its frequency
+ * is the smallest of those counters. Sixteen counters are packed into each
+ * <code>long</code>. Once the number of increments reaches ten times the
+ * cache capacity every counter is halved, so that the sketch forgets items
+ * that are no longer popular.
+ *
+ * <p>Instances are not thread-safe, callers must guard them with a lock.
+ *
+ * @author Gareth Patterson
+ */
+class FrequencySketch {
+
+  private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final int MAX_COUNT = 15;
+
+  private final long[] table;
+  private final int sampleSize;
+  private int size;
+
+  /**
+   * Creates a sketch for a cache of the given capacity.
+   *
+   * @param capacity the capacity of the cache
+   */
+  FrequencySketch(int capacity) {
+    int length = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    table = new long[length];
+    sampleSize = Math.max(capacity, 1) * 10;
+  }
+
+  /**
+   * Returns the estimated number of recent accesses of the item.
+   *
+   * @param hash the hash code of the item
+   * @return the estimated frequency, from 0 to 15.
+   */
+  int frequency(int hash) {
+    int start = (hash & 3) << 2;
+    int frequency = MAX_COUNT;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int offset = (start + i) << 2;
+      int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Records an access of the item.
+   *
+   * @param hash the hash code of the item
+   */
+  void increment(int hash) {
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int index = indexOf(hash, i);
+      int offset = (start + i) << 2;
+      long mask = 0xfL << offset;
+      if ((table[index] & mask) != mask) {
+        table[index] += 1L << offset;
+        added = true;
+      }
+    }
+    if (added && ++size >= sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size /= 2;
+  }
+
+  private int indexOf(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return (int) h & (table.length - 1);
+  }
+}
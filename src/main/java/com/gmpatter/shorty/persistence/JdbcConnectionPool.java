@@ -0,0 +1,203 @@
+package com.gmpatter.shorty.persistence;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed size pool of JDBC connections, each caching the statements
+ * prepared on it.
+ *
+ * <p>Connections are opened when first needed, up to the maximum, and
+ * returned to the pool after each use. A connection that failed is closed
+ * rather than returned, and a new one is opened in its place when it is
+ * next needed. Preparing the same SQL on a pooled connection again returns
+ * the statement prepared the first time, so statements are only parsed and
+ * planned once per connection.
+ *
+ * @author Gareth Patterson
+ */
+public class JdbcConnectionPool implements AutoCloseable {
+
+  private final String url;
+  private final String user;
+  private final String password;
+  private final int maximumSize;
+  private final long timeoutMillis;
+  private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private volatile boolean closed;
+
+  /**
+   * Creates an empty pool.
+   *
+   * @param url the JDBC url of the database
+   * @param user the database user, or null
+   * @param password the database password, or null
+   * @param maximumSize the most connections to open
+   * @param timeoutMillis the longest time to wait for a connection when they
+   *     are all in use
+   */
+  public JdbcConnectionPool(String url, String user, String password, int maximumSize, long timeoutMillis) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("The connection pool size must be at least 1.");
+    }
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.maximumSize = maximumSize;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Takes a connection from the pool, opening one if none are idle and the
+   * pool isn't full, or waiting for one to be returned if it is.
+   *
+   * @return the connection, which must be returned with
+   *     {@link PooledConnection#close()}.
+   * @throws SQLException if a connection can't be opened, or none is returned
+   *     within the timeout
+   */
+  public PooledConnection borrow() throws SQLException {
+    if (closed) {
+      throw new SQLException("The connection pool is closed.");
+    }
+    PooledConnection connection = idle.poll();
+    if (connection != null) {
+      return connection;
+    }
+    // Reserve a slot before opening, so concurrent callers can't overfill the pool
+    if (size.incrementAndGet() <= maximumSize) {
+      try {
+        return new PooledConnection(DriverManager.getConnection(url, user, password));
+      } catch (SQLException | RuntimeException e) {
+        size.decrementAndGet();
+        throw e;
+      }
+    }
+    size.decrementAndGet();
+    try {
+      connection = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection.", e);
+    }
+    if (connection == null) {
+      throw new SQLException("No connection was available within " + timeoutMillis + "ms.");
+    }
+    return connection;
+  }
+
+  /**
+   * Returns the number of open connections.
+   *
+   * @return the pool size.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Closes the idle connections, and every other connection as it is
+   * returned.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    List<PooledConnection> connections = new ArrayList<>();
+    idle.drainTo(connections);
+    connections.forEach(PooledConnection::discard);
+  }
+
+  /**
+   * A connection borrowed from the pool, which is returned to the pool when
+   * closed.
+   */
+  public final class PooledConnection implements AutoCloseable {
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private boolean failed;
+
+    /**
+     * Wraps a newly opened connection.
+     *
+     * @param connection the connection
+     */
+    private PooledConnection(Connection connection) {
+      this.connection = connection;
+    }
+
+    /**
+     * Returns the underlying connection, for transactions.
+     *
+     * @return the connection.
+     */
+    public Connection getConnection() {
+      return connection;
+    }
+
+    /**
+     * Returns the statement prepared for the SQL on this connection,
+     * preparing it the first time.
+     *
+     * @param sql the SQL
+     * @return the prepared statement, which must not be closed.
+     * @throws SQLException if the statement can't be prepared
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+      return statement;
+    }
+
+    /**
+     * Marks the connection as failed, so it is closed instead of returned to
+     * the pool.
+     */
+    public void fail() {
+      failed = true;
+    }
+
+    /**
+     * Returns the connection to the pool, or closes it if it failed or the
+     * pool is closed.
+     */
+    @Override
+    public void close() {
+      if (failed || closed) {
+        discard();
+      } else {
+        idle.add(this);
+        // The pool may have been closed while this was being added
+        if (closed && idle.remove(this)) {
+          discard();
+        }
+      }
+    }
+
+    /**
+     * Closes the connection and frees its slot in the pool.
+     */
+    private void discard() {
+      size.decrementAndGet();
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // The connection is being thrown away, so there is nothing more to do
+      }
+    }
+  }
+}
@@ -0,0 +1,558 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.JdbcConnectionPool.PooledConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * An implementation of {@link UrlRepository} that stores urls in a
+ * relational database through JDBC, in a <code>short_url</code> table that
+ * is created if it doesn't exist.
+ *
+ * <p>Connections are taken from a {@link JdbcConnectionPool}, which keeps
+ * the statements prepared on each connection, so each statement is only
+ * parsed once per connection.
+ *
+ * <p>Urls are created by a single writer thread, as the
+ * {@link WriteAheadLog} appends records. Callers queue the url and wait for
+ * it to be inserted, and the writer inserts every queued url in one
+ * transaction, using multi-row inserts. Concurrent creates then share the
+ * cost of a round trip and a commit.
+ *
+ * <p>The table is indexed by expiry time and token, so purging deletes the
+ * expired rows by a range of the index rather than reading every url. The
+ * range is deleted in chunks, each in its own transaction, so a purge never
+ * holds locks on more than a chunk of rows, however many urls share an
+ * expiry time.
+ *
+ * @author Gareth Patterson
+ */
+public class JdbcUrlRepository implements UrlRepository, AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JdbcUrlRepository.class);
+
+  // The most urls the writer takes from the queue for one transaction
+  static final int MAX_PENDING = 4096;
+  private static final int FETCH_SIZE = 1000;
+
+  // Queued by close() to stop the writer thread once earlier urls are inserted
+  private static final PendingCreate CLOSE = new PendingCreate(null);
+
+  private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS short_url ("
+      + "token VARCHAR(64) NOT NULL PRIMARY KEY, "
+      + "original_url VARCHAR(8000) NOT NULL, "
+      + "expiry_time BIGINT NOT NULL)";
+  private static final String CREATE_INDEX =
+      "CREATE INDEX IF NOT EXISTS short_url_expiry_token ON short_url (expiry_time, token)";
+  // Replaced by the index on expiry time and token
+  private static final String DROP_OLD_INDEX = "DROP INDEX IF EXISTS short_url_expiry";
+  private static final String SELECT_URL =
+      "SELECT original_url, expiry_time FROM short_url WHERE token = ? AND expiry_time >= ?";
+  private static final String INSERT_URL =
+      "INSERT INTO short_url (token, original_url, expiry_time) VALUES (?, ?, ?)";
+  private static final String DELETE_URL = "DELETE FROM short_url WHERE token = ?";
+  private static final String SELECT_URLS =
+      "SELECT token, original_url, expiry_time FROM short_url WHERE expiry_time >= ?";
+  private static final String COUNT_URLS = "SELECT COUNT(*) FROM short_url";
+  private static final String COUNT_EXPIRED = "SELECT COUNT(*) FROM short_url WHERE expiry_time < ?";
+  // The expiry time and token a chunk of expired urls ends at, found from the index
+  private static final String SELECT_CHUNK_END = "SELECT expiry_time, token FROM short_url WHERE expiry_time < ? "
+      + "ORDER BY expiry_time, token OFFSET ? ROWS FETCH FIRST 1 ROW ONLY";
+  private static final String DELETE_CHUNK =
+      "DELETE FROM short_url WHERE expiry_time < ? OR (expiry_time = ? AND token <= ?)";
+  private static final String DELETE_EXPIRED = "DELETE FROM short_url WHERE expiry_time < ?";
+
+  private final JdbcConnectionPool pool;
+  private final int batchRows;
+  private final int purgeChunkRows;
+  private final String insertBatch;
+  private final BlockingQueue<PendingCreate> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private final AtomicLong batchCount = new AtomicLong();
+  private volatile boolean closed;
+
+  /**
+   * Creates a repository storing urls in the pool's database, creating the
+   * table if it doesn't exist.
+   *
+   * @param pool the connection pool, which is closed with the repository
+   * @param batchRows the number of rows in each multi-row insert
+   * @param purgeChunkRows the number of expired rows to delete in each
+   *     transaction when purging
+   */
+  public JdbcUrlRepository(JdbcConnectionPool pool, int batchRows, int purgeChunkRows) {
+    if (batchRows < 1 || purgeChunkRows < 1) {
+      throw new IllegalArgumentException("The batch rows and purge chunk rows must be at least 1.");
+    }
+    this.pool = pool;
+    this.batchRows = batchRows;
+    this.purgeChunkRows = purgeChunkRows;
+    StringBuilder sql = new StringBuilder(INSERT_URL);
+    for (int i = 1; i < batchRows; i++) {
+      sql.append(", (?, ?, ?)");
+    }
+    this.insertBatch = sql.toString();
+    try (PooledConnection connection = pool.borrow();
+         Statement statement = connection.getConnection().createStatement()) {
+      statement.execute(CREATE_TABLE);
+      statement.execute(CREATE_INDEX);
+      statement.execute(DROP_OLD_INDEX);
+    } catch (SQLException e) {
+      throw new UncheckedSQLException("Unable to create the short_url table.", e);
+    }
+    this.writer = new Thread(this::writeLoop, "shorty-jdbc-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl getUrl(String token) {
+    try (PooledConnection connection = pool.borrow()) {
+      PreparedStatement statement = select(connection, token);
+      try (ResultSet result = statement.executeQuery()) {
+        if (!result.next()) {
+          return null;
+        }
+        return new ShortUrl.Builder()
+            .token(token)
+            .originalUrl(result.getString(1))
+            .expiryTime(result.getLong(2))
+            .build();
+      } catch (SQLException e) {
+        connection.fail();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new UncheckedSQLException("Unable to get url " + token + ".", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    try (PooledConnection connection = pool.borrow()) {
+      PreparedStatement statement = select(connection, token);
+      try (ResultSet result = statement.executeQuery()) {
+        return result.next() ? result.getString(1) : null;
+      } catch (SQLException e) {
+        connection.fail();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new UncheckedSQLException("Unable to get url " + token + ".", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If the token is already stored the existing url is kept and null is
+   * returned, as {@link MapUrlRepository} does.
+   */
+  @Override
+  public ShortUrl createUrl(ShortUrl shortUrl) {
+    if (closed) {
+      throw new IllegalStateException("Url repository is closed.");
+    }
+    PendingCreate pending = new PendingCreate(shortUrl);
+    queue.add(pending);
+    boolean stored;
+    try {
+      stored = pending.inserted.join();
+    } catch (CompletionException e) {
+      throw new UncheckedSQLException("Unable to create url " + shortUrl.getToken() + ".",
+          (SQLException) e.getCause());
+    }
+    return stored ? shortUrl : null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The batch is already as large as the writer would make it, so it is
+   * inserted on the caller's thread.
+   */
+  @Override
+  public BitSet createUrls(List<ShortUrl> shortUrls) {
+    try {
+      return insert(shortUrls);
+    } catch (SQLException e) {
+      throw new UncheckedSQLException("Unable to create " + shortUrls.size() + " urls.", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void deleteUrl(String token) {
+    try (PooledConnection connection = pool.borrow()) {
+      try {
+        PreparedStatement statement = connection.prepare(DELETE_URL);
+        statement.setString(1, token);
+        statement.executeUpdate();
+      } catch (SQLException e) {
+        connection.fail();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new UncheckedSQLException("Unable to delete url " + token + ".", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Each chunk is found by reading the expiry time and token of the last
+   * url in it from the index, and then deleting the range of the index up
+   * to that url. Ending chunks at a url rather than an expiry time keeps
+   * them to the chunk size even when many urls share an expiry time.
+   */
+  @Override
+  public void purgeExpiredUrls() {
+    long now = System.currentTimeMillis();
+    int purged = 0;
+    try (PooledConnection connection = pool.borrow()) {
+      try {
+        PreparedStatement chunkEnd = connection.prepare(SELECT_CHUNK_END);
+        PreparedStatement deleteChunk = connection.prepare(DELETE_CHUNK);
+        while (true) {
+          chunkEnd.setLong(1, now);
+          chunkEnd.setInt(2, purgeChunkRows - 1);
+          try (ResultSet result = chunkEnd.executeQuery()) {
+            if (!result.next()) {
+              break;
+            }
+            deleteChunk.setLong(1, result.getLong(1));
+            deleteChunk.setLong(2, result.getLong(1));
+            deleteChunk.setString(3, result.getString(2));
+          }
+          purged += deleteChunk.executeUpdate();
+        }
+        // Fewer than a chunk are left
+        PreparedStatement deleteExpired = connection.prepare(DELETE_EXPIRED);
+        deleteExpired.setLong(1, now);
+        purged += deleteExpired.executeUpdate();
+      } catch (SQLException e) {
+        connection.fail();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new UncheckedSQLException("Unable to purge expired urls.", e);
+    }
+    LOGGER.debug("Purged {} expired urls.", purged);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The urls are read through one of the pool's connections, a page at a
+   * time, so the action may use the repository as long as the pool has
+   * another connection.
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    try (PooledConnection connection = pool.borrow()) {
+      try {
+        PreparedStatement statement = connection.prepare(SELECT_URLS);
+        statement.setFetchSize(FETCH_SIZE);
+        statement.setLong(1, System.currentTimeMillis());
+        try (ResultSet result = statement.executeQuery()) {
+          while (result.next()) {
+            action.accept(new ShortUrl.Builder()
+                .token(result.getString(1))
+                .originalUrl(result.getString(2))
+                .expiryTime(result.getLong(3))
+                .build());
+          }
+        }
+      } catch (SQLException e) {
+        connection.fail();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new UncheckedSQLException("Unable to read urls.", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int size() {
+    return count(COUNT_URLS, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    return count(COUNT_EXPIRED, currentTime);
+  }
+
+  /**
+   * Returns the number of transactions the writer has inserted urls in,
+   * which is less than the number of urls created when concurrent creates
+   * were coalesced.
+   *
+   * @return the number of insert batches.
+   */
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /**
+   * Stops the writer thread once the queued urls are inserted, and closes
+   * the connection pool.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    queue.add(CLOSE);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pool.close();
+  }
+
+  /**
+   * Prepares the query for the unexpired url with the given token.
+   *
+   * @param connection the connection
+   * @param token the token
+   * @return the statement.
+   * @throws SQLException if the statement can't be prepared
+   */
+  private PreparedStatement select(PooledConnection connection, String token) throws SQLException {
+    PreparedStatement statement = connection.prepare(SELECT_URL);
+    statement.setString(1, token);
+    statement.setLong(2, System.currentTimeMillis());
+    return statement;
+  }
+
+  /**
+   * Runs a count query.
+   *
+   * @param sql the query
+   * @param time the time parameter of the query, or null if it has none
+   * @return the count.
+   */
+  private int count(String sql, Long time) {
+    try (PooledConnection connection = pool.borrow()) {
+      try {
+        PreparedStatement statement = connection.prepare(sql);
+        if (time != null) {
+          statement.setLong(1, time);
+        }
+        try (ResultSet result = statement.executeQuery()) {
+          result.next();
+          return (int) Math.min(result.getLong(1), Integer.MAX_VALUE);
+        }
+      } catch (SQLException e) {
+        connection.fail();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new UncheckedSQLException("Unable to count urls.", e);
+    }
+  }
+
+  private void writeLoop() {
+    List<PendingCreate> batch = new ArrayList<>();
+    List<ShortUrl> urls = new ArrayList<>();
+    boolean running = true;
+    while (running) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+      queue.drainTo(batch, MAX_PENDING - 1);
+      int close = batch.indexOf(CLOSE);
+      if (close >= 0) {
+        batch.subList(close, batch.size()).clear();
+        running = false;
+      }
+      if (!batch.isEmpty()) {
+        batch.forEach(pending -> urls.add(pending.shortUrl));
+        try {
+          BitSet skipped = insert(urls);
+          batchCount.incrementAndGet();
+          for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).inserted.complete(!skipped.get(i));
+          }
+        } catch (SQLException e) {
+          LOGGER.error("Unable to insert {} urls.", urls.size(), e);
+          batch.forEach(pending -> pending.inserted.completeExceptionally(e));
+        }
+      }
+      batch.clear();
+      urls.clear();
+    }
+    // Fail anything queued after the repository was closed
+    queue.drainTo(batch);
+    batch.forEach(pending -> pending.inserted.completeExceptionally(
+        new SQLException("Url repository is closed.")));
+  }
+
+  /**
+   * Inserts the urls in one transaction, in multi-row inserts of the batch
+   * size and a JDBC batch of single row inserts for the rest.
+   *
+   * <p>If a token is already stored the transaction is rolled back, and the
+   * urls are inserted one at a time instead, skipping those already stored.
+   * Tokens are generated to be unique, so this is rare.
+   *
+   * @param shortUrls the urls to insert
+   * @return the indexes of the urls skipped as their tokens were already
+   *     stored, usually none.
+   * @throws SQLException if the urls can't be inserted
+   */
+  private BitSet insert(List<ShortUrl> shortUrls) throws SQLException {
+    try (PooledConnection pooled = pool.borrow()) {
+      Connection connection = pooled.getConnection();
+      try {
+        connection.setAutoCommit(false);
+        try {
+          insertRows(pooled, shortUrls);
+          connection.commit();
+          return new BitSet();
+        } catch (SQLException e) {
+          connection.rollback();
+          if (!isConstraintViolation(e)) {
+            throw e;
+          }
+          return insertEach(pooled, shortUrls);
+        } finally {
+          connection.setAutoCommit(true);
+        }
+      } catch (SQLException e) {
+        pooled.fail();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Inserts the urls in the current transaction.
+   *
+   * @param connection the connection
+   * @param shortUrls the urls to insert
+   * @throws SQLException if the urls can't be inserted
+   */
+  private void insertRows(PooledConnection connection, List<ShortUrl> shortUrls) throws SQLException {
+    int index = 0;
+    if (shortUrls.size() >= batchRows) {
+      PreparedStatement statement = connection.prepare(insertBatch);
+      for (; index + batchRows <= shortUrls.size(); index += batchRows) {
+        for (int row = 0; row < batchRows; row++) {
+          setRow(statement, row * 3, shortUrls.get(index + row));
+        }
+        statement.executeUpdate();
+      }
+    }
+    if (index < shortUrls.size()) {
+      PreparedStatement statement = connection.prepare(INSERT_URL);
+      for (; index < shortUrls.size(); index++) {
+        setRow(statement, 0, shortUrls.get(index));
+        statement.addBatch();
+      }
+      statement.executeBatch();
+    }
+  }
+
+  /**
+   * Inserts the urls one at a time, each in its own transaction, skipping
+   * any url whose token is already stored.
+   *
+   * @param connection the connection
+   * @param shortUrls the urls to insert
+   * @return the indexes of the urls skipped.
+   * @throws SQLException if a url can't be inserted for any other reason
+   */
+  private BitSet insertEach(PooledConnection connection, List<ShortUrl> shortUrls) throws SQLException {
+    BitSet skipped = new BitSet();
+    PreparedStatement statement = connection.prepare(INSERT_URL);
+    for (int i = 0; i < shortUrls.size(); i++) {
+      setRow(statement, 0, shortUrls.get(i));
+      try {
+        statement.executeUpdate();
+        connection.getConnection().commit();
+      } catch (SQLException e) {
+        connection.getConnection().rollback();
+        if (!isConstraintViolation(e)) {
+          throw e;
+        }
+        skipped.set(i);
+      }
+    }
+    return skipped;
+  }
+
+  /**
+   * Sets the parameters of one row of an insert.
+   *
+   * @param statement the insert statement
+   * @param offset the number of parameters before the row
+   * @param shortUrl the url for the row
+   * @throws SQLException if the parameters can't be set
+   */
+  private static void setRow(PreparedStatement statement, int offset, ShortUrl shortUrl) throws SQLException {
+    statement.setString(offset + 1, shortUrl.getToken());
+    statement.setString(offset + 2, shortUrl.getOriginalUrl());
+    statement.setLong(offset + 3, shortUrl.getExpiryTime());
+  }
+
+  /**
+   * Returns true if the exception, or the first exception of a batch, is an
+   * integrity constraint violation, such as a duplicate key.
+   *
+   * @param e the exception
+   * @return true if a constraint was violated.
+   */
+  private static boolean isConstraintViolation(SQLException e) {
+    for (SQLException next = e; next != null; next = next.getNextException()) {
+      if (next.getSQLState() != null && next.getSQLState().startsWith("23")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A url waiting to be inserted by the writer thread.
+   */
+  private static final class PendingCreate {
+    private final ShortUrl shortUrl;
+    // Completed with false if the token was already stored
+    private final CompletableFuture<Boolean> inserted = new CompletableFuture<>();
+
+    PendingCreate(ShortUrl shortUrl) {
+      this.shortUrl = shortUrl;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.gmpatter.shorty.persistence;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive <code>long</code> keys.
+ *
+ * <p>Instances are not thread-safe, callers must guard them with a lock.
+ *
+ * @author Gareth Patterson
+ */
+class KeyList {
+
+  private long[] keys = new long[8];
+  private int size;
+
+  /**
+   * Adds a key to the end of the list.
+   *
+   * @param key the key to add
+   */
+  void add(long key) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+    }
+    keys[size++] = key;
+  }
+
+  /**
+   * Returns the key at the index.
+   *
+   * @param index the index of the key
+   * @return the key.
+   */
+  long get(int index) {
+    return keys[index];
+  }
+
+  /**
+   * Returns the number of keys in the list.
+   *
+   * @return the size of the list.
+   */
+  int size() {
+    return size;
+  }
+}
@@ -0,0 +1,183 @@
+package com.gmpatter.shorty.persistence;
+
+/**
+ * A linear probing hash map from positive <code>long</code> keys to
+ * <code>long</code> values, stored in two primitive arrays.
+ *
+ * <p>Instances are not thread-safe, callers must guard them with a lock.
+ *
+ * @author Gareth Patterson
+ */
+class LongLongMap {
+
+  static final long NOT_FOUND = -1;
+
+  private static final int MAX_LOAD_PERCENT = 70;
+
+  private long[] keys;
+  private long[] values;
+  private int size;
+
+  /**
+   * Creates a new map.
+   *
+   * @param capacity the initial capacity, a power of two
+   */
+  LongLongMap(int capacity) {
+    keys = new long[capacity];
+    values = new long[capacity];
+  }
+
+  /**
+   * Returns the value for the key.
+   *
+   * @param key the key, greater than 0
+   * @return the value, or {@link #NOT_FOUND} if the key isn't in the map.
+   */
+  long get(long key) {
+    int slot = find(key);
+    return slot < 0 ? NOT_FOUND : values[slot];
+  }
+
+  /**
+   * Sets the value for the key.
+   *
+   * @param key the key, greater than 0
+   * @param value the value
+   * @return the previous value, or {@link #NOT_FOUND} if the key wasn't in the map.
+   */
+  long put(long key, long value) {
+    int slot = find(key);
+    if (slot >= 0) {
+      long previous = values[slot];
+      values[slot] = value;
+      return previous;
+    }
+    if ((size + 1) * 100L > keys.length * (long) MAX_LOAD_PERCENT) {
+      resize(keys.length * 2);
+    }
+    insert(key, value);
+    size++;
+    return NOT_FOUND;
+  }
+
+  /**
+   * Removes the key from the map.
+   *
+   * @param key the key, greater than 0
+   * @return the removed value, or {@link #NOT_FOUND} if the key wasn't in the map.
+   */
+  long remove(long key) {
+    int slot = find(key);
+    if (slot < 0) {
+      return NOT_FOUND;
+    }
+    long previous = values[slot];
+    size--;
+    // Backward shift deletion, so no tombstones are needed
+    int mask = keys.length - 1;
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != 0) {
+      int home = (int) CompactUrlRepository.hash(keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = 0;
+    values[hole] = 0;
+    return previous;
+  }
+
+  /**
+   * Returns the number of keys in the map.
+   *
+   * @return the size of the map.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of slots in the map, for iterating with
+   * {@link #keyAt(int)} and {@link #valueAt(int)}.
+   *
+   * @return the capacity of the map.
+   */
+  int capacity() {
+    return keys.length;
+  }
+
+  /**
+   * Returns the key in the slot.
+   *
+   * @param slot the slot
+   * @return the key, or 0 if the slot is empty.
+   */
+  long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  /**
+   * Returns the value in the slot.
+   *
+   * @param slot the slot
+   * @return the value.
+   */
+  long valueAt(int slot) {
+    return values[slot];
+  }
+
+  /**
+   * Returns a copy of the map.
+   *
+   * @return the copy.
+   */
+  LongLongMap copy() {
+    LongLongMap copy = new LongLongMap(1);
+    copy.keys = keys.clone();
+    copy.values = values.clone();
+    copy.size = size;
+    return copy;
+  }
+
+  private int find(long key) {
+    int mask = keys.length - 1;
+    int slot = (int) CompactUrlRepository.hash(key) & mask;
+    while (true) {
+      long candidate = keys[slot];
+      if (candidate == key) {
+        return slot;
+      }
+      if (candidate == 0) {
+        return -1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void insert(long key, long value) {
+    int mask = keys.length - 1;
+    int slot = (int) CompactUrlRepository.hash(key) & mask;
+    while (keys[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    keys = new long[capacity];
+    values = new long[capacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        insert(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+}
@@ -2,16 +2,17 @@ package com.gmpatter.shorty.persistence;
 
 import com.gmpatter.shorty.model.ShortUrl;
 
-import java.time.LocalDateTime;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 /**
  * An implementation of {@link UrlRepository} that stores <code>ShortUrl</code>
  * instances in-memory in a {@link ConcurrentHashMap}.
  *
+ * <p>Urls are also indexed by expiry time in an {@link ExpiryIndex}, so that
+ * purging only visits the urls that have expired.
+ *
  * @author Gareth Patterson
  */
 public class MapUrlRepository implements UrlRepository {
@@ -21,7 +22,14 @@ public class MapUrlRepository implements UrlRepository {
   // The concurrent hash map for storing the data
   Map<String, ShortUrl> data = new ConcurrentHashMap<>();
 
-  private MapUrlRepository() {
+  // The index of urls by expiry time used for purging
+  ExpiryIndex<ShortUrl> expiryIndex = new ExpiryIndex<>();
+
+  /**
+   * Creates a new repository, for a url service that doesn't share the
+   * singleton instance.
+   */
+  public MapUrlRepository() {
   }
 
   /**
@@ -41,7 +49,24 @@ public class MapUrlRepository implements UrlRepository {
    */
   @Override
   public ShortUrl getUrl(String token) {
-    return data.get(token);
+    ShortUrl shortUrl = data.get(token);
+    // Treat urls that have expired but haven't been purged yet as absent
+    if (shortUrl != null && isExpired(shortUrl)) {
+      return null;
+    }
+    return shortUrl;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    ShortUrl shortUrl = data.get(token);
+    if (shortUrl == null || isExpired(shortUrl)) {
+      return null;
+    }
+    return shortUrl.getOriginalUrl();
   }
 
   /**
@@ -49,7 +74,10 @@ public class MapUrlRepository implements UrlRepository {
    */
   @Override
   public ShortUrl createUrl(ShortUrl shortUrl) {
-    data.putIfAbsent(shortUrl.getToken(), shortUrl);
+    if (data.putIfAbsent(shortUrl.getToken(), shortUrl) != null) {
+      return null;
+    }
+    expiryIndex.add(shortUrl.getExpiryTime(), shortUrl);
     return shortUrl;
   }
 
@@ -58,7 +86,10 @@ public class MapUrlRepository implements UrlRepository {
    */
   @Override
   public void deleteUrl(String id) {
-    data.remove(id);
+    ShortUrl removed = data.remove(id);
+    if (removed != null) {
+      expiryIndex.remove(removed.getExpiryTime(), removed);
+    }
   }
 
   /**
@@ -66,11 +97,39 @@ public class MapUrlRepository implements UrlRepository {
    */
   @Override
   public void purgeExpiredUrls() {
-    List<Map.Entry<String, ShortUrl>> expiredList = data.entrySet()
-        .stream()
-        .filter(e -> isExpired(e.getValue()))
-        .collect(Collectors.toList());
-    expiredList.forEach(expired -> deleteUrl(expired.getKey()));
+    // Only remove the exact instance that was indexed, in case the token
+    // has since been deleted and created again
+    expiryIndex.pollExpired(System.currentTimeMillis(),
+        expired -> data.remove(expired.getToken(), expired));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    long now = System.currentTimeMillis();
+    for (ShortUrl shortUrl : data.values()) {
+      if (!shortUrl.isExpired(now)) {
+        action.accept(shortUrl);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int size() {
+    return data.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    return expiryIndex.countExpired(currentTime);
   }
 
   /**
@@ -80,8 +139,7 @@ public class MapUrlRepository implements UrlRepository {
    * @return true if the short url is expired.
    */
   protected boolean isExpired(ShortUrl shortUrl) {
-    LocalDateTime expiry = LocalDateTime.parse(shortUrl.getExpiry());
-    return expiry.isBefore(LocalDateTime.now());
+    return shortUrl.isExpired(System.currentTimeMillis());
   }
 
 }
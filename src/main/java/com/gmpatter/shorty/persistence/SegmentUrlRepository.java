@@ -0,0 +1,638 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link UrlRepository} that stores short urls in append-only, memory-mapped
+ * segment files, so the stored urls don't take up any heap.
+ *
+ * <p>Creates are appended to the active segment as records in the
+ * {@link WriteAheadLog} format, and the heap only holds an index from the
+ * token key to the segment and offset of its record. Reads go straight to the
+ * mapped segment. Deletes append a tombstone record, and purged urls are
+ * simply dropped from the index as their records carry the expiry time.
+ *
+ * <p>A background compactor rewrites the live records of sealed segments with
+ * more than the configured fraction of garbage into the active segment, and
+ * then removes the old segment file. On startup the index is rebuilt by
+ * scanning the segments in order.
+ *
+ * @author Gareth Patterson
+ */
+public class SegmentUrlRepository implements UrlRepository, AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SegmentUrlRepository.class);
+
+  private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d{10})\\.dat");
+
+  static final int STRIPES = 64;
+  static final int INITIAL_STRIPE_CAPACITY = 1024;
+  static final long EXPIRY_BUCKET_MILLIS = 1000;
+
+  // Offsets of fields within a record
+  private static final int TYPE_OFFSET = WriteAheadLog.HEADER_BYTES;
+  private static final int EXPIRY_OFFSET = TYPE_OFFSET + 1;
+  private static final int TOKEN_LENGTH_OFFSET = EXPIRY_OFFSET + 8;
+  private static final int TOKEN_OFFSET = TOKEN_LENGTH_OFFSET + 2;
+
+  private final TokenCodec codec;
+  private final Path directory;
+  private final int segmentSize;
+  private final double compactionThreshold;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final Map<Integer, MappedSegment> segments = new ConcurrentHashMap<>();
+  private final Object appendLock = new Object();
+  private MappedSegment active;
+  private final ScheduledExecutorService compactor;
+
+  /**
+   * Creates a repository stored in the directory, rebuilding the index from
+   * any existing segments.
+   *
+   * @param tokenCharacters the characters used in tokens
+   * @param directory the directory for the segment files
+   * @param segmentSize the size of each segment file in bytes
+   * @param compactionThreshold the fraction of a segment that must be
+   *     garbage before it is compacted
+   * @param compactionIntervalMinutes the minutes between compactions, or 0
+   *     to disable background compaction
+   */
+  public SegmentUrlRepository(char[] tokenCharacters, Path directory, int segmentSize,
+                              double compactionThreshold, long compactionIntervalMinutes) {
+    this.codec = new TokenCodec(tokenCharacters);
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.compactionThreshold = compactionThreshold;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to create directory " + directory + ".", e);
+    }
+    recover();
+    if (compactionIntervalMinutes > 0) {
+      compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shorty-segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+      });
+      compactor.scheduleWithFixedDelay(this::scheduledCompaction,
+          compactionIntervalMinutes, compactionIntervalMinutes, TimeUnit.MINUTES);
+    } else {
+      compactor = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl getUrl(String token) {
+    MappedSegment segment;
+    long location;
+    long key = codec.encode(token);
+    if (key <= 0) {
+      return null;
+    }
+    Stripe stripe = stripeFor(key);
+    do {
+      location = stripe.locate(key);
+      if (location == LongLongMap.NOT_FOUND) {
+        return null;
+      }
+      // The record may have been moved by the compactor, in which case the
+      // index already points to its new location
+      segment = segments.get(segmentId(location));
+    } while (segment == null);
+    return segment.read(token, offset(location), System.currentTimeMillis());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Only the url is decoded, without building a <code>ShortUrl</code>.
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    MappedSegment segment;
+    long location;
+    long key = codec.encode(token);
+    if (key <= 0) {
+      return null;
+    }
+    Stripe stripe = stripeFor(key);
+    do {
+      location = stripe.locate(key);
+      if (location == LongLongMap.NOT_FOUND) {
+        return null;
+      }
+      segment = segments.get(segmentId(location));
+    } while (segment == null);
+    return segment.readOriginalUrl(offset(location), System.currentTimeMillis());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl createUrl(ShortUrl shortUrl) {
+    long key = codec.encode(shortUrl.getToken());
+    if (key <= 0) {
+      throw new IllegalArgumentException("Token " + shortUrl.getToken()
+          + " can't be stored in the segment repository.");
+    }
+    byte[] record = WriteAheadLog.encodeCreate(shortUrl);
+    Stripe stripe = stripeFor(key);
+    long stamp = stripe.lock.writeLock();
+    try {
+      if (stripe.index.get(key) != LongLongMap.NOT_FOUND) {
+        return null;
+      }
+      stripe.index.put(key, append(record));
+      stripe.addExpiry(key, shortUrl.getExpiryTime());
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+    return shortUrl;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void deleteUrl(String token) {
+    long key = codec.encode(token);
+    if (key <= 0) {
+      return;
+    }
+    Stripe stripe = stripeFor(key);
+    long stamp = stripe.lock.writeLock();
+    try {
+      long location = stripe.index.remove(key);
+      if (location != LongLongMap.NOT_FOUND) {
+        addGarbage(location);
+        addGarbage(append(WriteAheadLog.encodeDelete(token)));
+      }
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Expired urls are only removed from the index. Their records are
+   * reclaimed when their segment is compacted.
+   */
+  @Override
+  public void purgeExpiredUrls() {
+    long now = System.currentTimeMillis();
+    for (Stripe stripe : stripes) {
+      long stamp = stripe.lock.writeLock();
+      try {
+        NavigableMap<Long, KeyList> elapsed =
+            stripe.expiryBuckets.headMap(Math.floorDiv(now, EXPIRY_BUCKET_MILLIS), false);
+        for (KeyList expired : elapsed.values()) {
+          for (int i = 0; i < expired.size(); i++) {
+            long key = expired.get(i);
+            long location = stripe.index.get(key);
+            if (location != LongLongMap.NOT_FOUND && expiryAt(location) < now) {
+              stripe.index.remove(key);
+              addGarbage(location);
+            }
+          }
+        }
+        elapsed.clear();
+      } finally {
+        stripe.lock.unlockWrite(stamp);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    for (Stripe stripe : stripes) {
+      LongLongMap index;
+      long stamp = stripe.lock.readLock();
+      try {
+        index = stripe.index.copy();
+      } finally {
+        stripe.lock.unlockRead(stamp);
+      }
+      for (int i = 0; i < index.capacity(); i++) {
+        long key = index.keyAt(i);
+        if (key != 0) {
+          String token = codec.decode(key);
+          MappedSegment segment = segments.get(segmentId(index.valueAt(i)));
+          ShortUrl shortUrl = segment != null
+              ? segment.read(token, offset(index.valueAt(i)), System.currentTimeMillis())
+              : getUrl(token);
+          if (shortUrl != null) {
+            action.accept(shortUrl);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Compacts every sealed segment with more garbage than the threshold.
+   *
+   * @return the number of segments compacted.
+   */
+  public int compact() {
+    int activeId;
+    synchronized (appendLock) {
+      activeId = active.id;
+    }
+    List<MappedSegment> candidates = segments.values().stream()
+        .filter(segment -> segment.id < activeId)
+        .filter(segment -> segment.garbage.get() > compactionThreshold * segment.size)
+        .sorted((a, b) -> Integer.compare(a.id, b.id))
+        .collect(Collectors.toList());
+    for (MappedSegment segment : candidates) {
+      compact(segment);
+    }
+    return candidates.size();
+  }
+
+  /**
+   * Stops the compactor and syncs the active segment to disk.
+   */
+  @Override
+  public void close() {
+    if (compactor != null) {
+      compactor.shutdown();
+    }
+    synchronized (appendLock) {
+      active.buffer.force();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      long stamp = stripe.lock.readLock();
+      try {
+        size += stripe.index.size();
+      } finally {
+        stripe.lock.unlockRead(stamp);
+      }
+    }
+    return size;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      long stamp = stripe.lock.readLock();
+      try {
+        for (KeyList expired : stripe.expiryBuckets
+            .headMap(Math.floorDiv(currentTime, EXPIRY_BUCKET_MILLIS), false).values()) {
+          count += expired.size();
+        }
+      } finally {
+        stripe.lock.unlockRead(stamp);
+      }
+    }
+    return count;
+  }
+
+  private void compact(MappedSegment segment) {
+    long start = System.currentTimeMillis();
+    boolean olderSegments = segments.keySet().stream().anyMatch(id -> id < segment.id);
+    int offset = 0;
+    int length;
+    while ((length = segment.validRecordLength(offset)) > 0) {
+      long location = location(segment.id, offset);
+      if (segment.buffer.get(offset + TYPE_OFFSET) == WriteAheadLog.CREATE) {
+        long key = codec.encode(segment.token(offset));
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+          // Only move the record if it is still the live record for its token
+          if (stripe.index.get(key) == location) {
+            if (expiryAt(location) < System.currentTimeMillis()) {
+              stripe.index.remove(key);
+            } else {
+              stripe.index.put(key, append(segment.copy(offset, length)));
+            }
+          }
+        } finally {
+          stripe.lock.unlockWrite(stamp);
+        }
+      } else if (olderSegments) {
+        // Keep tombstones while older segments may hold the deleted record,
+        // unless the token has been created again, as a copy appended after
+        // the new record would delete it on recovery. The new record
+        // replaces the deleted one on recovery anyway.
+        long key = codec.encode(segment.token(offset));
+        Stripe stripe = stripeFor(key);
+        long stamp = stripe.lock.writeLock();
+        try {
+          if (stripe.index.get(key) == LongLongMap.NOT_FOUND) {
+            addGarbage(append(segment.copy(offset, length)));
+          }
+        } finally {
+          stripe.lock.unlockWrite(stamp);
+        }
+      }
+      offset += length;
+    }
+    // The copies must be on disk before the segment holding the originals
+    // is deleted, segments rolled over while copying were synced on rolling
+    synchronized (appendLock) {
+      active.buffer.force();
+    }
+    segments.remove(segment.id);
+    try {
+      Files.deleteIfExists(segment.file);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to delete {}.", segment.file, e);
+    }
+    LOGGER.info("Compacted segment {} in {}ms.", segment.id, System.currentTimeMillis() - start);
+  }
+
+  private void scheduledCompaction() {
+    try {
+      compact();
+    } catch (RuntimeException e) {
+      LOGGER.error("Unable to compact segments.", e);
+    }
+  }
+
+  /**
+   * Rebuilds the index by scanning every segment in order.
+   */
+  private void recover() {
+    long start = System.currentTimeMillis();
+    long now = start;
+    List<Path> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files = list.filter(file -> SEGMENT_FILE.matcher(file.getFileName().toString()).matches())
+          .sorted()
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to list " + directory + ".", e);
+    }
+    MappedSegment last = null;
+    for (Path file : files) {
+      Matcher matcher = SEGMENT_FILE.matcher(file.getFileName().toString());
+      matcher.matches();
+      MappedSegment segment = new MappedSegment(Integer.parseInt(matcher.group(1)), file, segmentSize);
+      segments.put(segment.id, segment);
+      int offset = 0;
+      int length;
+      while ((length = segment.validRecordLength(offset)) > 0) {
+        long location = location(segment.id, offset);
+        long key = codec.encode(segment.token(offset));
+        if (key <= 0) {
+          offset += length;
+          continue;
+        }
+        Stripe stripe = stripeFor(key);
+        long previous;
+        if (segment.buffer.get(offset + TYPE_OFFSET) == WriteAheadLog.CREATE) {
+          long expiry = segment.buffer.getLong(offset + EXPIRY_OFFSET);
+          if (expiry < now) {
+            previous = stripe.index.remove(key);
+            segment.garbage.addAndGet(length);
+          } else {
+            previous = stripe.index.put(key, location);
+            stripe.addExpiry(key, expiry);
+          }
+        } else {
+          previous = stripe.index.remove(key);
+          segment.garbage.addAndGet(length);
+        }
+        if (previous != LongLongMap.NOT_FOUND) {
+          addGarbage(previous);
+        }
+        offset += length;
+      }
+      segment.position = offset;
+      last = segment;
+    }
+    active = last != null ? last : newSegment(0);
+    LOGGER.info("Recovered {} urls from {} segments in {}ms.", size(), files.size(),
+        System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Appends a record to the active segment, starting a new segment if it
+   * doesn't fit.
+   *
+   * @return the location of the record.
+   */
+  private long append(byte[] record) {
+    if (record.length > segmentSize) {
+      throw new IllegalArgumentException("Record is larger than the segment size.");
+    }
+    synchronized (appendLock) {
+      if (active.position + record.length > segmentSize) {
+        active.buffer.force();
+        active = newSegment(active.id + 1);
+      }
+      int offset = active.position;
+      active.buffer.put(offset, record);
+      active.position += record.length;
+      return location(active.id, offset);
+    }
+  }
+
+  private MappedSegment newSegment(int id) {
+    MappedSegment segment = new MappedSegment(id,
+        directory.resolve(String.format("segment-%010d.dat", id)), segmentSize);
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private void addGarbage(long location) {
+    MappedSegment segment = segments.get(segmentId(location));
+    if (segment != null) {
+      segment.garbage.addAndGet(segment.recordLength(offset(location)));
+    }
+  }
+
+  private long expiryAt(long location) {
+    return segments.get(segmentId(location)).buffer.getLong(offset(location) + EXPIRY_OFFSET);
+  }
+
+  private Stripe stripeFor(long key) {
+    return stripes[(int) (CompactUrlRepository.hash(key) >>> 32) & (STRIPES - 1)];
+  }
+
+  private static long location(int segmentId, int offset) {
+    return ((long) segmentId << 32) | offset;
+  }
+
+  private static int segmentId(long location) {
+    return (int) (location >>> 32);
+  }
+
+  private static int offset(long location) {
+    return (int) location;
+  }
+
+  /**
+   * A part of the index guarded by its own lock, with the keys of its urls
+   * bucketed by expiry time for purging.
+   */
+  private static final class Stripe {
+    private final StampedLock lock = new StampedLock();
+    private final LongLongMap index = new LongLongMap(INITIAL_STRIPE_CAPACITY);
+    private final TreeMap<Long, KeyList> expiryBuckets = new TreeMap<>();
+
+    long locate(long key) {
+      long stamp = lock.readLock();
+      try {
+        return index.get(key);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    void addExpiry(long key, long expiryTime) {
+      expiryBuckets.computeIfAbsent(Math.floorDiv(expiryTime, EXPIRY_BUCKET_MILLIS), k -> new KeyList())
+          .add(key);
+    }
+  }
+
+  /**
+   * A segment file mapped into memory.
+   *
+   * <p>Records are only written beyond <code>position</code>, and are never
+   * modified once the index points to them, so they can be read without any
+   * locking.
+   */
+  private static final class MappedSegment {
+    private final int id;
+    private final Path file;
+    private final int size;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong garbage = new AtomicLong();
+    private int position;
+
+    MappedSegment(int id, Path file, int size) {
+      this.id = id;
+      this.file = file;
+      this.size = size;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to map segment " + file + ".", e);
+      }
+    }
+
+    /**
+     * Returns the length of the record at the offset including its header.
+     */
+    int recordLength(int offset) {
+      return WriteAheadLog.HEADER_BYTES + buffer.getInt(offset);
+    }
+
+    /**
+     * Returns the length of the record at the offset including its header,
+     * or 0 if there is no complete record with a valid checksum at the offset.
+     */
+    int validRecordLength(int offset) {
+      if (offset + WriteAheadLog.HEADER_BYTES > size) {
+        return 0;
+      }
+      int length = buffer.getInt(offset);
+      if (length <= 0 || offset + WriteAheadLog.HEADER_BYTES + length > size) {
+        return 0;
+      }
+      byte[] payload = new byte[length];
+      buffer.get(offset + WriteAheadLog.HEADER_BYTES, payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+        return 0;
+      }
+      return WriteAheadLog.HEADER_BYTES + length;
+    }
+
+    String token(int offset) {
+      int length = buffer.getShort(offset + TOKEN_LENGTH_OFFSET) & 0xffff;
+      int tokenOffset = offset + TOKEN_OFFSET;
+      if (buffer.get(offset + TYPE_OFFSET) == WriteAheadLog.DELETE) {
+        // Delete records have no expiry
+        length = buffer.getShort(offset + EXPIRY_OFFSET) & 0xffff;
+        tokenOffset = offset + EXPIRY_OFFSET + 2;
+      }
+      byte[] token = new byte[length];
+      buffer.get(tokenOffset, token);
+      return new String(token, StandardCharsets.UTF_8);
+    }
+
+    ShortUrl read(String token, int offset, long now) {
+      String url = readOriginalUrl(offset, now);
+      if (url == null) {
+        return null;
+      }
+      return new ShortUrl.Builder()
+          .token(token)
+          .originalUrl(url)
+          .expiryTime(buffer.getLong(offset + EXPIRY_OFFSET))
+          .build();
+    }
+
+    String readOriginalUrl(int offset, long now) {
+      if (buffer.getLong(offset + EXPIRY_OFFSET) < now) {
+        return null;
+      }
+      int urlLengthOffset = offset + TOKEN_OFFSET + (buffer.getShort(offset + TOKEN_LENGTH_OFFSET) & 0xffff);
+      byte[] url = new byte[buffer.getInt(urlLengthOffset)];
+      buffer.get(urlLengthOffset + 4, url);
+      return new String(url, StandardCharsets.UTF_8);
+    }
+
+    byte[] copy(int offset, int length) {
+      byte[] record = new byte[length];
+      buffer.get(offset, record);
+      return record;
+    }
+  }
+}
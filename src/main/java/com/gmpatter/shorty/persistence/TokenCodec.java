@@ -0,0 +1,112 @@
+package com.gmpatter.shorty.persistence;
+
+import java.util.Arrays;
+
+/**
+ * Converts between string tokens and primitive <code>long</code> keys.
+ *
+ * <p>Tokens are treated as bijective base-N numbers over the configured
+ * token characters, so every token up to the maximum length maps to a
+ * distinct positive key and <code>0</code> is never a valid key. With the
+ * default 62 token characters tokens of up to 10 characters fit in a key.
+ *
+ * @author Gareth Patterson
+ */
+public class TokenCodec {
+
+  private final char[] tokenCharacters;
+  private final int[] digits;
+  private final int maxLength;
+
+  /**
+   * Creates a new codec for the given token characters.
+   *
+   * @param tokenCharacters the characters that may appear in a token
+   * @throws IllegalArgumentException if the characters are empty or repeated
+   */
+  public TokenCodec(char[] tokenCharacters) {
+    if (tokenCharacters.length == 0) {
+      throw new IllegalArgumentException("Token characters must not be empty.");
+    }
+    this.tokenCharacters = tokenCharacters.clone();
+    this.digits = new int[128];
+    Arrays.fill(digits, -1);
+    for (int i = 0; i < tokenCharacters.length; i++) {
+      char c = tokenCharacters[i];
+      if (c >= digits.length || digits[c] != -1) {
+        throw new IllegalArgumentException("Token characters must be unique ASCII characters.");
+      }
+      digits[c] = i;
+    }
+    // Find the longest token whose largest key doesn't overflow a long
+    long radix = tokenCharacters.length;
+    int length = 0;
+    long largest = 0;
+    while (largest <= (Long.MAX_VALUE - radix) / radix) {
+      largest = largest * radix + radix;
+      length++;
+    }
+    this.maxLength = length;
+  }
+
+  /**
+   * Returns the longest token that can be encoded by this codec.
+   *
+   * @return the maximum token length.
+   */
+  public int getMaxLength() {
+    return maxLength;
+  }
+
+  /**
+   * Returns the number of token characters.
+   *
+   * @return the radix of the token alphabet.
+   */
+  public int getRadix() {
+    return tokenCharacters.length;
+  }
+
+  /**
+   * Encodes the token as a positive <code>long</code> key.
+   *
+   * @param token the token to encode
+   * @return the key, or -1 if the token is empty, too long or contains
+   *     characters that aren't token characters.
+   */
+  public long encode(String token) {
+    int length = token.length();
+    if (length == 0 || length > maxLength) {
+      return -1;
+    }
+    long radix = tokenCharacters.length;
+    long key = 0;
+    for (int i = 0; i < length; i++) {
+      char c = token.charAt(i);
+      int digit = c < digits.length ? digits[c] : -1;
+      if (digit < 0) {
+        return -1;
+      }
+      key = key * radix + digit + 1;
+    }
+    return key;
+  }
+
+  /**
+   * Decodes a key produced by {@link #encode(String)} back into its token.
+   *
+   * @param key the key to decode
+   * @return the token.
+   */
+  public String decode(long key) {
+    long radix = tokenCharacters.length;
+    char[] buffer = new char[maxLength];
+    int pos = buffer.length;
+    while (key > 0) {
+      key--;
+      buffer[--pos] = tokenCharacters[(int) (key % radix)];
+      key /= radix;
+    }
+    return new String(buffer, pos, buffer.length - pos);
+  }
+}
@@ -0,0 +1,32 @@
+package com.gmpatter.shorty.persistence;
+
+import java.sql.SQLException;
+
+/**
+ * Wraps a {@link SQLException} thrown by a repository backed by a database,
+ * as {@link java.io.UncheckedIOException} does for I/O errors.
+ *
+ * @author Gareth Patterson
+ */
+public class UncheckedSQLException extends RuntimeException {
+
+  /**
+   * Creates an unchecked exception.
+   *
+   * @param message the detail message
+   * @param cause the SQL exception
+   */
+  public UncheckedSQLException(String message, SQLException cause) {
+    super(message, cause);
+  }
+
+  /**
+   * Returns the SQL exception this wraps.
+   *
+   * @return the cause.
+   */
+  @Override
+  public synchronized SQLException getCause() {
+    return (SQLException) super.getCause();
+  }
+}
@@ -0,0 +1,288 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Exports every live short url in a {@link UrlRepository} to a stream, and
+ * imports them into another repository, for backups and for migrating urls
+ * between environments.
+ *
+ * <p>Exports stream from {@link UrlRepository#forEachUrl(java.util.function.Consumer)}, so they
+ * don't copy the repository or block redirects while they run. Urls created
+ * or deleted during an export may or may not be included.
+ *
+ * <p>The binary format is the record format of the {@link WriteAheadLog},
+ * with a CRC32 for each url. The NDJSON format has one JSON object per line
+ * with the token, url and expiry time in epoch milliseconds.
+ *
+ * <p>Imports are loaded in batches with {@link UrlRepository#createUrls(List)},
+ * which skips tokens that are already in use. Imports from outside the
+ * cluster are filtered by the caller, such as to reject tokens the url
+ * service could generate.
+ *
+ * @author Gareth Patterson
+ */
+public class UrlArchive {
+
+  public static final String TOKEN_FIELD = "token";
+  public static final String URL_FIELD = "url";
+  public static final String EXPIRY_TIME_FIELD = "expiryTime";
+
+  static final int BATCH_SIZE = 1000;
+
+  /**
+   * The formats urls can be exported in.
+   */
+  public enum Format {
+    BINARY,
+    NDJSON
+  }
+
+  private UrlArchive() {
+  }
+
+  /**
+   * Writes every unexpired short url in the repository to the stream.
+   *
+   * @param repository the repository to export
+   * @param stream the stream to write to, which is flushed but not closed
+   * @param format the format to write
+   * @return the number of urls written.
+   * @throws IOException if the stream can't be written
+   */
+  public static long exportUrls(UrlRepository repository, OutputStream stream, Format format)
+      throws IOException {
+    long[] count = new long[1];
+    try {
+      if (format == Format.BINARY) {
+        BufferedOutputStream out = new BufferedOutputStream(stream, 1 << 16);
+        repository.forEachUrl(shortUrl -> {
+          try {
+            out.write(WriteAheadLog.encodeCreate(shortUrl));
+            count[0]++;
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        out.flush();
+      } else {
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+        repository.forEachUrl(shortUrl -> {
+          try {
+            out.write(Json.createObjectBuilder()
+                .add(TOKEN_FIELD, shortUrl.getToken())
+                .add(URL_FIELD, shortUrl.getOriginalUrl())
+                .add(EXPIRY_TIME_FIELD, shortUrl.getExpiryTime())
+                .build()
+                .toString());
+            out.write('\n');
+            count[0]++;
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        out.flush();
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return count[0];
+  }
+
+  /**
+   * Reads short urls from the stream into the repository, skipping any that
+   * have expired, for streams from a trusted source such as another cluster
+   * member.
+   *
+   * @param stream the stream to read
+   * @param repository the repository to load the urls into
+   * @param format the format of the stream
+   * @return the number of urls loaded.
+   * @throws IOException if the stream can't be read
+   * @throws IllegalArgumentException if an NDJSON line isn't a valid url
+   */
+  public static long importUrls(InputStream stream, UrlRepository repository, Format format)
+      throws IOException {
+    return importUrls(stream, repository, format, null).getImported();
+  }
+
+  /**
+   * Reads short urls from the stream into the repository, skipping any that
+   * have expired or that the filter rejects.
+   *
+   * <p>With a filter, deletes in a binary stream only apply to urls created
+   * earlier in the same stream, so an import can't delete urls that were
+   * already in the repository. The tokens imported are remembered to check
+   * this, for binary streams only.
+   *
+   * @param stream the stream to read
+   * @param repository the repository to load the urls into
+   * @param format the format of the stream
+   * @param filter accepts the urls to load, or null to load every url
+   * @return the number of urls loaded and skipped.
+   * @throws IOException if the stream can't be read
+   * @throws IllegalArgumentException if an NDJSON line isn't a valid url
+   */
+  public static ImportResult importUrls(InputStream stream, UrlRepository repository, Format format,
+                                        Predicate<ShortUrl> filter) throws IOException {
+    return importUrls(stream, repository, format, filter, null);
+  }
+
+  /**
+   * Reads short urls from the stream into the repository, as
+   * {@link #importUrls(InputStream, UrlRepository, Format, Predicate)} does,
+   * passing the urls the repository didn't store because their token was
+   * already in use to a consumer.
+   *
+   * @param stream the stream to read
+   * @param repository the repository to load the urls into
+   * @param format the format of the stream
+   * @param filter accepts the urls to load, or null to load every url
+   * @param inUse receives the urls whose token was already in use, or null
+   * @return the number of urls loaded and skipped.
+   * @throws IOException if the stream can't be read
+   * @throws IllegalArgumentException if an NDJSON line isn't a valid url
+   */
+  public static ImportResult importUrls(InputStream stream, UrlRepository repository, Format format,
+                                        Predicate<ShortUrl> filter, Consumer<ShortUrl> inUse)
+      throws IOException {
+    long now = System.currentTimeMillis();
+    List<ShortUrl> batch = new ArrayList<>(BATCH_SIZE);
+    long[] count = new long[2];
+    Set<String> imported = filter != null && format == Format.BINARY ? new HashSet<>() : null;
+    Consumer<ShortUrl> notStored = imported == null ? inUse : shortUrl -> {
+      // A later delete of the token mustn't delete the url already using it
+      imported.remove(shortUrl.getToken());
+      if (inUse != null) {
+        inUse.accept(shortUrl);
+      }
+    };
+    Consumer<ShortUrl> add = shortUrl -> {
+      if (filter != null && !filter.test(shortUrl)) {
+        count[1]++;
+        return;
+      }
+      if (imported != null) {
+        imported.add(shortUrl.getToken());
+      }
+      batch.add(shortUrl);
+      if (batch.size() >= BATCH_SIZE) {
+        load(repository, batch, notStored, count);
+      }
+    };
+    if (format == Format.BINARY) {
+      WriteAheadLog.read(stream, "import", add,
+          token -> {
+            if (imported == null || imported.remove(token)) {
+              // Keep deletes in order with the creates before them
+              load(repository, batch, notStored, count);
+              repository.deleteUrl(token);
+            }
+          },
+          now);
+    } else {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8),
+          1 << 16);
+      String line;
+      long lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isBlank()) {
+          continue;
+        }
+        ShortUrl shortUrl;
+        try (JsonReader jsonReader = Json.createReader(new StringReader(line))) {
+          JsonObject json = jsonReader.readObject();
+          shortUrl = new ShortUrl.Builder()
+              .token(json.getString(TOKEN_FIELD))
+              .originalUrl(json.getString(URL_FIELD))
+              .expiryTime(json.getJsonNumber(EXPIRY_TIME_FIELD).longValueExact())
+              .build();
+        } catch (JsonException | ClassCastException | NullPointerException | ArithmeticException e) {
+          throw new IllegalArgumentException("Invalid url on line " + lineNumber + ".", e);
+        }
+        if (!shortUrl.isExpired(now)) {
+          add.accept(shortUrl);
+        }
+      }
+    }
+    load(repository, batch, notStored, count);
+    return new ImportResult(count[0], count[1]);
+  }
+
+  /**
+   * Creates the batch of urls in the repository and clears it, counting the
+   * urls stored and the urls skipped because their token was in use.
+   */
+  private static void load(UrlRepository repository, List<ShortUrl> batch, Consumer<ShortUrl> inUse,
+                           long[] count) {
+    int size = batch.size();
+    if (size > 0) {
+      BitSet skipped = repository.createUrls(batch);
+      if (inUse != null) {
+        skipped.stream().forEach(i -> inUse.accept(batch.get(i)));
+      }
+      count[0] += size - skipped.cardinality();
+      count[1] += skipped.cardinality();
+      batch.clear();
+    }
+  }
+
+  /**
+   * The number of urls an import loaded, and the number it skipped, because
+   * the filter rejected them or their token was already in use.
+   */
+  public static final class ImportResult {
+
+    private final long imported;
+    private final long skipped;
+
+    ImportResult(long imported, long skipped) {
+      this.imported = imported;
+      this.skipped = skipped;
+    }
+
+    /**
+     * Returns the number of urls loaded into the repository.
+     *
+     * @return the imported count.
+     */
+    public long getImported() {
+      return imported;
+    }
+
+    /**
+     * Returns the number of urls the filter rejected or whose token was
+     * already in use.
+     *
+     * @return the skipped count.
+     */
+    public long getSkipped() {
+      return skipped;
+    }
+  }
+}
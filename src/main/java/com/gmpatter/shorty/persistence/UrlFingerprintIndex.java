@@ -0,0 +1,197 @@
+package com.gmpatter.shorty.persistence;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A reverse index from a client, an original url and an expiry class to the
+ * token of a short url for it, so a client's repeat requests to shorten the
+ * same url can reuse the token. Entries are kept per client, so a client
+ * deleting a short url only breaks the links it was given itself.
+ *
+ * <p>The url isn't stored. Each client, url and expiry class is hashed to a 64 bit
+ * fingerprint, which maps to the token encoded as a <code>long</code> in
+ * primitive arrays, so each entry costs a few dozen bytes however long the
+ * url is. Fingerprints can collide, so callers must check the url of the
+ * short url for a returned token.
+ *
+ * <p>Entries are indexed by expiry time in one second buckets, in the same
+ * way as {@link CompactUrlRepository}, so purging only visits expired entries.
+ *
+ * @author Gareth Patterson
+ */
+public class UrlFingerprintIndex {
+
+  static final int STRIPES = 64;
+  static final long EXPIRY_BUCKET_MILLIS = 1000;
+
+  private final TokenCodec codec;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  /**
+   * Creates an empty index.
+   *
+   * @param tokenCharacters the characters used in tokens
+   */
+  public UrlFingerprintIndex(char[] tokenCharacters) {
+    this.codec = new TokenCodec(tokenCharacters);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Returns the token indexed for the client, url and expiry class.
+   *
+   * @param client the client, such as its API key
+   * @param originalUrl the original url
+   * @param expiryClass the expiry class, such as the expiry code
+   * @return the token, or null if there is no token for the url.
+   */
+  public String get(String client, String originalUrl, int expiryClass) {
+    long fingerprint = fingerprint(client, originalUrl, expiryClass);
+    long key = stripeFor(fingerprint).get(fingerprint);
+    return key == LongLongMap.NOT_FOUND ? null : codec.decode(key);
+  }
+
+  /**
+   * Indexes the token for the client, url and expiry class, replacing any
+   * token already indexed for them.
+   *
+   * @param client the client, such as its API key
+   * @param originalUrl the original url
+   * @param expiryClass the expiry class, such as the expiry code
+   * @param token the token of the short url
+   * @param expiryTime the expiry time of the short url
+   */
+  public void put(String client, String originalUrl, int expiryClass, String token, long expiryTime) {
+    long key = codec.encode(token);
+    if (key <= 0) {
+      return;
+    }
+    long fingerprint = fingerprint(client, originalUrl, expiryClass);
+    stripeFor(fingerprint).put(fingerprint, key, expiryTime);
+  }
+
+  /**
+   * Removes the client, url and expiry class from the index, if they are
+   * indexed to the given token.
+   *
+   * @param client the client, such as its API key
+   * @param originalUrl the original url
+   * @param expiryClass the expiry class, such as the expiry code
+   * @param token the token of the deleted short url
+   */
+  public void remove(String client, String originalUrl, int expiryClass, String token) {
+    long key = codec.encode(token);
+    if (key <= 0) {
+      return;
+    }
+    long fingerprint = fingerprint(client, originalUrl, expiryClass);
+    stripeFor(fingerprint).remove(fingerprint, key);
+  }
+
+  /**
+   * Removes the entries for short urls that have expired.
+   *
+   * @param currentTime the current time in epoch milliseconds
+   * @return the number of entries removed.
+   */
+  public int purgeExpired(long currentTime) {
+    int removed = 0;
+    for (Stripe stripe : stripes) {
+      removed += stripe.removeExpired(currentTime);
+    }
+    return removed;
+  }
+
+  /**
+   * Returns the number of entries in the index.
+   *
+   * @return the size of the index.
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /**
+   * Hashes the client, url and expiry class to a positive 64 bit
+   * fingerprint, with FNV-1a followed by the MurmurHash3 finalizer.
+   */
+  static long fingerprint(String client, String originalUrl, int expiryClass) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < client.length(); i++) {
+      hash = (hash ^ client.charAt(i)) * 0x100000001b3L;
+    }
+    // Separates the client from the url, as neither contains a zero
+    hash = hash * 0x100000001b3L;
+    for (int i = 0; i < originalUrl.length(); i++) {
+      hash = (hash ^ originalUrl.charAt(i)) * 0x100000001b3L;
+    }
+    hash = (hash ^ expiryClass) * 0x100000001b3L;
+    long fingerprint = CompactUrlRepository.hash(hash) & Long.MAX_VALUE;
+    return fingerprint == 0 ? 1 : fingerprint;
+  }
+
+  private Stripe stripeFor(long fingerprint) {
+    return stripes[(int) (fingerprint >>> 57) & (STRIPES - 1)];
+  }
+
+  /**
+   * A part of the index guarded by its own lock.
+   */
+  private static final class Stripe {
+    private final LongLongMap tokens = new LongLongMap(64);
+    private final LongLongMap expiries = new LongLongMap(64);
+    private final TreeMap<Long, KeyList> expiryBuckets = new TreeMap<>();
+
+    synchronized long get(long fingerprint) {
+      return tokens.get(fingerprint);
+    }
+
+    synchronized void put(long fingerprint, long key, long expiryTime) {
+      tokens.put(fingerprint, key);
+      expiries.put(fingerprint, expiryTime);
+      expiryBuckets.computeIfAbsent(Math.floorDiv(expiryTime, EXPIRY_BUCKET_MILLIS), k -> new KeyList())
+          .add(fingerprint);
+    }
+
+    synchronized void remove(long fingerprint, long key) {
+      if (tokens.get(fingerprint) == key) {
+        tokens.remove(fingerprint);
+        expiries.remove(fingerprint);
+      }
+    }
+
+    synchronized int removeExpired(long now) {
+      int removed = 0;
+      // Buckets before the current bucket have fully elapsed
+      NavigableMap<Long, KeyList> elapsed =
+          expiryBuckets.headMap(Math.floorDiv(now, EXPIRY_BUCKET_MILLIS), false);
+      for (Map.Entry<Long, KeyList> bucket : elapsed.entrySet()) {
+        KeyList expired = bucket.getValue();
+        for (int i = 0; i < expired.size(); i++) {
+          long fingerprint = expired.get(i);
+          long expiryTime = expiries.get(fingerprint);
+          // The entry may have been removed, or replaced by a later url
+          if (expiryTime != LongLongMap.NOT_FOUND && expiryTime < now) {
+            tokens.remove(fingerprint);
+            expiries.remove(fingerprint);
+            removed++;
+          }
+        }
+      }
+      elapsed.clear();
+      return removed;
+    }
+
+    synchronized int size() {
+      return tokens.size();
+    }
+  }
+}
@@ -2,6 +2,10 @@ package com.gmpatter.shorty.persistence;
 
 import com.gmpatter.shorty.model.ShortUrl;
 
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Consumer;
+
 public interface UrlRepository {
 
   /**
@@ -13,13 +17,50 @@ public interface UrlRepository {
   ShortUrl getUrl(String token);
 
   /**
-   * Creates a new short url in the repository.
+   * Returns the original url for the given token, for redirecting.
+   *
+   * <p>Implementations should override this to avoid building a
+   * <code>ShortUrl</code> where they can.
+   *
+   * @param token the token for the short url
+   * @return the original url, or null if there is no url for the token.
+   */
+  default String getOriginalUrl(String token) {
+    ShortUrl shortUrl = getUrl(token);
+    return shortUrl != null ? shortUrl.getOriginalUrl() : null;
+  }
+
+  /**
+   * Creates a new short url in the repository, unless its token is already
+   * in use, including by an expired url that hasn't been purged yet.
    *
    * @param shortUrl the short url to create
-   * @return the newly created short url.
+   * @return the newly created short url, or null if the token was already
+   *     in use and the url wasn't stored.
    */
   ShortUrl createUrl(ShortUrl shortUrl);
 
+  /**
+   * Creates a batch of new short urls in the repository.
+   *
+   * <p>Implementations should override this where storing a batch costs
+   * less than storing each url separately. Urls whose token is already in
+   * use are skipped, and reported by their index in the batch.
+   *
+   * @param shortUrls the short urls to create
+   * @return the indexes of the urls that weren't stored, empty if every url
+   *     was.
+   */
+  default BitSet createUrls(List<ShortUrl> shortUrls) {
+    BitSet skipped = new BitSet();
+    for (int i = 0; i < shortUrls.size(); i++) {
+      if (createUrl(shortUrls.get(i)) == null) {
+        skipped.set(i);
+      }
+    }
+    return skipped;
+  }
+
   /**
    * Delete the short url for the given token.
    *
@@ -31,4 +72,32 @@ public interface UrlRepository {
    * Find and delete any expired short urls in the repository.
    */
   void purgeExpiredUrls();
+
+  /**
+   * Performs the given action for each unexpired short url in the repository.
+   *
+   * <p>Iteration is weakly consistent, urls created or deleted while it runs
+   * may or may not be seen, but every url present for the whole iteration is
+   * seen exactly once. Iterating must not block reads from the repository.
+   *
+   * @param action the action to perform for each short url
+   */
+  void forEachUrl(Consumer<ShortUrl> action);
+
+  /**
+   * Returns the number of short urls in the repository, including expired
+   * urls that haven't been purged yet.
+   *
+   * @return the number of stored urls.
+   */
+  int size();
+
+  /**
+   * Returns the number of expired short urls waiting for the next purge.
+   *
+   * @param currentTime the current time in epoch milliseconds
+   * @return the number of expired urls, which may include urls that have
+   *     since been deleted.
+   */
+  int countExpired(long currentTime);
 }
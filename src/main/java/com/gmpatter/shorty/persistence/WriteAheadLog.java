@@ -0,0 +1,411 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of changes to a {@link UrlRepository}.
+ *
+ * <p>Records are appended by a single writer thread. Callers queue a record
+ * and wait for it to be written, and the writer drains every queued record
+ * into one write followed by one <code>fsync</code>, so concurrent callers
+ * share the cost of syncing ("group commit"). Records are written in the
+ * order they are queued, so a caller can queue a change while it holds a
+ * lock, keeping the log in the order changes were made, and wait for it to
+ * be written after releasing the lock.
+ *
+ * <p>Each record is written as its payload length, the CRC32 of the payload
+ * and the payload. Reading stops at the first incomplete or corrupt record,
+ * which can only be the tail of a log that was being written during a crash.
+ * The same record format is used for snapshots and replication.
+ *
+ * @author Gareth Patterson
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteAheadLog.class);
+
+  static final byte CREATE = 1;
+  static final byte DELETE = 2;
+  static final int HEADER_BYTES = 8;
+  static final int MAX_BATCH = 4096;
+
+  // Queued by close() to stop the writer thread once earlier records are written
+  private static final PendingRecord CLOSE = new PendingRecord(null);
+
+  private final Path directory;
+  private final boolean fsync;
+  private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private final Object channelLock = new Object();
+  private FileChannel channel;
+  private long sequence;
+  private volatile boolean closed;
+
+  /**
+   * Opens a new log file in the directory.
+   *
+   * @param directory the directory containing the log files
+   * @param sequence the sequence number of the new log file
+   * @param fsync true if writes should be synced to disk before completing
+   */
+  public WriteAheadLog(Path directory, long sequence, boolean fsync) {
+    this.directory = directory;
+    this.fsync = fsync;
+    this.sequence = sequence;
+    this.channel = open(logFile(directory, sequence));
+    this.writer = new Thread(this::writeLoop, "shorty-wal-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Returns the path of the log file with the given sequence number.
+   *
+   * @param directory the directory containing the log files
+   * @param sequence the sequence number
+   * @return the log file path.
+   */
+  public static Path logFile(Path directory, long sequence) {
+    return directory.resolve(String.format("wal-%020d.log", sequence));
+  }
+
+  /**
+   * Queues a create record to be appended.
+   *
+   * @param shortUrl the created short url
+   * @return a future completed when the record has been written.
+   */
+  public CompletableFuture<Void> queueCreate(ShortUrl shortUrl) {
+    return queue(encodeCreate(shortUrl));
+  }
+
+  /**
+   * Queues a create record for each short url to be appended, in a single
+   * write.
+   *
+   * @param shortUrls the created short urls
+   * @return a future completed when the records have been written.
+   */
+  public CompletableFuture<Void> queueCreates(List<ShortUrl> shortUrls) {
+    byte[][] records = new byte[shortUrls.size()][];
+    int length = 0;
+    for (int i = 0; i < records.length; i++) {
+      records[i] = encodeCreate(shortUrls.get(i));
+      length += records[i].length;
+    }
+    byte[] batch = new byte[length];
+    int offset = 0;
+    for (byte[] record : records) {
+      System.arraycopy(record, 0, batch, offset, record.length);
+      offset += record.length;
+    }
+    return queue(batch);
+  }
+
+  /**
+   * Queues a delete record to be appended.
+   *
+   * @param token the token of the deleted short url
+   * @return a future completed when the record has been written.
+   */
+  public CompletableFuture<Void> queueDelete(String token) {
+    return queue(encodeDelete(token));
+  }
+
+  /**
+   * Waits for queued records to be written.
+   *
+   * @param written the future returned when the records were queued
+   * @throws UncheckedIOException if the records couldn't be written
+   */
+  public static void await(CompletableFuture<Void> written) {
+    try {
+      written.join();
+    } catch (CompletionException e) {
+      throw new UncheckedIOException("Unable to write to write ahead log.", (IOException) e.getCause());
+    }
+  }
+
+  /**
+   * Closes the current log file and starts writing to a new one.
+   *
+   * <p>Records appended before this method is called are in earlier log
+   * files, and records appended after it returns are in the new file.
+   *
+   * @return the sequence number of the new log file.
+   */
+  public long roll() {
+    synchronized (channelLock) {
+      try {
+        channel.force(true);
+        channel.close();
+        sequence++;
+        channel = open(logFile(directory, sequence));
+        return sequence;
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to roll write ahead log.", e);
+      }
+    }
+  }
+
+  /**
+   * Stops the writer thread and closes the log file.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    queue.add(CLOSE);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (channelLock) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to close write ahead log.", e);
+      }
+    }
+  }
+
+  /**
+   * Reads every complete record in the file, applying it to the repository.
+   *
+   * @param file the log or snapshot file to read
+   * @param repository the repository to apply records to
+   * @param currentTime records for urls expired at this time are skipped
+   * @return the number of records applied.
+   */
+  public static long replay(Path file, UrlRepository repository, long currentTime) {
+    try (InputStream stream = Files.newInputStream(file)) {
+      return read(stream, file.toString(), repository::createUrl, repository::deleteUrl, currentTime);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to read " + file + ".", e);
+    }
+  }
+
+  /**
+   * Reads every complete record in the stream, passing each created short
+   * url and deleted token to the given actions.
+   *
+   * @param stream the stream of records
+   * @param source the name of the stream, for logging
+   * @param create the action for each created short url
+   * @param delete the action for each deleted token
+   * @param currentTime records for urls expired at this time are skipped
+   * @return the number of records read.
+   * @throws IOException if the stream can't be read
+   */
+  public static long read(InputStream stream, String source, Consumer<ShortUrl> create,
+                          Consumer<String> delete, long currentTime) throws IOException {
+    long count = 0;
+    // Records already in memory, such as a batch of replicated changes, don't need a buffer
+    DataInputStream in = new DataInputStream(stream instanceof ByteArrayInputStream
+        ? stream
+        : new BufferedInputStream(stream, 1 << 20));
+    CRC32 crc = new CRC32();
+    byte[] payload = new byte[256];
+    while (true) {
+      int length;
+      int checksum;
+      try {
+        length = in.readInt();
+        checksum = in.readInt();
+        if (length <= 0) {
+          break;
+        }
+        if (payload.length < length) {
+          payload = new byte[Math.max(length, payload.length * 2)];
+        }
+        in.readFully(payload, 0, length);
+      } catch (EOFException e) {
+        break;
+      }
+      crc.reset();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != checksum) {
+        LOGGER.warn("Ignoring corrupt record at the end of {}.", source);
+        break;
+      }
+      apply(ByteBuffer.wrap(payload, 0, length), create, delete, currentTime);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Encodes a create record, including the record header.
+   *
+   * @param shortUrl the created short url
+   * @return the encoded record.
+   */
+  public static byte[] encodeCreate(ShortUrl shortUrl) {
+    byte[] token = shortUrl.getToken().getBytes(StandardCharsets.UTF_8);
+    byte[] url = shortUrl.getOriginalUrl().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 1 + 8 + 2 + token.length + 4 + url.length);
+    buffer.position(HEADER_BYTES);
+    buffer.put(CREATE)
+        .putLong(shortUrl.getExpiryTime())
+        .putShort((short) token.length)
+        .put(token)
+        .putInt(url.length)
+        .put(url);
+    return finish(buffer);
+  }
+
+  /**
+   * Encodes a delete record, including the record header.
+   *
+   * @param token the token of the deleted short url
+   * @return the encoded record.
+   */
+  public static byte[] encodeDelete(String token) {
+    byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 1 + 2 + bytes.length);
+    buffer.position(HEADER_BYTES);
+    buffer.put(DELETE)
+        .putShort((short) bytes.length)
+        .put(bytes);
+    return finish(buffer);
+  }
+
+  private static byte[] finish(ByteBuffer buffer) {
+    byte[] record = buffer.array();
+    CRC32 crc = new CRC32();
+    crc.update(record, HEADER_BYTES, record.length - HEADER_BYTES);
+    buffer.putInt(0, record.length - HEADER_BYTES);
+    buffer.putInt(4, (int) crc.getValue());
+    return record;
+  }
+
+  private static void apply(ByteBuffer payload, Consumer<ShortUrl> create, Consumer<String> delete,
+                            long currentTime) {
+    byte type = payload.get();
+    if (type == CREATE) {
+      long expiryTime = payload.getLong();
+      String token = readString(payload, payload.getShort() & 0xffff);
+      String url = readString(payload, payload.getInt());
+      if (expiryTime >= currentTime) {
+        create.accept(new ShortUrl.Builder()
+            .token(token)
+            .originalUrl(url)
+            .expiryTime(expiryTime)
+            .build());
+      }
+    } else if (type == DELETE) {
+      delete.accept(readString(payload, payload.getShort() & 0xffff));
+    } else {
+      throw new IllegalStateException("Unknown log record type " + type + ".");
+    }
+  }
+
+  private static String readString(ByteBuffer buffer, int length) {
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  private CompletableFuture<Void> queue(byte[] record) {
+    if (closed) {
+      throw new IllegalStateException("Write ahead log is closed.");
+    }
+    PendingRecord pending = new PendingRecord(record);
+    queue.add(pending);
+    return pending.written;
+  }
+
+  private void writeLoop() {
+    List<PendingRecord> batch = new ArrayList<>();
+    boolean running = true;
+    while (running) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+      queue.drainTo(batch, MAX_BATCH - 1);
+      int close = batch.indexOf(CLOSE);
+      if (close >= 0) {
+        batch.subList(close, batch.size()).clear();
+        running = false;
+      }
+      if (!batch.isEmpty()) {
+        writeBatch(batch);
+      }
+      batch.clear();
+    }
+    // Fail anything queued after the log was closed
+    queue.drainTo(batch);
+    batch.forEach(pending -> pending.written.completeExceptionally(
+        new IOException("Write ahead log is closed.")));
+  }
+
+  private void writeBatch(List<PendingRecord> batch) {
+    ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = ByteBuffer.wrap(batch.get(i).record);
+    }
+    try {
+      synchronized (channelLock) {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+          channel.write(buffers);
+        }
+        if (fsync) {
+          channel.force(false);
+        }
+      }
+      batch.forEach(pending -> pending.written.complete(null));
+    } catch (IOException e) {
+      LOGGER.error("Unable to write to write ahead log.", e);
+      batch.forEach(pending -> pending.written.completeExceptionally(e));
+    }
+  }
+
+  private static FileChannel open(Path file) {
+    try {
+      return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open write ahead log " + file + ".", e);
+    }
+  }
+
+  /**
+   * A record waiting to be written by the writer thread.
+   */
+  private static final class PendingRecord {
+    private final byte[] record;
+    private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+    PendingRecord(byte[] record) {
+      this.record = record;
+    }
+  }
+}
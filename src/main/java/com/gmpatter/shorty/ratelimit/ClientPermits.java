@@ -0,0 +1,45 @@
+package com.gmpatter.shorty.ratelimit;
+
+/**
+ * The bulk permits of the client a request is from, registered in the
+ * request context by the {@link RateLimitHandler} for bulk creates and
+ * imports, so they are charged a permit for each url rather than one for
+ * the whole request.
+ */
+public class ClientPermits {
+
+  private final ClientRateLimiter limiter;
+  private final String client;
+
+  /**
+   * Creates the permits of a client.
+   *
+   * @param limiter the rate limits of the clients
+   * @param client the client the request is from
+   */
+  public ClientPermits(ClientRateLimiter limiter, String client) {
+    this.limiter = limiter;
+    this.client = client;
+  }
+
+  /**
+   * Takes a permit for a url about to be created, if the client has one.
+   *
+   * @return true if the permit was taken.
+   */
+  public boolean tryAcquire() {
+    return limiter.tryAcquire(client) == 0;
+  }
+
+  /**
+   * Takes permits for urls that have already been created, whether or not
+   * the client has them.
+   *
+   * @param urls the number of urls
+   */
+  public void charge(long urls) {
+    if (urls > 0) {
+      limiter.charge(client, urls);
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package com.gmpatter.shorty.ratelimit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket rate limits for each client, such as an API key or address.
+ *
+ * <p>Each client has a bucket of up to <code>burst</code> permits, refilled
+ * at <code>permitsPerSecond</code>, and each request takes a permit, or one
+ * for each url it creates. Work that can only be counted once it's done is
+ * charged afterwards, and can leave the bucket in debt. The
+ * buckets are kept in lock-striped maps, picked by the hash of the client,
+ * so clients only contend when they share a stripe.
+ *
+ * <p>The maps are bounded at <code>maxClients</code> in all. A client that
+ * has been idle long enough for its bucket to refill is the same as one
+ * without a bucket, so idle clients are evicted from a stripe, least
+ * recently used first, whenever a new client is added to it. If a stripe is
+ * still full its least recently used client is evicted anyway, and gets a
+ * full bucket when it comes back.
+ *
+ * @author Gareth Patterson
+ */
+public class ClientRateLimiter {
+
+  private final double permitsPerNano;
+  private final double burst;
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final LongSupplier clock;
+
+  /**
+   * Creates a rate limiter.
+   *
+   * @param permitsPerSecond the rate each client's permits are refilled at
+   * @param burst the most permits a client can have
+   * @param maxClients the most clients to keep buckets for
+   */
+  public ClientRateLimiter(double permitsPerSecond, int burst, int maxClients) {
+    this(permitsPerSecond, burst, maxClients, System::nanoTime);
+  }
+
+  /**
+   * Creates a rate limiter with the given clock, for tests.
+   *
+   * @param permitsPerSecond the rate each client's permits are refilled at
+   * @param burst the most permits a client can have
+   * @param maxClients the most clients to keep buckets for
+   * @param clock the clock in nanoseconds
+   */
+  ClientRateLimiter(double permitsPerSecond, int burst, int maxClients, LongSupplier clock) {
+    if (permitsPerSecond <= 0 || burst < 1 || maxClients < 1) {
+      throw new IllegalArgumentException("The rate, burst and clients must be positive, were "
+          + permitsPerSecond + ", " + burst + " and " + maxClients + ".");
+    }
+    this.permitsPerNano = permitsPerSecond / 1e9;
+    this.burst = burst;
+    this.clock = clock;
+    int count = Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1,
+        Integer.highestOneBit(maxClients));
+    stripes = new Stripe[count];
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe((maxClients + count - 1) / count);
+    }
+    stripeMask = count - 1;
+  }
+
+  /**
+   * Takes a permit for a client if it has one.
+   *
+   * @param client the client, such as its API key or address
+   * @return 0 if a permit was taken, otherwise the nanoseconds until the
+   *     client will have one.
+   */
+  public long tryAcquire(String client) {
+    long now = clock.getAsLong();
+    Stripe stripe = stripe(client);
+    synchronized (stripe) {
+      Bucket bucket = stripe.refill(client, now);
+      if (bucket.permits >= 1) {
+        bucket.permits -= 1;
+        return 0;
+      }
+      return Math.max(1, (long) Math.ceil((1 - bucket.permits) / permitsPerNano));
+    }
+  }
+
+  /**
+   * Takes permits for a client whether or not it has them, for work that
+   * has already been done, leaving its bucket in debt if it doesn't.
+   *
+   * @param client the client, such as its API key or address
+   * @param permits the number of permits
+   */
+  public void charge(String client, long permits) {
+    long now = clock.getAsLong();
+    Stripe stripe = stripe(client);
+    synchronized (stripe) {
+      stripe.refill(client, now).permits -= permits;
+    }
+  }
+
+  private Stripe stripe(String client) {
+    int hash = client.hashCode();
+    return stripes[(hash ^ (hash >>> 16)) & stripeMask];
+  }
+
+  /**
+   * Returns the number of clients with buckets.
+   *
+   * @return the client count.
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * A client's permits, and when they were last refilled.
+   */
+  private static class Bucket {
+
+    private double permits;
+    private long updated;
+
+    Bucket(double permits, long updated) {
+      this.permits = permits;
+      this.updated = updated;
+    }
+  }
+
+  /**
+   * The buckets of a stripe of clients, in least recently used order and
+   * guarded by the stripe.
+   */
+  private class Stripe extends LinkedHashMap<String, Bucket> {
+
+    private final int maxSize;
+
+    Stripe(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the client's bucket refilled up to the current time, adding a
+     * full bucket if it doesn't have one.
+     *
+     * @param client the client
+     * @param now the current time in nanoseconds
+     * @return the bucket.
+     */
+    Bucket refill(String client, long now) {
+      Bucket bucket = get(client);
+      if (bucket == null) {
+        evictIdle(now);
+        bucket = new Bucket(burst, now);
+        put(client, bucket);
+      } else {
+        bucket.permits = Math.min(burst, bucket.permits + (now - bucket.updated) * permitsPerNano);
+        bucket.updated = now;
+      }
+      return bucket;
+    }
+
+    /**
+     * Removes the least recently used clients whose buckets have refilled,
+     * including from any debt.
+     *
+     * @param now the current time in nanoseconds
+     */
+    void evictIdle(long now) {
+      Iterator<Bucket> buckets = values().iterator();
+      while (buckets.hasNext()) {
+        Bucket bucket = buckets.next();
+        if (bucket.permits + (now - bucket.updated) * permitsPerNano < burst) {
+          break;
+        }
+        buckets.remove();
+      }
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.gmpatter.shorty.ratelimit;
+
+import com.gmpatter.shorty.metrics.MetricsRegistry;
+import com.gmpatter.shorty.redirect.RedirectHandler;
+import com.gmpatter.shorty.rest.ShortUrlJsonEncoder;
+import io.helidon.common.http.Http;
+import io.helidon.common.http.MediaType;
+import io.helidon.config.Config;
+import io.helidon.webserver.Handler;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helidon handler that rate limits the requests of each client with a
+ * {@link ClientRateLimiter}, passing requests within the limit on to the
+ * next handler and rejecting the rest with a 429 and a
+ * <code>Retry-After</code> header.
+ *
+ * <p>Clients are identified by their API key header if they send one of
+ * the configured keys, otherwise by their address, so a client can't get a
+ * fresh bucket by making up a key. The address is the connection's remote
+ * address, unless the server is configured to trust the X-Forwarded-For
+ * header of a proxy in front of it, as any client can send the header.
+ *
+ * <p>Bulk creates and imports also need a permit from a separate bulk
+ * limit, and its {@link ClientPermits} are registered in the request
+ * context, so the endpoints charge the client a bulk permit for each url.
+ *
+ * <p>It is only routed to for the requests that create and delete urls, so
+ * redirects never reach it.
+ *
+ * @author Gareth Patterson
+ */
+public class RateLimitHandler implements Handler {
+
+  public static final int TOO_MANY_REQUESTS_429 = 429;
+
+  private final ClientRateLimiter limiter;
+  private final ClientRateLimiter bulkLimiter;
+  private final String apiKeyHeader;
+  private final Set<String> apiKeys;
+  private final boolean trustForwardedFor;
+  private final LongAdder rejected = MetricsRegistry.getInstance().counter("shorty_rate_limited_total",
+      "Requests rejected by the per-client rate limit");
+
+  /**
+   * Creates a rate limit handler.
+   *
+   * @param limiter the rate limits of the clients
+   * @param bulkLimiter the rate limits of the urls the clients bulk create
+   *     and import
+   * @param apiKeyHeader the header clients send their API key in
+   * @param apiKeys the API keys clients are identified by, others being
+   *     ignored
+   * @param trustForwardedFor true to identify clients without an API key
+   *     by the X-Forwarded-For header, when behind a proxy
+   */
+  public RateLimitHandler(ClientRateLimiter limiter, ClientRateLimiter bulkLimiter, String apiKeyHeader,
+                          Set<String> apiKeys, boolean trustForwardedFor) {
+    this.limiter = limiter;
+    this.bulkLimiter = bulkLimiter;
+    this.apiKeyHeader = apiKeyHeader;
+    this.apiKeys = Set.copyOf(apiKeys);
+    this.trustForwardedFor = trustForwardedFor;
+  }
+
+  /**
+   * Creates the rate limit handler configured by
+   * <code>shorty.rate-limit</code>.
+   *
+   * @param config the rate limit configuration
+   * @return the handler, or null if rate limiting isn't enabled.
+   */
+  public static RateLimitHandler create(Config config) {
+    if (!config.get("enabled").asBoolean().orElse(false)) {
+      return null;
+    }
+    int maxClients = config.get("max-clients").asInt().orElse(100000);
+    return new RateLimitHandler(
+        new ClientRateLimiter(
+            config.get("requests-per-second").asDouble().orElse(10.0),
+            config.get("burst").asInt().orElse(50),
+            maxClients),
+        new ClientRateLimiter(
+            config.get("bulk-urls-per-second").asDouble().orElse(100.0),
+            config.get("bulk-burst").asInt().orElse(1000),
+            maxClients),
+        config.get("api-key-header").asString().orElse("X-API-Key"),
+        new HashSet<>(config.get("api-keys").asList(String.class).orElse(List.of())),
+        config.get("trust-forwarded-for").asBoolean().orElse(false));
+  }
+
+  /**
+   * Passes the request on if the client is within its rate limit,
+   * otherwise rejects it.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  @Override
+  public void accept(ServerRequest req, ServerResponse res) {
+    String client = client(req);
+    long waitNanos = limiter.tryAcquire(client);
+    if (waitNanos == 0 && isBulk(req.path().absolute().toString())) {
+      waitNanos = bulkLimiter.tryAcquire(client);
+      req.context().register(new ClientPermits(bulkLimiter, client));
+    }
+    if (waitNanos == 0) {
+      req.next();
+      return;
+    }
+    rejected.increment();
+    long retryAfter = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    res.status(TOO_MANY_REQUESTS_429);
+    res.headers().put(Http.Header.RETRY_AFTER, Long.toString(retryAfter));
+    res.headers().contentType(MediaType.APPLICATION_JSON);
+    res.send(ShortUrlJsonEncoder.getInstance().encodeError(
+        "Too many requests, retry after " + retryAfter + " seconds."));
+  }
+
+  /**
+   * Returns whether a request may create many urls, a bulk create or an
+   * import.
+   *
+   * @param path the request path
+   * @return true if the request is charged for each url.
+   */
+  private static boolean isBulk(String path) {
+    return path.endsWith("/bulk") || path.endsWith("/import");
+  }
+
+  /**
+   * Returns the client a request is from, its API key if it's one of the
+   * configured keys, otherwise its address. The two are prefixed so that an
+   * API key can't share a bucket with an address.
+   *
+   * @param req the server request
+   * @return the client.
+   */
+  private String client(ServerRequest req) {
+    String apiKey = req.headers().first(apiKeyHeader).orElse(null);
+    if (apiKey != null && apiKeys.contains(apiKey)) {
+      return "key:" + apiKey;
+    }
+    return "ip:" + RedirectHandler.clientAddress(req, trustForwardedFor);
+  }
+}
@@ -0,0 +1,244 @@
+package com.gmpatter.shorty.redirect;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import io.helidon.common.http.Http;
+import io.helidon.config.Config;
+import io.helidon.webserver.ResponseHeaders;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+
+import static io.helidon.config.ConfigSources.classpath;
+
+/**
+ * How redirects and url lookups can be cached by browsers and CDNs.
+ *
+ * <p>A short url never changes before it expires, so redirects and lookups
+ * are sent with <code>Cache-Control</code> and <code>Expires</code> headers
+ * that let them be cached until the url expires, but for no longer than
+ * <code>max-age-seconds</code>, so that a deleted url stops being served
+ * from caches within that time. They are also sent with an
+ * <code>ETag</code> of the token and expiry, and a request whose
+ * <code>If-None-Match</code> has it is answered with a 304 and no body.
+ *
+ * <p>The status of redirects is here too, as a 301 is cached by browsers
+ * even without these headers, while a 302 is only cached when they allow
+ * it.
+ *
+ * <p>The headers are built without formatting for most responses: the
+ * <code>Cache-Control</code> of urls that outlive the max age is a constant,
+ * their <code>Expires</code> is formatted once a second, and the
+ * <code>ETag</code> is kept by the short url, so a redirect of a url held in
+ * memory allocates none of them.
+ *
+ * @author Gareth Patterson
+ */
+public class HttpCachePolicy {
+
+  private static final Set<Integer> REDIRECT_STATUSES = Set.of(301, 302, 307, 308);
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+  private static HttpCachePolicy INSTANCE;
+
+  private final boolean enabled;
+  private final long maxAgeSeconds;
+  private final int redirectStatus;
+  private final String maxAgeCacheControl;
+  // The last Expires header formatted, with its time in epoch seconds
+  private volatile FormattedExpires lastExpires = new FormattedExpires(Long.MIN_VALUE, null);
+
+  /**
+   * Creates a cache policy.
+   *
+   * @param enabled true to send the caching headers and answer conditional
+   *     requests
+   * @param maxAgeSeconds the longest time a url may be cached for
+   * @param redirectStatus the status of redirects, 301, 302, 307 or 308
+   */
+  public HttpCachePolicy(boolean enabled, long maxAgeSeconds, int redirectStatus) {
+    if (maxAgeSeconds < 0) {
+      throw new IllegalArgumentException("The max age must not be negative, was " + maxAgeSeconds + ".");
+    }
+    if (!REDIRECT_STATUSES.contains(redirectStatus)) {
+      throw new IllegalArgumentException("The redirect status must be one of " + REDIRECT_STATUSES
+          + ", was " + redirectStatus + ".");
+    }
+    this.enabled = enabled;
+    this.maxAgeSeconds = maxAgeSeconds;
+    this.redirectStatus = redirectStatus;
+    this.maxAgeCacheControl = "public, max-age=" + maxAgeSeconds;
+  }
+
+  /**
+   * Creates the cache policy configured by <code>shorty.http-cache</code>
+   * and <code>shorty.redirect.status</code>.
+   *
+   * @param config the root configuration
+   * @return the cache policy.
+   */
+  public static HttpCachePolicy create(Config config) {
+    Config cacheConfig = config.get("shorty.http-cache");
+    return new HttpCachePolicy(
+        cacheConfig.get("enabled").asBoolean().orElse(true),
+        cacheConfig.get("max-age-seconds").asLong().orElse(60L),
+        config.get("shorty.redirect.status").asInt().orElse(301));
+  }
+
+  /**
+   * Returns the singleton instance of <code>HttpCachePolicy</code>,
+   * configured from <code>application.yaml</code>.
+   *
+   * @return the instance of <code>HttpCachePolicy</code>.
+   */
+  public static HttpCachePolicy getInstance() {
+    if (INSTANCE == null) {
+      INSTANCE = create(Config.builder()
+          .sources(classpath("application.yaml"))
+          .build());
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * Returns true if the caching headers are sent and conditional requests
+   * answered.
+   *
+   * @return true if enabled.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the status of redirects.
+   *
+   * @return the redirect status code.
+   */
+  public int getRedirectStatus() {
+    return redirectStatus;
+  }
+
+  /**
+   * Returns the time a url may be cached for, until it expires but no
+   * longer than the max age.
+   *
+   * @param expiryTime the expiry time of the url in epoch milliseconds
+   * @param currentTime the current time in epoch milliseconds
+   * @return the max age in seconds.
+   */
+  public long getMaxAgeSeconds(long expiryTime, long currentTime) {
+    return Math.max(0, Math.min(maxAgeSeconds, (expiryTime - currentTime) / 1000));
+  }
+
+  /**
+   * Returns the <code>Cache-Control</code> header for a max age.
+   *
+   * @param maxAge the max age in seconds
+   * @return the header value.
+   */
+  public String getCacheControl(long maxAge) {
+    return maxAge == maxAgeSeconds ? maxAgeCacheControl : "public, max-age=" + maxAge;
+  }
+
+  /**
+   * Returns the <code>Expires</code> header for a max age, the HTTP date
+   * that many seconds from now.
+   *
+   * @param maxAge the max age in seconds
+   * @param currentTime the current time in epoch milliseconds
+   * @return the header value.
+   */
+  public String getExpires(long maxAge, long currentTime) {
+    long expiresSecond = currentTime / 1000 + maxAge;
+    FormattedExpires last = lastExpires;
+    if (last.second != expiresSecond) {
+      last = new FormattedExpires(expiresSecond, HTTP_DATE.format(Instant.ofEpochSecond(expiresSecond)));
+      lastExpires = last;
+    }
+    return last.value;
+  }
+
+  /**
+   * Returns the <code>ETag</code> of a short url, which changes if the url
+   * is ever stored again with a different expiry. It's kept by the short
+   * url once formatted.
+   *
+   * @param shortUrl the short url
+   * @return the quoted entity tag.
+   */
+  public static String getETag(ShortUrl shortUrl) {
+    return shortUrl.getETag();
+  }
+
+  /**
+   * Returns true if an <code>If-None-Match</code> header has the entity
+   * tag, using the weak comparison, or is "*".
+   *
+   * @param ifNoneMatch the header value, or null if there is none
+   * @param etag the quoted entity tag of the url
+   * @return true if the client's copy is current.
+   */
+  public static boolean isNotModified(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    int start = 0;
+    while (start < ifNoneMatch.length()) {
+      int end = ifNoneMatch.indexOf(',', start);
+      if (end < 0) {
+        end = ifNoneMatch.length();
+      }
+      String tag = ifNoneMatch.substring(start, end).trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals(etag) || tag.equals("*")) {
+        return true;
+      }
+      start = end + 1;
+    }
+    return false;
+  }
+
+  /**
+   * Adds the caching headers for a short url to a Helidon response, if
+   * enabled, and returns true if the request's <code>If-None-Match</code>
+   * has the url's entity tag, so a 304 should be sent instead.
+   *
+   * @param req the server request
+   * @param res the server response
+   * @param shortUrl the short url
+   * @return true if the response should be a 304.
+   */
+  public boolean addHeaders(ServerRequest req, ServerResponse res, ShortUrl shortUrl) {
+    if (!enabled) {
+      return false;
+    }
+    long currentTime = System.currentTimeMillis();
+    long maxAge = getMaxAgeSeconds(shortUrl.getExpiryTime(), currentTime);
+    String etag = getETag(shortUrl);
+    ResponseHeaders headers = res.headers();
+    headers.put(Http.Header.CACHE_CONTROL, getCacheControl(maxAge));
+    headers.put(Http.Header.EXPIRES, getExpires(maxAge, currentTime));
+    headers.put(Http.Header.ETAG, etag);
+    return isNotModified(req.headers().first(Http.Header.IF_NONE_MATCH).orElse(null), etag);
+  }
+
+  /**
+   * An <code>Expires</code> header and its time.
+   */
+  private static class FormattedExpires {
+
+    private final long second;
+    private final String value;
+
+    FormattedExpires(long second, String value) {
+      this.second = second;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.gmpatter.shorty.redirect;
+
+import com.gmpatter.shorty.metrics.Histogram;
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.UrlRepository;
+import com.gmpatter.shorty.service.UrlService;
+import io.helidon.common.http.Http;
+import io.helidon.webserver.Handler;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+
+/**
+ * Helidon handler for redirect requests to "/go/{token}", redirecting to
+ * the original url for the token.
+ *
+ * <p>This is the hottest path in the application, so it only looks up the
+ * original url string for the token, without building a <code>ShortUrl</code>
+ * or logging. Clicks are recorded with a {@link com.gmpatter.shorty.stats.ClickCounter},
+ * which doesn't lock, and the time taken is recorded in a {@link Histogram},
+ * which doesn't allocate.
+ *
+ * <p>The url is looked up with {@link UrlService#getOriginalUrlAsync(String)}
+ * and the response is sent when the lookup completes, so the handler never
+ * blocks the web server's I/O thread waiting on the repository. When reads
+ * never block, as for the in-memory repositories, the repository is read
+ * directly on the calling thread instead, so a redirect doesn't allocate a
+ * completion stage or callback.
+ *
+ * <p>When the {@link HttpCachePolicy} is enabled the short url is looked up
+ * instead, for the caching headers derived from its expiry, and a request
+ * whose <code>If-None-Match</code> has the url's entity tag is answered
+ * with a 304. The click is still recorded, as the visitor is being sent on
+ * by their cached copy.
+ *
+ * @author Gareth Patterson
+ */
+public class RedirectHandler implements Handler {
+
+  public static final String TOKEN_PARAM = "token";
+  public static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+  private final UrlService urlService;
+  private final HttpCachePolicy cachePolicy;
+  private final boolean trustForwardedFor;
+  private final Http.ResponseStatus redirectStatus;
+  private final Histogram latency = UrlService.operationLatency("redirect");
+
+  /**
+   * Creates a new redirect handler.
+   *
+   * @param urlService the url service to resolve tokens with
+   * @param cachePolicy the redirect status and caching headers
+   * @param trustForwardedFor true to take the visitor's address from the
+   *     X-Forwarded-For header, when behind a proxy
+   */
+  public RedirectHandler(UrlService urlService, HttpCachePolicy cachePolicy, boolean trustForwardedFor) {
+    this.urlService = urlService;
+    this.cachePolicy = cachePolicy;
+    this.trustForwardedFor = trustForwardedFor;
+    this.redirectStatus = Http.ResponseStatus.create(cachePolicy.getRedirectStatus());
+  }
+
+  /**
+   * Redirects to the original url for the token, or returns a 404 if the
+   * url isn't found.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  @Override
+  public void accept(ServerRequest req, ServerResponse res) {
+    long start = System.nanoTime();
+    String token = req.path().param(TOKEN_PARAM);
+    UrlRepository inline = urlService.getInlineReadRepository();
+    if (inline != null) {
+      try {
+        if (cachePolicy.isEnabled()) {
+          redirect(req, res, token, inline.getUrl(token));
+        } else {
+          redirect(req, res, token, inline.getOriginalUrl(token));
+        }
+      } catch (RuntimeException e) {
+        req.next(e);
+      }
+      latency.recordSince(start);
+      return;
+    }
+    if (cachePolicy.isEnabled()) {
+      urlService.getUrlForRedirectAsync(token).whenComplete((shortUrl, error) -> {
+        if (error != null) {
+          req.next(error);
+        } else {
+          redirect(req, res, token, shortUrl);
+        }
+        latency.recordSince(start);
+      });
+      return;
+    }
+    urlService.getOriginalUrlAsync(token).whenComplete((url, error) -> {
+      if (error != null) {
+        req.next(error);
+      } else {
+        redirect(req, res, token, url);
+      }
+      latency.recordSince(start);
+    });
+  }
+
+  /**
+   * Sends the redirect for a looked up url.
+   *
+   * @param req the server request
+   * @param res the server response
+   * @param token the token for the short url
+   * @param url the original url, or null if the url isn't found
+   */
+  private void redirect(ServerRequest req, ServerResponse res, String token, String url) {
+    if (url == null) {
+      res.status(Http.Status.NOT_FOUND_404);
+      res.send();
+    } else {
+      recordClick(req, token);
+      res.status(redirectStatus);
+      res.headers().put(Http.Header.LOCATION, url);
+      res.send();
+    }
+  }
+
+  /**
+   * Sends the redirect for a looked up short url with its caching headers,
+   * or a 304 if the client's copy is current.
+   *
+   * @param req the server request
+   * @param res the server response
+   * @param token the token for the short url
+   * @param shortUrl the short url, or null if the url isn't found
+   */
+  private void redirect(ServerRequest req, ServerResponse res, String token, ShortUrl shortUrl) {
+    if (shortUrl == null) {
+      res.status(Http.Status.NOT_FOUND_404);
+      res.send();
+    } else {
+      recordClick(req, token);
+      if (cachePolicy.addHeaders(req, res, shortUrl)) {
+        res.status(Http.Status.NOT_MODIFIED_304);
+      } else {
+        res.status(redirectStatus);
+        res.headers().put(Http.Header.LOCATION, shortUrl.getOriginalUrl());
+      }
+      res.send();
+    }
+  }
+
+  /**
+   * Records a click on the short url, with the visitor's details when
+   * analytics are enabled.
+   *
+   * @param req the server request
+   * @param token the token for the short url
+   */
+  private void recordClick(ServerRequest req, String token) {
+    if (urlService.isAnalyticsEnabled()) {
+      urlService.recordClick(token, clientAddress(req, trustForwardedFor),
+          req.headers().first(Http.Header.REFERER).orElse(null),
+          req.headers().first(Http.Header.USER_AGENT).orElse(null));
+    } else {
+      urlService.recordClick(token);
+    }
+  }
+
+  /**
+   * Returns the address of the client, the first X-Forwarded-For address
+   * if the header is trusted, as the rest are proxies, otherwise the
+   * connection's remote address. The header is only trusted behind a proxy
+   * that sets it, as any client can send it.
+   *
+   * @param req the server request
+   * @param trustForwardedFor true to use the X-Forwarded-For header
+   * @return the client's address.
+   */
+  public static String clientAddress(ServerRequest req, boolean trustForwardedFor) {
+    if (trustForwardedFor) {
+      String forwardedFor = req.headers().first(FORWARDED_FOR_HEADER).orElse(null);
+      if (forwardedFor != null && !forwardedFor.isEmpty()) {
+        int comma = forwardedFor.indexOf(',');
+        return (comma < 0 ? forwardedFor : forwardedFor.substring(0, comma)).trim();
+      }
+    }
+    return req.remoteAddress();
+  }
+}
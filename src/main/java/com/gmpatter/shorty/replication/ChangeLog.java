@@ -0,0 +1,167 @@
+package com.gmpatter.shorty.replication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The most recent changes made on the leader, kept in memory for followers
+ * to read in order.
+ *
+ * <p>Each change is an encoded {@link com.gmpatter.shorty.persistence.WriteAheadLog}
+ * record, and is given the next offset when it is appended. Only the latest
+ * <code>capacity</code> changes are kept, so a follower that falls further
+ * behind than that has to load a snapshot instead.
+ *
+ * <p>Followers wait for changes without holding a thread, with
+ * {@link #awaitAppend(long, long)}.
+ *
+ * @author Gareth Patterson
+ */
+public class ChangeLog {
+
+  private final byte[][] records;
+  private final long firstOffset;
+  private final ReentrantLock lock = new ReentrantLock();
+  // Completed when a change is appended, or when they time out
+  private final Set<CompletableFuture<Boolean>> waiters = ConcurrentHashMap.newKeySet();
+  // The offset of the oldest change kept, and of the next change
+  private long startOffset;
+  private volatile long endOffset;
+
+  /**
+   * Creates an empty change log.
+   *
+   * @param capacity the number of changes to keep
+   * @param firstOffset the offset of the first change
+   */
+  public ChangeLog(int capacity, long firstOffset) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The change log capacity must be at least 1.");
+    }
+    this.records = new byte[capacity][];
+    this.firstOffset = firstOffset;
+    this.startOffset = firstOffset;
+    this.endOffset = firstOffset;
+  }
+
+  /**
+   * Appends a change, dropping the oldest change if the log is full, and
+   * wakes any followers waiting for it.
+   *
+   * @param record the encoded change
+   * @return the offset of the change.
+   */
+  public long append(byte[] record) {
+    long offset;
+    lock.lock();
+    try {
+      offset = endOffset;
+      records[(int) Math.floorMod(offset, (long) records.length)] = record;
+      if (offset - startOffset == records.length) {
+        startOffset++;
+      }
+      endOffset = offset + 1;
+    } finally {
+      lock.unlock();
+    }
+    if (!waiters.isEmpty()) {
+      for (CompletableFuture<Boolean> waiter : waiters) {
+        waiter.complete(true);
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * Writes the changes from the offset to the stream, in order.
+   *
+   * @param from the offset of the first change to write
+   * @param maxRecords the most changes to write
+   * @param out the stream to write to
+   * @return the number of changes written, or -1 if the changes from the
+   *     offset are no longer kept or the offset is past the end of the log.
+   * @throws IOException if the stream can't be written
+   */
+  public int read(long from, int maxRecords, OutputStream out) throws IOException {
+    byte[][] batch;
+    lock.lock();
+    try {
+      if (from < startOffset || from > endOffset) {
+        return -1;
+      }
+      batch = new byte[(int) Math.min(maxRecords, endOffset - from)][];
+      for (int i = 0; i < batch.length; i++) {
+        batch[i] = records[(int) Math.floorMod(from + i, (long) records.length)];
+      }
+    } finally {
+      lock.unlock();
+    }
+    // Records are never modified, so they can be written without the lock
+    for (byte[] record : batch) {
+      out.write(record);
+    }
+    return batch.length;
+  }
+
+  /**
+   * Waits without blocking for a change to be appended at or after the
+   * offset.
+   *
+   * @param offset the offset to wait for
+   * @param timeoutMillis the longest time to wait
+   * @return a stage completed with true once there is a change at the
+   *     offset, or with false if the wait timed out.
+   */
+  public CompletionStage<Boolean> awaitAppend(long offset, long timeoutMillis) {
+    if (endOffset > offset) {
+      return CompletableFuture.completedStage(true);
+    }
+    CompletableFuture<Boolean> waiter = new CompletableFuture<>();
+    waiters.add(waiter);
+    // Check again in case the change was appended before the waiter was added
+    if (endOffset > offset) {
+      waiter.complete(true);
+    }
+    return waiter.completeOnTimeout(false, timeoutMillis, TimeUnit.MILLISECONDS)
+        .whenComplete((appended, error) -> waiters.remove(waiter));
+  }
+
+  /**
+   * Returns the offset of the oldest change kept.
+   *
+   * @return the start offset.
+   */
+  public long getStartOffset() {
+    lock.lock();
+    try {
+      return startOffset;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the offset the next change will be given. A follower that has
+   * applied every change before it is up to date.
+   *
+   * @return the end offset.
+   */
+  public long getEndOffset() {
+    return endOffset;
+  }
+
+  /**
+   * Returns the number of changes appended since the log was created.
+   *
+   * @return the append count.
+   */
+  public long getAppendCount() {
+    return endOffset - firstOffset;
+  }
+}
@@ -0,0 +1,334 @@
+package com.gmpatter.shorty.replication;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.UrlRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The read-only {@link UrlRepository} of a follower, which serves reads from
+ * a local copy of the leader's urls.
+ *
+ * <p>A replication thread loads a snapshot from the leader into a new local
+ * repository, then applies the leader's changes from the snapshot's offset
+ * in order as they are made. If the follower falls so far behind that the
+ * leader no longer has the changes it needs, such as after the leader
+ * restarts, it loads a new snapshot while still serving reads from the old
+ * one.
+ *
+ * <p>The lag reported is the time since the follower last knew it had every
+ * change on the leader, which the leader confirms at least once per poll
+ * wait even when there are no changes. A follower whose lag is over the
+ * maximum still serves reads, but reports itself as stale so a load
+ * balancer can stop sending it requests.
+ *
+ * @author Gareth Patterson
+ */
+public class FollowerUrlRepository implements UrlRepository, AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FollowerUrlRepository.class);
+
+  private final String leader;
+  private final Supplier<UrlRepository> repositoryFactory;
+  private final ReplicationClient client;
+  private final long pollWaitMillis;
+  private final long maxLagMillis;
+  private final long createdAt = System.currentTimeMillis();
+
+  private volatile UrlRepository local;
+  // The offset of the next change to apply, or -1 until a snapshot is loaded
+  private final AtomicLong offset = new AtomicLong(-1);
+  private volatile long leaderOffset = -1;
+  // When the follower last knew it had every change, or 0 if it never has
+  private volatile long caughtUpAt;
+  private final LongAdder snapshots = new LongAdder();
+
+  private volatile Thread replicator;
+  private volatile boolean closed;
+
+  /**
+   * Creates a follower repository, which is empty until {@link #start()} is
+   * called.
+   *
+   * @param leader the address of the leader, for errors and logging
+   * @param repositoryFactory creates the empty in-memory repositories
+   *     snapshots are loaded into
+   * @param client the client for reading from the leader
+   * @param pollWaitMillis the longest time the leader waits for a change
+   *     before answering a poll
+   * @param maxLagMillis the lag over which the follower is stale
+   */
+  public FollowerUrlRepository(String leader, Supplier<UrlRepository> repositoryFactory,
+                               ReplicationClient client, long pollWaitMillis, long maxLagMillis) {
+    this.leader = leader;
+    this.repositoryFactory = repositoryFactory;
+    this.client = client;
+    this.pollWaitMillis = pollWaitMillis;
+    this.maxLagMillis = maxLagMillis;
+    this.local = repositoryFactory.get();
+  }
+
+  /**
+   * Starts replicating from the leader on a virtual thread.
+   */
+  public void start() {
+    replicator = Thread.ofVirtual().name("shorty-replication").start(this::replicate);
+  }
+
+  /**
+   * Stops replicating from the leader.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Thread thread = replicator;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * Replicates from the leader until closed, retrying after a poll wait
+   * when the leader can't be read.
+   */
+  private void replicate() {
+    while (!closed) {
+      try {
+        poll();
+      } catch (IOException | RuntimeException e) {
+        if (closed) {
+          return;
+        }
+        LOGGER.warn("Unable to replicate from leader {}, lag is {}ms.", leader, getLagMillis(), e);
+        try {
+          Thread.sleep(pollWaitMillis);
+        } catch (InterruptedException interrupted) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads a snapshot if the follower needs one, otherwise applies the next
+   * changes from the leader.
+   *
+   * @throws IOException if the leader can't be read
+   */
+  void poll() throws IOException {
+    if (offset.get() < 0) {
+      loadSnapshot();
+      return;
+    }
+    UrlRepository repository = local;
+    long end = client.changes(offset.get(), pollWaitMillis,
+        shortUrl -> {
+          repository.createUrl(shortUrl);
+          offset.incrementAndGet();
+        },
+        token -> {
+          repository.deleteUrl(token);
+          offset.incrementAndGet();
+        });
+    if (end < 0) {
+      LOGGER.info("Leader {} no longer has the changes from offset {}, loading a snapshot.", leader, offset.get());
+      loadSnapshot();
+      return;
+    }
+    leaderOffset = end;
+    if (offset.get() >= end) {
+      caughtUpAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Loads a snapshot from the leader into a new local repository, and
+   * replaces the local repository with it.
+   *
+   * @throws IOException if the leader can't be read
+   */
+  private void loadSnapshot() throws IOException {
+    long start = System.currentTimeMillis();
+    UrlRepository repository = repositoryFactory.get();
+    long snapshotOffset = client.snapshot(repository::createUrl);
+    local = repository;
+    offset.set(snapshotOffset);
+    leaderOffset = Math.max(leaderOffset, snapshotOffset);
+    snapshots.increment();
+    LOGGER.info("Loaded a snapshot of {} urls at offset {} from leader {} in {}ms.",
+        repository.size(), snapshotOffset, leader, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl getUrl(String token) {
+    return local.getUrl(token);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    return local.getOriginalUrl(token);
+  }
+
+  /**
+   * Followers don't accept writes.
+   *
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public ShortUrl createUrl(ShortUrl shortUrl) {
+    throw readOnly();
+  }
+
+  /**
+   * Followers don't accept writes.
+   *
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public BitSet createUrls(List<ShortUrl> shortUrls) {
+    throw readOnly();
+  }
+
+  /**
+   * Followers don't accept writes.
+   *
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void deleteUrl(String token) {
+    throw readOnly();
+  }
+
+  /**
+   * Purges the expired urls from the local repository, as the leader
+   * doesn't replicate its purges.
+   */
+  @Override
+  public void purgeExpiredUrls() {
+    local.purgeExpiredUrls();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    local.forEachUrl(action);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int size() {
+    return local.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    return local.countExpired(currentTime);
+  }
+
+  /**
+   * Returns the address of the leader.
+   *
+   * @return the leader.
+   */
+  public String getLeader() {
+    return leader;
+  }
+
+  /**
+   * Returns the local repository reads are currently served from.
+   *
+   * @return the local repository.
+   */
+  public UrlRepository getLocalRepository() {
+    return local;
+  }
+
+  /**
+   * Returns the offset of the next change to apply.
+   *
+   * @return the offset, or -1 if no snapshot has been loaded yet.
+   */
+  public long getOffset() {
+    return offset.get();
+  }
+
+  /**
+   * Returns the leader's end offset when it last answered.
+   *
+   * @return the leader's offset, or -1 if it hasn't answered yet.
+   */
+  public long getLeaderOffset() {
+    return leaderOffset;
+  }
+
+  /**
+   * Returns the number of changes the follower knows it hasn't applied yet.
+   *
+   * @return the lag in changes.
+   */
+  public long getLagRecords() {
+    long applied = offset.get();
+    return applied < 0 ? Math.max(leaderOffset, 0) : Math.max(leaderOffset - applied, 0);
+  }
+
+  /**
+   * Returns the time since the follower last knew it had every change on
+   * the leader, or since it was created if it hasn't caught up yet.
+   *
+   * @return the lag in milliseconds.
+   */
+  public long getLagMillis() {
+    long since = caughtUpAt;
+    return System.currentTimeMillis() - (since == 0 ? createdAt : since);
+  }
+
+  /**
+   * Returns true if the lag is over the maximum, in which case the follower
+   * may be missing recent changes.
+   *
+   * @return true if the follower is stale.
+   */
+  public boolean isStale() {
+    return getLagMillis() > maxLagMillis;
+  }
+
+  /**
+   * Returns the number of snapshots loaded from the leader.
+   *
+   * @return the snapshot count.
+   */
+  public long getSnapshotCount() {
+    return snapshots.sum();
+  }
+
+  /**
+   * Returns the error for a write sent to the follower.
+   *
+   * @return the error.
+   */
+  private UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("This node is a read-only follower, send writes to the leader at "
+        + leader + ".");
+  }
+}
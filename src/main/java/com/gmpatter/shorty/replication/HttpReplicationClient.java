@@ -0,0 +1,150 @@
+package com.gmpatter.shorty.replication;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.WriteAheadLog;
+import com.gmpatter.shorty.security.SharedSecretHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ReplicationClient} that reads from the leader's
+ * {@link ReplicationService} endpoints over HTTP.
+ *
+ * <p>Snapshots and changes are sent in the {@link WriteAheadLog} record
+ * format, with the offsets in response headers. Snapshots are read as they
+ * arrive, and the changes are read in batches. Every request carries the
+ * replication secret.
+ *
+ * @author Gareth Patterson
+ */
+public class HttpReplicationClient implements ReplicationClient {
+
+  private final String leader;
+  private final String authorization;
+  private final HttpClient httpClient;
+  private final Duration timeout;
+
+  /**
+   * Creates a client.
+   *
+   * @param leader the address of the leader, such as <code>http://leader:8080</code>
+   * @param secret the secret shared by the leader and followers
+   * @param timeoutMillis the time to wait for the leader to answer, on top
+   *     of any time it waits for changes
+   */
+  public HttpReplicationClient(String leader, String secret, long timeoutMillis) {
+    this.leader = leader;
+    this.authorization = SharedSecretHandler.authorization(secret);
+    this.timeout = Duration.ofMillis(timeoutMillis);
+    // The leader talks plain HTTP/1.1, so don't try to upgrade each connection
+    this.httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(timeout)
+        .build();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long snapshot(Consumer<ShortUrl> create) throws IOException {
+    // Snapshots can be large, so they are read as they arrive and have no timeout
+    HttpRequest request = HttpRequest.newBuilder(URI.create(leader + ReplicationService.CONTEXT_ROOT + "/snapshot"))
+        .header("Authorization", authorization)
+        .GET()
+        .build();
+    HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+    try (InputStream body = response.body()) {
+      if (response.statusCode() != 200) {
+        throw failure(response);
+      }
+      long offset = offsetHeader(response, ReplicationService.OFFSET_HEADER);
+      // The only delete in a snapshot marks its end, so a snapshot cut short is noticed
+      boolean[] complete = new boolean[1];
+      WriteAheadLog.read(body, "snapshot from " + leader, create, token -> complete[0] = true,
+          System.currentTimeMillis());
+      if (!complete[0]) {
+        throw new IOException("The snapshot from leader " + leader + " ended early.");
+      }
+      return offset;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long changes(long from, long waitMillis, Consumer<ShortUrl> create, Consumer<String> delete)
+      throws IOException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(leader + ReplicationService.CONTEXT_ROOT
+            + "/changes?from=" + from + "&wait-millis=" + waitMillis))
+        .timeout(timeout.plusMillis(waitMillis))
+        .header("Authorization", authorization)
+        .GET()
+        .build();
+    // Batches of changes are small, so they are read whole
+    HttpResponse<byte[]> response = send(request, HttpResponse.BodyHandlers.ofByteArray());
+    if (response.statusCode() == 410) {
+      return -1;
+    }
+    if (response.statusCode() != 200) {
+      throw failure(response);
+    }
+    long end = offsetHeader(response, ReplicationService.END_OFFSET_HEADER);
+    // Changes are passed on even if the url has expired, so the follower can count them
+    WriteAheadLog.read(new ByteArrayInputStream(response.body()), "changes from " + leader, create, delete, 0);
+    return end;
+  }
+
+  /**
+   * Sends a request to the leader.
+   *
+   * @param request the request
+   * @param bodyHandler the handler for the response body
+   * @return the response.
+   * @throws IOException if the leader can't be reached, or the thread is
+   *     interrupted while waiting for it
+   */
+  private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+      throws IOException {
+    try {
+      return httpClient.send(request, bodyHandler);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading from leader " + leader + ".");
+    }
+  }
+
+  /**
+   * Returns an offset from a response header.
+   *
+   * @param response the response
+   * @param header the name of the header
+   * @return the offset.
+   * @throws IOException if the header is missing
+   */
+  private long offsetHeader(HttpResponse<?> response, String header) throws IOException {
+    String value = response.headers().firstValue(header)
+        .orElseThrow(() -> new IOException("Leader " + leader + " didn't send the " + header + " header."));
+    return Long.parseLong(value);
+  }
+
+  /**
+   * Returns the error for the leader answering with a failure.
+   *
+   * @param response the response
+   * @return the error.
+   */
+  private IOException failure(HttpResponse<?> response) {
+    return new IOException("Leader " + leader + " returned status " + response.statusCode() + ".");
+  }
+}
@@ -0,0 +1,202 @@
+package com.gmpatter.shorty.replication;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.UrlRepository;
+import com.gmpatter.shorty.persistence.WriteAheadLog;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The {@link UrlRepository} of the leader, which accepts every create and
+ * delete and appends them to a {@link ChangeLog} for the followers.
+ *
+ * <p>Each change is applied to the local repository before it is appended,
+ * so a snapshot of the local repository taken after reading the end offset
+ * includes every change before that offset. A follower that loads such a
+ * snapshot and then applies the changes from the offset is up to date, as
+ * applying a change it already has from the snapshot again does nothing.
+ * Each change is applied and appended under a lock striped by token, so the
+ * changes to a token are appended in the order they were applied, and
+ * creates the local repository skips are never appended.
+ *
+ * <p>Purges aren't replicated, as followers purge the same expired urls
+ * themselves.
+ *
+ * @author Gareth Patterson
+ */
+public class LeaderUrlRepository implements UrlRepository {
+
+  private final UrlRepository local;
+  private final ChangeLog changeLog;
+  // One lock for each bit of a long, so a batch can note the stripes it needs in one
+  private final ReentrantLock[] writeLocks = new ReentrantLock[Long.SIZE];
+
+  /**
+   * Creates a leader repository.
+   *
+   * @param local the repository holding the urls
+   * @param changeLogCapacity the number of changes to keep for followers
+   */
+  public LeaderUrlRepository(UrlRepository local, int changeLogCapacity) {
+    this.local = local;
+    // Start from the time rather than 0, so that after a restart followers
+    // see their offset is behind the new log and load a snapshot, rather
+    // than skipping the changes up to their old offset
+    this.changeLog = new ChangeLog(changeLogCapacity, System.currentTimeMillis() << 20);
+    for (int i = 0; i < writeLocks.length; i++) {
+      writeLocks[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl getUrl(String token) {
+    return local.getUrl(token);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getOriginalUrl(String token) {
+    return local.getOriginalUrl(token);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ShortUrl createUrl(ShortUrl shortUrl) {
+    ReentrantLock lock = writeLocks[stripe(shortUrl.getToken())];
+    lock.lock();
+    try {
+      ShortUrl created = local.createUrl(shortUrl);
+      if (created != null) {
+        changeLog.append(WriteAheadLog.encodeCreate(created));
+      }
+      return created;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public BitSet createUrls(List<ShortUrl> shortUrls) {
+    long stripes = 0;
+    for (ShortUrl shortUrl : shortUrls) {
+      stripes |= 1L << stripe(shortUrl.getToken());
+    }
+    // Locked in stripe order, so batches can't deadlock each other
+    for (long rest = stripes; rest != 0; rest &= rest - 1) {
+      writeLocks[Long.numberOfTrailingZeros(rest)].lock();
+    }
+    try {
+      BitSet skipped = local.createUrls(shortUrls);
+      for (int i = skipped.nextClearBit(0); i < shortUrls.size(); i = skipped.nextClearBit(i + 1)) {
+        changeLog.append(WriteAheadLog.encodeCreate(shortUrls.get(i)));
+      }
+      return skipped;
+    } finally {
+      for (long rest = stripes; rest != 0; rest &= rest - 1) {
+        writeLocks[Long.numberOfTrailingZeros(rest)].unlock();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void deleteUrl(String token) {
+    ReentrantLock lock = writeLocks[stripe(token)];
+    lock.lock();
+    try {
+      local.deleteUrl(token);
+      changeLog.append(WriteAheadLog.encodeDelete(token));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void purgeExpiredUrls() {
+    local.purgeExpiredUrls();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void forEachUrl(Consumer<ShortUrl> action) {
+    local.forEachUrl(action);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int size() {
+    return local.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int countExpired(long currentTime) {
+    return local.countExpired(currentTime);
+  }
+
+  /**
+   * Returns the repository holding the urls.
+   *
+   * @return the local repository.
+   */
+  public UrlRepository getLocalRepository() {
+    return local;
+  }
+
+  /**
+   * Returns the log of changes for the followers.
+   *
+   * @return the change log.
+   */
+  public ChangeLog getChangeLog() {
+    return changeLog;
+  }
+
+  /**
+   * Passes every unexpired url to the action, returning the offset the
+   * follower receiving them should apply changes from.
+   *
+   * @param action the action for each short url
+   * @return the offset of the snapshot.
+   */
+  public long snapshot(Consumer<ShortUrl> action) {
+    long offset = changeLog.getEndOffset();
+    local.forEachUrl(action);
+    return offset;
+  }
+
+  /**
+   * Returns the write lock stripe for a token.
+   *
+   * @param token the token
+   * @return the index of its lock.
+   */
+  private int stripe(String token) {
+    int hash = token.hashCode();
+    return (hash ^ (hash >>> 16)) & (writeLocks.length - 1);
+  }
+}
@@ -0,0 +1,43 @@
+package com.gmpatter.shorty.replication;
+
+import com.gmpatter.shorty.model.ShortUrl;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Reads the urls and changes of the leader, for a {@link FollowerUrlRepository}.
+ *
+ * <p>Both methods block until the leader has answered, and are only called
+ * by the follower's replication thread.
+ *
+ * @author Gareth Patterson
+ */
+public interface ReplicationClient {
+
+  /**
+   * Reads a snapshot of every unexpired url on the leader.
+   *
+   * @param create the action for each short url
+   * @return the offset to apply changes from after loading the snapshot.
+   * @throws IOException if the leader can't be read
+   */
+  long snapshot(Consumer<ShortUrl> create) throws IOException;
+
+  /**
+   * Reads the leader's changes from the offset in order, waiting for the
+   * next change if there are none yet. Every change is passed on, including
+   * creates of urls that have expired since.
+   *
+   * @param from the offset of the first change to read
+   * @param waitMillis the longest time to wait for a change
+   * @param create the action for each created short url
+   * @param delete the action for each deleted token
+   * @return the leader's end offset when it answered, or -1 if the leader
+   *     no longer has the changes from the offset and the follower must
+   *     load a snapshot.
+   * @throws IOException if the leader can't be read
+   */
+  long changes(long from, long waitMillis, Consumer<ShortUrl> create, Consumer<String> delete)
+      throws IOException;
+}
@@ -0,0 +1,214 @@
+package com.gmpatter.shorty.replication;
+
+import com.gmpatter.shorty.persistence.WriteAheadLog;
+import io.helidon.common.http.DataChunk;
+import io.helidon.common.http.Http;
+import io.helidon.common.http.MediaType;
+import io.helidon.common.reactive.IoMulti;
+import io.helidon.common.reactive.OutputStreamMulti;
+import io.helidon.webserver.Routing;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+import io.helidon.webserver.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Helidon service for the replication endpoints, under "/replication/v1".
+ *
+ * <p>On the leader, followers poll for changes, which waits without holding
+ * a thread until there is a change or the wait times out. Snapshots scan
+ * the whole repository, so are written on a virtual thread.
+ *
+ * <ul>
+ *   <li>GET /changes?from={offset}&amp;wait-millis={millis} - the changes
+ *       from the offset in the log record format, with the leader's end
+ *       offset in a header, or 410 if the changes are no longer kept
+ *       (leader only)</li>
+ *   <li>GET /snapshot - every unexpired url in the log record format, with
+ *       the offset to apply changes from in a header (leader only)</li>
+ *   <li>GET /status - the role, offsets and lag of this node, with status
+ *       503 if it is a stale follower</li>
+ * </ul>
+ *
+ * <p>The changes and snapshots hold every url, so are routed behind a
+ * {@link com.gmpatter.shorty.security.SharedSecretHandler} requiring the
+ * replication secret. The status stays open for load balancer health
+ * checks.
+ *
+ * @author Gareth Patterson
+ */
+public class ReplicationService implements Service {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationService.class);
+
+  public static final String CONTEXT_ROOT = "/replication/v1";
+  public static final String OFFSET_HEADER = "X-Shorty-Offset";
+  public static final String END_OFFSET_HEADER = "X-Shorty-End-Offset";
+
+  static final int MAX_BATCH_RECORDS = 10000;
+  static final long MAX_WAIT_MILLIS = 30000;
+  private static final int SNAPSHOT_CHUNK_BYTES = 64 * 1024;
+
+  private final LeaderUrlRepository leader;
+  private final FollowerUrlRepository follower;
+  // Writes snapshots, which block while the follower reads them
+  private final ExecutorService executor =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("shorty-replication-", 0).factory());
+
+  /**
+   * Creates the service for the leader.
+   *
+   * @param leader the leader repository
+   */
+  public ReplicationService(LeaderUrlRepository leader) {
+    this.leader = leader;
+    this.follower = null;
+  }
+
+  /**
+   * Creates the service for a follower, which only reports its status.
+   *
+   * @param follower the follower repository
+   */
+  public ReplicationService(FollowerUrlRepository follower) {
+    this.leader = null;
+    this.follower = follower;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void update(Routing.Rules rules) {
+    rules.get("/status", this::getStatus);
+    if (leader != null) {
+      rules.get("/changes", this::getChanges)
+          .get("/snapshot", this::getSnapshot);
+    }
+  }
+
+  /**
+   * Returns the changes from the offset, waiting for the next change if
+   * there are none yet.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void getChanges(ServerRequest req, ServerResponse res) {
+    long from;
+    long waitMillis;
+    try {
+      from = Long.parseLong(req.queryParams().first("from").orElse(""));
+      waitMillis = Math.min(Long.parseLong(req.queryParams().first("wait-millis").orElse("0")), MAX_WAIT_MILLIS);
+    } catch (NumberFormatException e) {
+      res.status(Http.Status.BAD_REQUEST_400).send("The from and wait-millis parameters must be numbers.");
+      return;
+    }
+    ChangeLog changeLog = leader.getChangeLog();
+    changeLog.awaitAppend(from, waitMillis).whenComplete((appended, error) -> {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int count;
+      try {
+        count = changeLog.read(from, MAX_BATCH_RECORDS, out);
+      } catch (IOException e) {
+        req.next(e);
+        return;
+      }
+      if (count < 0) {
+        res.status(Http.Status.GONE_410).send();
+        return;
+      }
+      // Read after the changes, so the follower is only told it is up to date if it is
+      res.headers().add(END_OFFSET_HEADER, Long.toString(changeLog.getEndOffset()));
+      res.headers().contentType(MediaType.APPLICATION_OCTET_STREAM);
+      res.send(out.toByteArray());
+    });
+  }
+
+  /**
+   * Streams a snapshot of every unexpired url, ending with a delete of an
+   * empty token so the follower can tell it wasn't cut short.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void getSnapshot(ServerRequest req, ServerResponse res) {
+    // The offset is read before the scan, as LeaderUrlRepository.snapshot() does
+    long offset = leader.getChangeLog().getEndOffset();
+    OutputStreamMulti stream = IoMulti.outputStreamMulti();
+    res.headers().add(OFFSET_HEADER, Long.toString(offset));
+    res.headers().contentType(MediaType.APPLICATION_OCTET_STREAM);
+    res.send(stream.map(DataChunk::create));
+    executor.execute(() -> {
+      try (stream) {
+        // Records are gathered into chunks, as the stream publishes each write
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(SNAPSHOT_CHUNK_BYTES + 1024);
+        leader.forEachUrl(shortUrl -> {
+          chunk.writeBytes(WriteAheadLog.encodeCreate(shortUrl));
+          if (chunk.size() >= SNAPSHOT_CHUNK_BYTES) {
+            write(stream, chunk);
+          }
+        });
+        chunk.writeBytes(WriteAheadLog.encodeDelete(""));
+        write(stream, chunk);
+      } catch (IOException | RuntimeException e) {
+        // Without the end marker the follower sees the snapshot ended early, and asks again
+        LOGGER.warn("Unable to send a snapshot to {}.", req.remoteAddress(), e);
+      }
+    });
+  }
+
+  /**
+   * Writes a chunk of the snapshot to the response, and empties it.
+   *
+   * @param stream the response stream
+   * @param chunk the chunk
+   */
+  private static void write(OutputStreamMulti stream, ByteArrayOutputStream chunk) {
+    try {
+      stream.write(chunk.toByteArray());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    chunk.reset();
+  }
+
+  /**
+   * Returns the role, offsets and lag of this node.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void getStatus(ServerRequest req, ServerResponse res) {
+    res.headers().contentType(MediaType.APPLICATION_JSON);
+    if (leader != null) {
+      res.send(Json.createObjectBuilder()
+          .add("role", "leader")
+          .add("offset", leader.getChangeLog().getEndOffset())
+          .add("startOffset", leader.getChangeLog().getStartOffset())
+          .build()
+          .toString());
+      return;
+    }
+    boolean stale = follower.isStale();
+    res.status(stale ? Http.Status.SERVICE_UNAVAILABLE_503 : Http.Status.OK_200);
+    res.send(Json.createObjectBuilder()
+        .add("role", "follower")
+        .add("leader", follower.getLeader())
+        .add("offset", follower.getOffset())
+        .add("leaderOffset", follower.getLeaderOffset())
+        .add("lagRecords", follower.getLagRecords())
+        .add("lagMillis", follower.getLagMillis())
+        .add("stale", stale)
+        .build()
+        .toString());
+  }
+}
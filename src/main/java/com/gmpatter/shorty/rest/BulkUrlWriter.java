@@ -0,0 +1,355 @@
+package com.gmpatter.shorty.rest;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.ratelimit.ClientPermits;
+import com.gmpatter.shorty.service.UrlService;
+
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.gmpatter.shorty.rest.ShortUrlJsonEncoder.JSON_PROVIDER;
+import static com.gmpatter.shorty.rest.UrlEndpoints.EXPIRY_CODE_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.URL_FIELD;
+
+/**
+ * Creates short urls from a stream of requests, writing a result for each
+ * request as newline-delimited JSON.
+ *
+ * <p>The request body is either a JSON array of url objects or one url object
+ * per line (newline-delimited JSON). Either way it is parsed one object at a
+ * time, and the urls are created in batches of {@link #BATCH_SIZE}, with the
+ * results of each batch written and flushed before the next batch is read,
+ * so memory use doesn't grow with the size of the request. A line of
+ * newline-delimited JSON, or an element of an array, longer than
+ * {@link #MAX_LINE_LENGTH} is answered with an error without being kept, so
+ * one huge request can't exhaust memory either. The results are encoded by the {@link ShortUrlJsonEncoder}.
+ *
+ * <p>Each result has the index of its request in the stream, as requests
+ * that fail validation are reported straight away, ahead of the rest of
+ * their batch.
+ *
+ * <p>When the client is rate limited each url takes one of its bulk
+ * permits, and once they run out the url is answered with an error and the
+ * rest of the request is left unread.
+ *
+ * @author Gareth Patterson
+ */
+public class BulkUrlWriter implements StreamingOutput {
+
+  public static final String NDJSON = "application/x-ndjson";
+
+  static final int BATCH_SIZE = 1000;
+  static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  private final UrlService urlService;
+  private final InputStream input;
+  private final ShortUrlJsonEncoder encoder = ShortUrlJsonEncoder.getInstance();
+  private final ShortUrlJsonEncoder.Host host;
+  private final ClientPermits permits;
+  private final String client;
+
+  private final List<String> urls = new ArrayList<>(BATCH_SIZE);
+  private final List<Integer> expiryCodes = new ArrayList<>(BATCH_SIZE);
+  private final List<Long> indexes = new ArrayList<>(BATCH_SIZE);
+  // The newline-delimited JSON line or array element being read, and the chars read ahead of it
+  private final StringBuilder line = new StringBuilder();
+  private final char[] chars = new char[8192];
+  private int charPos;
+  private int charLimit;
+  // Whether the last array element read was the last in the array
+  private boolean arrayEnded;
+  private OutputStream writer;
+  private long index;
+  private boolean limited;
+
+  /**
+   * Creates a writer for the bulk request body.
+   *
+   * @param urlService the url service to create urls with
+   * @param input the request body
+   * @param host the host the request was sent to, for the short urls
+   */
+  public BulkUrlWriter(UrlService urlService, InputStream input, ShortUrlJsonEncoder.Host host) {
+    this(urlService, input, host, null, null);
+  }
+
+  /**
+   * Creates a writer for the bulk request body of a client, taking a permit
+   * from the client for each url.
+   *
+   * @param urlService the url service to create urls with
+   * @param input the request body
+   * @param host the host the request was sent to, for the short urls
+   * @param permits the client's bulk permits, or null if it isn't rate
+   *     limited
+   * @param client the client's API key, which urls are deduplicated for, or
+   *     null
+   */
+  public BulkUrlWriter(UrlService urlService, InputStream input, ShortUrlJsonEncoder.Host host,
+                       ClientPermits permits, String client) {
+    this.urlService = urlService;
+    this.input = input;
+    this.host = host;
+    this.permits = permits;
+    this.client = client;
+  }
+
+  /**
+   * Reads the request body, creating the urls and writing the results.
+   *
+   * @param output the response body
+   * @throws IOException if the request can't be read or the response written
+   */
+  @Override
+  public void write(OutputStream output) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    writer = new BufferedOutputStream(output);
+    if (peek(reader) == '[') {
+      readArray(reader);
+    } else {
+      readLines(reader);
+    }
+    flushBatch();
+    writer.flush();
+  }
+
+  /**
+   * Returns the first character that isn't whitespace, without consuming it.
+   */
+  private static int peek(BufferedReader reader) throws IOException {
+    int c;
+    do {
+      reader.mark(1);
+      c = reader.read();
+    } while (c >= 0 && Character.isWhitespace(c));
+    reader.reset();
+    return c;
+  }
+
+  private void readArray(Reader reader) throws IOException {
+    // Skip the '['
+    nextChar(reader);
+    while (!limited && !arrayEnded) {
+      int length = readElement(reader);
+      if (length > MAX_LINE_LENGTH) {
+        writeError(index++, "The array element is longer than " + MAX_LINE_LENGTH + " characters.");
+        continue;
+      }
+      String element = line.toString();
+      if (element.isBlank()) {
+        // An empty array, or a trailing comma
+        if (!arrayEnded) {
+          writeError(index++, "Invalid JSON: the array element is empty.");
+        }
+        continue;
+      }
+      accept(element);
+    }
+  }
+
+  private void readLines(Reader reader) throws IOException {
+    int length;
+    while (!limited && (length = readLine(reader)) >= 0) {
+      if (length > MAX_LINE_LENGTH) {
+        writeError(index++, "The line is longer than " + MAX_LINE_LENGTH + " characters.");
+        continue;
+      }
+      String text = line.toString();
+      if (text.isBlank()) {
+        continue;
+      }
+      accept(text);
+    }
+  }
+
+  /**
+   * Reads the next element of a JSON array into {@link #line}, keeping at
+   * most {@link #MAX_LINE_LENGTH} characters of it and skipping the rest.
+   * The element ends at the first comma or closing bracket outside of a
+   * string, object or array, so it is found without being parsed.
+   *
+   * @param reader the request body, after the opening bracket
+   * @return the length of the whole element.
+   */
+  private int readElement(Reader reader) throws IOException {
+    line.setLength(0);
+    int length = 0;
+    int depth = 0;
+    boolean inString = false;
+    boolean escaped = false;
+    int c;
+    while ((c = nextChar(reader)) >= 0) {
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (c == '\\') {
+          escaped = true;
+        } else if (c == '"') {
+          inString = false;
+        }
+      } else if (c == '"') {
+        inString = true;
+      } else if (c == '{' || c == '[') {
+        depth++;
+      } else if ((c == '}' || c == ']') && depth > 0) {
+        depth--;
+      } else if (depth == 0 && (c == ',' || c == ']')) {
+        arrayEnded = c == ']';
+        return length;
+      }
+      if (length < MAX_LINE_LENGTH) {
+        line.append((char) c);
+      }
+      length++;
+    }
+    arrayEnded = true;
+    return length;
+  }
+
+  /**
+   * Returns the next character of the request body, or -1 at its end.
+   */
+  private int nextChar(Reader reader) throws IOException {
+    if (charPos == charLimit) {
+      charLimit = Math.max(0, reader.read(chars, 0, chars.length));
+      charPos = 0;
+      if (charLimit == 0) {
+        return -1;
+      }
+    }
+    return chars[charPos++];
+  }
+
+  /**
+   * Reads the next line into {@link #line}, keeping at most
+   * {@link #MAX_LINE_LENGTH} characters of it and skipping the rest.
+   *
+   * @param reader the request body
+   * @return the length of the whole line, or -1 at the end of the body.
+   */
+  private int readLine(Reader reader) throws IOException {
+    line.setLength(0);
+    int length = 0;
+    while (true) {
+      if (charPos == charLimit) {
+        charLimit = Math.max(0, reader.read(chars, 0, chars.length));
+        charPos = 0;
+        if (charLimit == 0) {
+          return length > 0 ? length : -1;
+        }
+      }
+      int start = charPos;
+      while (charPos < charLimit && chars[charPos] != '\n') {
+        charPos++;
+      }
+      int count = charPos - start;
+      if (length < MAX_LINE_LENGTH) {
+        line.append(chars, start, Math.min(count, MAX_LINE_LENGTH - length));
+      }
+      length += count;
+      if (charPos < charLimit) {
+        charPos++;
+        return length;
+      }
+    }
+  }
+
+  /**
+   * Parses a url request, adding it to the current batch if it is valid.
+   */
+  private void accept(String json) throws IOException {
+    JsonValue value;
+    try (JsonReader jsonReader = JSON_PROVIDER.createReader(new StringReader(json))) {
+      value = jsonReader.readValue();
+    } catch (JsonException e) {
+      writeError(index++, "Invalid JSON: " + e.getMessage());
+      return;
+    }
+    accept(value);
+  }
+
+  /**
+   * Validates a url request, adding it to the current batch.
+   */
+  private void accept(JsonValue value) throws IOException {
+    long requestIndex = index++;
+    if (value.getValueType() != JsonValue.ValueType.OBJECT) {
+      writeError(requestIndex, "Expected a JSON object.");
+      return;
+    }
+    JsonObject request = value.asJsonObject();
+    String url = getString(request, URL_FIELD);
+    String expiryCode = getString(request, EXPIRY_CODE_FIELD);
+    if (url == null || url.isEmpty()) {
+      writeError(requestIndex, "The \"" + URL_FIELD + "\" field is missing or empty");
+      return;
+    }
+    if (expiryCode == null || expiryCode.length() != 1
+        || expiryCode.charAt(0) < '0' || expiryCode.charAt(0) > '3') {
+      writeError(requestIndex, "The \"" + EXPIRY_CODE_FIELD + "\" field must be 0, 1, 2 or 3");
+      return;
+    }
+    if (permits != null && !permits.tryAcquire()) {
+      limited = true;
+      writeError(requestIndex, "Too many urls, retry this url and the rest of the request later.");
+      return;
+    }
+    urls.add(url);
+    expiryCodes.add(Integer.parseInt(expiryCode));
+    indexes.add(requestIndex);
+    if (urls.size() >= BATCH_SIZE) {
+      flushBatch();
+    }
+  }
+
+  private static String getString(JsonObject request, String field) {
+    JsonValue value = request.get(field);
+    if (value instanceof JsonString) {
+      return ((JsonString) value).getString();
+    }
+    return value != null && value.getValueType() == JsonValue.ValueType.NUMBER ? value.toString() : null;
+  }
+
+  /**
+   * Creates the urls in the current batch and writes their results.
+   */
+  private void flushBatch() throws IOException {
+    if (urls.isEmpty()) {
+      return;
+    }
+    List<ShortUrl> created = urlService.createUrls(urls, expiryCodes, client);
+    for (int i = 0; i < created.size(); i++) {
+      ShortUrl shortUrl = created.get(i);
+      if (shortUrl == null) {
+        writeError(indexes.get(i), "No unused token was found for the url, retry it later.");
+        continue;
+      }
+      encoder.writeShortUrl(writer, host, indexes.get(i), shortUrl);
+      writer.write('\n');
+    }
+    urls.clear();
+    expiryCodes.clear();
+    indexes.clear();
+    writer.flush();
+  }
+
+  private void writeError(long requestIndex, String message) throws IOException {
+    encoder.writeError(writer, requestIndex, message);
+    writer.write('\n');
+  }
+}
@@ -0,0 +1,458 @@
+package com.gmpatter.shorty.rest;
+
+import com.gmpatter.shorty.model.ShortUrl;
+
+import javax.json.spi.JsonProvider;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.gmpatter.shorty.rest.UrlEndpoints.ERROR_MESSAGE_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.EXPIRY_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.INDEX_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.REDIRECT_CONTEXT_ROOT;
+import static com.gmpatter.shorty.rest.UrlEndpoints.SHORT_URL_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.TOKEN_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.URL_FIELD;
+
+/**
+ * Encodes the short url and error JSON responses of the url endpoints
+ * straight to UTF-8 bytes, without building a <code>JsonObject</code> tree
+ * and its string first.
+ *
+ * <p>The field names and punctuation are encoded once, and so is the short
+ * url prefix (the base url and redirect context root) for each host, in a
+ * {@link Host} that is cached by authority. Only the url, expiry
+ * and token are escaped and encoded for each response, into a buffer taken
+ * from a small pool and written to the output stream with a single write.
+ *
+ * <p>The results of bulk creates are encoded the same way, with the index
+ * of their url in the request ahead of the other fields.
+ *
+ * <p>The pool has a slot per stripe of threads rather than a buffer per
+ * thread, so virtual threads, which are never reused, still share buffers.
+ * A thread that finds its slot empty uses a new buffer, and buffers that
+ * have grown beyond {@link #MAX_POOLED_BUFFER} aren't returned.
+ *
+ * @author Gareth Patterson
+ */
+public class ShortUrlJsonEncoder {
+
+  /**
+   * The JSON provider for the rest of the JSON the endpoints read and write.
+   * {@link javax.json.Json}'s factory methods look the provider up on every
+   * call.
+   */
+  public static final JsonProvider JSON_PROVIDER = JsonProvider.provider();
+
+  // Hosts are taken from the request, so the cache is cleared when it's full
+  static final int MAX_HOSTS = 256;
+  static final int MAX_POOLED_BUFFER = 16 * 1024;
+  private static final int INITIAL_BUFFER = 512;
+
+  private static final byte[] OBJECT_START = ascii("{");
+  private static final byte[] INDEX_PREFIX = ascii("{\"" + INDEX_FIELD + "\":");
+  private static final byte[] FIELD_SEPARATOR = ascii(",");
+  private static final byte[] URL_PREFIX = ascii("\",\"" + URL_FIELD + "\":\"");
+  private static final byte[] EXPIRY_PREFIX = ascii("\",\"" + EXPIRY_FIELD + "\":\"");
+  private static final byte[] TOKEN_PREFIX = ascii("\",\"" + TOKEN_FIELD + "\":\"");
+  private static final byte[] ERROR_PREFIX = ascii("\"" + ERROR_MESSAGE_FIELD + "\":\"");
+  private static final byte[] OBJECT_END = ascii("\"}");
+  private static final byte[] HEX = ascii("0123456789abcdef");
+
+  private static final ShortUrlJsonEncoder INSTANCE = new ShortUrlJsonEncoder();
+
+  private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+  private final AtomicReferenceArray<Buffer> buffers;
+  private final int stripeMask;
+
+  /**
+   * Creates an encoder, with a buffer pool sized for the processors.
+   */
+  ShortUrlJsonEncoder() {
+    int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+    buffers = new AtomicReferenceArray<>(stripes);
+    stripeMask = stripes - 1;
+  }
+
+  /**
+   * Returns the singleton instance of the encoder.
+   *
+   * @return the encoder.
+   */
+  public static ShortUrlJsonEncoder getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the host for the scheme and authority requests were sent to,
+   * with its short url prefix encoded.
+   *
+   * @param scheme the scheme of the request, "http" or "https"
+   * @param authority the raw authority of the request, the host and port
+   * @return the host.
+   */
+  public Host getHost(String scheme, String authority) {
+    // Keyed by authority alone, so a lookup doesn't build a string
+    Host host = hosts.get(authority);
+    if (host == null || !host.scheme.equals(scheme)) {
+      if (hosts.size() >= MAX_HOSTS) {
+        hosts.clear();
+      }
+      host = new Host(scheme, authority);
+      hosts.put(authority, host);
+    }
+    return host;
+  }
+
+  /**
+   * Writes the JSON representation of a short url to the output stream.
+   *
+   * @param out the output stream
+   * @param host the host the request was sent to
+   * @param shortUrl the short url
+   * @throws IOException if the output stream can't be written to
+   */
+  public void writeShortUrl(OutputStream out, Host host, ShortUrl shortUrl) throws IOException {
+    Buffer buffer = borrow();
+    try {
+      encodeShortUrl(buffer, host, shortUrl);
+      out.write(buffer.bytes, 0, buffer.length);
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Writes the JSON representation of a short url created by a bulk
+   * request to the output stream, with the index of its url in the request.
+   *
+   * @param out the output stream
+   * @param host the host the request was sent to
+   * @param index the index of the url in the request
+   * @param shortUrl the short url
+   * @throws IOException if the output stream can't be written to
+   */
+  public void writeShortUrl(OutputStream out, Host host, long index, ShortUrl shortUrl) throws IOException {
+    Buffer buffer = borrow();
+    try {
+      appendIndex(buffer, index);
+      encodeFields(buffer, host, shortUrl);
+      out.write(buffer.bytes, 0, buffer.length);
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Returns the JSON representation of a short url.
+   *
+   * @param host the host the request was sent to
+   * @param shortUrl the short url
+   * @return the UTF-8 encoded JSON.
+   */
+  public byte[] encodeShortUrl(Host host, ShortUrl shortUrl) {
+    Buffer buffer = borrow();
+    try {
+      encodeShortUrl(buffer, host, shortUrl);
+      return buffer.toByteArray();
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Writes the body of an error response to the output stream.
+   *
+   * @param out the output stream
+   * @param message the message for the response
+   * @throws IOException if the output stream can't be written to
+   */
+  public void writeError(OutputStream out, String message) throws IOException {
+    Buffer buffer = borrow();
+    try {
+      encodeError(buffer, message);
+      out.write(buffer.bytes, 0, buffer.length);
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Writes the error result of a url in a bulk request to the output
+   * stream, with the index of the url in the request.
+   *
+   * @param out the output stream
+   * @param index the index of the url in the request
+   * @param message the message for the result
+   * @throws IOException if the output stream can't be written to
+   */
+  public void writeError(OutputStream out, long index, String message) throws IOException {
+    Buffer buffer = borrow();
+    try {
+      appendIndex(buffer, index);
+      encodeErrorFields(buffer, message);
+      out.write(buffer.bytes, 0, buffer.length);
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Returns the body of an error response.
+   *
+   * @param message the message for the response
+   * @return the UTF-8 encoded JSON.
+   */
+  public byte[] encodeError(String message) {
+    Buffer buffer = borrow();
+    try {
+      encodeError(buffer, message);
+      return buffer.toByteArray();
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Encodes a short url into the buffer, from after the host's prefix.
+   *
+   * @param buffer the buffer
+   * @param host the host the request was sent to
+   * @param shortUrl the short url
+   */
+  private static void encodeShortUrl(Buffer buffer, Host host, ShortUrl shortUrl) {
+    buffer.append(OBJECT_START);
+    encodeFields(buffer, host, shortUrl);
+  }
+
+  /**
+   * Encodes the fields of a short url into the buffer, after the start of
+   * the object.
+   *
+   * @param buffer the buffer
+   * @param host the host the request was sent to
+   * @param shortUrl the short url
+   */
+  private static void encodeFields(Buffer buffer, Host host, ShortUrl shortUrl) {
+    buffer.append(host.shortUrlPrefix);
+    buffer.appendEscaped(shortUrl.getToken());
+    buffer.append(URL_PREFIX);
+    buffer.appendEscaped(shortUrl.getOriginalUrl());
+    buffer.append(EXPIRY_PREFIX);
+    buffer.appendEscaped(shortUrl.getExpiry());
+    buffer.append(TOKEN_PREFIX);
+    buffer.appendEscaped(shortUrl.getToken());
+    buffer.append(OBJECT_END);
+  }
+
+  /**
+   * Encodes the body of an error response into the buffer.
+   *
+   * @param buffer the buffer
+   * @param message the message for the response
+   */
+  private static void encodeError(Buffer buffer, String message) {
+    buffer.append(OBJECT_START);
+    encodeErrorFields(buffer, message);
+  }
+
+  private static void encodeErrorFields(Buffer buffer, String message) {
+    buffer.append(ERROR_PREFIX);
+    buffer.appendEscaped(message);
+    buffer.append(OBJECT_END);
+  }
+
+  /**
+   * Starts an object in the buffer with the index field of a bulk result.
+   *
+   * @param buffer the buffer
+   * @param index the index of the url in the request
+   */
+  private static void appendIndex(Buffer buffer, long index) {
+    buffer.append(INDEX_PREFIX);
+    buffer.appendLong(index);
+    buffer.append(FIELD_SEPARATOR);
+  }
+
+  /**
+   * Takes the pooled buffer of the current thread's stripe, or creates a
+   * buffer if another thread has it.
+   *
+   * @return the empty buffer.
+   */
+  private Buffer borrow() {
+    Buffer buffer = buffers.getAndSet(stripe(), null);
+    if (buffer == null) {
+      return new Buffer(INITIAL_BUFFER);
+    }
+    buffer.length = 0;
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the current thread's stripe, unless it has grown
+   * too large or the stripe already has one.
+   *
+   * @param buffer the buffer
+   */
+  private void release(Buffer buffer) {
+    if (buffer.bytes.length <= MAX_POOLED_BUFFER) {
+      buffers.compareAndSet(stripe(), null, buffer);
+    }
+  }
+
+  private int stripe() {
+    return (int) Thread.currentThread().threadId() & stripeMask;
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * A host requests were sent to, with the short url field of its JSON, up
+   * to the token of the short url, encoded.
+   */
+  public static class Host {
+
+    private final String scheme;
+    private final String baseUrl;
+    private final byte[] shortUrlPrefix;
+
+    /**
+     * Creates a host.
+     *
+     * @param scheme the scheme of the host
+     * @param authority the authority of the host
+     */
+    Host(String scheme, String authority) {
+      this.scheme = scheme;
+      this.baseUrl = scheme + "://" + authority;
+      Buffer buffer = new Buffer(INITIAL_BUFFER);
+      buffer.append(ascii("\"" + SHORT_URL_FIELD + "\":\""));
+      buffer.appendEscaped(baseUrl + REDIRECT_CONTEXT_ROOT + "/");
+      this.shortUrlPrefix = buffer.toByteArray();
+    }
+
+    /**
+     * Returns the base url for requests to this host, its scheme and
+     * authority.
+     *
+     * @return the base url.
+     */
+    public String getBaseUrl() {
+      return baseUrl;
+    }
+  }
+
+  /**
+   * A growable byte buffer that JSON strings are escaped and UTF-8 encoded
+   * into.
+   */
+  private static class Buffer {
+
+    private byte[] bytes;
+    private int length;
+
+    Buffer(int capacity) {
+      bytes = new byte[capacity];
+    }
+
+    void append(byte[] value) {
+      ensureCapacity(value.length);
+      System.arraycopy(value, 0, bytes, length, value.length);
+      length += value.length;
+    }
+
+    /**
+     * Appends a non-negative number in decimal.
+     *
+     * @param value the number
+     */
+    void appendLong(long value) {
+      int digits = 1;
+      for (long rest = value / 10; rest > 0; rest /= 10) {
+        digits++;
+      }
+      ensureCapacity(digits);
+      length += digits;
+      for (int pos = length - 1; pos >= length - digits; pos--) {
+        bytes[pos] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+    }
+
+    /**
+     * Appends a string as the contents of a JSON string, escaping quotes,
+     * backslashes and control characters, and UTF-8 encoding the rest.
+     * Unpaired surrogates are encoded as '?', as {@link String#getBytes}
+     * does.
+     *
+     * @param value the string
+     */
+    void appendEscaped(String value) {
+      int count = value.length();
+      // Each char is at most 6 bytes escaped, or 3 encoded
+      ensureCapacity(count * 6);
+      byte[] out = bytes;
+      int pos = length;
+      for (int i = 0; i < count; i++) {
+        char c = value.charAt(i);
+        if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+          out[pos++] = (byte) c;
+        } else if (c == '"' || c == '\\') {
+          out[pos++] = '\\';
+          out[pos++] = (byte) c;
+        } else if (c < 0x20) {
+          out[pos++] = '\\';
+          switch (c) {
+            case '\b' -> out[pos++] = 'b';
+            case '\f' -> out[pos++] = 'f';
+            case '\n' -> out[pos++] = 'n';
+            case '\r' -> out[pos++] = 'r';
+            case '\t' -> out[pos++] = 't';
+            default -> {
+              out[pos++] = 'u';
+              out[pos++] = '0';
+              out[pos++] = '0';
+              out[pos++] = HEX[c >> 4];
+              out[pos++] = HEX[c & 0xf];
+            }
+          }
+        } else if (c < 0x800) {
+          out[pos++] = (byte) (0xc0 | (c >> 6));
+          out[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < count
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          out[pos++] = (byte) (0xf0 | (codePoint >> 18));
+          out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          out[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+          out[pos++] = '?';
+        } else {
+          out[pos++] = (byte) (0xe0 | (c >> 12));
+          out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+          out[pos++] = (byte) (0x80 | (c & 0x3f));
+        }
+      }
+      length = pos;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensureCapacity(int extra) {
+      if (length + extra > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+      }
+    }
+  }
+}
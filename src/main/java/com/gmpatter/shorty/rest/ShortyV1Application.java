@@ -1,5 +1,8 @@
 package com.gmpatter.shorty.rest;
 
+import com.gmpatter.shorty.redirect.HttpCachePolicy;
+import com.gmpatter.shorty.service.UrlService;
+
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
 import java.util.Set;
@@ -7,8 +10,25 @@ import java.util.Set;
 @ApplicationPath("/shorty/v1")
 public class ShortyV1Application extends Application {
 
+  private final UrlService urlService;
+  private final HttpCachePolicy cachePolicy;
+
+  public ShortyV1Application() {
+    this(null, null);
+  }
+
+  public ShortyV1Application(UrlService urlService, HttpCachePolicy cachePolicy) {
+    this.urlService = urlService;
+    this.cachePolicy = cachePolicy;
+  }
+
   @Override
   public Set<Class<?>> getClasses() {
-    return Set.of(UrlEndpoints.class);
+    return urlService == null ? Set.of(UrlEndpoints.class) : Set.of();
+  }
+
+  @Override
+  public Set<Object> getSingletons() {
+    return urlService == null ? Set.of() : Set.of(new UrlEndpoints(urlService, cachePolicy));
   }
 }
@@ -1,23 +1,40 @@
 package com.gmpatter.shorty.rest;
 
 import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.UrlArchive;
+import com.gmpatter.shorty.ratelimit.ClientPermits;
+import com.gmpatter.shorty.redirect.HttpCachePolicy;
+import com.gmpatter.shorty.replication.FollowerUrlRepository;
 import com.gmpatter.shorty.service.UrlService;
+import com.gmpatter.shorty.stats.AnalyticsSummary;
 import io.helidon.common.http.Http;
+import io.helidon.webserver.ServerRequest;
 
-import javax.json.Json;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import static com.gmpatter.shorty.rest.ShortUrlJsonEncoder.JSON_PROVIDER;
 
 /**
  * Url resource endpoint class, containing endpoints for operations
@@ -34,7 +51,44 @@ public class UrlEndpoints {
   public static final String EXPIRY_FIELD = "expiry";
   public static final String SHORT_URL_FIELD = "shortUrl";
   public static final String TOKEN_FIELD = "token";
+  public static final String INDEX_FIELD = "index";
+  public static final String COUNT_FIELD = "count";
+  public static final String SKIPPED_FIELD = "skipped";
+  public static final String CLICKS_FIELD = "clicks";
+  public static final String UNIQUE_VISITORS_FIELD = "uniqueVisitors";
+  public static final String TOP_REFERRERS_FIELD = "topReferrers";
+  public static final String TOP_USER_AGENTS_FIELD = "topUserAgents";
+  public static final String VISITS_PER_MINUTE_FIELD = "visitsPerMinute";
+  public static final String VALUE_FIELD = "value";
   public static final String REDIRECT_CONTEXT_ROOT = "/go";
+  // Returned by replication followers for creates and deletes
+  public static final int MISDIRECTED_REQUEST_421 = 421;
+
+  // The url service of the server, or null to use the singleton
+  private final UrlService urlService;
+  // The cache policy of the server, or null to use the singleton
+  private final HttpCachePolicy cachePolicy;
+
+  /**
+   * Creates the endpoints using the singleton <code>UrlService</code> and
+   * <code>HttpCachePolicy</code>.
+   */
+  public UrlEndpoints() {
+    this(null, null);
+  }
+
+  /**
+   * Creates the endpoints using the given <code>UrlService</code>, for
+   * servers in an in-process cluster that each have their own.
+   *
+   * @param urlService the url service, or null to use the singleton
+   * @param cachePolicy the caching headers of lookups, or null to use the
+   *     singleton
+   */
+  public UrlEndpoints(UrlService urlService, HttpCachePolicy cachePolicy) {
+    this.urlService = urlService;
+    this.cachePolicy = cachePolicy;
+  }
 
   /**
    * Returns the <code>UrlService</code> used to create,
@@ -43,13 +97,25 @@ public class UrlEndpoints {
    * @return the url service.
    */
   protected UrlService getUrlService() {
-    return UrlService.getInstance();
+    return urlService != null ? urlService : UrlService.getInstance();
   }
 
   /**
-   * Get a short url for the given token.
+   * Returns the <code>HttpCachePolicy</code> for the caching headers
+   * of lookups.
+   *
+   * @return the cache policy.
+   */
+  protected HttpCachePolicy getCachePolicy() {
+    return cachePolicy != null ? cachePolicy : HttpCachePolicy.getInstance();
+  }
+
+  /**
+   * Get a short url for the given token, with caching headers derived from
+   * its expiry, or a 304 if the client's copy is current.
    * 
    * @param token the token for the short url
+   * @param ifNoneMatch the entity tags of the client's copies, if any
    * @param context the current request context
    * @return the response object.
    */
@@ -57,6 +123,7 @@ public class UrlEndpoints {
   @Path("/{token}")
   @Produces(MediaType.APPLICATION_JSON)
   public Response getUrl(@PathParam("token") String token,
+                         @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
                          @Context ContainerRequestContext context) {
     if (token == null || token.isEmpty()) {
       return buildErrorResponse(Http.Status.BAD_REQUEST_400.code(),
@@ -67,8 +134,80 @@ public class UrlEndpoints {
       return buildErrorResponse(Http.Status.NOT_FOUND_404.code(),
           "Url not found for token " + token + ".");
     }
-    JsonObject response = buildShortUrlJson(context, shortUrl);
-    return Response.ok(response.toString()).build();
+    HttpCachePolicy cachePolicy = getCachePolicy();
+    if (!cachePolicy.isEnabled()) {
+      return Response.ok(buildShortUrlOutput(context, shortUrl)).build();
+    }
+    // The body isn't written for a 304
+    long currentTime = System.currentTimeMillis();
+    long maxAge = cachePolicy.getMaxAgeSeconds(shortUrl.getExpiryTime(), currentTime);
+    String etag = HttpCachePolicy.getETag(shortUrl);
+    Response.ResponseBuilder response = HttpCachePolicy.isNotModified(ifNoneMatch, etag)
+        ? Response.notModified()
+        : Response.ok(buildShortUrlOutput(context, shortUrl));
+    return response.header(HttpHeaders.CACHE_CONTROL, cachePolicy.getCacheControl(maxAge))
+        .header(HttpHeaders.EXPIRES, cachePolicy.getExpires(maxAge, currentTime))
+        .header(HttpHeaders.ETAG, etag)
+        .build();
+  }
+
+  /**
+   * Get the redirect statistics for the short url for the given token.
+   *
+   * @param token the token for the short url
+   * @return the response object.
+   */
+  @GET
+  @Path("/{token}/stats")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getUrlStats(@PathParam("token") String token) {
+    if (getUrlService().getOriginalUrl(token) == null) {
+      return buildErrorResponse(Http.Status.NOT_FOUND_404.code(),
+          "Url not found for token " + token + ".");
+    }
+    return Response.ok(buildStatsJson(getUrlService(), token).toString()).build();
+  }
+
+  /**
+   * Builds and returns a <code>JsonObject</code> with the redirect statistics
+   * for the given token.
+   *
+   * @param urlService the url service
+   * @param token the token for the short url
+   * @return the json object of the statistics.
+   */
+  static JsonObject buildStatsJson(UrlService urlService, String token) {
+    JsonObjectBuilder response = JSON_PROVIDER.createObjectBuilder()
+        .add(TOKEN_FIELD, token)
+        .add(CLICKS_FIELD, urlService.getClickCount(token));
+    AnalyticsSummary analytics = urlService.getAnalytics(token);
+    if (analytics != null) {
+      JsonArrayBuilder visitsPerMinute = JSON_PROVIDER.createArrayBuilder();
+      for (int visits : analytics.getVisitsPerMinute()) {
+        visitsPerMinute.add(visits);
+      }
+      response.add(UNIQUE_VISITORS_FIELD, analytics.getUniqueVisitors())
+          .add(TOP_REFERRERS_FIELD, buildTopJson(analytics.getTopReferrers()))
+          .add(TOP_USER_AGENTS_FIELD, buildTopJson(analytics.getTopUserAgents()))
+          .add(VISITS_PER_MINUTE_FIELD, visitsPerMinute);
+    }
+    return response.build();
+  }
+
+  /**
+   * Builds a json array of values and their counts, for analytics.
+   *
+   * @param top the values and counts
+   * @return the json array builder.
+   */
+  private static JsonArrayBuilder buildTopJson(List<Map.Entry<String, Long>> top) {
+    JsonArrayBuilder array = JSON_PROVIDER.createArrayBuilder();
+    for (Map.Entry<String, Long> entry : top) {
+      array.add(JSON_PROVIDER.createObjectBuilder()
+          .add(VALUE_FIELD, entry.getKey())
+          .add(COUNT_FIELD, entry.getValue()));
+    }
+    return array;
   }
 
   /**
@@ -83,6 +222,10 @@ public class UrlEndpoints {
   @Consumes(MediaType.APPLICATION_JSON)
   public Response createShortUrl(JsonObject input,
                                  @Context ContainerRequestContext context) {
+    Response rejected = rejectIfFollower();
+    if (rejected != null) {
+      return rejected;
+    }
     String url = null;
     String expiryCode = null;
     if (input.containsKey(URL_FIELD)) {
@@ -103,48 +246,178 @@ public class UrlEndpoints {
     }
 
     // Get the short url from the url service
-    ShortUrl shortUrl = getUrlService().createUrl(url, Integer.parseInt(expiryCode));
+    ShortUrl shortUrl = getUrlService().createUrl(url, Integer.parseInt(expiryCode),
+        context.getHeaderString(getUrlService().getClientKeyHeader()));
     
     // Build and return the json response
-    JsonObject response = buildShortUrlJson(context, shortUrl);
     return Response.status(Http.Status.CREATED_201.code())
-        .entity(response.toString())
+        .entity(buildShortUrlOutput(context, shortUrl))
         .build();
   }
 
+  /**
+   * Creates short urls for a stream of url objects, sent either as a JSON
+   * array or as newline-delimited JSON.
+   *
+   * <p>The results are streamed back as newline-delimited JSON while the
+   * request is still being read, with an error object for each invalid url.
+   *
+   * @param input the request body
+   * @param context the current container request context
+   * @param request the Helidon request, with the client's bulk permits
+   *     when it is rate limited
+   * @return the response object.
+   */
+  @POST
+  @Path("/bulk")
+  @Produces(BulkUrlWriter.NDJSON)
+  @Consumes({MediaType.APPLICATION_JSON, BulkUrlWriter.NDJSON})
+  public Response createShortUrls(InputStream input,
+                                  @Context ContainerRequestContext context,
+                                  @Context ServerRequest request) {
+    Response rejected = rejectIfFollower();
+    if (rejected != null) {
+      return rejected;
+    }
+    return Response.ok(new BulkUrlWriter(getUrlService(), input, getHost(context),
+        request.context().get(ClientPermits.class).orElse(null),
+        context.getHeaderString(getUrlService().getClientKeyHeader()))).build();
+  }
+
+  /**
+   * Exports every short url, as newline-delimited JSON by default or in the
+   * binary format.
+   *
+   * @param format the export format, "ndjson" or "binary"
+   * @return the response object.
+   */
+  @GET
+  @Path("/export")
+  @Produces({BulkUrlWriter.NDJSON, MediaType.APPLICATION_OCTET_STREAM})
+  public Response exportUrls(@QueryParam("format") String format) {
+    UrlArchive.Format archiveFormat = parseFormat(format);
+    if (archiveFormat == null) {
+      return buildErrorResponse(Http.Status.BAD_REQUEST_400.code(), "Unknown format " + format + ".");
+    }
+    StreamingOutput output = stream -> getUrlService().exportUrls(stream, archiveFormat);
+    return Response.ok(output)
+        .type(archiveFormat == UrlArchive.Format.BINARY ? MediaType.APPLICATION_OCTET_STREAM : BulkUrlWriter.NDJSON)
+        .build();
+  }
+
+  /**
+   * Imports short urls exported by {@link #exportUrls(String)}.
+   *
+   * @param format the import format, "ndjson" or "binary"
+   * @param input the request body
+   * @param request the Helidon request, with the client's bulk permits
+   *     when it is rate limited
+   * @return the response object.
+   */
+  @POST
+  @Path("/import")
+  @Produces(MediaType.APPLICATION_JSON)
+  @Consumes({BulkUrlWriter.NDJSON, MediaType.APPLICATION_OCTET_STREAM})
+  public Response importUrls(@QueryParam("format") String format, InputStream input,
+                             @Context ServerRequest request) {
+    Response rejected = rejectIfFollower();
+    if (rejected != null) {
+      return rejected;
+    }
+    UrlArchive.Format archiveFormat = parseFormat(format);
+    if (archiveFormat == null) {
+      return buildErrorResponse(Http.Status.BAD_REQUEST_400.code(), "Unknown format " + format + ".");
+    }
+    try {
+      UrlArchive.ImportResult result = getUrlService().importUrls(input, archiveFormat);
+      // The urls can only be counted once imported, so are charged afterwards
+      request.context().get(ClientPermits.class).ifPresent(permits -> permits.charge(result.getImported()));
+      JsonObject response = JSON_PROVIDER.createObjectBuilder()
+          .add(COUNT_FIELD, result.getImported())
+          .add(SKIPPED_FIELD, result.getSkipped())
+          .build();
+      return Response.ok(response.toString()).build();
+    } catch (IllegalArgumentException | IOException e) {
+      return buildErrorResponse(Http.Status.BAD_REQUEST_400.code(), e.getMessage());
+    }
+  }
+
   /**
    * Deletes the short url for the given token.
    *
    * @param token the token to delete by
+   * @param context the current container request context
    * @return the response object.
    */
   @DELETE
   @Path("{token}")
-  public Response deleteShortUrl(@PathParam("token") String token) {
+  public Response deleteShortUrl(@PathParam("token") String token,
+                                 @Context ContainerRequestContext context) {
+    Response rejected = rejectIfFollower();
+    if (rejected != null) {
+      return rejected;
+    }
     // Return a 404 if the url is not found by the url service
     if (getUrlService().getUrl(token) == null) {
       return buildErrorResponse(Http.Status.NOT_FOUND_404.code(), "Url not found.");
     }
     // Delete the url and return 204 no content
-    getUrlService().deleteUrl(token);
+    getUrlService().deleteUrl(token, context.getHeaderString(getUrlService().getClientKeyHeader()));
     return Response.noContent().build();
   }
 
   /**
-   * Builds and returns a <code>JsonObject</code> representing the passed
-   * <code>ShortUrl</code>.
+   * Returns a <code>StreamingOutput</code> that writes the JSON
+   * representation of the passed <code>ShortUrl</code> straight to the
+   * response with the {@link ShortUrlJsonEncoder}.
    * @param context the current request context
    * @param shortUrl the short url
-   * @return the json object representation of the short url.
-   */
-  private JsonObject buildShortUrlJson(ContainerRequestContext context, ShortUrl shortUrl) {
-    JsonObject response = Json.createObjectBuilder()
-        .add(SHORT_URL_FIELD, getBaseUrl(context) + REDIRECT_CONTEXT_ROOT + "/" + shortUrl.getToken())
-        .add(URL_FIELD, shortUrl.getOriginalUrl())
-        .add(EXPIRY_FIELD, shortUrl.getExpiry())
-        .add(TOKEN_FIELD, shortUrl.getToken())
-        .build();
-    return response;
+   * @return the streaming output of the short url.
+   */
+  private StreamingOutput buildShortUrlOutput(ContainerRequestContext context, ShortUrl shortUrl) {
+    ShortUrlJsonEncoder.Host host = getHost(context);
+    return stream -> ShortUrlJsonEncoder.getInstance().writeShortUrl(stream, host, shortUrl);
+  }
+
+  /**
+   * Returns the archive format for the format query parameter, defaulting
+   * to NDJSON.
+   *
+   * @param format the format query parameter
+   * @return the archive format, or null if the format is unknown.
+   */
+  static UrlArchive.Format parseFormat(String format) {
+    if (format == null || format.equalsIgnoreCase("ndjson")) {
+      return UrlArchive.Format.NDJSON;
+    }
+    return format.equalsIgnoreCase("binary") ? UrlArchive.Format.BINARY : null;
+  }
+
+  /**
+   * Returns an error response if this server is a replication follower,
+   * which doesn't accept creates or deletes.
+   *
+   * @return the error response, or null if this server accepts writes.
+   */
+  private Response rejectIfFollower() {
+    String message = followerMessage(getUrlService());
+    return message != null ? buildErrorResponse(MISDIRECTED_REQUEST_421, message) : null;
+  }
+
+  /**
+   * Returns the error message for creates and deletes sent to a replication
+   * follower.
+   *
+   * @param urlService the url service
+   * @return the error message, or null if this server accepts writes.
+   */
+  static String followerMessage(UrlService urlService) {
+    FollowerUrlRepository follower = urlService.getFollowerRepository();
+    if (follower == null) {
+      return null;
+    }
+    return "This server is a read-only follower, send creates and deletes to the leader at "
+        + follower.getLeader() + ".";
   }
 
   /**
@@ -156,22 +429,22 @@ public class UrlEndpoints {
    * @return the error response.
    */
   private Response buildErrorResponse(int errorCode, String message) {
-    JsonObject errorJson = Json.createObjectBuilder()
-        .add(ERROR_MESSAGE_FIELD, message)
-        .build();
+    StreamingOutput output = stream -> ShortUrlJsonEncoder.getInstance().writeError(stream, message);
     return Response.status(errorCode)
-        .entity(errorJson)
+        .entity(output)
+        .type(MediaType.APPLICATION_JSON)
         .build();
   }
 
   /**
-   * Returns the base url for requests to this application for the 
-   * given {@link ContainerRequestContext}.
+   * Returns the host requests to this application were sent to for the 
+   * given {@link ContainerRequestContext}, with its base url.
    * 
    * @param requestContext the current request context.
-   * @return the base url string.
+   * @return the host.
    */
-  private String getBaseUrl(ContainerRequestContext requestContext) {
-    return UriBuilder.fromUri(requestContext.getUriInfo().getBaseUri()).replacePath("").build().toString();
+  private ShortUrlJsonEncoder.Host getHost(ContainerRequestContext requestContext) {
+    URI baseUri = requestContext.getUriInfo().getBaseUri();
+    return ShortUrlJsonEncoder.getInstance().getHost(baseUri.getScheme(), baseUri.getRawAuthority());
   }
 }
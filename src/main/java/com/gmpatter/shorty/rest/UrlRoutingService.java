@@ -0,0 +1,433 @@
+package com.gmpatter.shorty.rest;
+
+import com.gmpatter.shorty.persistence.UrlArchive;
+import com.gmpatter.shorty.ratelimit.ClientPermits;
+import com.gmpatter.shorty.redirect.HttpCachePolicy;
+import com.gmpatter.shorty.service.UrlService;
+import io.helidon.common.http.DataChunk;
+import io.helidon.common.http.Http;
+import io.helidon.common.http.MediaType;
+import io.helidon.common.reactive.IoMulti;
+import io.helidon.common.reactive.OutputStreamMulti;
+import io.helidon.webserver.Routing;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+import io.helidon.webserver.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+import static com.gmpatter.shorty.rest.ShortUrlJsonEncoder.JSON_PROVIDER;
+import static com.gmpatter.shorty.rest.UrlEndpoints.COUNT_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.EXPIRY_CODE_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.MISDIRECTED_REQUEST_421;
+import static com.gmpatter.shorty.rest.UrlEndpoints.SKIPPED_FIELD;
+import static com.gmpatter.shorty.rest.UrlEndpoints.URL_FIELD;
+
+/**
+ * Helidon service implementing the same url API as {@link UrlEndpoints}
+ * directly on the Helidon routing, used instead of the JAX-RS resource when
+ * <code>shorty.rest.implementation</code> is "native".
+ *
+ * <p>Requests are dispatched by the routing rather than by Jersey, so there
+ * is no resource matching by reflection, no request scope and no entity
+ * providers, and Jersey isn't started at all. Gets, creates and deletes use
+ * the non-blocking {@link UrlService} methods and send the response when
+ * they complete, so they run on the web server's I/O threads. Bulk creates,
+ * exports and imports read or write streams that block, so run on the
+ * request executor.
+ *
+ * <p>The responses are the same as those of {@link UrlEndpoints}, as
+ * described in openapi.yaml, except that an invalid expiry code is a 400
+ * rather than an error.
+ *
+ * @author Gareth Patterson
+ */
+public class UrlRoutingService implements Service {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(UrlRoutingService.class);
+
+  private static final MediaType NDJSON = MediaType.parse(BulkUrlWriter.NDJSON);
+
+  private final UrlService urlService;
+  private final HttpCachePolicy cachePolicy;
+  private final ExecutorService executor;
+
+  /**
+   * Creates the service.
+   *
+   * @param urlService the url service to create, fetch and delete urls with
+   * @param cachePolicy the caching headers of lookups
+   * @param executor the executor for requests that read or write streams
+   */
+  public UrlRoutingService(UrlService urlService, HttpCachePolicy cachePolicy, ExecutorService executor) {
+    this.urlService = urlService;
+    this.cachePolicy = cachePolicy;
+    this.executor = executor;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void update(Routing.Rules rules) {
+    // The fixed paths are registered first, so they aren't taken as tokens
+    rules.get("/url/export", this::exportUrls)
+        .post("/url/bulk", this::createShortUrls)
+        .post("/url/import", this::importUrls)
+        .get("/url/{token}/stats", this::getUrlStats)
+        .get("/url/{token}", this::getUrl)
+        .delete("/url/{token}", this::deleteShortUrl)
+        .post("/url", this::createShortUrl)
+        .post("/url/", this::createShortUrl);
+  }
+
+  /**
+   * Get a short url for the given token, with caching headers derived from
+   * its expiry, or a 304 if the client's copy is current.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void getUrl(ServerRequest req, ServerResponse res) {
+    String token = req.path().param("token");
+    urlService.getUrlAsync(token).whenComplete((shortUrl, error) -> {
+      if (error != null) {
+        req.next(error);
+      } else if (shortUrl == null) {
+        sendError(res, Http.Status.NOT_FOUND_404.code(), "Url not found for token " + token + ".");
+      } else if (cachePolicy.addHeaders(req, res, shortUrl)) {
+        // The body isn't encoded for a 304
+        res.status(Http.Status.NOT_MODIFIED_304).send();
+      } else {
+        sendJson(res, Http.Status.OK_200.code(), ShortUrlJsonEncoder.getInstance().encodeShortUrl(getHost(req), shortUrl));
+      }
+    });
+  }
+
+  /**
+   * Get the redirect statistics for the short url for the given token.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void getUrlStats(ServerRequest req, ServerResponse res) {
+    String token = req.path().param("token");
+    urlService.getOriginalUrlAsync(token).whenComplete((url, error) -> {
+      if (error != null) {
+        req.next(error);
+      } else if (url == null) {
+        sendError(res, Http.Status.NOT_FOUND_404.code(), "Url not found for token " + token + ".");
+      } else {
+        sendJson(res, Http.Status.OK_200.code(), UrlEndpoints.buildStatsJson(urlService, token).toString());
+      }
+    });
+  }
+
+  /**
+   * Creates a new short url for the JSON request body.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void createShortUrl(ServerRequest req, ServerResponse res) {
+    if (rejectIfFollower(res)) {
+      return;
+    }
+    req.content().as(String.class).thenAccept(body -> {
+      String url;
+      String expiryCode;
+      try {
+        JsonObject input = JSON_PROVIDER.createReader(new StringReader(body)).readObject();
+        url = getString(input, URL_FIELD);
+        expiryCode = getString(input, EXPIRY_CODE_FIELD);
+      } catch (JsonException | ClassCastException e) {
+        sendError(res, Http.Status.BAD_REQUEST_400.code(), "The request body must be a JSON object.");
+        return;
+      }
+
+      // Return 400 response if url or expiry code are not set
+      if (url == null || url.isEmpty()) {
+        sendError(res, Http.Status.BAD_REQUEST_400.code(),
+            "The \"" + URL_FIELD + "\" field is missing or empty");
+        return;
+      }
+      if (expiryCode == null || expiryCode.isEmpty()) {
+        sendError(res, Http.Status.BAD_REQUEST_400.code(),
+            "The \"" + EXPIRY_CODE_FIELD + "\" field is missing or empty");
+        return;
+      }
+      int code;
+      try {
+        code = Integer.parseInt(expiryCode);
+      } catch (NumberFormatException e) {
+        sendError(res, Http.Status.BAD_REQUEST_400.code(),
+            "The \"" + EXPIRY_CODE_FIELD + "\" field must be a number");
+        return;
+      }
+
+      urlService.createUrlAsync(url, code, client(req)).whenComplete((shortUrl, error) -> {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof IllegalArgumentException) {
+          sendError(res, Http.Status.BAD_REQUEST_400.code(), cause.getMessage());
+        } else if (cause != null) {
+          req.next(cause);
+        } else {
+          sendJson(res, Http.Status.CREATED_201.code(),
+              ShortUrlJsonEncoder.getInstance().encodeShortUrl(getHost(req), shortUrl));
+        }
+      });
+    }).exceptionally(error -> {
+      req.next(error);
+      return null;
+    });
+  }
+
+  /**
+   * Creates short urls for a stream of url objects, streaming back the
+   * results as newline-delimited JSON with a {@link BulkUrlWriter}.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void createShortUrls(ServerRequest req, ServerResponse res) {
+    if (rejectIfFollower(res)) {
+      return;
+    }
+    ShortUrlJsonEncoder.Host host = getHost(req);
+    ClientPermits permits = req.context().get(ClientPermits.class).orElse(null);
+    String client = client(req);
+    req.content().as(InputStream.class).thenAccept(input -> {
+      OutputStreamMulti stream = IoMulti.outputStreamMulti();
+      res.headers().contentType(NDJSON);
+      res.send(stream.map(DataChunk::create));
+      executor.execute(() -> {
+        try (input; stream) {
+          new BulkUrlWriter(urlService, input, host, permits, client).write(stream);
+        } catch (IOException | RuntimeException e) {
+          // The response has started, so the client sees it end early
+          LOGGER.warn("Unable to create bulk urls for {}.", req.remoteAddress(), e);
+        }
+      });
+    }).exceptionally(error -> {
+      req.next(error);
+      return null;
+    });
+  }
+
+  /**
+   * Exports every short url, as newline-delimited JSON by default or in the
+   * binary format.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void exportUrls(ServerRequest req, ServerResponse res) {
+    String format = req.queryParams().first("format").orElse(null);
+    UrlArchive.Format archiveFormat = UrlEndpoints.parseFormat(format);
+    if (archiveFormat == null) {
+      sendError(res, Http.Status.BAD_REQUEST_400.code(), "Unknown format " + format + ".");
+      return;
+    }
+    OutputStreamMulti stream = IoMulti.outputStreamMulti();
+    res.headers().contentType(archiveFormat == UrlArchive.Format.BINARY ? MediaType.APPLICATION_OCTET_STREAM : NDJSON);
+    res.send(stream.map(DataChunk::create));
+    executor.execute(() -> {
+      try (stream) {
+        urlService.exportUrls(stream, archiveFormat);
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn("Unable to export urls to {}.", req.remoteAddress(), e);
+      }
+    });
+  }
+
+  /**
+   * Imports short urls exported by {@link #exportUrls(ServerRequest, ServerResponse)}.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void importUrls(ServerRequest req, ServerResponse res) {
+    if (rejectIfFollower(res)) {
+      return;
+    }
+    String format = req.queryParams().first("format").orElse(null);
+    UrlArchive.Format archiveFormat = UrlEndpoints.parseFormat(format);
+    if (archiveFormat == null) {
+      sendError(res, Http.Status.BAD_REQUEST_400.code(), "Unknown format " + format + ".");
+      return;
+    }
+    req.content().as(InputStream.class).thenAccept(input -> executor.execute(() -> {
+      try (input) {
+        UrlArchive.ImportResult result = urlService.importUrls(input, archiveFormat);
+        // The urls can only be counted once imported, so are charged afterwards
+        req.context().get(ClientPermits.class).ifPresent(permits -> permits.charge(result.getImported()));
+        sendJson(res, Http.Status.OK_200.code(), JSON_PROVIDER.createObjectBuilder()
+            .add(COUNT_FIELD, result.getImported())
+            .add(SKIPPED_FIELD, result.getSkipped())
+            .build()
+            .toString());
+      } catch (IllegalArgumentException | IOException e) {
+        sendError(res, Http.Status.BAD_REQUEST_400.code(), e.getMessage());
+      } catch (RuntimeException e) {
+        req.next(e);
+      }
+    })).exceptionally(error -> {
+      req.next(error);
+      return null;
+    });
+  }
+
+  /**
+   * Deletes the short url for the given token.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  private void deleteShortUrl(ServerRequest req, ServerResponse res) {
+    if (rejectIfFollower(res)) {
+      return;
+    }
+    String token = req.path().param("token");
+    urlService.getUrlAsync(token).whenComplete((shortUrl, error) -> {
+      if (error != null) {
+        req.next(error);
+      } else if (shortUrl == null) {
+        // Return a 404 if the url is not found by the url service
+        sendError(res, Http.Status.NOT_FOUND_404.code(), "Url not found.");
+      } else {
+        urlService.deleteUrlAsync(token, client(req)).whenComplete((ignored, deleteError) -> {
+          if (deleteError != null) {
+            req.next(deleteError);
+          } else {
+            res.status(Http.Status.NO_CONTENT_204).send();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Sends an error response if this server is a replication follower, which
+   * doesn't accept creates or deletes.
+   *
+   * @param res the server response
+   * @return true if the request was rejected.
+   */
+  private boolean rejectIfFollower(ServerResponse res) {
+    String message = UrlEndpoints.followerMessage(urlService);
+    if (message == null) {
+      return false;
+    }
+    sendError(res, MISDIRECTED_REQUEST_421, message);
+    return true;
+  }
+
+  /**
+   * Returns the client's API key, which urls are deduplicated for.
+   *
+   * @param req the server request
+   * @return the API key, or null if the request has none.
+   */
+  private String client(ServerRequest req) {
+    return req.headers().first(urlService.getClientKeyHeader()).orElse(null);
+  }
+
+  /**
+   * Returns a string field of a JSON object.
+   *
+   * @param input the JSON object
+   * @param field the name of the field
+   * @return the value, or null if the field is missing.
+   * @throws ClassCastException if the field isn't a string
+   */
+  private static String getString(JsonObject input, String field) {
+    return input.containsKey(field) ? ((JsonString) input.get(field)).getString() : null;
+  }
+
+  /**
+   * Sends a JSON response.
+   *
+   * @param res the server response
+   * @param status the status code
+   * @param json the response body
+   */
+  private static void sendJson(ServerResponse res, int status, String json) {
+    res.status(status);
+    res.headers().contentType(MediaType.APPLICATION_JSON);
+    res.send(json);
+  }
+
+  /**
+   * Sends a JSON response that is already encoded.
+   *
+   * @param res the server response
+   * @param status the status code
+   * @param json the UTF-8 encoded response body
+   */
+  private static void sendJson(ServerResponse res, int status, byte[] json) {
+    res.status(status);
+    res.headers().contentType(MediaType.APPLICATION_JSON);
+    res.send(json);
+  }
+
+  /**
+   * Sends a JSON error response, in the same form as {@link UrlEndpoints}.
+   *
+   * @param res the server response
+   * @param status the status code
+   * @param message the message for the response
+   */
+  private static void sendError(ServerResponse res, int status, String message) {
+    sendJson(res, status, ShortUrlJsonEncoder.getInstance().encodeError(message));
+  }
+
+  /**
+   * Returns the host requests to this application were sent to, with its
+   * base url. Like the JAX-RS base uri, the authority is taken from the
+   * <code>Host</code> header, falling back to the local address of the
+   * request when there isn't a valid one. The absolute uri isn't used, as
+   * it's built by formatting and parsing the whole request uri.
+   *
+   * @param req the server request
+   * @return the host.
+   */
+  private static ShortUrlJsonEncoder.Host getHost(ServerRequest req) {
+    String authority = req.headers().first(Http.Header.HOST).orElse(null);
+    if (!isAuthority(authority)) {
+      String address = req.localAddress();
+      authority = (address.indexOf(':') >= 0 ? "[" + address + "]" : address) + ":" + req.localPort();
+    }
+    return ShortUrlJsonEncoder.getInstance().getHost(req.isSecure() ? "https" : "http", authority);
+  }
+
+  /**
+   * Returns true if the <code>Host</code> header value is a host name or
+   * address with an optional port, so a forged header can't inject anything
+   * else into the short urls.
+   *
+   * @param authority the header value, or null
+   * @return true if the value is a valid authority.
+   */
+  private static boolean isAuthority(String authority) {
+    if (authority == null || authority.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < authority.length(); i++) {
+      char c = authority.charAt(i);
+      if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+          || c == '.' || c == '-' || c == ':' || c == '[' || c == ']')) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
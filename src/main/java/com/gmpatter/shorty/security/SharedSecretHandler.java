@@ -0,0 +1,95 @@
+package com.gmpatter.shorty.security;
+
+import io.helidon.common.http.Http;
+import io.helidon.webserver.Handler;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Helidon handler that only passes on requests with a bearer token equal to
+ * a shared secret, routed in front of endpoints that mustn't be public, such
+ * as those the cluster members and replication followers call on each
+ * other. Other requests are rejected with a 401.
+ *
+ * <p>The secret is compared in constant time, so the time taken to reject a
+ * request doesn't reveal how much of the secret it guessed.
+ */
+public class SharedSecretHandler implements Handler {
+
+  private static final String BEARER = "Bearer ";
+
+  private final byte[] expected;
+  private final String challenge;
+
+  /**
+   * Creates a handler.
+   *
+   * @param secret the shared secret, or null or blank to reject every
+   *     request
+   * @param realm the realm named in the <code>WWW-Authenticate</code>
+   *     header of rejected requests
+   */
+  public SharedSecretHandler(String secret, String realm) {
+    this.expected = secret != null && !secret.isBlank() ? authorization(secret).getBytes(StandardCharsets.UTF_8) : null;
+    this.challenge = "Bearer realm=\"" + realm + "\"";
+  }
+
+  /**
+   * Returns the <code>Authorization</code> header value that carries the
+   * secret, for clients of the protected endpoints.
+   *
+   * @param secret the shared secret
+   * @return the header value.
+   */
+  public static String authorization(String secret) {
+    return BEARER + secret;
+  }
+
+  /**
+   * Returns the secret at the given configuration key, failing if it isn't
+   * set, for the servers that must not start with their endpoints open.
+   *
+   * @param secret the configured secret, or null
+   * @param key the configuration key, for the error message
+   * @return the secret.
+   * @throws IllegalArgumentException if the secret isn't set
+   */
+  public static String require(String secret, String key) {
+    if (secret == null || secret.isBlank()) {
+      throw new IllegalArgumentException(key + " must be set to a shared secret.");
+    }
+    return secret;
+  }
+
+  /**
+   * Returns true if the <code>Authorization</code> header value carries the
+   * secret.
+   *
+   * @param authorization the header value, or null
+   * @return true if the request is authorized.
+   */
+  public boolean isAuthorized(String authorization) {
+    return expected != null && authorization != null
+        && MessageDigest.isEqual(expected, authorization.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Passes the request on if it carries the secret, otherwise rejects it.
+   *
+   * @param req the server request
+   * @param res the server response
+   */
+  @Override
+  public void accept(ServerRequest req, ServerResponse res) {
+    if (isAuthorized(req.headers().first(Http.Header.AUTHORIZATION).orElse(null))) {
+      req.next();
+      return;
+    }
+    res.status(Http.Status.UNAUTHORIZED_401);
+    res.headers().put(Http.Header.WWW_AUTHENTICATE, challenge);
+    res.send();
+  }
+}
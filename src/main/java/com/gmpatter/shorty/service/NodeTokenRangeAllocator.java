@@ -0,0 +1,147 @@
+package com.gmpatter.shorty.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link TokenRangeAllocator} that splits the counter space between a fixed
+ * number of nodes without any coordination between them.
+ *
+ * <p>Counter values are divided into blocks, and node <code>n</code> of
+ * <code>N</code> only leases blocks <code>n, n + N, n + 2N, ...</code>, so
+ * nodes configured with distinct ids never lease the same values.
+ *
+ * <p>When a lease file is configured, the index of the next block is written
+ * to it before each block is handed out, so that a restarted node carries on
+ * after the blocks it leased previously rather than reissuing tokens.
+ * Without one a node can start from a given block instead, such as a random
+ * one, so a restart is unlikely to reissue the tokens it handed out before.
+ *
+ * <p>Reserving a value in one of this node's later blocks skips ahead past
+ * it, as long as that gives up at most 1/1024 of the node's blocks, so
+ * restoring an export into a node doesn't reissue its tokens, but an import
+ * from an environment with another permutation key, whose tokens map to
+ * counter values all over the space, can't use it up.
+ *
+ * @author Gareth Patterson
+ */
+public class NodeTokenRangeAllocator implements TokenRangeAllocator {
+
+  // The fraction of this node's blocks a reservation may skip
+  private static final long MAX_SKIP_FRACTION = 1024;
+
+  private final int nodeId;
+  private final int nodeCount;
+  private final long limit;
+  private final Path leaseFile;
+  private long nextBlock;
+
+  /**
+   * Creates a new allocator.
+   *
+   * @param nodeId the id of this node, from 0 to <code>nodeCount - 1</code>
+   * @param nodeCount the number of nodes sharing the counter space
+   * @param limit the number of counter values available to all nodes
+   * @param leaseFile the file used to remember leased blocks, or null to
+   *     start from the first block of this node
+   */
+  public NodeTokenRangeAllocator(int nodeId, int nodeCount, long limit, Path leaseFile) {
+    this(nodeId, nodeCount, limit, leaseFile, 0);
+  }
+
+  /**
+   * Creates a new allocator.
+   *
+   * @param nodeId the id of this node, from 0 to <code>nodeCount - 1</code>
+   * @param nodeCount the number of nodes sharing the counter space
+   * @param limit the number of counter values available to all nodes
+   * @param leaseFile the file used to remember leased blocks, or null to
+   *     start from <code>firstBlock</code>
+   * @param firstBlock the index among this node's blocks of the first block
+   *     to lease when there's no lease file
+   */
+  public NodeTokenRangeAllocator(int nodeId, int nodeCount, long limit, Path leaseFile, long firstBlock) {
+    if (nodeCount <= 0 || nodeId < 0 || nodeId >= nodeCount) {
+      throw new IllegalArgumentException("Node id must be between 0 and " + (nodeCount - 1) + ".");
+    }
+    this.nodeId = nodeId;
+    this.nodeCount = nodeCount;
+    this.limit = limit;
+    this.leaseFile = leaseFile;
+    this.nextBlock = readLeaseFile(firstBlock);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized long allocate(long blockSize) {
+    long block = nextBlock * nodeCount + nodeId;
+    if (block >= limit / blockSize) {
+      throw new IllegalStateException("No more tokens available for node " + nodeId + ".");
+    }
+    nextBlock++;
+    writeLeaseFile();
+    return block * blockSize;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized boolean reserve(long value, long blockSize) {
+    long block = value / blockSize;
+    if (block % nodeCount != nodeId) {
+      // Another node's block
+      return true;
+    }
+    long index = block / nodeCount;
+    if (index < nextBlock) {
+      // Already leased
+      return true;
+    }
+    long maxSkip = Math.max(1, limit / blockSize / nodeCount / MAX_SKIP_FRACTION);
+    if (index - nextBlock >= maxSkip) {
+      return false;
+    }
+    nextBlock = index + 1;
+    writeLeaseFile();
+    return true;
+  }
+
+  private long readLeaseFile(long firstBlock) {
+    if (leaseFile == null) {
+      return firstBlock;
+    }
+    if (!Files.exists(leaseFile)) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(Files.readString(leaseFile, StandardCharsets.UTF_8).trim());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to read token lease file " + leaseFile + ".", e);
+    }
+  }
+
+  private void writeLeaseFile() {
+    if (leaseFile == null) {
+      return;
+    }
+    // Write to a temporary file and move it into place, so that a crash
+    // can never leave a partially written lease
+    Path tmp = leaseFile.resolveSibling(leaseFile.getFileName() + ".tmp");
+    try {
+      Files.writeString(tmp, Long.toString(nextBlock), StandardCharsets.UTF_8,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+      Files.move(tmp, leaseFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to write token lease file " + leaseFile + ".", e);
+    }
+  }
+}
@@ -0,0 +1,335 @@
+package com.gmpatter.shorty.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates unique, random looking tokens without checking the repository
+ * for conflicts.
+ *
+ * <p>Each token is made from the next value of a counter, leased in blocks
+ * from a {@link TokenRangeAllocator}. The counter value is passed through a
+ * keyed Feistel permutation of the token space, so consecutive values give
+ * unrelated tokens, and then written out using the token characters. As the
+ * permutation is a bijection, distinct counter values always give distinct
+ * tokens.
+ *
+ * <p>Tokens made elsewhere, such as imported tokens, can be reserved so they
+ * are never generated, by inverting the permutation to find their counter
+ * value and skipping past it.
+ *
+ * <p>The key must be kept secret, as anyone who knows it can enumerate the
+ * tokens in the order they are generated. Without a configured key a random
+ * one is generated, and kept in a key file beside the lease file.
+ *
+ * @author Gareth Patterson
+ */
+public class TokenGenerator {
+
+  static final int ROUNDS = 4;
+
+  private final char[] tokenCharacters;
+  private final int tokenLength;
+  private final long tokenSpace;
+  private final int halfBits;
+  private final long halfMask;
+  private final long[] roundKeys;
+  private final TokenRangeAllocator allocator;
+  private final long blockSize;
+  private volatile Range range;
+  // Permutations that landed outside the token space and were permuted again
+  private final LongAdder cycleWalks = new LongAdder();
+  // Attempts to take a counter value from a block that was used up
+  private final LongAdder exhaustedBlockRetries = new LongAdder();
+  private final LongAdder blockLeases = new LongAdder();
+
+  /**
+   * Creates a new token generator.
+   *
+   * @param tokenCharacters the characters used in tokens
+   * @param tokenLength the length of tokens
+   * @param permutationKey the key used to scramble the counter values
+   * @param allocator the allocator to lease counter values from
+   * @param blockSize the number of counter values to lease at a time
+   * @throws IllegalArgumentException if there are more tokens of the given
+   *     length than fit in a long
+   */
+  public TokenGenerator(char[] tokenCharacters, int tokenLength, long permutationKey,
+                        TokenRangeAllocator allocator, long blockSize) {
+    this.tokenCharacters = tokenCharacters.clone();
+    this.tokenLength = tokenLength;
+    this.tokenSpace = tokenSpace(tokenCharacters.length, tokenLength);
+    // Split the smallest even number of bits covering the space into halves
+    int bits = 64 - Long.numberOfLeadingZeros(tokenSpace - 1);
+    this.halfBits = Math.max(1, (bits + 1) / 2);
+    this.halfMask = (1L << halfBits) - 1;
+    this.roundKeys = new long[ROUNDS];
+    long seed = permutationKey;
+    for (int i = 0; i < ROUNDS; i++) {
+      seed += 0x9e3779b97f4a7c15L;
+      roundKeys[i] = mix(seed);
+    }
+    this.allocator = allocator;
+    this.blockSize = blockSize;
+    this.range = new Range(0, 0);
+  }
+
+  /**
+   * Returns a random permutation key.
+   *
+   * @return the key.
+   */
+  public static long randomKey() {
+    return new SecureRandom().nextLong();
+  }
+
+  /**
+   * Returns the permutation key in the given file, first writing a random
+   * key to it if it doesn't exist, so that a node keeps generating tokens
+   * from the same permutation across restarts.
+   *
+   * @param keyFile the key file
+   * @return the key.
+   */
+  public static long loadOrCreateKey(Path keyFile) {
+    try {
+      if (!Files.exists(keyFile)) {
+        // Write to a temporary file readable only by the owner and move it
+        // into place, so that a crash can never leave a partially written key
+        Path tmp = keyFile.resolveSibling(keyFile.getFileName() + ".tmp");
+        Files.writeString(tmp, Long.toString(randomKey()), StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        try {
+          Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+          // Not a POSIX file system
+        }
+        Files.move(tmp, keyFile, StandardCopyOption.ATOMIC_MOVE);
+      }
+      return Long.parseLong(Files.readString(keyFile, StandardCharsets.UTF_8).trim());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to read or create token key file " + keyFile + ".", e);
+    }
+  }
+
+  /**
+   * Returns the number of distinct tokens of the given length.
+   *
+   * @param radix the number of token characters
+   * @param tokenLength the length of tokens
+   * @return the size of the token space.
+   * @throws IllegalArgumentException if the size doesn't fit in a long
+   */
+  public static long tokenSpace(int radix, int tokenLength) {
+    long space = 1;
+    for (int i = 0; i < tokenLength; i++) {
+      if (space > (Long.MAX_VALUE >> 2) / radix) {
+        throw new IllegalArgumentException("Too many tokens of length " + tokenLength + ".");
+      }
+      space *= radix;
+    }
+    return space;
+  }
+
+  /**
+   * Returns the next token.
+   *
+   * @return the new token.
+   * @throws IllegalStateException if the token space is exhausted
+   */
+  public String nextToken() {
+    return encode(permute(nextCounter()));
+  }
+
+  /**
+   * Makes sure a token made elsewhere, such as an imported token, is never
+   * generated.
+   *
+   * @param token the token
+   * @return true if the token won't be generated, or false if it would be
+   *     and reserving it would give up too many tokens.
+   */
+  public synchronized boolean reserve(String token) {
+    long value = decode(token);
+    if (value < 0) {
+      // Not a token this generator makes
+      return true;
+    }
+    long counter = unpermute(value);
+    Range current = range;
+    if (counter >= current.start && counter < current.end) {
+      // The values before it in the block are given up as well
+      current.next.accumulateAndGet(counter + 1, Math::max);
+      return true;
+    }
+    return allocator.reserve(counter, blockSize);
+  }
+
+  /**
+   * Returns the next counter value, leasing a new block when the current
+   * block is used up.
+   */
+  long nextCounter() {
+    while (true) {
+      Range current = range;
+      long value = current.next.getAndIncrement();
+      if (value < current.end) {
+        return value;
+      }
+      exhaustedBlockRetries.increment();
+      synchronized (this) {
+        if (range == current) {
+          long start = allocator.allocate(blockSize);
+          range = new Range(start, start + blockSize);
+          blockLeases.increment();
+        }
+      }
+    }
+  }
+
+  /**
+   * Maps a value in the token space to another value in the token space.
+   *
+   * <p>The Feistel network permutes the power of two space containing the
+   * token space, so results outside the token space are permuted again
+   * ("cycle walking") until they land inside it.
+   */
+  long permute(long value) {
+    if (value < 0 || value >= tokenSpace) {
+      throw new IllegalStateException("No more tokens available.");
+    }
+    value = feistel(value);
+    while (value >= tokenSpace) {
+      cycleWalks.increment();
+      value = feistel(value);
+    }
+    return value;
+  }
+
+  /**
+   * Maps a value in the token space back to the value {@link #permute(long)}
+   * mapped to it.
+   */
+  long unpermute(long value) {
+    value = unfeistel(value);
+    while (value >= tokenSpace) {
+      value = unfeistel(value);
+    }
+    return value;
+  }
+
+  /**
+   * Returns the number of times a token had to be generated again, either
+   * because its permuted counter value was outside the token space, or
+   * because its block of counter values was used up.
+   *
+   * @return the retry count.
+   */
+  public long getRetryCount() {
+    return cycleWalks.sum() + exhaustedBlockRetries.sum();
+  }
+
+  /**
+   * Returns the number of blocks of counter values leased.
+   *
+   * @return the lease count.
+   */
+  public long getBlockLeaseCount() {
+    return blockLeases.sum();
+  }
+
+  private long feistel(long value) {
+    long left = value >>> halfBits;
+    long right = value & halfMask;
+    for (int i = 0; i < ROUNDS; i++) {
+      long next = left ^ (mix(right ^ roundKeys[i]) & halfMask);
+      left = right;
+      right = next;
+    }
+    return (left << halfBits) | right;
+  }
+
+  private long unfeistel(long value) {
+    long left = value >>> halfBits;
+    long right = value & halfMask;
+    for (int i = ROUNDS - 1; i >= 0; i--) {
+      long previous = right ^ (mix(left ^ roundKeys[i]) & halfMask);
+      right = left;
+      left = previous;
+    }
+    return (left << halfBits) | right;
+  }
+
+  private String encode(long value) {
+    char[] token = new char[tokenLength];
+    int radix = tokenCharacters.length;
+    for (int i = tokenLength - 1; i >= 0; i--) {
+      token[i] = tokenCharacters[(int) (value % radix)];
+      value /= radix;
+    }
+    return new String(token);
+  }
+
+  /**
+   * Returns the value in the token space a token was written out from, or
+   * -1 if it isn't the token length or has other characters.
+   */
+  private long decode(String token) {
+    if (token.length() != tokenLength) {
+      return -1;
+    }
+    int radix = tokenCharacters.length;
+    long value = 0;
+    for (int i = 0; i < tokenLength; i++) {
+      int digit = indexOf(token.charAt(i));
+      if (digit < 0) {
+        return -1;
+      }
+      value = value * radix + digit;
+    }
+    return value;
+  }
+
+  private int indexOf(char c) {
+    for (int i = 0; i < tokenCharacters.length; i++) {
+      if (tokenCharacters[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The SplitMix64 finalizer, used as the Feistel round function.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * A leased block of counter values.
+   */
+  private static final class Range {
+    private final long start;
+    private final AtomicLong next;
+    private final long end;
+
+    Range(long start, long end) {
+      this.start = start;
+      this.next = new AtomicLong(start);
+      this.end = end;
+    }
+  }
+}
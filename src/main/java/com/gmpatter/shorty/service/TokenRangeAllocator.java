@@ -0,0 +1,33 @@
+package com.gmpatter.shorty.service;
+
+/**
+ * Allocates blocks of counter values for a {@link TokenGenerator}.
+ *
+ * <p>Implementations must never hand out the same counter value twice, across
+ * every node generating tokens for the same repository.
+ *
+ * @author Gareth Patterson
+ */
+public interface TokenRangeAllocator {
+
+  /**
+   * Leases a new block of counter values.
+   *
+   * @param blockSize the number of counter values in the block
+   * @return the first counter value in the block.
+   * @throws IllegalStateException if there are no more counter values
+   */
+  long allocate(long blockSize);
+
+  /**
+   * Makes sure a counter value that was used elsewhere, such as by an
+   * imported token, is never leased, by skipping the block it is in if this
+   * allocator would lease it later.
+   *
+   * @param value the counter value
+   * @param blockSize the number of counter values in each block
+   * @return true if the value won't be leased, or false if it can't be
+   *     skipped without giving up too much of the counter space.
+   */
+  boolean reserve(long value, long blockSize);
+}
@@ -1,16 +1,58 @@
 package com.gmpatter.shorty.service;
 
+import com.gmpatter.shorty.cluster.HttpShardClient;
+import com.gmpatter.shorty.cluster.ShardedUrlRepository;
+import com.gmpatter.shorty.metrics.Histogram;
+import com.gmpatter.shorty.metrics.MetricsRegistry;
 import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.AsyncUrlRepository;
+import com.gmpatter.shorty.persistence.AsyncUrlRepositoryAdapter;
+import com.gmpatter.shorty.persistence.CachingUrlRepository;
+import com.gmpatter.shorty.persistence.CompactUrlRepository;
+import com.gmpatter.shorty.persistence.DurableUrlRepository;
+import com.gmpatter.shorty.persistence.JdbcConnectionPool;
+import com.gmpatter.shorty.persistence.JdbcUrlRepository;
 import com.gmpatter.shorty.persistence.MapUrlRepository;
+import com.gmpatter.shorty.persistence.SegmentUrlRepository;
+import com.gmpatter.shorty.persistence.TokenCodec;
+import com.gmpatter.shorty.persistence.UrlArchive;
+import com.gmpatter.shorty.persistence.UrlFingerprintIndex;
 import com.gmpatter.shorty.persistence.UrlRepository;
+import com.gmpatter.shorty.replication.FollowerUrlRepository;
+import com.gmpatter.shorty.replication.HttpReplicationClient;
+import com.gmpatter.shorty.replication.LeaderUrlRepository;
+import com.gmpatter.shorty.security.SharedSecretHandler;
+import com.gmpatter.shorty.stats.AnalyticsSummary;
+import com.gmpatter.shorty.stats.ClickCounter;
+import com.gmpatter.shorty.stats.VisitAnalytics;
 import io.helidon.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.LocalDateTime;
-import java.util.Random;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
 
 import static io.helidon.config.ConfigSources.classpath;
 
@@ -20,32 +62,503 @@ import static io.helidon.config.ConfigSources.classpath;
  * <p>Creates, fetches and deletes <code>ShortUrl</code> in the
  * {@link UrlRepository}.
  *
- * <p>Implements the logic for generating unique tokens and setting
- * expiry dates.
+ * <p>Generates unique tokens using a {@link TokenGenerator} and
+ * implements the logic for setting expiry dates.
  *
  * @author Gareth Patterson
  */
-public class UrlService {
+public class UrlService implements AutoCloseable {
 
   protected static final Logger LOGGER = LoggerFactory.getLogger(UrlService.class);
 
+  public static final String OPERATION_LATENCY_METRIC = "shorty_operation_duration_seconds";
+
+  // The most tokens tried for a url before giving up, when tokens are already in use
+  static final int MAX_TOKEN_ATTEMPTS = 8;
+
   // All the available characters for generating tokens
   private char[] tokenCharacters;
   private int tokenLength;
+  // Checks imported tokens only use the token characters
+  private TokenCodec tokenCodec;
+  private TokenGenerator tokenGenerator;
+
+  private UrlRepository urlRepository;
+  // The same repository, for callers that must not block
+  private AsyncUrlRepository asyncUrlRepository;
+  // The url repository when it is partitioned across a cluster, otherwise null
+  private ShardedUrlRepository shardedRepository;
+  // The url repository when it is the replication leader or a follower, otherwise null
+  private LeaderUrlRepository leaderRepository;
+  private FollowerUrlRepository followerRepository;
+  // Indexes created urls by client and original url when dedup is enabled, otherwise null
+  private UrlFingerprintIndex fingerprintIndex;
+  // The header identifying the client whose urls are deduplicated
+  private String clientKeyHeader;
+  private ClickCounter clickCounter;
+  // Generated tokens that were already in use, such as by an imported url
+  private final LongAdder tokenConflicts = new LongAdder();
+  // Collects visitor, referrer and user agent analytics when enabled, otherwise null
+  private VisitAnalytics visitAnalytics;
+
+  private Histogram getLatency;
+  private Histogram createLatency;
+  private Histogram deleteLatency;
+  private Histogram purgeDuration;
+  // The names of the gauges and counters reading this service's state, guarded by UrlService.class
+  private final List<String> repositoryMetrics = new ArrayList<>();
+  private ScheduledExecutorService cleanupExecutor;
 
   private static UrlService INSTANCE;
+  // The service whose repository gauges and counters are registered, guarded by UrlService.class
+  private static UrlService repositoryMetricsOwner;
 
   private UrlService() {
-    // Get any configuration for token generation
-    Config config = Config.builder()
+    this(Config.builder()
         .sources(classpath("application.yaml"))
-        .build();
+        .build());
+  }
+
+  /**
+   * Creates a url service with its own repository, configured from the given
+   * configuration rather than <code>application.yaml</code>. Outside of
+   * in-process clusters use {@link #getInstance()}.
+   *
+   * @param config the root configuration
+   */
+  public UrlService(Config config) {
+    // Get any configuration for token generation
     Config tokenConfig = config.get("shorty.token");
     tokenLength = tokenConfig.get("token-length").asInt().orElse(7);
-    tokenCharacters = tokenConfig.get("token-characters").toString().toCharArray();
+    tokenCharacters = tokenConfig.get("token-characters").asString().get().toCharArray();
+    tokenCodec = new TokenCodec(tokenCharacters);
+
+    Config repositoryConfig = config.get("shorty.repository");
+    Config replicationConfig = config.get("shorty.replication");
+    String role = replicationConfig.get("role").asString().orElse("none");
+    switch (role) {
+      case "none":
+        urlRepository = createUrlRepository(repositoryConfig, tokenCharacters, tokenLength);
+        break;
+      case "leader":
+        replicationSecret(replicationConfig);
+        leaderRepository = new LeaderUrlRepository(
+            createUrlRepository(repositoryConfig, tokenCharacters, tokenLength),
+            replicationConfig.get("log-capacity").asInt().orElse(100000));
+        urlRepository = leaderRepository;
+        break;
+      case "follower":
+        // Followers reload their urls from the leader, so only keep them in memory
+        if (dataDirectory(repositoryConfig).isPresent() || isJdbc(repositoryConfig)) {
+          throw new IllegalArgumentException("Followers can only use the map or compact repository.");
+        }
+        String leader = replicationConfig.get("leader").asString().get();
+        followerRepository = new FollowerUrlRepository(leader,
+            () -> createUrlRepository(repositoryConfig, tokenCharacters, tokenLength),
+            new HttpReplicationClient(leader, replicationSecret(replicationConfig),
+                replicationConfig.get("timeout-millis").asLong().orElse(5000L)),
+            replicationConfig.get("poll-wait-millis").asLong().orElse(500L),
+            replicationConfig.get("max-lag-millis").asLong().orElse(5000L));
+        followerRepository.start();
+        urlRepository = followerRepository;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown replication role " + role + ".");
+    }
+    asyncUrlRepository = createAsyncUrlRepository(repositoryConfig, urlRepository);
+
+    // Partition the urls across the cluster members, with this repository
+    // holding this member's partition
+    Config clusterConfig = config.get("shorty.cluster");
+    if (clusterConfig.get("members").exists()) {
+      if (!"none".equals(role)) {
+        throw new IllegalArgumentException("Clustering can't be combined with replication.");
+      }
+      String self = clusterConfig.get("self").asString().get();
+      shardedRepository = new ShardedUrlRepository(
+          self,
+          clusterConfig.get("members").asList(String.class).get(),
+          clusterConfig.get("virtual-nodes").asInt().orElse(256),
+          urlRepository,
+          asyncUrlRepository,
+          new HttpShardClient(self,
+              SharedSecretHandler.require(clusterConfig.get("secret").asString().orElse(null),
+                  "shorty.cluster.secret"),
+              clusterConfig.get("timeout-millis").asLong().orElse(2000L)),
+          clusterConfig.get("handoff-grace-seconds").asLong().orElse(60L) * 1000);
+      urlRepository = shardedRepository;
+      asyncUrlRepository = shardedRepository.async();
+    }
+
+    // Durable repositories also need to remember leased tokens by default
+    Path leaseFile = tokenConfig.get("lease-file").asString().map(Path::of)
+        .or(() -> dataDirectory(repositoryConfig).map(directory -> directory.resolve("token.lease")))
+        .or(() -> isJdbc(repositoryConfig) ? Optional.of(Path.of("token.lease")) : Optional.empty())
+        .orElse(null);
+    int nodeCount = tokenConfig.get("node-count").asInt().orElse(1);
+    long tokenSpace = TokenGenerator.tokenSpace(tokenCharacters.length, tokenLength);
+    long blockSize = tokenConfig.get("block-size").asLong().orElse(10000L);
+    // Without a lease file the tokens handed out before a restart aren't
+    // known, so start from a random block in the first half of this node's
+    // blocks rather than reissuing them
+    long firstBlock = leaseFile == null
+        ? ThreadLocalRandom.current().nextLong(Math.max(1, tokenSpace / blockSize / nodeCount / 2))
+        : 0;
+    TokenRangeAllocator allocator = new NodeTokenRangeAllocator(
+        tokenConfig.get("node-id").asInt().orElse(0),
+        nodeCount,
+        tokenSpace,
+        leaseFile,
+        firstBlock);
+    tokenGenerator = new TokenGenerator(tokenCharacters, tokenLength,
+        permutationKey(tokenConfig, nodeCount, leaseFile),
+        allocator,
+        blockSize);
+
+    if (config.get("shorty.dedup.enabled").asBoolean().orElse(false)) {
+      fingerprintIndex = new UrlFingerprintIndex(tokenCharacters);
+    }
+    clientKeyHeader = config.get("shorty.rate-limit.api-key-header").asString().orElse("X-API-Key");
+
+    Config statsConfig = config.get("shorty.stats");
+    long drainIntervalMillis = statsConfig.get("drain-interval-millis").asLong().orElse(1000L);
+    // Looked up once for each token the stats are first recorded for, so
+    // they can be dropped when the short url expires
+    ToLongFunction<String> expiryTimes = token -> {
+      ShortUrl shortUrl = getUrlRepository().getUrl(token);
+      return shortUrl != null ? shortUrl.getExpiryTime() : -1;
+    };
+    clickCounter = new ClickCounter(drainIntervalMillis, expiryTimes);
+    if (statsConfig.get("analytics.enabled").asBoolean().orElse(false)) {
+      visitAnalytics = new VisitAnalytics(drainIntervalMillis, expiryTimes);
+    }
+
+    registerMetrics(MetricsRegistry.getInstance());
 
     // Start a scheduler that will periodically cleanup expired urls
-    Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> expiredUrlCleanup(), 1, 1, TimeUnit.MINUTES);
+    cleanupExecutor = Executors.newSingleThreadScheduledExecutor();
+    cleanupExecutor.scheduleAtFixedRate(() -> expiredUrlCleanup(), 1, 1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Stops the service's background tasks, and removes its repository gauges
+   * and counters if no later service has replaced them. The repository
+   * itself is left open.
+   */
+  @Override
+  public void close() {
+    cleanupExecutor.shutdown();
+    clickCounter.close();
+    if (visitAnalytics != null) {
+      visitAnalytics.close();
+    }
+    if (followerRepository != null) {
+      followerRepository.close();
+    }
+    synchronized (UrlService.class) {
+      if (repositoryMetricsOwner == this) {
+        removeRepositoryMetrics(MetricsRegistry.getInstance());
+        repositoryMetricsOwner = null;
+      }
+    }
+  }
+
+  /**
+   * Returns the configured permutation key for the tokens. Without one a
+   * single node uses a random key, kept in a key file beside the lease file
+   * if there is one, but nodes sharing the token space must all be
+   * configured with the same key so their tokens can't conflict.
+   *
+   * @param tokenConfig the token configuration
+   * @param nodeCount the number of nodes sharing the token space
+   * @param leaseFile the token lease file, or null
+   * @return the key.
+   * @throws IllegalArgumentException if there is more than one node and no
+   *     key is configured
+   */
+  private static long permutationKey(Config tokenConfig, int nodeCount, Path leaseFile) {
+    Optional<Long> key = tokenConfig.get("permutation-key").asLong().asOptional();
+    if (key.isPresent()) {
+      return key.get();
+    }
+    if (nodeCount > 1) {
+      throw new IllegalArgumentException(
+          "shorty.token.permutation-key must be set to a secret shared by the nodes when node-count is more than 1.");
+    }
+    if (leaseFile == null) {
+      return TokenGenerator.randomKey();
+    }
+    return TokenGenerator.loadOrCreateKey(leaseFile.resolveSibling("token.key"));
+  }
+
+  /**
+   * Registers the service's latency histograms, and gauges and counters for
+   * the repository, token generator and cache.
+   *
+   * <p>The histograms are shared by every service in the process, but the
+   * gauges and counters read a service's own state, so each service created
+   * replaces those of the one before, and they are removed when the service
+   * reporting them is closed, so the registry doesn't keep a closed service
+   * reachable.
+   *
+   * @param metrics the metrics registry
+   */
+  private void registerMetrics(MetricsRegistry metrics) {
+    getLatency = operationLatency("get");
+    createLatency = operationLatency("create");
+    deleteLatency = operationLatency("delete");
+    purgeDuration = metrics.histogram("shorty_purge_duration_seconds",
+        "Time taken to purge expired urls.", Histogram.TASK_BUCKETS);
+    synchronized (UrlService.class) {
+      if (repositoryMetricsOwner != null) {
+        repositoryMetricsOwner.removeRepositoryMetrics(metrics);
+      }
+      repositoryMetricsOwner = this;
+      registerRepositoryMetrics(metrics);
+    }
+  }
+
+  /**
+   * Registers the gauges and counters reading the service's own state,
+   * replacing those of any earlier service.
+   *
+   * @param metrics the metrics registry
+   */
+  private void registerRepositoryMetrics(MetricsRegistry metrics) {
+    repositoryGauge(metrics, "shorty_repository_urls",
+        "Short urls in the repository, including expired urls that haven't been purged.",
+        () -> getUrlRepository().size());
+    repositoryGauge(metrics, "shorty_repository_expired_urls",
+        "Expired short urls waiting to be purged.",
+        () -> getUrlRepository().countExpired(System.currentTimeMillis()));
+    repositoryCounter(metrics, "shorty_token_retries_total",
+        "Tokens generated again because they were outside the token space or their block was used up.",
+        tokenGenerator::getRetryCount);
+    repositoryCounter(metrics, "shorty_token_block_leases_total",
+        "Blocks of tokens leased by the token generator.",
+        tokenGenerator::getBlockLeaseCount);
+    repositoryCounter(metrics, "shorty_token_conflicts_total",
+        "Generated tokens that were already in use, and were generated again.",
+        tokenConflicts::sum);
+
+    if (shardedRepository != null) {
+      repositoryCounter(metrics, "shorty_cluster_forwards_total",
+          "Repository operations forwarded to the cluster member that owns the token.",
+          shardedRepository::getForwardCount);
+      repositoryCounter(metrics, "shorty_cluster_handoffs_total",
+          "Urls handed over to other cluster members after membership changes.",
+          shardedRepository::getHandoffCount);
+    }
+    if (leaderRepository != null) {
+      repositoryCounter(metrics, "shorty_replication_changes_total",
+          "Changes appended to the change log for the followers.",
+          () -> leaderRepository.getChangeLog().getAppendCount());
+    }
+    if (followerRepository != null) {
+      repositoryGauge(metrics, "shorty_replication_lag_records",
+          "Changes on the leader the follower knows it hasn't applied yet.",
+          followerRepository::getLagRecords);
+      repositoryGauge(metrics, "shorty_replication_lag_seconds",
+          "Time since the follower last knew it had every change on the leader.",
+          () -> followerRepository.getLagMillis() / 1000.0);
+      repositoryCounter(metrics, "shorty_replication_snapshots_total",
+          "Snapshots the follower has loaded from the leader.",
+          followerRepository::getSnapshotCount);
+    }
+
+    if (getLocalRepository() instanceof CachingUrlRepository) {
+      // Looked up on each scrape, as followers replace their repository when they load a snapshot
+      repositoryCounter(metrics, "shorty_cache_hits_total", "Reads served from the url cache.",
+          () -> ((CachingUrlRepository) getLocalRepository()).getHitCount());
+      repositoryCounter(metrics, "shorty_cache_misses_total", "Reads not found in the url cache.",
+          () -> ((CachingUrlRepository) getLocalRepository()).getMissCount());
+      repositoryGauge(metrics, "shorty_cache_hit_ratio", "Fraction of reads served from the url cache.", () -> {
+        CachingUrlRepository cache = (CachingUrlRepository) getLocalRepository();
+        long hits = cache.getHitCount();
+        long reads = hits + cache.getMissCount();
+        return reads == 0 ? 0 : (double) hits / reads;
+      });
+    }
+  }
+
+  /**
+   * Removes the gauges and counters the service registered.
+   *
+   * @param metrics the metrics registry
+   */
+  private void removeRepositoryMetrics(MetricsRegistry metrics) {
+    for (String name : repositoryMetrics) {
+      metrics.remove(name);
+    }
+    repositoryMetrics.clear();
+  }
+
+  private void repositoryGauge(MetricsRegistry metrics, String name, String help, DoubleSupplier value) {
+    metrics.gauge(name, help, value);
+    repositoryMetrics.add(name);
+  }
+
+  private void repositoryCounter(MetricsRegistry metrics, String name, String help, LongSupplier value) {
+    metrics.counter(name, help, value);
+    repositoryMetrics.add(name);
+  }
+
+  /**
+   * Returns the repository holding this node's urls, without the cluster or
+   * replication layer.
+   *
+   * @return the local repository.
+   */
+  private UrlRepository getLocalRepository() {
+    if (shardedRepository != null) {
+      return shardedRepository.getLocalRepository();
+    }
+    if (followerRepository != null) {
+      return followerRepository.getLocalRepository();
+    }
+    return leaderRepository != null ? leaderRepository.getLocalRepository() : urlRepository;
+  }
+
+  /**
+   * Returns the latency histogram for an operation, registering it if it
+   * isn't already registered. Redirects are timed by the redirect handlers,
+   * and the other operations by the service.
+   *
+   * @param operation the operation, such as "redirect"
+   * @return the latency histogram.
+   */
+  public static Histogram operationLatency(String operation) {
+    return MetricsRegistry.getInstance().histogram(OPERATION_LATENCY_METRIC,
+        "Time taken to handle each operation.", Histogram.LATENCY_BUCKETS, "operation", operation);
+  }
+
+  /**
+   * Creates the configured <code>UrlRepository</code>, defaulting to the
+   * map repository.
+   *
+   * <p>If a durable directory is configured the repository is wrapped in a
+   * {@link DurableUrlRepository}, recovering any urls stored in the directory.
+   * If a cache size is configured the repository is then wrapped in a
+   * {@link CachingUrlRepository}.
+   *
+   * @param repositoryConfig the repository configuration
+   * @param tokenCharacters the characters used in tokens
+   * @param tokenLength the length of generated tokens
+   * @return the url repository.
+   */
+  private static UrlRepository createUrlRepository(Config repositoryConfig, char[] tokenCharacters,
+                                                   int tokenLength) {
+    UrlRepository repository;
+    String repositoryType = repositoryConfig.get("type").asString().orElse("map");
+    switch (repositoryType) {
+      case "map":
+        repository = new MapUrlRepository();
+        break;
+      case "compact":
+        repository = new CompactUrlRepository(tokenCharacters, tokenLength,
+            repositoryConfig.get("compact.segments").asInt().orElse(CompactUrlRepository.DEFAULT_SEGMENTS));
+        break;
+      case "segment":
+        Config segmentConfig = repositoryConfig.get("segment");
+        repository = new SegmentUrlRepository(tokenCharacters,
+            Path.of(segmentConfig.get("directory").asString().orElse("segments")),
+            segmentConfig.get("segment-size-mb").asInt().orElse(64) * 1024 * 1024,
+            segmentConfig.get("compaction-threshold").asDouble().orElse(0.5),
+            segmentConfig.get("compaction-interval-minutes").asLong().orElse(5L));
+        break;
+      case "jdbc":
+        Config jdbcConfig = repositoryConfig.get("jdbc");
+        repository = new JdbcUrlRepository(
+            new JdbcConnectionPool(jdbcConfig.get("url").asString().get(),
+                jdbcConfig.get("user").asString().orElse(null),
+                jdbcConfig.get("password").asString().orElse(null),
+                jdbcConfig.get("pool-size").asInt().orElse(10),
+                jdbcConfig.get("pool-timeout-millis").asLong().orElse(5000L)),
+            jdbcConfig.get("batch-rows").asInt().orElse(64),
+            jdbcConfig.get("purge-chunk-rows").asInt().orElse(1000));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown repository type " + repositoryType + ".");
+    }
+
+    Config durableConfig = repositoryConfig.get("durable");
+    if (durableConfig.get("directory").exists()) {
+      if (repository instanceof SegmentUrlRepository || repository instanceof JdbcUrlRepository) {
+        throw new IllegalArgumentException("The " + repositoryType + " repository is already durable.");
+      }
+      repository = new DurableUrlRepository(repository,
+          Path.of(durableConfig.get("directory").asString().get()),
+          durableConfig.get("fsync").asBoolean().orElse(true),
+          durableConfig.get("snapshot-interval-minutes").asLong().orElse(10L));
+    }
+
+    int cacheSize = repositoryConfig.get("cache.maximum-size").asInt().orElse(0);
+    if (cacheSize > 0) {
+      repository = new CachingUrlRepository(repository, cacheSize,
+          TimeUnit.SECONDS.toMillis(repositoryConfig.get("cache.ttl-seconds").asLong().orElse(60L)));
+    }
+    return repository;
+  }
+
+  /**
+   * Adapts the repository to the non-blocking API. Reads never block, and
+   * neither do writes unless they wait for the durable log to be synced, in
+   * which case they are run on virtual threads. Both reads and writes of the
+   * jdbc repository wait for the database, so are run on virtual threads.
+   *
+   * @param repositoryConfig the repository configuration
+   * @param repository the url repository
+   * @return the non-blocking url repository.
+   */
+  private static AsyncUrlRepository createAsyncUrlRepository(Config repositoryConfig,
+                                                             UrlRepository repository) {
+    if (isJdbc(repositoryConfig)) {
+      ExecutorService executor =
+          Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("shorty-repository-", 0).factory());
+      return new AsyncUrlRepositoryAdapter(repository, executor, executor);
+    }
+    if (repositoryConfig.get("durable.directory").exists()) {
+      return new AsyncUrlRepositoryAdapter(repository, null,
+          Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("shorty-repository-", 0).factory()));
+    }
+    return AsyncUrlRepositoryAdapter.inline(repository);
+  }
+
+  /**
+   * Returns the directory the configured repository stores data in, if it
+   * stores data on disk.
+   *
+   * @param repositoryConfig the repository configuration
+   * @return the data directory.
+   */
+  private static Optional<Path> dataDirectory(Config repositoryConfig) {
+    if ("segment".equals(repositoryConfig.get("type").asString().orElse("map"))) {
+      return Optional.of(Path.of(repositoryConfig.get("segment.directory").asString().orElse("segments")));
+    }
+    return repositoryConfig.get("durable.directory").asString().map(Path::of);
+  }
+
+  /**
+   * Returns the secret the leader and followers share, so neither starts
+   * with the replication endpoints open.
+   *
+   * @param replicationConfig the replication configuration
+   * @return the secret.
+   * @throws IllegalArgumentException if the secret isn't set
+   */
+  private static String replicationSecret(Config replicationConfig) {
+    return SharedSecretHandler.require(replicationConfig.get("secret").asString().orElse(null),
+        "shorty.replication.secret");
+  }
+
+  /**
+   * Returns true if the configured repository stores urls in a database.
+   *
+   * @param repositoryConfig the repository configuration
+   * @return true for the jdbc repository.
+   */
+  private static boolean isJdbc(Config repositoryConfig) {
+    return "jdbc".equals(repositoryConfig.get("type").asString().orElse("map"));
   }
 
   /**
@@ -53,7 +566,24 @@ public class UrlService {
    */
   protected void expiredUrlCleanup() {
     LOGGER.debug("Running scheduled cleanup of expired urls.");
-    getUrlRepository().purgeExpiredUrls();
+    long start = System.nanoTime();
+    try {
+      getUrlRepository().purgeExpiredUrls();
+      long now = System.currentTimeMillis();
+      if (fingerprintIndex != null) {
+        fingerprintIndex.purgeExpired(now);
+      }
+      // Drop the click counts and analytics of the expired urls
+      clickCounter.purgeExpired(now);
+      if (visitAnalytics != null) {
+        visitAnalytics.purgeExpired(now);
+      }
+    } catch (RuntimeException e) {
+      // An exception would cancel the scheduled cleanup, so log it and try
+      // again next time
+      LOGGER.error("Scheduled cleanup of expired urls failed.", e);
+    }
+    purgeDuration.recordSince(start);
   }
 
   /**
@@ -75,15 +605,84 @@ public class UrlService {
    * @return the short url.
    */
   public ShortUrl getUrl(String token) {
+    long start = System.nanoTime();
     ShortUrl url = getUrlRepository().getUrl(token);
     if (url != null) {
       LOGGER.debug("Returning url for token {}.", token);
     } else {
       LOGGER.debug("Url not found for token {}.", token);
     }
+    getLatency.recordSince(start);
     return url;
   }
 
+  /**
+   * Returns the short url for the given token, without blocking.
+   *
+   * @param token the token for the short url.
+   * @return a stage completed with the short url, or null if the url isn't
+   *     found.
+   */
+  public CompletionStage<ShortUrl> getUrlAsync(String token) {
+    long start = System.nanoTime();
+    return getAsyncUrlRepository().getUrl(token)
+        .whenComplete((url, error) -> getLatency.recordSince(start));
+  }
+
+  /**
+   * Returns the short url for the given token, for redirecting with caching
+   * headers derived from its expiry, without blocking.
+   *
+   * <p>Unlike {@link #getUrlAsync(String)} this doesn't record the get
+   * latency, as redirects record their own.
+   *
+   * @param token the token for the short url.
+   * @return a stage completed with the short url, or null if the url isn't
+   *     found.
+   */
+  public CompletionStage<ShortUrl> getUrlForRedirectAsync(String token) {
+    return getAsyncUrlRepository().getUrl(token);
+  }
+
+  /**
+   * Returns the repository redirects can read on the calling thread, if
+   * reads never block, so the redirect handler can answer without a
+   * completion stage.
+   *
+   * @return the repository, or null if reads must be asynchronous.
+   */
+  public UrlRepository getInlineReadRepository() {
+    AsyncUrlRepository repository = getAsyncUrlRepository();
+    return repository instanceof AsyncUrlRepositoryAdapter
+        ? ((AsyncUrlRepositoryAdapter) repository).getInlineReadRepository()
+        : null;
+  }
+
+  /**
+   * Returns the original url for the given token, for redirecting.
+   *
+   * <p>Unlike {@link #getUrl(String)} this doesn't log, as it is called for
+   * every redirect.
+   *
+   * @param token the token for the short url.
+   * @return the original url, or null if the url isn't found.
+   */
+  public String getOriginalUrl(String token) {
+    return getUrlRepository().getOriginalUrl(token);
+  }
+
+  /**
+   * Returns the original url for the given token, for redirecting without
+   * blocking.
+   *
+   * @param token the token for the short url.
+   * @return a stage completed with the original url, or null if the url
+   *     isn't found.
+   */
+  public CompletionStage<String> getOriginalUrlAsync(String token) {
+    return getAsyncUrlRepository().getOriginalUrl(token);
+  }
+
   /**
    * Creates a short url in the <code>UrlRepository</code>, generating a
    * unique token and calculating the expiry date.
@@ -93,28 +692,335 @@ public class UrlService {
    * @return the newly created short url.
    */
   public ShortUrl createUrl(String url, int expiryCode) {
-    String token = generateUniqueToken();
-    String expiry = getExpiry(expiryCode);
+    return createUrl(url, expiryCode, null);
+  }
+
+  /**
+   * Creates a short url in the <code>UrlRepository</code> for a client,
+   * generating a unique token and calculating the expiry date.
+   *
+   * <p>When dedup is enabled, an existing short url the client created for
+   * the same url and expiry code is returned instead, as long as at least
+   * half of its lifetime remains. Short urls aren't shared between clients,
+   * so a client deleting one doesn't break the links of another.
+   *
+   * @param url the original url
+   * @param expiryCode the expiry code
+   * @param client the client's API key, or null if the client isn't known,
+   *     in which case the url isn't deduplicated
+   * @return the newly created short url.
+   */
+  public ShortUrl createUrl(String url, int expiryCode, String client) {
+    long start = System.nanoTime();
+    try {
+      long expiryTime = getExpiryTime(expiryCode);
+      if (fingerprintIndex != null && client != null) {
+        String token = fingerprintIndex.get(client, url, expiryCode);
+        ShortUrl existing = token != null ? getUrlRepository().getUrl(token) : null;
+        if (isReusable(existing, url, expiryTime)) {
+          LOGGER.debug("Reusing url with token {}.", existing.getToken());
+          return existing;
+        }
+      }
+      ShortUrl shortUrl = null;
+      for (int attempt = 0; shortUrl == null; attempt++) {
+        checkTokenAttempts(attempt);
+        shortUrl = getUrlRepository().createUrl(newShortUrl(url, expiryTime));
+      }
+      indexCreatedUrl(shortUrl, expiryCode, client);
+      return shortUrl;
+    } finally {
+      createLatency.recordSince(start);
+    }
+  }
+
+  /**
+   * Creates a short url in the <code>UrlRepository</code> without blocking,
+   * in the same way as {@link #createUrl(String, int)}.
+   *
+   * @param url the original url
+   * @param expiryCode the expiry code
+   * @return a stage completed with the newly created short url, or completed
+   *     exceptionally with an {@link IllegalArgumentException} if the expiry
+   *     code is invalid.
+   */
+  public CompletionStage<ShortUrl> createUrlAsync(String url, int expiryCode) {
+    return createUrlAsync(url, expiryCode, null);
+  }
+
+  /**
+   * Creates a short url in the <code>UrlRepository</code> for a client
+   * without blocking, in the same way as
+   * {@link #createUrl(String, int, String)}.
+   *
+   * @param url the original url
+   * @param expiryCode the expiry code
+   * @param client the client's API key, or null
+   * @return a stage completed with the newly created short url, or completed
+   *     exceptionally with an {@link IllegalArgumentException} if the expiry
+   *     code is invalid.
+   */
+  public CompletionStage<ShortUrl> createUrlAsync(String url, int expiryCode, String client) {
+    long start = System.nanoTime();
+    long expiryTime;
+    try {
+      expiryTime = getExpiryTime(expiryCode);
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.failedStage(e);
+    }
+    String token = fingerprintIndex != null && client != null
+        ? fingerprintIndex.get(client, url, expiryCode)
+        : null;
+    CompletionStage<ShortUrl> existing = token != null
+        ? getAsyncUrlRepository().getUrl(token)
+        : CompletableFuture.completedStage(null);
+    return existing
+        .thenCompose(found -> {
+          if (isReusable(found, url, expiryTime)) {
+            LOGGER.debug("Reusing url with token {}.", found.getToken());
+            return CompletableFuture.completedStage(found);
+          }
+          return createNewUrlAsync(url, expiryTime, 0)
+              .thenApply(shortUrl -> {
+                indexCreatedUrl(shortUrl, expiryCode, client);
+                return shortUrl;
+              });
+        })
+        .whenComplete((shortUrl, error) -> createLatency.recordSince(start));
+  }
+
+  /**
+   * Stores a short url with a new token without blocking, generating
+   * another token while the token is already in use.
+   *
+   * @param url the original url
+   * @param expiryTime the expiry time
+   * @param attempt the number of tokens already tried
+   * @return a stage completed with the created short url.
+   */
+  private CompletionStage<ShortUrl> createNewUrlAsync(String url, long expiryTime, int attempt) {
+    try {
+      checkTokenAttempts(attempt);
+    } catch (IllegalStateException e) {
+      return CompletableFuture.failedStage(e);
+    }
+    return getAsyncUrlRepository().createUrl(newShortUrl(url, expiryTime))
+        .thenCompose(shortUrl -> shortUrl != null
+            ? CompletableFuture.completedStage(shortUrl)
+            : createNewUrlAsync(url, expiryTime, attempt + 1));
+  }
+
+  /**
+   * Counts a token that was already in use before another is tried, and
+   * gives up once too many have been.
+   *
+   * @param attempt the number of tokens already tried
+   * @throws IllegalStateException if too many tokens have been tried
+   */
+  private void checkTokenAttempts(int attempt) {
+    if (attempt == 0) {
+      return;
+    }
+    tokenConflicts.increment();
+    LOGGER.warn("Generated token was already in use, generating another.");
+    if (attempt >= MAX_TOKEN_ATTEMPTS) {
+      throw new IllegalStateException("No unused token found after " + attempt + " attempts.");
+    }
+  }
+
+  /**
+   * Builds a short url with a new token.
+   *
+   * @param url the original url
+   * @param expiryTime the expiry time
+   * @return the short url.
+   */
+  private ShortUrl newShortUrl(String url, long expiryTime) {
+    String token = generateToken();
     LOGGER.debug("Creating url with token {}.", token);
-    return getUrlRepository().createUrl(new ShortUrl.Builder()
+    return new ShortUrl.Builder()
         .token(token)
         .originalUrl(url)
-        .expiry(expiry)
-        .build());
+        .expiryTime(expiryTime)
+        .build();
+  }
+
+  /**
+   * Indexes a created short url for dedup, if dedup is enabled and the
+   * client is known.
+   *
+   * @param shortUrl the created short url
+   * @param expiryCode the expiry code it was created with
+   * @param client the client's API key, or null
+   */
+  private void indexCreatedUrl(ShortUrl shortUrl, int expiryCode, String client) {
+    if (fingerprintIndex != null && client != null) {
+      fingerprintIndex.put(client, shortUrl.getOriginalUrl(), expiryCode, shortUrl.getToken(),
+          shortUrl.getExpiryTime());
+    }
   }
 
   /**
-   * Calculates and returns a date string representing the expiry
-   * date of a url, for the given expiry code.
+   * Returns true if the short url indexed for a url can be returned instead
+   * of creating a new one, which is when it still exists and at least half of
+   * its lifetime remains.
+   *
+   * @param existing the short url indexed for the url, or null
+   * @param url the original url
+   * @param expiryTime the expiry time a new short url would have
+   * @return true if the existing short url can be reused.
+   */
+  private static boolean isReusable(ShortUrl existing, String url, long expiryTime) {
+    // The index only has fingerprints, so check it is really the same url
+    if (existing == null || !existing.getOriginalUrl().equals(url)) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    return existing.getExpiryTime() - now >= (expiryTime - now) / 2;
+  }
+
+  /**
+   * Creates a batch of short urls in the <code>UrlRepository</code>, with a
+   * single call to the repository.
+   *
+   * <p>A url whose token is already in use is given a new token, up to
+   * {@link #MAX_TOKEN_ATTEMPTS} times as {@link #createUrl(String, int)}
+   * does, and if none of them are unused it isn't created.
+   *
+   * @param urls the original urls
+   * @param expiryCodes the expiry code for each url
+   * @return the newly created short urls, in the same order as the urls,
+   *     with null for a url no unused token was found for.
+   * @throws IllegalArgumentException if an expiry code is invalid
+   */
+  public List<ShortUrl> createUrls(List<String> urls, List<Integer> expiryCodes) {
+    return createUrls(urls, expiryCodes, null);
+  }
+
+  /**
+   * Creates a batch of short urls in the <code>UrlRepository</code> for a
+   * client, with a single call to the repository.
+   *
+   * <p>When dedup is enabled, urls are deduplicated as by
+   * {@link #createUrl(String, int, String)}, against the client's earlier
+   * short urls and within the batch. Only urls that were stored are
+   * indexed.
+   *
+   * @param urls the original urls
+   * @param expiryCodes the expiry code for each url
+   * @param client the client's API key, or null
+   * @return the short urls, in the same order as the urls, with null for a
+   *     url no unused token was found for.
+   * @throws IllegalArgumentException if an expiry code is invalid
+   */
+  public List<ShortUrl> createUrls(List<String> urls, List<Integer> expiryCodes, String client) {
+    boolean dedup = fingerprintIndex != null && client != null;
+    // Every url in the batch with the same expiry code gets the same expiry time
+    long[] expiryTimes = new long[4];
+    Arrays.fill(expiryTimes, -1);
+    List<ShortUrl> shortUrls = new ArrayList<>(urls.size());
+    List<ShortUrl> created = dedup ? new ArrayList<>(urls.size()) : shortUrls;
+    List<Integer> createdCodes = dedup ? new ArrayList<>(urls.size()) : null;
+    // The short url for each url and expiry code seen in the batch
+    Map<String, ShortUrl> batch = dedup ? new HashMap<>() : null;
+    for (int i = 0; i < urls.size(); i++) {
+      String url = urls.get(i);
+      int expiryCode = expiryCodes.get(i);
+      // getExpiryTime() rejects invalid expiry codes before they are used as an index
+      if (expiryCode < 0 || expiryCode >= expiryTimes.length || expiryTimes[expiryCode] < 0) {
+        expiryTimes[expiryCode] = getExpiryTime(expiryCode);
+      }
+      if (!dedup) {
+        shortUrls.add(newShortUrl(url, expiryTimes[expiryCode]));
+        continue;
+      }
+      ShortUrl shortUrl = batch.computeIfAbsent(expiryCode + " " + url, key -> {
+        String token = fingerprintIndex.get(client, url, expiryCode);
+        ShortUrl existing = token != null ? getUrlRepository().getUrl(token) : null;
+        if (isReusable(existing, url, expiryTimes[expiryCode])) {
+          return existing;
+        }
+        ShortUrl newUrl = newShortUrl(url, expiryTimes[expiryCode]);
+        created.add(newUrl);
+        createdCodes.add(expiryCode);
+        return newUrl;
+      });
+      shortUrls.add(shortUrl);
+    }
+    LOGGER.debug("Creating {} urls.", created.size());
+    if (!dedup) {
+      storeUrls(created);
+      return shortUrls;
+    }
+    List<ShortUrl> generated = new ArrayList<>(created);
+    storeUrls(created);
+    // Urls repeated in the batch share a short url, so replace every use of one that changed
+    Map<ShortUrl, ShortUrl> replaced = new IdentityHashMap<>();
+    for (int i = 0; i < created.size(); i++) {
+      ShortUrl stored = created.get(i);
+      if (stored != generated.get(i)) {
+        replaced.put(generated.get(i), stored);
+      }
+      if (stored != null) {
+        indexCreatedUrl(stored, createdCodes.get(i), client);
+      }
+    }
+    if (!replaced.isEmpty()) {
+      shortUrls.replaceAll(shortUrl -> replaced.getOrDefault(shortUrl, shortUrl));
+    }
+    return shortUrls;
+  }
+
+  /**
+   * Stores a batch of new short urls, giving any whose token was already in
+   * use a new token and storing them again, up to
+   * {@link #MAX_TOKEN_ATTEMPTS} times.
+   *
+   * @param shortUrls the new short urls, each replaced by the short url that
+   *     was stored for it, or null if no unused token was found
+   */
+  private void storeUrls(List<ShortUrl> shortUrls) {
+    List<ShortUrl> batch = shortUrls;
+    // The index in shortUrls of each url in the batch, or null for the first batch
+    List<Integer> indexes = null;
+    for (int attempt = 1; !batch.isEmpty(); attempt++) {
+      BitSet skipped = getUrlRepository().createUrls(batch);
+      List<ShortUrl> retries = new ArrayList<>(skipped.cardinality());
+      List<Integer> retryIndexes = new ArrayList<>(skipped.cardinality());
+      for (int i = skipped.nextSetBit(0); i >= 0; i = skipped.nextSetBit(i + 1)) {
+        int index = indexes != null ? indexes.get(i) : i;
+        ShortUrl conflict = batch.get(i);
+        tokenConflicts.increment();
+        if (attempt >= MAX_TOKEN_ATTEMPTS) {
+          LOGGER.warn("No unused token found after {} attempts, not creating url.", attempt);
+          shortUrls.set(index, null);
+          continue;
+        }
+        ShortUrl retry = newShortUrl(conflict.getOriginalUrl(), conflict.getExpiryTime());
+        shortUrls.set(index, retry);
+        retries.add(retry);
+        retryIndexes.add(index);
+      }
+      if (!retries.isEmpty()) {
+        LOGGER.warn("{} generated tokens were already in use, generating others.", retries.size());
+      }
+      batch = retries;
+      indexes = retryIndexes;
+    }
+  }
+
+  /**
+   * Calculates and returns the expiry time of a url in epoch milliseconds,
+   * for the given expiry code.
    *
    * <p>Expiry code can be 0,1,2, or 3.
    *
    * @param expiryCode the expiry code
-   * @return the string expiry date.
+   * @return the expiry time.
    * @throws IllegalArgumentException if expiry code is invalid
    */
-  protected String getExpiry(int expiryCode) {
-    LocalDateTime expiry = null;
+  protected long getExpiryTime(int expiryCode) {
+    ZonedDateTime expiry = null;
 
     // Throw exception if the expiry code is not in the expected range
     if (expiryCode < 0 || expiryCode > 3) {
@@ -124,22 +1030,22 @@ public class UrlService {
     switch (expiryCode) {
       // 0 = 1 minute
       case 0:
-        expiry = LocalDateTime.now().plusMinutes(1);
+        expiry = ZonedDateTime.now().plusMinutes(1);
         break;
       // 1 = 1 hour
       case 1:
-        expiry = LocalDateTime.now().plusHours(1);
+        expiry = ZonedDateTime.now().plusHours(1);
         break;
       // 2 = 1 day
       case 2:
-        expiry = LocalDateTime.now().plusDays(1);
+        expiry = ZonedDateTime.now().plusDays(1);
         break;
       // 3 = 1 year
       case 3:
-        expiry = LocalDateTime.now().plusYears(1);
+        expiry = ZonedDateTime.now().plusYears(1);
         break;
     }
-    return expiry.toString();
+    return expiry.toInstant().toEpochMilli();
   }
 
   /**
@@ -148,40 +1054,222 @@ public class UrlService {
    * @param token the token for the short url
    */
   public void deleteUrl(String token) {
+    deleteUrl(token, null);
+  }
+
+  /**
+   * Deletes the short url for the given token, for a client.
+   *
+   * <p>When dedup is enabled the client's index entry for the url is
+   * removed. An entry of another client for a deleted url is left until it
+   * expires, and isn't reused as the url no longer exists.
+   *
+   * @param token the token for the short url
+   * @param client the client's API key, or null
+   */
+  public void deleteUrl(String token, String client) {
+    long start = System.nanoTime();
     LOGGER.debug("Deleting url for token {}.", token);
+    if (fingerprintIndex != null && client != null) {
+      ShortUrl shortUrl = getUrlRepository().getUrl(token);
+      if (shortUrl != null) {
+        // The expiry code isn't stored, but only its own entry maps to this token
+        for (int expiryCode = 0; expiryCode <= 3; expiryCode++) {
+          fingerprintIndex.remove(client, shortUrl.getOriginalUrl(), expiryCode, token);
+        }
+      }
+    }
     getUrlRepository().deleteUrl(token);
+    removeStats(token);
+    deleteLatency.recordSince(start);
   }
 
   /**
-   * A new unique token for a short url.
+   * Deletes the short url for the given token without blocking, in the same
+   * way as {@link #deleteUrl(String)}.
    *
-   * @return the unique token.
+   * @param token the token for the short url
+   * @return a stage completed when the url has been deleted.
    */
-  protected String generateUniqueToken() {
-    boolean unique = false;
-    String token = null;
-    // Avoid conflicts in the repository by continuing until
-    // we generate a new unique token
-    while (!unique) {
-      token = generateToken();
-      unique = getUrlRepository().getUrl(token) == null;
+  public CompletionStage<Void> deleteUrlAsync(String token) {
+    return deleteUrlAsync(token, null);
+  }
+
+  /**
+   * Deletes the short url for the given token, for a client, without
+   * blocking, in the same way as {@link #deleteUrl(String, String)}.
+   *
+   * @param token the token for the short url
+   * @param client the client's API key, or null
+   * @return a stage completed when the url has been deleted.
+   */
+  public CompletionStage<Void> deleteUrlAsync(String token, String client) {
+    long start = System.nanoTime();
+    LOGGER.debug("Deleting url for token {}.", token);
+    CompletionStage<Void> unindexed = fingerprintIndex == null || client == null
+        ? CompletableFuture.completedStage(null)
+        : getAsyncUrlRepository().getUrl(token).thenAccept(shortUrl -> {
+          if (shortUrl != null) {
+            for (int expiryCode = 0; expiryCode <= 3; expiryCode++) {
+              fingerprintIndex.remove(client, shortUrl.getOriginalUrl(), expiryCode, token);
+            }
+          }
+        });
+    return unindexed
+        .thenCompose(ignored -> getAsyncUrlRepository().deleteUrl(token))
+        .thenRun(() -> removeStats(token))
+        .whenComplete((ignored, error) -> deleteLatency.recordSince(start));
+  }
+
+  /**
+   * Removes the click count and analytics of a deleted short url.
+   *
+   * @param token the token for the short url
+   */
+  private void removeStats(String token) {
+    clickCounter.remove(token);
+    if (visitAnalytics != null) {
+      visitAnalytics.remove(token);
     }
-    return token;
   }
 
   /**
-   * Generates and returns a new 7-digit token.
+   * Records a redirect to the original url of the short url for the token.
+   *
+   * <p>This is called for every redirect, so doesn't lock or log.
+   *
+   * @param token the token for the short url
+   */
+  public void recordClick(String token) {
+    clickCounter.record(token);
+  }
+
+  /**
+   * Records a redirect to the original url of the short url for the token,
+   * including it in the visit analytics if they are enabled.
+   *
+   * @param token the token for the short url
+   * @param visitor the visitor's address
+   * @param referrer the referer header, or null
+   * @param userAgent the user agent header, or null
+   */
+  public void recordClick(String token, String visitor, String referrer, String userAgent) {
+    clickCounter.record(token);
+    if (visitAnalytics != null) {
+      visitAnalytics.record(token, visitor, referrer, userAgent);
+    }
+  }
+
+  /**
+   * Returns the name of the header with the client's API key, which the
+   * REST API passes to the url service so urls are only deduplicated for
+   * the client that created them.
+   *
+   * @return the header name.
+   */
+  public String getClientKeyHeader() {
+    return clientKeyHeader;
+  }
+
+  /**
+   * Returns true if visits are recorded in the visit analytics, so the
+   * redirect handler only reads the request headers it needs when they are.
+   *
+   * @return true if analytics are enabled.
+   */
+  public boolean isAnalyticsEnabled() {
+    return visitAnalytics != null;
+  }
+
+  /**
+   * Returns the visit analytics for the token.
+   *
+   * @param token the token for the short url
+   * @return the analytics, or null if analytics are disabled or the short
+   *     url hasn't been visited.
+   */
+  public AnalyticsSummary getAnalytics(String token) {
+    return visitAnalytics != null ? visitAnalytics.getSummary(token) : null;
+  }
+
+  /**
+   * Returns the number of redirects recorded for the token.
+   *
+   * @param token the token for the short url
+   * @return the click count.
+   */
+  public long getClickCount(String token) {
+    return clickCounter.getCount(token);
+  }
+
+  /**
+   * Writes every unexpired short url to the stream, without blocking
+   * redirects while it runs.
+   *
+   * @param stream the stream to write to
+   * @param format the format to write
+   * @return the number of urls exported.
+   * @throws IOException if the stream can't be written
+   */
+  public long exportUrls(OutputStream stream, UrlArchive.Format format) throws IOException {
+    long start = System.currentTimeMillis();
+    long count = UrlArchive.exportUrls(getUrlRepository(), stream, format);
+    LOGGER.info("Exported {} urls in {}ms.", count, System.currentTimeMillis() - start);
+    return count;
+  }
+
+  /**
+   * Loads short urls exported by {@link #exportUrls(OutputStream, UrlArchive.Format)}
+   * into the <code>UrlRepository</code>.
+   *
+   * <p>Urls whose token is empty, longer than the token length or has
+   * characters that aren't token characters are skipped, as are urls whose
+   * token is already in use. The token generator
+   * skips past any imported token it could generate, so it is never
+   * generated again, and urls whose token it can't skip without giving up
+   * too many tokens are skipped too. Restoring an export into the node that
+   * made it, or importing from nodes with other node ids and the same
+   * permutation key, skips none.
+   *
+   * @param stream the stream to read
+   * @param format the format of the stream
+   * @return the number of urls imported and skipped.
+   * @throws IOException if the stream can't be read
+   */
+  public UrlArchive.ImportResult importUrls(InputStream stream, UrlArchive.Format format) throws IOException {
+    long start = System.currentTimeMillis();
+    UrlArchive.ImportResult result = UrlArchive.importUrls(stream, getUrlRepository(), format,
+        shortUrl -> isValidToken(shortUrl.getToken())
+            && getUrlRepository().getUrl(shortUrl.getToken()) == null
+            && tokenGenerator.reserve(shortUrl.getToken()));
+    LOGGER.info("Imported {} urls and skipped {} in {}ms.", result.getImported(), result.getSkipped(),
+        System.currentTimeMillis() - start);
+    return result;
+  }
+
+  /**
+   * Returns whether a token made elsewhere, such as an imported token, could
+   * have been made by a token generator with this configuration, though
+   * possibly a shorter one.
+   *
+   * @param token the token
+   * @return true if the token is valid.
+   */
+  private boolean isValidToken(String token) {
+    return token.length() <= tokenLength && tokenCodec.encode(token) > 0;
+  }
+
+  /**
+   * Generates and returns a new unique token for a short url.
+   *
+   * <p>Tokens from the token generator don't conflict with each other, and
+   * imported tokens are reserved, so the repository only rarely finds a
+   * token in use, such as when node ids were misconfigured.
    *
    * @return the new token.
    */
   protected String generateToken() {
-    StringBuffer sb = new StringBuffer();
-    for (int i=0; i<tokenLength; i++) {
-      // Add random numbers from the token character array
-      int random = new Random().nextInt(tokenCharacters.length);
-      sb.append(tokenCharacters[random]);
-    }
-    return sb.toString();
+    return tokenGenerator.nextToken();
   }
 
   /**
@@ -190,6 +1278,45 @@ public class UrlService {
    * @return the url repository.
    */
   protected UrlRepository getUrlRepository() {
-    return MapUrlRepository.getInstance();
+    return urlRepository;
+  }
+
+  /**
+   * Returns the repository partitioned across the cluster, if the service is
+   * a member of one.
+   *
+   * @return the sharded repository, or null if clustering isn't configured.
+   */
+  public ShardedUrlRepository getShardedRepository() {
+    return shardedRepository;
+  }
+
+  /**
+   * Returns the repository of the replication leader, if the service is the
+   * leader.
+   *
+   * @return the leader repository, or null if this isn't the leader.
+   */
+  public LeaderUrlRepository getLeaderRepository() {
+    return leaderRepository;
+  }
+
+  /**
+   * Returns the repository of a replication follower, if the service is a
+   * follower. Followers don't accept creates or deletes.
+   *
+   * @return the follower repository, or null if this isn't a follower.
+   */
+  public FollowerUrlRepository getFollowerRepository() {
+    return followerRepository;
+  }
+
+  /**
+   * Returns the <code>UrlRepository</code> adapted to the non-blocking API.
+   *
+   * @return the non-blocking url repository.
+   */
+  protected AsyncUrlRepository getAsyncUrlRepository() {
+    return asyncUrlRepository;
   }
 }
@@ -0,0 +1,64 @@
+package com.gmpatter.shorty.stats;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A summary of the visits to a short url. The counts are estimates.
+ *
+ * @author Gareth Patterson
+ */
+public class AnalyticsSummary {
+
+  private final long uniqueVisitors;
+  private final List<Map.Entry<String, Long>> topReferrers;
+  private final List<Map.Entry<String, Long>> topUserAgents;
+  private final int[] visitsPerMinute;
+
+  AnalyticsSummary(long uniqueVisitors, List<Map.Entry<String, Long>> topReferrers,
+                   List<Map.Entry<String, Long>> topUserAgents, int[] visitsPerMinute) {
+    this.uniqueVisitors = uniqueVisitors;
+    this.topReferrers = topReferrers;
+    this.topUserAgents = topUserAgents;
+    this.visitsPerMinute = visitsPerMinute;
+  }
+
+  /**
+   * Returns the estimated number of distinct visitors.
+   *
+   * @return the unique visitors.
+   */
+  public long getUniqueVisitors() {
+    return uniqueVisitors;
+  }
+
+  /**
+   * Returns the most frequent referrers and their estimated counts, most
+   * frequent first.
+   *
+   * @return the top referrers.
+   */
+  public List<Map.Entry<String, Long>> getTopReferrers() {
+    return topReferrers;
+  }
+
+  /**
+   * Returns the most frequent user agents and their estimated counts, most
+   * frequent first.
+   *
+   * @return the top user agents.
+   */
+  public List<Map.Entry<String, Long>> getTopUserAgents() {
+    return topUserAgents;
+  }
+
+  /**
+   * Returns the number of visits in each of the last 60 minutes, oldest
+   * first, ending with the current minute.
+   *
+   * @return the visits per minute.
+   */
+  public int[] getVisitsPerMinute() {
+    return visitsPerMinute.clone();
+  }
+}
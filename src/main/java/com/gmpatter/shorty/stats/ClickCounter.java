@@ -0,0 +1,224 @@
+package com.gmpatter.shorty.stats;
+
+import com.gmpatter.shorty.persistence.ExpiryIndex;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counts the clicks on each short url without adding contention to the
+ * redirect path.
+ *
+ * <p>Recording a click only appends the token to a {@link StripedBuffer},
+ * and a background thread periodically drains the buffers into the
+ * per-token totals. If a buffer is full the click is added to the totals
+ * directly, so clicks are never lost.
+ *
+ * <p>Totals are drained before they are read, so reads see every click
+ * recorded before them.
+ *
+ * <p>The expiry time of each token's short url is looked up once, when the
+ * token is first counted, and indexed so the counts of expired short urls
+ * can be dropped without looking up every counted token again.
+ *
+ * @author Gareth Patterson
+ */
+public class ClickCounter implements AutoCloseable {
+
+  static final int BUFFER_SIZE = 1024;
+  // The expiry time of a count whose short url hasn't been looked up yet
+  private static final long UNRESOLVED = -1;
+
+  private final StripedBuffer<String> buffer = new StripedBuffer<>(BUFFER_SIZE);
+  private final Map<String, Count> totals = new ConcurrentHashMap<>();
+  private final ExpiryIndex<String> expiryIndex = new ExpiryIndex<>();
+  private final ToLongFunction<String> expiryTimes;
+  // Tokens first counted when their buffer was full, whose expiry times are
+  // looked up on the next drain rather than on the redirect path
+  private final Set<String> unresolved = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService drainExecutor;
+  // Consecutive clicks on the same token are added to the totals together
+  private String previous;
+  private long run;
+
+  /**
+   * Creates a click counter.
+   *
+   * @param drainIntervalMillis the milliseconds between draining the
+   *     buffers, or 0 to only drain when reading totals
+   * @param expiryTimes returns the expiry time of the short url for a token,
+   *     or a negative number if the short url doesn't exist
+   */
+  public ClickCounter(long drainIntervalMillis, ToLongFunction<String> expiryTimes) {
+    this.expiryTimes = expiryTimes;
+    if (drainIntervalMillis > 0) {
+      drainExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shorty-click-drain");
+        thread.setDaemon(true);
+        return thread;
+      });
+      drainExecutor.scheduleWithFixedDelay(this::drain, drainIntervalMillis, drainIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    } else {
+      drainExecutor = null;
+    }
+  }
+
+  /**
+   * Records a click on the short url for the token.
+   *
+   * @param token the token of the short url
+   */
+  public void record(String token) {
+    if (!buffer.offer(token)) {
+      addUnresolved(token);
+    }
+  }
+
+  /**
+   * Returns the number of clicks recorded for the token.
+   *
+   * @param token the token of the short url
+   * @return the click count.
+   */
+  public long getCount(String token) {
+    drain();
+    Count count = totals.get(token);
+    return count != null ? count.clicks.sum() : 0;
+  }
+
+  /**
+   * Removes the click count for the token, when its short url is deleted.
+   *
+   * @param token the token of the short url
+   */
+  public void remove(String token) {
+    drain();
+    Count count = totals.remove(token);
+    if (count != null && count.expiryTime != UNRESOLVED) {
+      expiryIndex.remove(count.expiryTime, token);
+    }
+  }
+
+  /**
+   * Removes the click counts for expired short urls.
+   *
+   * @param currentTime the current time in epoch milliseconds
+   * @return the number of counts removed.
+   */
+  public int purgeExpired(long currentTime) {
+    drain();
+    return expiryIndex.pollExpired(currentTime, totals::remove);
+  }
+
+  /**
+   * Returns the number of tokens with click counts.
+   *
+   * @return the number of tokens.
+   */
+  public int size() {
+    drain();
+    return totals.size();
+  }
+
+  /**
+   * Stops draining the buffers in the background.
+   */
+  @Override
+  public void close() {
+    if (drainExecutor != null) {
+      drainExecutor.shutdown();
+    }
+    drain();
+  }
+
+  /**
+   * Adds the clicks in every buffer to the totals, and looks up the expiry
+   * times of the tokens first counted when their buffer was full.
+   */
+  synchronized void drain() {
+    buffer.drainTo(this::coalesce);
+    if (previous != null) {
+      add(previous, run);
+      previous = null;
+    }
+    for (Iterator<String> tokens = unresolved.iterator(); tokens.hasNext(); ) {
+      String token = tokens.next();
+      tokens.remove();
+      Count count = totals.get(token);
+      if (count != null) {
+        long expiryTime = expiryTimes.applyAsLong(token);
+        if (expiryTime < 0) {
+          // Deleted since the click
+          totals.remove(token);
+        } else {
+          count.expiryTime = expiryTime;
+          expiryIndex.add(expiryTime, token);
+        }
+      }
+    }
+  }
+
+  private void coalesce(String token) {
+    if (token.equals(previous)) {
+      run++;
+    } else {
+      if (previous != null) {
+        add(previous, run);
+      }
+      previous = token;
+      run = 1;
+    }
+  }
+
+  private void add(String token, long clicks) {
+    Count count = totals.get(token);
+    if (count == null) {
+      long expiryTime = expiryTimes.applyAsLong(token);
+      if (expiryTime < 0) {
+        // Deleted since the clicks
+        return;
+      }
+      Count created = new Count(expiryTime);
+      count = totals.putIfAbsent(token, created);
+      if (count == null) {
+        count = created;
+        expiryIndex.add(expiryTime, token);
+      }
+    }
+    count.clicks.add(clicks);
+  }
+
+  private void addUnresolved(String token) {
+    Count count = totals.get(token);
+    if (count == null) {
+      Count created = new Count(UNRESOLVED);
+      count = totals.putIfAbsent(token, created);
+      if (count == null) {
+        count = created;
+        unresolved.add(token);
+      }
+    }
+    count.clicks.increment();
+  }
+
+  /**
+   * The clicks on a token, and the expiry time of its short url.
+   */
+  private static final class Count {
+
+    private final LongAdder clicks = new LongAdder();
+    private volatile long expiryTime;
+
+    Count(long expiryTime) {
+      this.expiryTime = expiryTime;
+    }
+  }
+}
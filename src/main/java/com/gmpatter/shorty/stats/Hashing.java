@@ -0,0 +1,32 @@
+package com.gmpatter.shorty.stats;
+
+/**
+ * Hash functions for the sketches and the cluster's hash ring.
+ *
+ * @author Gareth Patterson
+ */
+public final class Hashing {
+
+  private Hashing() {
+  }
+
+  /**
+   * Returns a well mixed 64 bit hash of the string, FNV-1a followed by the
+   * MurmurHash3 finalizer.
+   *
+   * @param value the string to hash
+   * @return the hash.
+   */
+  public static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
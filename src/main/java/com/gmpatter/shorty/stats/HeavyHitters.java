@@ -0,0 +1,107 @@
+package com.gmpatter.shorty.stats;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the most frequent values in a stream, such as referrers, in fixed
+ * memory.
+ *
+ * <p>Every value is counted in a Count-Min sketch of {@value #DEPTH} rows of
+ * {@value #WIDTH} counters, which never under-estimates a count. The top
+ * {@value #TOP} values by estimated count are kept as candidates, and a new
+ * value replaces the lowest candidate once its estimate is higher. Values are
+ * truncated to {@value #MAX_VALUE_LENGTH} characters.
+ *
+ * <p>Instances are not thread-safe, callers must guard them with a lock.
+ *
+ * @author Gareth Patterson
+ */
+class HeavyHitters {
+
+  static final int DEPTH = 4;
+  static final int WIDTH = 64;
+  static final int TOP = 5;
+  static final int MAX_VALUE_LENGTH = 256;
+
+  private final int[] counters = new int[DEPTH * WIDTH];
+  private final String[] values = new String[TOP];
+  private final long[] counts = new long[TOP];
+
+  /**
+   * Adds an occurrence of the value.
+   *
+   * @param value the value
+   */
+  void add(String value) {
+    if (value.length() > MAX_VALUE_LENGTH) {
+      value = value.substring(0, MAX_VALUE_LENGTH);
+    }
+    long hash = Hashing.hash(value);
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      int index = row * WIDTH + column(hash, row);
+      if (counters[index] < Integer.MAX_VALUE) {
+        counters[index]++;
+      }
+      estimate = Math.min(estimate, counters[index]);
+    }
+
+    int lowest = 0;
+    for (int i = 0; i < TOP; i++) {
+      if (value.equals(values[i])) {
+        counts[i] = estimate;
+        return;
+      }
+      // Empty slots have a count of 0, so are replaced first
+      if (counts[i] < counts[lowest]) {
+        lowest = i;
+      }
+    }
+    if (estimate > counts[lowest]) {
+      values[lowest] = value;
+      counts[lowest] = estimate;
+    }
+  }
+
+  /**
+   * Returns the estimated count of the value.
+   *
+   * @param value the value
+   * @return the estimated count, which may be too high but is never too low.
+   */
+  long estimate(String value) {
+    if (value.length() > MAX_VALUE_LENGTH) {
+      value = value.substring(0, MAX_VALUE_LENGTH);
+    }
+    long hash = Hashing.hash(value);
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      estimate = Math.min(estimate, counters[row * WIDTH + column(hash, row)]);
+    }
+    return estimate;
+  }
+
+  /**
+   * Returns the most frequent values, most frequent first.
+   *
+   * @return the values and their estimated counts.
+   */
+  List<Map.Entry<String, Long>> top() {
+    List<Map.Entry<String, Long>> top = new ArrayList<>(TOP);
+    for (int i = 0; i < TOP; i++) {
+      if (values[i] != null) {
+        top.add(Map.entry(values[i], counts[i]));
+      }
+    }
+    top.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+    return top;
+  }
+
+  private static int column(long hash, int row) {
+    // Each row uses a different 16 bits of the hash
+    return (int) (hash >>> (row * 16)) & (WIDTH - 1);
+  }
+}
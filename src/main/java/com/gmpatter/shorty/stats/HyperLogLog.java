@@ -0,0 +1,56 @@
+package com.gmpatter.shorty.stats;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct items added to it,
+ * in a fixed {@value #REGISTERS} bytes, with a standard error of about 3%.
+ *
+ * <p>Instances are not thread-safe, callers must guard them with a lock.
+ *
+ * @author Gareth Patterson
+ */
+class HyperLogLog {
+
+  static final int PRECISION = 10;
+  static final int REGISTERS = 1 << PRECISION;
+
+  private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+  private final byte[] registers = new byte[REGISTERS];
+
+  /**
+   * Adds an item to the sketch.
+   *
+   * @param hash a 64 bit hash of the item
+   */
+  void add(long hash) {
+    int index = (int) (hash >>> (Long.SIZE - PRECISION));
+    // The marker bit limits the rank when the remaining bits are all zero
+    long rest = (hash << PRECISION) | (1L << (PRECISION - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+    if (rank > registers[index]) {
+      registers[index] = rank;
+    }
+  }
+
+  /**
+   * Returns the estimated number of distinct items added.
+   *
+   * @return the estimated cardinality.
+   */
+  long estimate() {
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+    // Linear counting is more accurate for small cardinalities
+    if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+      estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+    }
+    return Math.round(estimate);
+  }
+}
@@ -0,0 +1,76 @@
+package com.gmpatter.shorty.stats;
+
+/**
+ * The analytics for one short url, in fixed memory however many visits it
+ * has: a {@link HyperLogLog} of visitors, {@link HeavyHitters} of referrers
+ * and user agents, and visit counts for each of the last
+ * {@value #MINUTES} minutes.
+ *
+ * @author Gareth Patterson
+ */
+class LinkAnalytics {
+
+  static final int MINUTES = 60;
+  static final long MINUTE_MILLIS = 60000;
+
+  private final long expiryTime;
+  private final HyperLogLog visitors = new HyperLogLog();
+  private final HeavyHitters referrers = new HeavyHitters();
+  private final HeavyHitters userAgents = new HeavyHitters();
+  // A ring of per-minute counts, with the minute each count is for
+  private final long[] minutes = new long[MINUTES];
+  private final int[] minuteCounts = new int[MINUTES];
+
+  /**
+   * Creates empty analytics for a short url.
+   *
+   * @param expiryTime the expiry time of the short url
+   */
+  LinkAnalytics(long expiryTime) {
+    this.expiryTime = expiryTime;
+  }
+
+  /**
+   * Returns the expiry time of the short url.
+   *
+   * @return the expiry time.
+   */
+  long getExpiryTime() {
+    return expiryTime;
+  }
+
+  /**
+   * Adds a visit to the analytics.
+   *
+   * @param visit the visit
+   */
+  synchronized void add(Visit visit) {
+    visitors.add(Hashing.hash(visit.visitor) ^ Long.rotateLeft(Hashing.hash(visit.userAgent), 31));
+    referrers.add(visit.referrer);
+    userAgents.add(visit.userAgent);
+    long minute = visit.time / MINUTE_MILLIS;
+    int slot = (int) (minute % MINUTES);
+    if (minutes[slot] != minute) {
+      minutes[slot] = minute;
+      minuteCounts[slot] = 0;
+    }
+    minuteCounts[slot]++;
+  }
+
+  /**
+   * Returns a summary of the analytics.
+   *
+   * @param currentTime the current time in epoch milliseconds
+   * @return the summary.
+   */
+  synchronized AnalyticsSummary summary(long currentTime) {
+    long currentMinute = currentTime / MINUTE_MILLIS;
+    int[] visitsPerMinute = new int[MINUTES];
+    for (int i = 0; i < MINUTES; i++) {
+      long minute = currentMinute - (MINUTES - 1) + i;
+      int slot = (int) (minute % MINUTES);
+      visitsPerMinute[i] = minutes[slot] == minute ? minuteCounts[slot] : 0;
+    }
+    return new AnalyticsSummary(visitors.estimate(), referrers.top(), userAgents.top(), visitsPerMinute);
+  }
+}
@@ -0,0 +1,104 @@
+package com.gmpatter.shorty.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded ring buffers that many threads can add to without locking, drained
+ * by a single thread.
+ *
+ * <p>Each thread adds to one of the buffers, picked by its thread id, with a
+ * single compare and set on that buffer's tail, so threads only contend when
+ * they share a buffer.
+ *
+ * @param <T> the type of the buffered items
+ * @author Gareth Patterson
+ */
+public class StripedBuffer<T> {
+
+  private final Buffer<T>[] buffers;
+  private final int bufferMask;
+
+  /**
+   * Creates buffers for the number of processors.
+   *
+   * @param bufferSize the size of each buffer, a power of two
+   */
+  @SuppressWarnings("unchecked")
+  public StripedBuffer(int bufferSize) {
+    int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+    buffers = new Buffer[count];
+    for (int i = 0; i < count; i++) {
+      buffers[i] = new Buffer<>(bufferSize);
+    }
+    bufferMask = count - 1;
+  }
+
+  /**
+   * Adds an item to the current thread's buffer.
+   *
+   * @param item the item to add
+   * @return false if the buffer is full.
+   */
+  public boolean offer(T item) {
+    // Fibonacci hashing spreads sequential thread ids across the buffers
+    int index = (int) ((Thread.currentThread().threadId() * 0x9e3779b97f4a7c15L) >>> 40) & bufferMask;
+    return buffers[index].offer(item);
+  }
+
+  /**
+   * Removes every item from the buffers, passing it to the consumer.
+   *
+   * @param consumer the consumer for the items
+   */
+  public synchronized void drainTo(Consumer<T> consumer) {
+    for (Buffer<T> buffer : buffers) {
+      buffer.drainTo(consumer);
+    }
+  }
+
+  /**
+   * A bounded ring buffer with many writers and a single reader.
+   */
+  private static final class Buffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    Buffer(int size) {
+      slots = new AtomicReferenceArray<>(size);
+      mask = size - 1;
+    }
+
+    boolean offer(T item) {
+      while (true) {
+        long t = tail.get();
+        if (t - head > mask) {
+          return false;
+        }
+        if (tail.compareAndSet(t, t + 1)) {
+          slots.lazySet((int) t & mask, item);
+          return true;
+        }
+      }
+    }
+
+    void drainTo(Consumer<T> consumer) {
+      long h = head;
+      long t = tail.get();
+      for (; h < t; h++) {
+        int slot = (int) h & mask;
+        T item = slots.get(slot);
+        if (item == null) {
+          // The writer claimed the slot but hasn't stored the item yet
+          break;
+        }
+        slots.lazySet(slot, null);
+        consumer.accept(item);
+      }
+      head = h;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.gmpatter.shorty.stats;
+
+/**
+ * A redirect to be added to the analytics of a short url.
+ *
+ * @author Gareth Patterson
+ */
+final class Visit {
+
+  final String token;
+  final String visitor;
+  final String referrer;
+  final String userAgent;
+  final long time;
+
+  Visit(String token, String visitor, String referrer, String userAgent, long time) {
+    this.token = token;
+    this.visitor = visitor;
+    this.referrer = referrer;
+    this.userAgent = userAgent;
+    this.time = time;
+  }
+}
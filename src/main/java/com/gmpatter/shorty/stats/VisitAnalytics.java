@@ -0,0 +1,153 @@
+package com.gmpatter.shorty.stats;
+
+import com.gmpatter.shorty.persistence.ExpiryIndex;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Collects {@link LinkAnalytics} for each visited short url from the
+ * redirect path.
+ *
+ * <p>Like the {@link ClickCounter}, recording a visit only adds it to a
+ * {@link StripedBuffer}, and a background thread adds the buffered visits to
+ * the analytics. Unlike click counts, visits are dropped if the buffer is
+ * full, as the analytics are estimates anyway.
+ *
+ * <p>The analytics for a short url are created on its first visit, and are
+ * removed when it is deleted or expires.
+ *
+ * @author Gareth Patterson
+ */
+public class VisitAnalytics implements AutoCloseable {
+
+  static final int BUFFER_SIZE = 4096;
+  static final String NO_REFERRER = "(direct)";
+  static final String NO_USER_AGENT = "(unknown)";
+
+  private final StripedBuffer<Visit> buffer = new StripedBuffer<>(BUFFER_SIZE);
+  private final Map<String, LinkAnalytics> links = new ConcurrentHashMap<>();
+  private final ExpiryIndex<String> expiryIndex = new ExpiryIndex<>();
+  private final ToLongFunction<String> expiryTimes;
+  private final ScheduledExecutorService drainExecutor;
+
+  /**
+   * Creates the analytics collector.
+   *
+   * @param drainIntervalMillis the milliseconds between draining the
+   *     buffers, or 0 to only drain when reading analytics
+   * @param expiryTimes returns the expiry time of the short url for a token,
+   *     or a negative number if the short url doesn't exist
+   */
+  public VisitAnalytics(long drainIntervalMillis, ToLongFunction<String> expiryTimes) {
+    this.expiryTimes = expiryTimes;
+    if (drainIntervalMillis > 0) {
+      drainExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shorty-analytics-drain");
+        thread.setDaemon(true);
+        return thread;
+      });
+      drainExecutor.scheduleWithFixedDelay(this::drain, drainIntervalMillis, drainIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    } else {
+      drainExecutor = null;
+    }
+  }
+
+  /**
+   * Records a visit to the short url for the token.
+   *
+   * @param token the token of the short url
+   * @param visitor the visitor's address
+   * @param referrer the referer header, or null
+   * @param userAgent the user agent header, or null
+   */
+  public void record(String token, String visitor, String referrer, String userAgent) {
+    buffer.offer(new Visit(token, visitor != null ? visitor : "",
+        referrer != null ? referrer : NO_REFERRER,
+        userAgent != null ? userAgent : NO_USER_AGENT,
+        System.currentTimeMillis()));
+  }
+
+  /**
+   * Returns a summary of the visits to the short url for the token.
+   *
+   * @param token the token of the short url
+   * @return the summary, or null if the short url hasn't been visited.
+   */
+  public AnalyticsSummary getSummary(String token) {
+    drain();
+    LinkAnalytics analytics = links.get(token);
+    return analytics != null ? analytics.summary(System.currentTimeMillis()) : null;
+  }
+
+  /**
+   * Removes the analytics for the token, when its short url is deleted.
+   *
+   * @param token the token of the short url
+   */
+  public void remove(String token) {
+    drain();
+    LinkAnalytics analytics = links.remove(token);
+    if (analytics != null) {
+      expiryIndex.remove(analytics.getExpiryTime(), token);
+    }
+  }
+
+  /**
+   * Removes the analytics for expired short urls.
+   *
+   * @param currentTime the current time in epoch milliseconds
+   * @return the number of short urls removed.
+   */
+  public int purgeExpired(long currentTime) {
+    return expiryIndex.pollExpired(currentTime, links::remove);
+  }
+
+  /**
+   * Returns the number of short urls with analytics.
+   *
+   * @return the number of short urls.
+   */
+  public int size() {
+    drain();
+    return links.size();
+  }
+
+  /**
+   * Stops draining the buffers in the background.
+   */
+  @Override
+  public void close() {
+    if (drainExecutor != null) {
+      drainExecutor.shutdown();
+    }
+    drain();
+  }
+
+  /**
+   * Adds the visits in every buffer to the analytics.
+   */
+  void drain() {
+    buffer.drainTo(this::add);
+  }
+
+  private void add(Visit visit) {
+    LinkAnalytics analytics = links.get(visit.token);
+    if (analytics == null) {
+      long expiryTime = expiryTimes.applyAsLong(visit.token);
+      if (expiryTime < 0) {
+        // Deleted since the visit
+        return;
+      }
+      analytics = new LinkAnalytics(expiryTime);
+      links.put(visit.token, analytics);
+      expiryIndex.add(expiryTime, visit.token);
+    }
+    analytics.add(visit);
+  }
+}
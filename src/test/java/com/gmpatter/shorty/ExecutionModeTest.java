@@ -0,0 +1,82 @@
+package com.gmpatter.shorty;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link ExecutionMode} class.
+ */
+public class ExecutionModeTest {
+
+  /**
+   * Test modes are found by name, ignoring case.
+   */
+  @Test
+  public void testOf() {
+    Assertions.assertEquals(ExecutionMode.PLATFORM, ExecutionMode.of("platform"));
+    Assertions.assertEquals(ExecutionMode.VIRTUAL, ExecutionMode.of("Virtual"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> ExecutionMode.of("carrier"));
+  }
+
+  /**
+   * Test the virtual executor runs tasks on virtual threads, and the
+   * platform executor on its pool of platform threads.
+   */
+  @Test
+  public void testThreads() throws Exception {
+    ExecutorService virtual = ExecutionMode.VIRTUAL.createExecutor(1, "test");
+    ExecutorService platform = ExecutionMode.PLATFORM.createExecutor(1, "test");
+    try {
+      Future<Thread> virtualThread = virtual.submit(Thread::currentThread);
+      Future<Thread> platformThread = platform.submit(Thread::currentThread);
+      Assertions.assertTrue(virtualThread.get().isVirtual());
+      Assertions.assertFalse(platformThread.get().isVirtual());
+      Assertions.assertEquals("test-0", platformThread.get().getName());
+    } finally {
+      virtual.shutdown();
+      platform.shutdown();
+    }
+  }
+
+  /**
+   * Test blocked tasks don't hold up other tasks on virtual threads, but do
+   * on a full pool of platform threads.
+   */
+  @Test
+  public void testBlockedTasks() throws Exception {
+    for (ExecutionMode mode : ExecutionMode.values()) {
+      ExecutorService executor = mode.createExecutor(2, "test");
+      CountDownLatch release = new CountDownLatch(1);
+      AtomicInteger completed = new AtomicInteger();
+      try {
+        for (int i = 0; i < 2; i++) {
+          executor.execute(() -> {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          });
+        }
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(() -> {
+          completed.incrementAndGet();
+          ran.countDown();
+        });
+        Assertions.assertEquals(mode == ExecutionMode.VIRTUAL, ran.await(200, TimeUnit.MILLISECONDS),
+            mode.name());
+      } finally {
+        release.countDown();
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+      }
+      Assertions.assertEquals(1, completed.get());
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package com.gmpatter.shorty.cluster;
+
+import com.gmpatter.shorty.ServerMain;
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.service.UrlService;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.webserver.WebServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.helidon.config.ConfigSources.classpath;
+
+/**
+ * Integration tests for a cluster of in-process servers, each with its own
+ * partition of the urls.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ClusterIT {
+
+  private static final int NODES = 4;
+  private static final int URLS = 300;
+  private static final String SECRET = "cluster-it-secret";
+
+  private static final HttpClient CLIENT = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .build();
+
+  private static final List<String> addresses = new ArrayList<>();
+  private static final List<UrlService> services = new ArrayList<>();
+  private static final List<WebServer> servers = new ArrayList<>();
+  private static final List<ShortUrl> urls = new ArrayList<>();
+
+  /**
+   * Start the first three members of the cluster, leaving room for a fourth
+   * to join.
+   */
+  @BeforeAll
+  public static void setup() throws IOException {
+    for (int i = 0; i < NODES; i++) {
+      try (ServerSocket socket = new ServerSocket(0)) {
+        addresses.add("http://localhost:" + socket.getLocalPort());
+      }
+    }
+    for (int i = 0; i < NODES - 1; i++) {
+      start(i, addresses.subList(0, NODES - 1));
+    }
+  }
+
+  /**
+   * Shutdown the servers after all tests.
+   */
+  @AfterAll
+  public static void cleanup() {
+    servers.forEach(WebServer::shutdown);
+  }
+
+  private static void start(int node, List<String> members) {
+    Map<String, String> overrides = new HashMap<>();
+    overrides.put("server.port", addresses.get(node).substring(addresses.get(node).lastIndexOf(':') + 1));
+    overrides.put("shorty.token.node-id", String.valueOf(node));
+    overrides.put("shorty.token.node-count", String.valueOf(NODES));
+    overrides.put("shorty.token.permutation-key", "8675309");
+    overrides.put("shorty.cluster.self", addresses.get(node));
+    overrides.put("shorty.cluster.secret", SECRET);
+    for (int i = 0; i < members.size(); i++) {
+      overrides.put("shorty.cluster.members." + i, members.get(i));
+    }
+    // Overrides first, so they take precedence over application.yaml
+    Config config = Config.builder()
+        .sources(ConfigSources.create(overrides), classpath("application.yaml"))
+        .build();
+    UrlService urlService = new UrlService(config);
+    services.add(urlService);
+    servers.add(ServerMain.startServer(config, urlService));
+  }
+
+  private static HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+    return CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  private static void assertRedirects(String address) throws Exception {
+    for (ShortUrl shortUrl : urls) {
+      HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(address + "/go/" + shortUrl.getToken())));
+      Assertions.assertEquals(301, response.statusCode(), shortUrl.getToken());
+      Assertions.assertEquals(shortUrl.getOriginalUrl(), response.headers().firstValue("Location").orElse(null));
+    }
+  }
+
+  private static int totalSize() {
+    return services.stream().mapToInt(service -> service.getShardedRepository().size()).sum();
+  }
+
+  private static JsonObject setMembers(String address, List<String> members) throws Exception {
+    JsonArrayBuilder array = Json.createArrayBuilder();
+    members.forEach(array::add);
+    HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(address + ClusterService.CONTEXT_ROOT + "/members"))
+        .header("Authorization", "Bearer " + SECRET)
+        .PUT(HttpRequest.BodyPublishers.ofString(array.build().toString())));
+    Assertions.assertEquals(200, response.statusCode());
+    return Json.createReader(new StringReader(response.body())).readObject();
+  }
+
+  /**
+   * Urls created on one member are spread across the members, and every
+   * member redirects every url.
+   */
+  @Test
+  @Order(1)
+  public void testEveryMemberRedirects() throws Exception {
+    for (int i = 0; i < URLS; i++) {
+      urls.add(services.get(0).createUrl("https://www.example.com/" + i, 1));
+    }
+    Assertions.assertEquals(URLS, totalSize());
+    for (UrlService service : services) {
+      Assertions.assertTrue(service.getShardedRepository().size() > URLS / 6);
+    }
+    for (int i = 0; i < NODES - 1; i++) {
+      assertRedirects(addresses.get(i));
+    }
+    HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(addresses.get(1) + "/go/zzzzzzz")));
+    Assertions.assertEquals(404, response.statusCode());
+  }
+
+  /**
+   * The member endpoints need the cluster secret, and url operations also
+   * need to come from a known member.
+   */
+  @Test
+  @Order(2)
+  public void testMemberEndpointsAreProtected() throws Exception {
+    String token = urls.get(0).getToken();
+    String owner = services.get(0).getShardedRepository().ownerOf(token);
+    URI uri = URI.create(owner + ClusterService.CONTEXT_ROOT + "/urls/" + token);
+
+    HttpResponse<String> response = send(HttpRequest.newBuilder(uri).DELETE());
+    Assertions.assertEquals(401, response.statusCode());
+    response = send(HttpRequest.newBuilder(uri).header("Authorization", "Bearer wrong").DELETE());
+    Assertions.assertEquals(401, response.statusCode());
+    response = send(HttpRequest.newBuilder(URI.create(owner + ClusterService.CONTEXT_ROOT + "/members"))
+        .PUT(HttpRequest.BodyPublishers.ofString("[\"http://attacker:8080\"]")));
+    Assertions.assertEquals(401, response.statusCode());
+
+    // With the secret, but from a member that isn't in the cluster
+    response = send(HttpRequest.newBuilder(uri)
+        .header("Authorization", "Bearer " + SECRET)
+        .header(ClusterService.MEMBER_HEADER, "http://attacker:8080")
+        .DELETE());
+    Assertions.assertEquals(403, response.statusCode());
+    response = send(HttpRequest.newBuilder(URI.create(owner + ClusterService.CONTEXT_ROOT + "/members?announce=false"))
+        .header("Authorization", "Bearer " + SECRET)
+        .header(ClusterService.MEMBER_HEADER, "http://attacker:8080")
+        .PUT(HttpRequest.BodyPublishers.ofString("[\"" + owner + "\"]")));
+    Assertions.assertEquals(403, response.statusCode());
+    response = send(HttpRequest.newBuilder(URI.create(owner + ClusterService.CONTEXT_ROOT + "/members"))
+        .header("Authorization", "Bearer " + SECRET)
+        .PUT(HttpRequest.BodyPublishers.ofString("[\"not a member\"]")));
+    Assertions.assertEquals(400, response.statusCode());
+
+    Assertions.assertEquals(URLS, totalSize());
+    assertRedirects(addresses.get(1));
+  }
+
+  /**
+   * A member joining takes over its share of the urls.
+   */
+  @Test
+  @Order(3)
+  public void testMemberJoins() throws Exception {
+    // The new member starts with the current members, then announces itself
+    start(NODES - 1, addresses.subList(0, NODES - 1));
+    JsonObject result = setMembers(addresses.get(NODES - 1), addresses);
+    Assertions.assertEquals(0, result.getInt("handedOver"));
+
+    Assertions.assertEquals(URLS, totalSize());
+    Assertions.assertTrue(services.get(NODES - 1).getShardedRepository().size() > URLS / 8);
+    for (String address : addresses) {
+      assertRedirects(address);
+    }
+  }
+
+  /**
+   * A member leaving hands all of its urls over first.
+   */
+  @Test
+  @Order(4)
+  public void testMemberLeaves() throws Exception {
+    List<String> remaining = new ArrayList<>(addresses);
+    remaining.remove(1);
+    // Any member can announce the change, the leaving member hands its urls over
+    JsonObject result = setMembers(addresses.get(0), remaining);
+    Assertions.assertEquals(0, result.getInt("handedOver"));
+    Assertions.assertEquals(0, services.get(1).getShardedRepository().size());
+    Assertions.assertEquals(URLS, totalSize());
+
+    servers.get(1).shutdown().toCompletableFuture().get();
+    for (String address : remaining) {
+      assertRedirects(address);
+    }
+  }
+}
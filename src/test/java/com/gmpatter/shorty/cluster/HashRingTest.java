@@ -0,0 +1,77 @@
+package com.gmpatter.shorty.cluster;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link HashRing} class.
+ */
+public class HashRingTest {
+
+  private static final int TOKENS = 100000;
+
+  /**
+   * Test each member owns close to an equal share of the tokens.
+   */
+  @Test
+  public void testTokensAreBalanced() {
+    List<String> members = List.of("http://a:8080", "http://b:8080", "http://c:8080", "http://d:8080");
+    HashRing ring = new HashRing(members, 256);
+    Map<String, Integer> counts = new HashMap<>();
+    for (int i = 0; i < TOKENS; i++) {
+      counts.merge(ring.ownerOf("t" + i), 1, Integer::sum);
+    }
+    for (String member : members) {
+      double share = counts.getOrDefault(member, 0) / (double) TOKENS;
+      Assertions.assertEquals(0.25, share, 0.05, member);
+    }
+  }
+
+  /**
+   * Test a joining member only takes tokens from the others, and about its
+   * share of them.
+   */
+  @Test
+  public void testJoinMovesOnlyItsShare() {
+    HashRing before = new HashRing(List.of("http://a:8080", "http://b:8080", "http://c:8080"), 256);
+    HashRing after = new HashRing(List.of("http://a:8080", "http://b:8080", "http://c:8080", "http://d:8080"), 256);
+    int moved = 0;
+    for (int i = 0; i < TOKENS; i++) {
+      String token = "t" + i;
+      String owner = after.ownerOf(token);
+      if (!owner.equals(before.ownerOf(token))) {
+        Assertions.assertEquals("http://d:8080", owner);
+        moved++;
+      }
+    }
+    Assertions.assertEquals(0.25, moved / (double) TOKENS, 0.05);
+  }
+
+  /**
+   * Test the owner only depends on the members, not the order they are
+   * given in.
+   */
+  @Test
+  public void testOwnerIsStable() {
+    HashRing ring = new HashRing(List.of("http://a:8080", "http://b:8080"), 64);
+    HashRing reordered = new HashRing(List.of("http://b:8080", "http://a:8080"), 64);
+    for (int i = 0; i < 1000; i++) {
+      Assertions.assertEquals(ring.ownerOf("t" + i), reordered.ownerOf("t" + i));
+    }
+  }
+
+  /**
+   * Test invalid rings are rejected.
+   */
+  @Test
+  public void testInvalidRing() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new HashRing(List.of(), 128));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new HashRing(List.of("http://a:8080", "http://a:8080"), 128));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new HashRing(List.of("http://a:8080"), 0));
+  }
+}
@@ -0,0 +1,240 @@
+package com.gmpatter.shorty.cluster;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.AsyncUrlRepositoryAdapter;
+import com.gmpatter.shorty.persistence.MapUrlRepository;
+import com.gmpatter.shorty.persistence.UrlRepository;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Unit tests for {@link ShardedUrlRepository} class, with the members of the
+ * cluster connected in memory.
+ */
+public class ShardedUrlRepositoryTest {
+
+  private static final List<String> MEMBERS = List.of("a", "b", "c");
+  private static final int URLS = 3000;
+
+  private final InMemoryShardClient client = new InMemoryShardClient();
+
+  private ShardedUrlRepository member(String self, List<String> members) {
+    UrlRepository local = new MapUrlRepository();
+    ShardedUrlRepository repository = new ShardedUrlRepository(self, members, 64, local,
+        AsyncUrlRepositoryAdapter.inline(local), client, 60000);
+    client.members.put(self, repository);
+    return repository;
+  }
+
+  private static ShortUrl shortUrl(int i) {
+    return new ShortUrl.Builder()
+        .token("t" + i)
+        .originalUrl("https://example.com/" + i)
+        .expiryTime(Long.MAX_VALUE)
+        .build();
+  }
+
+  private void assertAllReadable(ShardedUrlRepository repository) {
+    for (int i = 0; i < URLS; i++) {
+      Assertions.assertEquals("https://example.com/" + i, repository.getOriginalUrl("t" + i));
+    }
+  }
+
+  private int totalSize() {
+    return client.members.values().stream().mapToInt(ShardedUrlRepository::size).sum();
+  }
+
+  /**
+   * Test urls created through one member are stored once on their owner, and
+   * can be read and deleted through any member.
+   */
+  @Test
+  public void testOperationsAreForwardedToOwner() {
+    ShardedUrlRepository a = member("a", MEMBERS);
+    ShardedUrlRepository b = member("b", MEMBERS);
+    ShardedUrlRepository c = member("c", MEMBERS);
+    for (int i = 0; i < URLS; i++) {
+      a.createUrl(shortUrl(i));
+    }
+    Assertions.assertEquals(URLS, totalSize());
+    for (ShardedUrlRepository member : List.of(a, b, c)) {
+      Assertions.assertTrue(member.size() > URLS / 5, member.getSelf());
+      member.forEachUrl(url -> Assertions.assertEquals(member.getSelf(), member.ownerOf(url.getToken())));
+    }
+    assertAllReadable(b);
+    assertAllReadable(c);
+    Assertions.assertTrue(a.getForwardCount() > 0);
+
+    c.deleteUrl("t7");
+    Assertions.assertNull(a.getUrl("t7"));
+    Assertions.assertEquals(URLS - 1, totalSize());
+  }
+
+  /**
+   * Test a member joining takes over its urls from the others.
+   */
+  @Test
+  public void testJoinHandsUrlsOver() {
+    ShardedUrlRepository a = member("a", MEMBERS);
+    member("b", MEMBERS);
+    member("c", MEMBERS);
+    List<ShortUrl> urls = new ArrayList<>();
+    for (int i = 0; i < URLS; i++) {
+      urls.add(shortUrl(i));
+    }
+    a.createUrls(urls);
+
+    // A joining member starts out with the current members, and owns nothing
+    ShardedUrlRepository d = member("d", MEMBERS);
+    assertAllReadable(d);
+    d.announceMembers(List.of("a", "b", "c", "d"));
+    Assertions.assertTrue(d.size() > URLS / 6);
+    Assertions.assertEquals(URLS, totalSize());
+    d.forEachUrl(url -> Assertions.assertEquals("d", d.ownerOf(url.getToken())));
+    assertAllReadable(d);
+    assertAllReadable(a);
+    Assertions.assertEquals(d.size(), client.members.values().stream()
+        .mapToLong(ShardedUrlRepository::getHandoffCount).sum());
+  }
+
+  /**
+   * Test a member leaving hands all of its urls over.
+   */
+  @Test
+  public void testLeaveHandsAllUrlsOver() {
+    ShardedUrlRepository a = member("a", MEMBERS);
+    ShardedUrlRepository b = member("b", MEMBERS);
+    member("c", MEMBERS);
+    for (int i = 0; i < URLS; i++) {
+      a.createUrl(shortUrl(i));
+    }
+
+    b.announceMembers(List.of("a", "c"));
+    Assertions.assertEquals(0, b.size());
+    client.members.remove("b");
+    Assertions.assertEquals(URLS, totalSize());
+    assertAllReadable(a);
+  }
+
+  /**
+   * Test a lookup that misses on the new owner falls back to the previous
+   * owner, which may not have handed the url over yet.
+   */
+  @Test
+  public void testLookupFallsBackToPreviousOwner() {
+    ShardedUrlRepository a = member("a", MEMBERS);
+    member("b", MEMBERS);
+    member("c", MEMBERS);
+    for (int i = 0; i < URLS; i++) {
+      a.createUrl(shortUrl(i));
+    }
+    // Only a and d know about d, so b and c haven't handed their urls over
+    ShardedUrlRepository d = member("d", MEMBERS);
+    a.setMembers(List.of("a", "b", "c", "d"));
+    d.setMembers(List.of("a", "b", "c", "d"));
+    assertAllReadable(a);
+    assertAllReadable(d);
+  }
+
+  /**
+   * Test a url deleted while its batch is being handed over isn't brought
+   * back by the handoff.
+   */
+  @Test
+  public void testDeleteDuringHandoffStaysDeleted() {
+    ShardedUrlRepository a = member("a", MEMBERS);
+    member("b", MEMBERS);
+    member("c", MEMBERS);
+    for (int i = 0; i < URLS; i++) {
+      a.createUrl(shortUrl(i));
+    }
+    ShardedUrlRepository d = member("d", MEMBERS);
+    List<String> deleted = new ArrayList<>();
+    client.beforeCreateUrls = (member, urls) -> {
+      if (member.equals("d") && deleted.isEmpty()) {
+        // Deleted after the batch was collected, before it reaches d
+        deleted.add(urls.get(0).getToken());
+        a.deleteUrl(urls.get(0).getToken());
+      }
+    };
+    d.announceMembers(List.of("a", "b", "c", "d"));
+
+    Assertions.assertEquals(1, deleted.size());
+    Assertions.assertNull(a.getUrl(deleted.get(0)));
+    Assertions.assertNull(d.getLocalRepository().getUrl(deleted.get(0)));
+    Assertions.assertEquals(URLS - 1, totalSize());
+  }
+
+  /**
+   * Test a member that can't be reached fails the operation.
+   */
+  @Test
+  public void testUnreachableMemberFails() {
+    ShardedUrlRepository a = member("a", List.of("a", "x"));
+    int i = 0;
+    while (!a.ownerOf("t" + i).equals("x")) {
+      i++;
+    }
+    String token = "t" + i;
+    Assertions.assertThrows(UncheckedIOException.class, () -> a.getUrl(token));
+    Assertions.assertTrue(a.async().getUrl(token).toCompletableFuture().isCompletedExceptionally());
+  }
+
+  /**
+   * A shard client calling the other members' local repositories directly.
+   */
+  private static final class InMemoryShardClient implements ShardClient {
+
+    private final Map<String, ShardedUrlRepository> members = new HashMap<>();
+    private BiConsumer<String, List<ShortUrl>> beforeCreateUrls = (member, shortUrls) -> { };
+
+    @Override
+    public CompletionStage<ShortUrl> getUrl(String member, String token) {
+      return call(member, repository -> repository.getLocalRepository().getUrl(token));
+    }
+
+    @Override
+    public CompletionStage<ShortUrl> createUrl(String member, ShortUrl shortUrl) {
+      return call(member, repository -> repository.getLocalRepository().createUrl(shortUrl));
+    }
+
+    @Override
+    public CompletionStage<BitSet> createUrls(String member, List<ShortUrl> shortUrls) {
+      beforeCreateUrls.accept(member, shortUrls);
+      return call(member, repository -> repository.getLocalRepository().createUrls(shortUrls));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteUrl(String member, String token) {
+      return call(member, repository -> repository.deleteLocalUrl(token).toCompletableFuture().join());
+    }
+
+    @Override
+    public CompletionStage<Void> setMembers(String member, List<String> members) {
+      return call(member, repository -> {
+        repository.setMembers(members);
+        return null;
+      });
+    }
+
+    private <T> CompletionStage<T> call(String member, Function<ShardedUrlRepository, T> operation) {
+      ShardedUrlRepository repository = members.get(member);
+      if (repository == null) {
+        return CompletableFuture.failedStage(new IOException("Unknown member " + member + "."));
+      }
+      return CompletableFuture.completedStage(operation.apply(repository));
+    }
+  }
+}
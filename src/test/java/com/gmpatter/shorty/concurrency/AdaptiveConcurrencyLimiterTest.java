@@ -0,0 +1,118 @@
+package com.gmpatter.shorty.concurrency;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for {@link AdaptiveConcurrencyLimiter} class.
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+  private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1000));
+
+  /**
+   * Runs windows of requests with the given latency, each window either
+   * using the whole limit at once or sending one request at a time.
+   */
+  private void run(AdaptiveConcurrencyLimiter limiter, int windows, long latencyMillis, boolean busy) {
+    long latency = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+    for (int window = 0; window < windows; window++) {
+      clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+      if (busy) {
+        int requests = limiter.getLimit();
+        for (int i = 0; i < requests; i++) {
+          Assertions.assertTrue(limiter.tryAcquire(1));
+        }
+        for (int i = 0; i < requests; i++) {
+          limiter.release(latency);
+        }
+      } else {
+        for (int i = 0; i < 10; i++) {
+          Assertions.assertTrue(limiter.tryAcquire(1));
+          limiter.release(latency);
+        }
+      }
+    }
+  }
+
+  /**
+   * Test requests are admitted up to their share of the limit, so lower
+   * priority requests are rejected first.
+   */
+  @Test
+  public void testShares() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100, 0.2, 1.5, clock::get);
+    for (int i = 0; i < 5; i++) {
+      Assertions.assertTrue(limiter.tryAcquire(0.5));
+    }
+    Assertions.assertFalse(limiter.tryAcquire(0.5));
+    for (int i = 0; i < 5; i++) {
+      Assertions.assertTrue(limiter.tryAcquire(1));
+    }
+    Assertions.assertFalse(limiter.tryAcquire(1));
+    Assertions.assertEquals(10, limiter.getInFlight());
+
+    limiter.release(-1);
+    Assertions.assertTrue(limiter.tryAcquire(1));
+    Assertions.assertFalse(limiter.tryAcquire(0.5));
+  }
+
+  /**
+   * Test the limit grows while latency holds steady, and falls when latency
+   * grows as requests queue, but not below the minimum.
+   */
+  @Test
+  public void testGradient() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(20, 4, 200, 0.2, 1.5, clock::get);
+    run(limiter, 20, 5, true);
+    int grown = limiter.getLimit();
+    Assertions.assertTrue(grown > 20, Integer.toString(grown));
+    Assertions.assertTrue(grown <= 200, Integer.toString(grown));
+
+    // Latency four times the latency without load takes the smoothed
+    // fraction of half the limit off each window
+    run(limiter, 10, 20, true);
+    int reduced = limiter.getLimit();
+    Assertions.assertTrue(reduced < grown * 3 / 4, reduced + " >= " + grown * 3 / 4);
+
+    run(limiter, 5, 200, true);
+    Assertions.assertTrue(limiter.getLimit() < reduced, limiter.getLimit() + " >= " + reduced);
+
+    // Without smoothing the limit stays within its bounds
+    AdaptiveConcurrencyLimiter bounded = new AdaptiveConcurrencyLimiter(16, 15, 20, 1, 1.5, clock::get);
+    run(bounded, 20, 5, true);
+    Assertions.assertEquals(20, bounded.getLimit());
+    run(bounded, 2, 100, true);
+    Assertions.assertEquals(15, bounded.getLimit());
+  }
+
+  /**
+   * Test the limit doesn't grow while less than half of it is used.
+   */
+  @Test
+  public void testUnusedLimitDoesNotGrow() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(20, 4, 200, 0.2, 1.5, clock::get);
+    run(limiter, 20, 5, false);
+    Assertions.assertEquals(20, limiter.getLimit());
+  }
+
+  /**
+   * Test limits, smoothing and tolerance out of range are rejected.
+   */
+  @Test
+  public void testInvalidSettings() {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new AdaptiveConcurrencyLimiter(10, 0, 100, 0.2, 1.5));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new AdaptiveConcurrencyLimiter(10, 20, 100, 0.2, 1.5));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new AdaptiveConcurrencyLimiter(10, 1, 5, 0.2, 1.5));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new AdaptiveConcurrencyLimiter(10, 1, 100, 0, 1.5));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new AdaptiveConcurrencyLimiter(10, 1, 100, 0.2, 0.5));
+  }
+}
@@ -0,0 +1,223 @@
+package com.gmpatter.shorty.concurrency;
+
+import com.gmpatter.shorty.ServerMain;
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.AsyncUrlRepository;
+import com.gmpatter.shorty.service.UrlService;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.webserver.WebServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.helidon.config.ConfigSources.classpath;
+
+/**
+ * Integration tests for the adaptive concurrency limit, overloading a
+ * server whose repository can only serve one request at a time.
+ */
+public class ConcurrencyLimitIT {
+
+  private static final String BASE_URL = "http://localhost:9080";
+  // The repository serves 100 requests a second, and is sent half that
+  // then twice that
+  private static final long SERVICE_MILLIS = 10;
+  private static final int NORMAL_RATE = 50;
+  private static final int OVERLOAD_RATE = 200;
+  private static final int NORMAL_SECONDS = 1;
+  private static final int WARMUP_SECONDS = 2;
+  private static final int DURATION_SECONDS = 3;
+
+  private final HttpClient client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .followRedirects(HttpClient.Redirect.NEVER)
+      .build();
+
+  /**
+   * The latencies of the requests that were served and the counts of those
+   * shed, once the warmup was over.
+   */
+  private static class Result {
+
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger redirects = new AtomicInteger();
+    private final AtomicInteger redirectsShed = new AtomicInteger();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger lookupsShed = new AtomicInteger();
+
+    long p99Millis() {
+      List<Long> sorted = new ArrayList<>(latencies);
+      Collections.sort(sorted);
+      return TimeUnit.NANOSECONDS.toMillis(sorted.get((int) Math.ceil(sorted.size() * 0.99) - 1));
+    }
+
+    double redirectsShedFraction() {
+      return (double) redirectsShed.get() / redirects.get();
+    }
+
+    double lookupsShedFraction() {
+      return (double) lookupsShed.get() / lookups.get();
+    }
+  }
+
+  /**
+   * A url service whose repository serves one request at a time, taking
+   * <code>SERVICE_MILLIS</code> for each.
+   */
+  private static class SlowUrlService extends UrlService {
+
+    private final ExecutorService backend = Executors.newSingleThreadExecutor();
+    private final AsyncUrlRepository slowRepository;
+
+    SlowUrlService(Config config) {
+      super(config);
+      AsyncUrlRepository repository = super.getAsyncUrlRepository();
+      slowRepository = new AsyncUrlRepository() {
+        @Override
+        public CompletionStage<ShortUrl> getUrl(String token) {
+          return serve().thenCompose(ignored -> repository.getUrl(token));
+        }
+
+        @Override
+        public CompletionStage<ShortUrl> createUrl(ShortUrl shortUrl) {
+          return serve().thenCompose(ignored -> repository.createUrl(shortUrl));
+        }
+
+        @Override
+        public CompletionStage<Void> deleteUrl(String token) {
+          return serve().thenCompose(ignored -> repository.deleteUrl(token));
+        }
+
+        @Override
+        public CompletionStage<Void> purgeExpiredUrls() {
+          return repository.purgeExpiredUrls();
+        }
+      };
+    }
+
+    private CompletableFuture<Void> serve() {
+      return CompletableFuture.runAsync(() -> LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(SERVICE_MILLIS)),
+          backend);
+    }
+
+    @Override
+    protected AsyncUrlRepository getAsyncUrlRepository() {
+      // Called by the super constructor before the slow repository is created
+      return slowRepository != null ? slowRepository : super.getAsyncUrlRepository();
+    }
+  }
+
+  /**
+   * Sends redirects and lookups at half the rate the repository can serve,
+   * and then at twice the rate, with the concurrency limit enabled or
+   * disabled.
+   */
+  private Result overload(boolean limited) throws Exception {
+    Config config = Config.builder()
+        .sources(ConfigSources.create(Map.of(
+            "server.port", "9080",
+            "shorty.rest.implementation", "native",
+            "shorty.rate-limit.enabled", "false",
+            "shorty.concurrency-limit.enabled", Boolean.toString(limited))),
+            classpath("application.yaml"))
+        .build();
+    SlowUrlService urlService = new SlowUrlService(config);
+    WebServer server = ServerMain.startServer(config, urlService);
+    try {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!server.isRunning() && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      String token = urlService.createUrlAsync("https://www.example.com", 1)
+          .toCompletableFuture().get(10, TimeUnit.SECONDS).getToken();
+
+      Result result = new Result();
+      List<CompletableFuture<?>> responses = new ArrayList<>();
+      long start = System.nanoTime();
+      start = send(token, NORMAL_RATE, NORMAL_SECONDS, start, null, responses);
+      start = send(token, OVERLOAD_RATE, WARMUP_SECONDS, start, null, responses);
+      send(token, OVERLOAD_RATE, DURATION_SECONDS, start, result, responses);
+      CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+      return result;
+    } finally {
+      server.shutdown().await(10, TimeUnit.SECONDS);
+      urlService.backend.shutdownNow();
+    }
+  }
+
+  /**
+   * Sends alternate redirects and lookups at a constant rate, whether or not
+   * earlier requests have completed.
+   *
+   * @return the time the next request would have been sent.
+   */
+  private long send(String token, int rate, int seconds, long start, Result result,
+                    List<CompletableFuture<?>> responses) {
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    for (int i = 0; i < rate * seconds; i++) {
+      long scheduled = start + i * intervalNanos;
+      long delay;
+      while ((delay = scheduled - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(delay);
+      }
+      boolean redirect = i % 2 == 0;
+      URI uri = URI.create(BASE_URL + (redirect ? "/go/" : "/shorty/v1/url/") + token);
+      responses.add(client.sendAsync(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding())
+          .thenAccept(response -> {
+            long latency = System.nanoTime() - scheduled;
+            int status = response.statusCode();
+            Assertions.assertTrue(status == 503 || status == (redirect ? 301 : 200), Integer.toString(status));
+            if (status == 503) {
+              Assertions.assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+            }
+            if (result == null) {
+              return;
+            }
+            (redirect ? result.redirects : result.lookups).incrementAndGet();
+            if (status == 503) {
+              (redirect ? result.redirectsShed : result.lookupsShed).incrementAndGet();
+            } else {
+              result.latencies.add(latency);
+            }
+          }));
+    }
+    return start + rate * seconds * intervalNanos;
+  }
+
+  /**
+   * Twice the load the server can handle should be shed with fast 503s,
+   * lookups before redirects, keeping the latency of the requests served
+   * low, while without the limit the requests queue and latency grows for
+   * as long as the overload lasts.
+   */
+  @Test
+  public void testOverload() throws Exception {
+    Result limited = overload(true);
+    Result unlimited = overload(false);
+
+    Assertions.assertTrue(limited.redirectsShed.get() + limited.lookupsShed.get() > 0);
+    Assertions.assertTrue(limited.lookupsShedFraction() > limited.redirectsShedFraction(),
+        limited.lookupsShedFraction() + " <= " + limited.redirectsShedFraction());
+    Assertions.assertTrue(limited.p99Millis() < 500, limited.p99Millis() + " ms");
+
+    Assertions.assertEquals(0, unlimited.redirectsShed.get() + unlimited.lookupsShed.get());
+    Assertions.assertTrue(unlimited.p99Millis() > 4 * limited.p99Millis(),
+        unlimited.p99Millis() + " ms <= 4 x " + limited.p99Millis() + " ms");
+  }
+}
@@ -0,0 +1,104 @@
+package com.gmpatter.shorty.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for {@link MetricsRegistry} class.
+ */
+public class MetricsRegistryTest {
+
+  /**
+   * Test histogram buckets are written cumulatively, with the sum in seconds.
+   */
+  @Test
+  public void testHistogram() {
+    MetricsRegistry registry = new MetricsRegistry();
+    Histogram histogram = registry.histogram("test_duration_seconds", "Test durations.",
+        new double[] {0.001, 0.01}, "operation", "get");
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+    histogram.record(TimeUnit.SECONDS.toNanos(1));
+
+    Assertions.assertEquals(""
+        + "# HELP test_duration_seconds Test durations.\n"
+        + "# TYPE test_duration_seconds histogram\n"
+        + "test_duration_seconds_bucket{operation=\"get\",le=\"0.001\"} 2\n"
+        + "test_duration_seconds_bucket{operation=\"get\",le=\"0.01\"} 3\n"
+        + "test_duration_seconds_bucket{operation=\"get\",le=\"+Inf\"} 4\n"
+        + "test_duration_seconds_sum{operation=\"get\"} 1.0065\n"
+        + "test_duration_seconds_count{operation=\"get\"} 4\n",
+        registry.scrape());
+    Assertions.assertEquals(4, histogram.getCount());
+  }
+
+  /**
+   * Test registering a metric again returns the existing recorder, and each
+   * set of labels is written under one name.
+   */
+  @Test
+  public void testRegisterAgain() {
+    MetricsRegistry registry = new MetricsRegistry();
+    Histogram get = registry.histogram("test_seconds", "Test.", Histogram.LATENCY_BUCKETS, "op", "get");
+    Histogram delete = registry.histogram("test_seconds", "Test.", Histogram.LATENCY_BUCKETS, "op", "delete");
+    Assertions.assertSame(get, registry.histogram("test_seconds", "Test.", Histogram.LATENCY_BUCKETS,
+        "op", "get"));
+    Assertions.assertNotSame(get, delete);
+
+    String scrape = registry.scrape();
+    Assertions.assertEquals(scrape.indexOf("# TYPE"), scrape.lastIndexOf("# TYPE"));
+    Assertions.assertTrue(scrape.contains("test_seconds_count{op=\"delete\"} 0\n"));
+  }
+
+  /**
+   * Test counters and gauges are written with their current values.
+   */
+  @Test
+  public void testCountersAndGauges() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("test_events_total", "Test events.").add(3);
+    AtomicLong external = new AtomicLong(7);
+    registry.counter("test_external_total", "External events.", external::get);
+    registry.gauge("test_ratio", "Test ratio.", () -> 0.25);
+    registry.gauge("test_size", "Test size.", () -> 42, "type", "say \"hi\"");
+    external.set(8);
+
+    String scrape = registry.scrape();
+    Assertions.assertTrue(scrape.contains("# TYPE test_events_total counter\ntest_events_total 3\n"));
+    Assertions.assertTrue(scrape.contains("test_external_total 8\n"));
+    Assertions.assertTrue(scrape.contains("# TYPE test_ratio gauge\ntest_ratio 0.25\n"));
+    Assertions.assertTrue(scrape.contains("test_size{type=\"say \\\"hi\\\"\"} 42\n"));
+  }
+
+  /**
+   * Test removing a metric removes it with every set of labels, and leaves
+   * the other metrics.
+   */
+  @Test
+  public void testRemove() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.gauge("test_size", "Test size.", () -> 1, "type", "a");
+    registry.gauge("test_size", "Test size.", () -> 2, "type", "b");
+    registry.gauge("test_ratio", "Test ratio.", () -> 0.5);
+    registry.remove("test_size");
+
+    String scrape = registry.scrape();
+    Assertions.assertFalse(scrape.contains("test_size"));
+    Assertions.assertTrue(scrape.contains("test_ratio 0.5\n"));
+  }
+
+  /**
+   * Test a name can't be registered as two types of metric.
+   */
+  @Test
+  public void testTypeConflict() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.gauge("test_metric", "Test.", () -> 1);
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> registry.counter("test_metric", "Test."));
+  }
+}
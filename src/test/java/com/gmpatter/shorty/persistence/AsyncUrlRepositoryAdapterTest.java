@@ -0,0 +1,89 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for {@link AsyncUrlRepositoryAdapter} class.
+ */
+public class AsyncUrlRepositoryAdapterTest {
+
+  private static ShortUrl shortUrl(String token) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl("https://example.com/" + token)
+        .expiryTime(Long.MAX_VALUE)
+        .build();
+  }
+
+  /**
+   * Test an inline adapter returns completed stages, so dependent actions
+   * run on the calling thread.
+   */
+  @Test
+  public void testInlineCompletesOnCallingThread() {
+    UrlRepository delegate = Mockito.mock(UrlRepository.class);
+    ShortUrl url = shortUrl("abc");
+    Mockito.when(delegate.getUrl("abc")).thenReturn(url);
+    Mockito.when(delegate.getOriginalUrl("abc")).thenReturn(url.getOriginalUrl());
+    AsyncUrlRepository repository = AsyncUrlRepositoryAdapter.inline(delegate);
+
+    AtomicReference<Thread> thread = new AtomicReference<>();
+    CompletionStage<ShortUrl> stage = repository.getUrl("abc")
+        .whenComplete((result, error) -> thread.set(Thread.currentThread()));
+    Assertions.assertTrue(stage.toCompletableFuture().isDone());
+    Assertions.assertSame(Thread.currentThread(), thread.get());
+    Assertions.assertSame(url, stage.toCompletableFuture().join());
+    Assertions.assertEquals(url.getOriginalUrl(), repository.getOriginalUrl("abc").toCompletableFuture().join());
+    Assertions.assertNull(repository.getUrl("xyz").toCompletableFuture().join());
+  }
+
+  /**
+   * Test writes run on the write executor when one is given.
+   */
+  @Test
+  public void testWritesRunOnExecutor() {
+    UrlRepository delegate = Mockito.mock(UrlRepository.class);
+    ShortUrl url = shortUrl("abc");
+    AtomicReference<Thread> thread = new AtomicReference<>();
+    Mockito.when(delegate.createUrl(url)).thenAnswer(invocation -> {
+      thread.set(Thread.currentThread());
+      return url;
+    });
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      AsyncUrlRepository repository = new AsyncUrlRepositoryAdapter(delegate, null, executor);
+      Assertions.assertSame(url, repository.createUrl(url).toCompletableFuture().join());
+      Assertions.assertNotSame(Thread.currentThread(), thread.get());
+      repository.deleteUrl("abc").toCompletableFuture().join();
+      Mockito.verify(delegate).deleteUrl("abc");
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Test an exception thrown by the repository completes the stage
+   * exceptionally, rather than being thrown to the caller.
+   */
+  @Test
+  public void testFailureCompletesExceptionally() {
+    UrlRepository delegate = Mockito.mock(UrlRepository.class);
+    Mockito.doThrow(new IllegalStateException("closed")).when(delegate).deleteUrl("abc");
+    AsyncUrlRepository repository = AsyncUrlRepositoryAdapter.inline(delegate);
+
+    CompletableFuture<Void> future = repository.deleteUrl("abc").toCompletableFuture();
+    Assertions.assertTrue(future.isCompletedExceptionally());
+    CompletionException e = Assertions.assertThrows(CompletionException.class, future::join);
+    Assertions.assertInstanceOf(IllegalStateException.class, e.getCause());
+  }
+}
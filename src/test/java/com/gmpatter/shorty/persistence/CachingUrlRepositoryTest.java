@@ -0,0 +1,115 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit tests for {@link CachingUrlRepository} class.
+ */
+public class CachingUrlRepositoryTest {
+
+  private static ShortUrl shortUrl(String token, long expiryTime) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl("https://example.com/" + token)
+        .expiryTime(expiryTime)
+        .build();
+  }
+
+  /**
+   * Test repeated reads are answered from the cache.
+   */
+  @Test
+  public void testGetUrlIsCached() {
+    UrlRepository delegate = Mockito.mock(UrlRepository.class);
+    ShortUrl url = shortUrl("abc", Long.MAX_VALUE);
+    Mockito.when(delegate.getUrl("abc")).thenReturn(url);
+    CachingUrlRepository repository = new CachingUrlRepository(delegate, 1000);
+
+    Assertions.assertSame(url, repository.getUrl("abc"));
+    Assertions.assertSame(url, repository.getUrl("abc"));
+    Assertions.assertEquals(url.getOriginalUrl(), repository.getOriginalUrl("abc"));
+    Mockito.verify(delegate, Mockito.times(1)).getUrl("abc");
+    Assertions.assertEquals(2, repository.getHitCount());
+    Assertions.assertEquals(1, repository.getMissCount());
+  }
+
+  /**
+   * Test deleting a url removes it from the cache.
+   */
+  @Test
+  public void testDeleteInvalidates() {
+    UrlRepository delegate = Mockito.mock(UrlRepository.class);
+    Mockito.when(delegate.getUrl("abc")).thenReturn(shortUrl("abc", Long.MAX_VALUE));
+    CachingUrlRepository repository = new CachingUrlRepository(delegate, 1000);
+    repository.getUrl("abc");
+
+    repository.deleteUrl("abc");
+    Mockito.when(delegate.getUrl("abc")).thenReturn(null);
+    Mockito.verify(delegate).deleteUrl("abc");
+    Assertions.assertNull(repository.getUrl("abc"));
+  }
+
+  /**
+   * Test expired urls are not returned from the cache.
+   */
+  @Test
+  public void testExpiredUrlNotReturned() throws InterruptedException {
+    UrlRepository delegate = Mockito.mock(UrlRepository.class);
+    Mockito.when(delegate.getUrl("abc")).thenReturn(shortUrl("abc", System.currentTimeMillis() + 50));
+    CachingUrlRepository repository = new CachingUrlRepository(delegate, 1000);
+    Assertions.assertNotNull(repository.getUrl("abc"));
+
+    Thread.sleep(100);
+    Mockito.when(delegate.getUrl("abc")).thenReturn(null);
+    Assertions.assertNull(repository.getUrl("abc"));
+  }
+
+  /**
+   * Test cached urls are read from the delegate again once their time to
+   * live has passed, so changes made through another server are seen.
+   */
+  @Test
+  public void testTimeToLive() throws InterruptedException {
+    UrlRepository delegate = Mockito.mock(UrlRepository.class);
+    Mockito.when(delegate.getUrl("abc")).thenReturn(shortUrl("abc", Long.MAX_VALUE));
+    CachingUrlRepository repository = new CachingUrlRepository(delegate, 1000, 50);
+    Assertions.assertNotNull(repository.getUrl("abc"));
+    Mockito.when(delegate.getUrl("abc")).thenReturn(null);
+    Assertions.assertNotNull(repository.getUrl("abc"));
+
+    Thread.sleep(100);
+    Assertions.assertNull(repository.getUrl("abc"));
+    Mockito.verify(delegate, Mockito.times(2)).getUrl("abc");
+  }
+
+  /**
+   * Test a scan of urls that are only read once doesn't evict the popular urls.
+   */
+  @Test
+  public void testScanDoesNotEvictPopularUrls() {
+    UrlRepository delegate = Mockito.spy(new CompactUrlRepository(
+        "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray(), 7, 1));
+    int size = CachingUrlRepository.STRIPES * 64;
+    CachingUrlRepository repository = new CachingUrlRepository(delegate, size);
+    for (int i = 0; i < size * 10; i++) {
+      delegate.createUrl(shortUrl("t" + i, Long.MAX_VALUE));
+    }
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < size / 8; i++) {
+        repository.getUrl("t" + i);
+      }
+    }
+    for (int i = size; i < size * 10; i++) {
+      repository.getUrl("t" + i);
+    }
+
+    Mockito.clearInvocations(delegate);
+    for (int i = 0; i < size / 8; i++) {
+      repository.getUrl("t" + i);
+    }
+    Mockito.verify(delegate, Mockito.never()).getUrl(Mockito.anyString());
+  }
+}
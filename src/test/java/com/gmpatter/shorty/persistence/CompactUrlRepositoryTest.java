@@ -0,0 +1,114 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Unit tests for {@link CompactUrlRepository} class.
+ */
+public class CompactUrlRepositoryTest {
+
+  private static final char[] TOKEN_CHARACTERS =
+      "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+  private static ShortUrl shortUrl(String token, String url, LocalDateTime expiry) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl(url)
+        .expiry(expiry.toString())
+        .build();
+  }
+
+  /**
+   * Test a created url can be fetched with the same fields.
+   */
+  @Test
+  public void testCreateAndGetUrl() {
+    CompactUrlRepository repository = new CompactUrlRepository(TOKEN_CHARACTERS, 7, 4);
+    LocalDateTime expiry = LocalDateTime.now().plusHours(1).truncatedTo(ChronoUnit.MILLIS);
+    repository.createUrl(shortUrl("GE535Gx", "https://www.google.co.uk/\u00df", expiry));
+
+    ShortUrl url = repository.getUrl("GE535Gx");
+    Assertions.assertEquals("GE535Gx", url.getToken());
+    Assertions.assertEquals("https://www.google.co.uk/\u00df", url.getOriginalUrl());
+    Assertions.assertEquals(expiry.toString(), url.getExpiry());
+    Assertions.assertNull(repository.getUrl("GE535Gy"));
+    Assertions.assertNull(repository.getUrl("not-a-token"));
+  }
+
+  /**
+   * Test deleted urls are no longer returned, and other urls in the
+   * same probe sequences survive the delete.
+   */
+  @Test
+  public void testDeleteUrl() {
+    CompactUrlRepository repository = new CompactUrlRepository(TOKEN_CHARACTERS, 7, 1);
+    LocalDateTime expiry = LocalDateTime.now().plusHours(1);
+    for (int i = 0; i < 5000; i++) {
+      repository.createUrl(shortUrl("t" + i, "https://example.com/" + i, expiry));
+    }
+    for (int i = 0; i < 5000; i += 2) {
+      repository.deleteUrl("t" + i);
+    }
+    Assertions.assertEquals(2500, repository.size());
+    for (int i = 0; i < 5000; i++) {
+      ShortUrl url = repository.getUrl("t" + i);
+      if (i % 2 == 0) {
+        Assertions.assertNull(url);
+      } else {
+        Assertions.assertEquals("https://example.com/" + i, url.getOriginalUrl());
+      }
+    }
+  }
+
+  /**
+   * Test purgeExpiredUrls() removes only the expired urls.
+   */
+  @Test
+  public void testPurgeExpiredUrls() {
+    CompactUrlRepository repository = new CompactUrlRepository(TOKEN_CHARACTERS, 7, 2);
+    LocalDateTime now = LocalDateTime.now();
+    for (int i = 0; i < 1000; i++) {
+      LocalDateTime expiry = i % 3 == 0 ? now.minusMinutes(1) : now.plusMinutes(1);
+      repository.createUrl(shortUrl("t" + i, "https://example.com/" + i, expiry));
+    }
+    repository.purgeExpiredUrls();
+    Assertions.assertEquals(666, repository.size());
+    for (int i = 0; i < 1000; i++) {
+      Assertions.assertEquals(i % 3 != 0, repository.getUrl("t" + i) != null);
+    }
+  }
+
+  /**
+   * Test expired urls are treated as absent before they are purged.
+   */
+  @Test
+  public void testGetExpiredUrl() {
+    CompactUrlRepository repository = new CompactUrlRepository(TOKEN_CHARACTERS, 7, 1);
+    repository.createUrl(shortUrl("GE535Gx", "https://www.google.co.uk",
+        LocalDateTime.now().minusSeconds(1)));
+    Assertions.assertNull(repository.getUrl("GE535Gx"));
+    Assertions.assertEquals(1, repository.size());
+  }
+
+  /**
+   * Test tokens round trip through the token codec.
+   */
+  @Test
+  public void testTokenCodecRoundTrip() {
+    TokenCodec codec = new TokenCodec(TOKEN_CHARACTERS);
+    Assertions.assertEquals(10, codec.getMaxLength());
+    for (String token : new String[] {"0", "Z", "00", "GE535Gx", "ZZZZZZZZZZ"}) {
+      long key = codec.encode(token);
+      Assertions.assertTrue(key > 0);
+      Assertions.assertEquals(token, codec.decode(key));
+    }
+    Assertions.assertEquals(-1, codec.encode(""));
+    Assertions.assertEquals(-1, codec.encode("GE5-5Gx"));
+    Assertions.assertEquals(-1, codec.encode("ZZZZZZZZZZZ"));
+  }
+}
@@ -0,0 +1,136 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Unit tests for {@link DurableUrlRepository} class.
+ */
+public class DurableUrlRepositoryTest {
+
+  private static final char[] TOKEN_CHARACTERS =
+      "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+  private static DurableUrlRepository open(Path dir) {
+    return new DurableUrlRepository(new CompactUrlRepository(TOKEN_CHARACTERS, 7, 4), dir, true, 0);
+  }
+
+  private static ShortUrl shortUrl(String token) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl("https://example.com/" + token)
+        .expiryTime(System.currentTimeMillis() + 60000)
+        .build();
+  }
+
+  /**
+   * Test creates and deletes are recovered from the log.
+   */
+  @Test
+  public void testRecoverFromLog(@TempDir Path dir) {
+    try (DurableUrlRepository repository = open(dir)) {
+      repository.createUrl(shortUrl("a"));
+      repository.createUrl(shortUrl("b"));
+      repository.deleteUrl("a");
+    }
+    try (DurableUrlRepository repository = open(dir)) {
+      Assertions.assertNull(repository.getUrl("a"));
+      Assertions.assertEquals("https://example.com/b", repository.getUrl("b").getOriginalUrl());
+    }
+  }
+
+  /**
+   * Test a batch of creates is recovered from the log.
+   */
+  @Test
+  public void testRecoverBatchFromLog(@TempDir Path dir) {
+    try (DurableUrlRepository repository = open(dir)) {
+      repository.createUrls(List.of(shortUrl("a"), shortUrl("b"), shortUrl("c")));
+    }
+    try (DurableUrlRepository repository = open(dir)) {
+      Assertions.assertEquals("https://example.com/a", repository.getUrl("a").getOriginalUrl());
+      Assertions.assertEquals("https://example.com/c", repository.getUrl("c").getOriginalUrl());
+    }
+  }
+
+  /**
+   * Test creates the in-memory repository rejects or fails aren't logged,
+   * so recovery neither replaces the stored url nor fails on them.
+   */
+  @Test
+  public void testRejectedCreatesNotLogged(@TempDir Path dir) {
+    try (DurableUrlRepository repository = open(dir)) {
+      repository.createUrl(shortUrl("a"));
+      ShortUrl duplicate = new ShortUrl.Builder()
+          .token("a")
+          .originalUrl("https://example.com/duplicate")
+          .expiryTime(System.currentTimeMillis() + 60000)
+          .build();
+      Assertions.assertNull(repository.createUrl(duplicate));
+      Assertions.assertEquals(BitSet.valueOf(new long[] {2}), repository.createUrls(List.of(shortUrl("b"), duplicate)));
+      Assertions.assertThrows(IllegalArgumentException.class, () -> repository.createUrl(shortUrl("not-stored")));
+    }
+    try (DurableUrlRepository repository = open(dir)) {
+      Assertions.assertEquals("https://example.com/a", repository.getUrl("a").getOriginalUrl());
+      Assertions.assertEquals("https://example.com/b", repository.getUrl("b").getOriginalUrl());
+    }
+  }
+
+  /**
+   * Test a snapshot replaces the older log files, and changes made
+   * after the snapshot are recovered from the newer log.
+   */
+  @Test
+  public void testRecoverFromSnapshot(@TempDir Path dir) throws Exception {
+    try (DurableUrlRepository repository = open(dir)) {
+      for (int i = 0; i < 100; i++) {
+        repository.createUrl(shortUrl("t" + i));
+      }
+      long sequence = repository.snapshot();
+      repository.deleteUrl("t0");
+      repository.createUrl(shortUrl("after"));
+
+      try (Stream<Path> files = Files.list(dir)) {
+        Assertions.assertFalse(files.anyMatch(file -> file.equals(WriteAheadLog.logFile(dir, 0))));
+      }
+      Assertions.assertTrue(Files.exists(WriteAheadLog.logFile(dir, sequence)));
+    }
+    try (DurableUrlRepository repository = open(dir)) {
+      Assertions.assertNull(repository.getUrl("t0"));
+      Assertions.assertNotNull(repository.getUrl("t99"));
+      Assertions.assertNotNull(repository.getUrl("after"));
+    }
+  }
+
+  /**
+   * Test concurrent creates are all recovered.
+   */
+  @Test
+  public void testConcurrentCreates(@TempDir Path dir) throws Exception {
+    try (DurableUrlRepository repository = open(dir)) {
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      for (int i = 0; i < 2000; i++) {
+        String token = "t" + i;
+        executor.execute(() -> repository.createUrl(shortUrl(token)));
+      }
+      executor.shutdown();
+      Assertions.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    }
+    try (DurableUrlRepository repository = open(dir)) {
+      for (int i = 0; i < 2000; i++) {
+        Assertions.assertNotNull(repository.getUrl("t" + i));
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package com.gmpatter.shorty.persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link ExpiryIndex} class.
+ */
+public class ExpiryIndexTest {
+
+  /**
+   * Test pollExpired() only returns items from fully elapsed buckets.
+   */
+  @Test
+  public void testPollExpired() {
+    ExpiryIndex<String> index = new ExpiryIndex<>(1000);
+    index.add(500, "a");
+    index.add(1500, "b");
+    index.add(2500, "c");
+    index.add(3500, "d");
+
+    List<String> expired = new ArrayList<>();
+    // "c" expires in the current bucket so is left for the next purge
+    Assertions.assertEquals(2, index.pollExpired(2600, expired::add));
+    Assertions.assertEquals(List.of("a", "b"), expired);
+    Assertions.assertEquals(2, index.size());
+
+    expired.clear();
+    index.pollExpired(3000, expired::add);
+    Assertions.assertEquals(List.of("c"), expired);
+  }
+
+  /**
+   * Test countExpired() counts the items pollExpired() would return.
+   */
+  @Test
+  public void testCountExpired() {
+    ExpiryIndex<String> index = new ExpiryIndex<>(1000);
+    index.add(500, "a");
+    index.add(1500, "b");
+    index.add(1600, "c");
+    index.add(2500, "d");
+
+    Assertions.assertEquals(0, index.countExpired(900));
+    Assertions.assertEquals(3, index.countExpired(2600));
+    index.remove(1500, "b");
+    Assertions.assertEquals(2, index.countExpired(2600));
+    Assertions.assertEquals(index.countExpired(2600), index.pollExpired(2600, item -> { }));
+    Assertions.assertEquals(0, index.countExpired(2600));
+  }
+
+  /**
+   * Test removed items are not returned by pollExpired().
+   */
+  @Test
+  public void testRemove() {
+    ExpiryIndex<String> index = new ExpiryIndex<>(1000);
+    index.add(500, "a");
+    index.add(600, "b");
+    index.remove(600, "b");
+
+    List<String> expired = new ArrayList<>();
+    index.pollExpired(5000, expired::add);
+    Assertions.assertEquals(List.of("a"), expired);
+  }
+}
@@ -0,0 +1,198 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link JdbcUrlRepository} class, against an in-memory H2
+ * database.
+ */
+public class JdbcUrlRepositoryTest {
+
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+
+  private String url;
+  private JdbcUrlRepository repository;
+
+  /**
+   * Opens a repository on a new database.
+   */
+  @BeforeEach
+  public void setup() {
+    url = "jdbc:h2:mem:shorty" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+    repository = open(4, 3);
+  }
+
+  /**
+   * Closes the repository.
+   */
+  @AfterEach
+  public void cleanup() {
+    repository.close();
+  }
+
+  private JdbcUrlRepository open(int batchRows, int purgeChunkRows) {
+    return new JdbcUrlRepository(new JdbcConnectionPool(url, null, null, 4, 5000), batchRows, purgeChunkRows);
+  }
+
+  private static ShortUrl shortUrl(String token, long expiryTime) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl("https://example.com/" + token)
+        .expiryTime(expiryTime)
+        .build();
+  }
+
+  private static ShortUrl shortUrl(String token) {
+    return shortUrl(token, System.currentTimeMillis() + 60000);
+  }
+
+  /**
+   * Test urls are created, read and deleted, and are still stored when the
+   * repository is opened again.
+   */
+  @Test
+  public void testCreateGetDelete() {
+    repository.createUrl(shortUrl("a"));
+    repository.createUrl(shortUrl("b"));
+    Assertions.assertEquals("https://example.com/a", repository.getUrl("a").getOriginalUrl());
+    Assertions.assertEquals("https://example.com/b", repository.getOriginalUrl("b"));
+    Assertions.assertNull(repository.getUrl("c"));
+
+    repository.deleteUrl("a");
+    Assertions.assertNull(repository.getOriginalUrl("a"));
+    Assertions.assertEquals(1, repository.size());
+
+    try (JdbcUrlRepository reopened = open(4, 3)) {
+      Assertions.assertEquals("https://example.com/b", reopened.getOriginalUrl("b"));
+    }
+  }
+
+  /**
+   * Test creating a token that is already stored keeps the stored url and
+   * returns null, both alone and within a batch.
+   */
+  @Test
+  public void testDuplicateTokensKeepStoredUrl() {
+    Assertions.assertNotNull(repository.createUrl(shortUrl("a")));
+    Assertions.assertNull(repository.createUrl(new ShortUrl.Builder()
+        .token("a")
+        .originalUrl("https://example.com/other")
+        .expiryTime(System.currentTimeMillis() + 60000)
+        .build()));
+    Assertions.assertEquals("https://example.com/a", repository.getOriginalUrl("a"));
+
+    // Over a multi-row insert and a single row batch, with the duplicate in each
+    List<ShortUrl> batch = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      batch.add(shortUrl("t" + i));
+    }
+    batch.add(2, shortUrl("a"));
+    batch.add(shortUrl("t0"));
+    repository.createUrls(batch);
+    Assertions.assertEquals(7, repository.size());
+    Assertions.assertEquals("https://example.com/t5", repository.getOriginalUrl("t5"));
+  }
+
+  /**
+   * Test expired urls are treated as absent before they are purged.
+   */
+  @Test
+  public void testExpiredUrlsAbsent() {
+    long now = System.currentTimeMillis();
+    repository.createUrl(shortUrl("expired", now - 1000));
+    repository.createUrl(shortUrl("live"));
+    Assertions.assertNull(repository.getUrl("expired"));
+    Assertions.assertNull(repository.getOriginalUrl("expired"));
+    Assertions.assertEquals(2, repository.size());
+    Assertions.assertEquals(1, repository.countExpired(now));
+
+    List<String> tokens = new ArrayList<>();
+    repository.forEachUrl(shortUrl -> tokens.add(shortUrl.getToken()));
+    Assertions.assertEquals(List.of("live"), tokens);
+  }
+
+  /**
+   * Test purging deletes every expired url over several chunks, including
+   * more urls sharing an expiry time than fit in a chunk, and keeps the
+   * rest.
+   */
+  @Test
+  public void testPurgeInChunks() {
+    long now = System.currentTimeMillis();
+    List<ShortUrl> urls = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      urls.add(shortUrl("expired" + i, now - 10000 + i));
+    }
+    for (int i = 0; i < 4; i++) {
+      urls.add(shortUrl("same" + i, now - 20000));
+    }
+    for (int i = 0; i < 5; i++) {
+      urls.add(shortUrl("live" + i));
+    }
+    repository.createUrls(urls);
+    Assertions.assertEquals(14, repository.countExpired(System.currentTimeMillis()));
+
+    repository.purgeExpiredUrls();
+    Assertions.assertEquals(5, repository.size());
+    Assertions.assertEquals(0, repository.countExpired(System.currentTimeMillis()));
+    Assertions.assertEquals("https://example.com/live0", repository.getOriginalUrl("live0"));
+  }
+
+  /**
+   * Test concurrent creates are coalesced into fewer insert batches, and
+   * every url is stored.
+   */
+  @Test
+  public void testConcurrentCreatesBatched() throws Exception {
+    int creates = 500;
+    List<Future<?>> futures = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < creates; i++) {
+        String token = "t" + i;
+        futures.add(executor.submit(() -> repository.createUrl(shortUrl(token))));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    Assertions.assertEquals(creates, repository.size());
+    Assertions.assertTrue(repository.getBatchCount() < creates,
+        "Expected fewer batches than creates, got " + repository.getBatchCount());
+    for (int i = 0; i < creates; i++) {
+      Assertions.assertEquals("https://example.com/t" + i, repository.getOriginalUrl("t" + i));
+    }
+  }
+
+  /**
+   * Test the pool reuses its connections rather than opening one per
+   * operation.
+   */
+  @Test
+  public void testConnectionsReused() throws Exception {
+    try (JdbcConnectionPool pool = new JdbcConnectionPool(url, null, null, 2, 100)) {
+      JdbcConnectionPool.PooledConnection first = pool.borrow();
+      first.close();
+      try (JdbcConnectionPool.PooledConnection again = pool.borrow()) {
+        Assertions.assertSame(first, again);
+        Assertions.assertSame(again.prepare("SELECT 1"), again.prepare("SELECT 1"));
+        try (JdbcConnectionPool.PooledConnection second = pool.borrow()) {
+          Assertions.assertEquals(2, pool.size());
+          // The pool is full, so a third borrow times out
+          Assertions.assertThrows(SQLException.class, pool::borrow);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Unit tests for {@link SegmentUrlRepository} class.
+ */
+public class SegmentUrlRepositoryTest {
+
+  private static final char[] TOKEN_CHARACTERS =
+      "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+  private static SegmentUrlRepository open(Path dir) {
+    return new SegmentUrlRepository(TOKEN_CHARACTERS, dir, 4096, 0.5, 0);
+  }
+
+  private static ShortUrl shortUrl(String token, long expiryTime) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl("https://example.com/" + token)
+        .expiryTime(expiryTime)
+        .build();
+  }
+
+  private static long segmentCount(Path dir) throws Exception {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.count();
+    }
+  }
+
+  /**
+   * Test urls are read back from the segments, and survive a restart.
+   */
+  @Test
+  public void testCreateDeleteAndRecover(@TempDir Path dir) {
+    long expiry = System.currentTimeMillis() + 60000;
+    try (SegmentUrlRepository repository = open(dir)) {
+      for (int i = 0; i < 200; i++) {
+        repository.createUrl(shortUrl("t" + i, expiry));
+      }
+      repository.deleteUrl("t0");
+      Assertions.assertNull(repository.getUrl("t0"));
+      Assertions.assertEquals("https://example.com/t1", repository.getUrl("t1").getOriginalUrl());
+      Assertions.assertEquals(expiry, repository.getUrl("t1").getExpiryTime());
+    }
+    try (SegmentUrlRepository repository = open(dir)) {
+      Assertions.assertEquals(199, repository.size());
+      Assertions.assertNull(repository.getUrl("t0"));
+      Assertions.assertEquals("https://example.com/t199", repository.getUrl("t199").getOriginalUrl());
+    }
+  }
+
+  /**
+   * Test compaction removes segments that are mostly garbage without
+   * losing live urls, or resurrecting deleted urls after a restart.
+   */
+  @Test
+  public void testCompaction(@TempDir Path dir) throws Exception {
+    long expiry = System.currentTimeMillis() + 60000;
+    try (SegmentUrlRepository repository = open(dir)) {
+      for (int i = 0; i < 300; i++) {
+        repository.createUrl(shortUrl("t" + i, expiry));
+      }
+      for (int i = 0; i < 300; i++) {
+        if (i % 10 != 0) {
+          repository.deleteUrl("t" + i);
+        }
+      }
+      long before = segmentCount(dir);
+      Assertions.assertTrue(repository.compact() > 0);
+      Assertions.assertTrue(segmentCount(dir) < before);
+      for (int i = 0; i < 300; i++) {
+        Assertions.assertEquals(i % 10 == 0, repository.getUrl("t" + i) != null);
+      }
+    }
+    try (SegmentUrlRepository repository = open(dir)) {
+      Assertions.assertEquals(30, repository.size());
+      for (int i = 0; i < 300; i++) {
+        Assertions.assertEquals(i % 10 == 0, repository.getUrl("t" + i) != null);
+      }
+    }
+  }
+
+  /**
+   * Test compacting a segment holding the tombstone of a token that was
+   * created again in a later segment doesn't copy the tombstone after the
+   * new record, which would delete it on recovery.
+   */
+  @Test
+  public void testCompactionKeepsRecreatedUrls(@TempDir Path dir) throws Exception {
+    long expiry = System.currentTimeMillis() + 60000;
+    try (SegmentUrlRepository repository = open(dir)) {
+      repository.createUrl(shortUrl("x", expiry));
+      // The first segment stays mostly live, so it isn't compacted
+      for (int i = 0; segmentCount(dir) < 2; i++) {
+        repository.createUrl(shortUrl("k" + i, expiry));
+      }
+      repository.deleteUrl("x");
+      for (int i = 0; segmentCount(dir) < 4; i++) {
+        repository.createUrl(shortUrl("g" + i, expiry));
+        repository.deleteUrl("g" + i);
+      }
+      repository.createUrl(new ShortUrl.Builder()
+          .token("x")
+          .originalUrl("https://example.com/recreated")
+          .expiryTime(expiry)
+          .build());
+      Assertions.assertTrue(repository.compact() > 0);
+    }
+    try (SegmentUrlRepository repository = open(dir)) {
+      Assertions.assertEquals("https://example.com/recreated", repository.getUrl("x").getOriginalUrl());
+    }
+  }
+
+  /**
+   * Test purged urls are removed from the index.
+   */
+  @Test
+  public void testPurgeExpiredUrls(@TempDir Path dir) {
+    long now = System.currentTimeMillis();
+    try (SegmentUrlRepository repository = open(dir)) {
+      repository.createUrl(shortUrl("old", now - 5000));
+      repository.createUrl(shortUrl("new", now + 60000));
+      Assertions.assertNull(repository.getUrl("old"));
+      repository.purgeExpiredUrls();
+      Assertions.assertEquals(1, repository.size());
+      Assertions.assertNotNull(repository.getUrl("new"));
+    }
+  }
+}
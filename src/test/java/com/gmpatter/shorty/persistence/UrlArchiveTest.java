@@ -0,0 +1,105 @@
+package com.gmpatter.shorty.persistence;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for {@link UrlArchive} class.
+ */
+public class UrlArchiveTest {
+
+  private static final char[] TOKEN_CHARACTERS =
+      "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+  private static CompactUrlRepository repository() {
+    return new CompactUrlRepository(TOKEN_CHARACTERS, 7, 4);
+  }
+
+  private static ShortUrl shortUrl(String token, long expiryTime) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl("https://example.com/" + token)
+        .expiryTime(expiryTime)
+        .build();
+  }
+
+  private static void assertRoundTrip(UrlArchive.Format format) throws IOException {
+    long expiryTime = System.currentTimeMillis() + 60000;
+    CompactUrlRepository source = repository();
+    int count = UrlArchive.BATCH_SIZE * 2 + 5;
+    for (int i = 0; i < count; i++) {
+      source.createUrl(shortUrl("t" + i, expiryTime));
+    }
+
+    ByteArrayOutputStream exported = new ByteArrayOutputStream();
+    Assertions.assertEquals(count, UrlArchive.exportUrls(source, exported, format));
+
+    UrlRepository target = Mockito.spy(repository());
+    Assertions.assertEquals(count, UrlArchive.importUrls(
+        new ByteArrayInputStream(exported.toByteArray()), target, format));
+    Mockito.verify(target, Mockito.times(3)).createUrls(Mockito.anyList());
+    for (int i = 0; i < count; i++) {
+      ShortUrl shortUrl = target.getUrl("t" + i);
+      Assertions.assertEquals("https://example.com/t" + i, shortUrl.getOriginalUrl());
+      Assertions.assertEquals(expiryTime, shortUrl.getExpiryTime());
+    }
+  }
+
+  /**
+   * Test urls exported in the binary format are imported in batches.
+   */
+  @Test
+  public void testBinaryRoundTrip() throws IOException {
+    assertRoundTrip(UrlArchive.Format.BINARY);
+  }
+
+  /**
+   * Test urls exported as NDJSON are imported in batches.
+   */
+  @Test
+  public void testNdjsonRoundTrip() throws IOException {
+    assertRoundTrip(UrlArchive.Format.NDJSON);
+  }
+
+  /**
+   * Test expired urls are skipped on import, and invalid lines are rejected.
+   */
+  @Test
+  public void testImportNdjson() throws IOException {
+    String archive = "{\"token\":\"a\",\"url\":\"https://example.com/a\",\"expiryTime\":1}\n"
+        + "{\"token\":\"b\",\"url\":\"https://example.com/b\",\"expiryTime\":" + Long.MAX_VALUE + "}\n";
+    CompactUrlRepository target = repository();
+    Assertions.assertEquals(1, UrlArchive.importUrls(
+        new ByteArrayInputStream(archive.getBytes(StandardCharsets.UTF_8)), target, UrlArchive.Format.NDJSON));
+    Assertions.assertNull(target.getUrl("a"));
+    Assertions.assertNotNull(target.getUrl("b"));
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> UrlArchive.importUrls(
+        new ByteArrayInputStream("{\"token\":\"c\"}".getBytes(StandardCharsets.UTF_8)), target,
+        UrlArchive.Format.NDJSON));
+  }
+
+  /**
+   * Test urls whose token is already in use are counted as skipped, not
+   * imported.
+   */
+  @Test
+  public void testImportCountsTokensInUse() throws IOException {
+    String archive = "{\"token\":\"a\",\"url\":\"https://example.com/new\",\"expiryTime\":" + Long.MAX_VALUE + "}\n"
+        + "{\"token\":\"b\",\"url\":\"https://example.com/b\",\"expiryTime\":" + Long.MAX_VALUE + "}\n";
+    CompactUrlRepository target = repository();
+    target.createUrl(shortUrl("a", Long.MAX_VALUE));
+    UrlArchive.ImportResult result = UrlArchive.importUrls(
+        new ByteArrayInputStream(archive.getBytes(StandardCharsets.UTF_8)), target, UrlArchive.Format.NDJSON, null);
+    Assertions.assertEquals(1, result.getImported());
+    Assertions.assertEquals(1, result.getSkipped());
+    Assertions.assertEquals("https://example.com/a", target.getUrl("a").getOriginalUrl());
+  }
+}
@@ -0,0 +1,60 @@
+package com.gmpatter.shorty.persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for {@link UrlFingerprintIndex} class.
+ */
+public class UrlFingerprintIndexTest {
+
+  private static final char[] TOKEN_CHARACTERS =
+      "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+  /**
+   * Test tokens are indexed by client, url and expiry class.
+   */
+  @Test
+  public void testGet() {
+    UrlFingerprintIndex index = new UrlFingerprintIndex(TOKEN_CHARACTERS);
+    index.put("client", "https://example.com/a", 1, "abc1234", Long.MAX_VALUE);
+
+    Assertions.assertEquals("abc1234", index.get("client", "https://example.com/a", 1));
+    Assertions.assertNull(index.get("client", "https://example.com/a", 2));
+    Assertions.assertNull(index.get("client", "https://example.com/b", 1));
+    Assertions.assertNull(index.get("other", "https://example.com/a", 1));
+    // The client and url don't run together
+    Assertions.assertNull(index.get("clienth", "ttps://example.com/a", 1));
+  }
+
+  /**
+   * Test remove() only removes the entry if it is for the given token.
+   */
+  @Test
+  public void testRemove() {
+    UrlFingerprintIndex index = new UrlFingerprintIndex(TOKEN_CHARACTERS);
+    index.put("client", "https://example.com/a", 1, "abc1234", Long.MAX_VALUE);
+
+    index.remove("client", "https://example.com/a", 1, "xyz9876");
+    Assertions.assertEquals("abc1234", index.get("client", "https://example.com/a", 1));
+    index.remove("client", "https://example.com/a", 1, "abc1234");
+    Assertions.assertNull(index.get("client", "https://example.com/a", 1));
+    Assertions.assertEquals(0, index.size());
+  }
+
+  /**
+   * Test purgeExpired() removes expired entries, but not entries replaced
+   * by a url that expires later.
+   */
+  @Test
+  public void testPurgeExpired() {
+    UrlFingerprintIndex index = new UrlFingerprintIndex(TOKEN_CHARACTERS);
+    index.put("client", "https://example.com/a", 0, "aaa1111", 1000);
+    index.put("client", "https://example.com/b", 0, "bbb1111", 1000);
+    index.put("client", "https://example.com/b", 0, "bbb2222", 100000);
+
+    Assertions.assertEquals(1, index.purgeExpired(5000));
+    Assertions.assertNull(index.get("client", "https://example.com/a", 0));
+    Assertions.assertEquals("bbb2222", index.get("client", "https://example.com/b", 0));
+  }
+}
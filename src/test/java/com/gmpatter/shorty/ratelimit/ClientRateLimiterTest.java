@@ -0,0 +1,100 @@
+package com.gmpatter.shorty.ratelimit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for {@link ClientRateLimiter} class.
+ */
+public class ClientRateLimiterTest {
+
+  private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1000));
+
+  private void advance(long millis) {
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * Test a client can take its burst straight away, then permits at the
+   * refill rate, and is told how long to wait when it has none.
+   */
+  @Test
+  public void testTokenBucket() {
+    ClientRateLimiter limiter = new ClientRateLimiter(2, 3, 100, clock::get);
+    for (int i = 0; i < 3; i++) {
+      Assertions.assertEquals(0, limiter.tryAcquire("a"));
+    }
+    long wait = limiter.tryAcquire("a");
+    Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(500), wait, TimeUnit.MILLISECONDS.toNanos(1));
+
+    // Other clients have their own buckets
+    Assertions.assertEquals(0, limiter.tryAcquire("b"));
+
+    advance(499);
+    Assertions.assertTrue(limiter.tryAcquire("a") > 0);
+    advance(1);
+    Assertions.assertEquals(0, limiter.tryAcquire("a"));
+    Assertions.assertTrue(limiter.tryAcquire("a") > 0);
+
+    // The bucket never holds more than the burst
+    advance(60000);
+    for (int i = 0; i < 3; i++) {
+      Assertions.assertEquals(0, limiter.tryAcquire("a"));
+    }
+    Assertions.assertTrue(limiter.tryAcquire("a") > 0);
+  }
+
+  /**
+   * Test charging for work already done leaves the bucket in debt, until
+   * it has been refilled for the permits charged.
+   */
+  @Test
+  public void testCharge() {
+    ClientRateLimiter limiter = new ClientRateLimiter(2, 3, 100, clock::get);
+    limiter.charge("a", 7);
+    long wait = limiter.tryAcquire("a");
+    Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(2500), wait, TimeUnit.MILLISECONDS.toNanos(1));
+    advance(2500);
+    Assertions.assertEquals(0, limiter.tryAcquire("a"));
+    Assertions.assertTrue(limiter.tryAcquire("a") > 0);
+  }
+
+  /**
+   * Test clients whose buckets have refilled are evicted when new clients
+   * arrive, and the number of clients is bounded.
+   */
+  @Test
+  public void testIdleClientsEvicted() {
+    ClientRateLimiter limiter = new ClientRateLimiter(10, 10, 64, clock::get);
+    for (int i = 0; i < 64; i++) {
+      limiter.tryAcquire("client" + i);
+    }
+    Assertions.assertTrue(limiter.size() <= 64);
+    int before = limiter.size();
+
+    // Long enough for every bucket to refill, so each new client evicts them
+    advance(1000);
+    for (int i = 0; i < 64; i++) {
+      limiter.tryAcquire("new" + i);
+    }
+    Assertions.assertTrue(limiter.size() <= before, limiter.size() + " > " + before);
+
+    for (int i = 0; i < 10000; i++) {
+      limiter.tryAcquire("more" + i);
+    }
+    Assertions.assertTrue(limiter.size() <= 64, Integer.toString(limiter.size()));
+  }
+
+  /**
+   * Test limits that aren't positive are rejected.
+   */
+  @Test
+  public void testInvalidLimits() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new ClientRateLimiter(0, 1, 1));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new ClientRateLimiter(1, 0, 1));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new ClientRateLimiter(1, 1, 0));
+  }
+}
@@ -0,0 +1,155 @@
+package com.gmpatter.shorty.ratelimit;
+
+import com.gmpatter.shorty.ServerMain;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.webserver.WebServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static io.helidon.config.ConfigSources.classpath;
+
+/**
+ * Integration tests for the per-client rate limits on creates and deletes.
+ */
+public class RateLimitIT {
+
+  private static final String BASE_URL = "http://localhost:9080";
+  private static final Pattern TOKEN = Pattern.compile("\"token\":\"([^\"]+)\"");
+
+  private static WebServer server;
+  private final HttpClient client = HttpClient.newBuilder()
+      .followRedirects(HttpClient.Redirect.NEVER)
+      .build();
+
+  /**
+   * Start the server with a burst of 3, a bulk burst of 5 and slow refills
+   * before all tests.
+   */
+  @BeforeAll
+  public static void setup() {
+    Config config = Config.builder()
+        .sources(ConfigSources.create(Map.of(
+            "server.port", "9080",
+            "shorty.rate-limit.enabled", "true",
+            "shorty.rate-limit.requests-per-second", "0.1",
+            "shorty.rate-limit.burst", "3",
+            "shorty.rate-limit.bulk-urls-per-second", "0.1",
+            "shorty.rate-limit.bulk-burst", "5",
+            "shorty.rate-limit.api-keys.0", "first",
+            "shorty.rate-limit.api-keys.1", "second",
+            "shorty.rate-limit.api-keys.2", "bulk")),
+            classpath("application.yaml"))
+        .build();
+    server = ServerMain.startServer(config);
+  }
+
+  /**
+   * Shutdown the server after all tests.
+   */
+  @AfterAll
+  public static void cleanup() {
+    server.shutdown().await(10, TimeUnit.SECONDS);
+  }
+
+  private HttpResponse<String> create(String apiKey) throws IOException, InterruptedException {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(BASE_URL + "/shorty/v1/url"))
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString("{\"url\":\"https://www.example.com\",\"expiryCode\":\"1\"}"));
+    if (apiKey != null) {
+      request.header("X-API-Key", apiKey);
+    }
+    return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  /**
+   * Creates and deletes beyond a client's burst should be rejected with a
+   * 429 and Retry-After, while other clients and redirects are unaffected.
+   */
+  @Test
+  public void testRateLimited() throws IOException, InterruptedException {
+    String token = null;
+    for (int i = 0; i < 3; i++) {
+      HttpResponse<String> response = create("first");
+      Assertions.assertEquals(201, response.statusCode(), response.body());
+      Matcher matcher = TOKEN.matcher(response.body());
+      Assertions.assertTrue(matcher.find());
+      token = matcher.group(1);
+    }
+    HttpResponse<String> rejected = create("first");
+    Assertions.assertEquals(429, rejected.statusCode());
+    long retryAfter = Long.parseLong(rejected.headers().firstValue("Retry-After").orElseThrow());
+    Assertions.assertTrue(retryAfter >= 1 && retryAfter <= 10, Long.toString(retryAfter));
+    Assertions.assertTrue(rejected.body().contains("\"message\""), rejected.body());
+
+    // Deletes take permits from the same bucket
+    HttpResponse<String> delete = client.send(HttpRequest.newBuilder(URI.create(BASE_URL + "/shorty/v1/url/" + token))
+        .header("X-API-Key", "first")
+        .DELETE()
+        .build(), HttpResponse.BodyHandlers.ofString());
+    Assertions.assertEquals(429, delete.statusCode());
+
+    // Another API key has its own bucket
+    Assertions.assertEquals(201, create("second").statusCode());
+
+    // Redirects and lookups aren't limited
+    for (int i = 0; i < 10; i++) {
+      HttpResponse<String> redirect = client.send(HttpRequest.newBuilder(URI.create(BASE_URL + "/go/" + token))
+          .build(), HttpResponse.BodyHandlers.ofString());
+      Assertions.assertEquals(301, redirect.statusCode());
+      HttpResponse<String> lookup = client.send(HttpRequest.newBuilder(URI.create(BASE_URL + "/shorty/v1/url/" + token))
+          .build(), HttpResponse.BodyHandlers.ofString());
+      Assertions.assertEquals(200, lookup.statusCode());
+    }
+  }
+
+  /**
+   * A key that isn't configured should be ignored, so clients making up
+   * keys share the bucket of their address.
+   */
+  @Test
+  public void testUnknownKeysShareAddressBucket() throws IOException, InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      Assertions.assertEquals(201, create("made-up-" + i).statusCode());
+    }
+    Assertions.assertEquals(429, create("made-up-3").statusCode());
+  }
+
+  /**
+   * Bulk creates should take a bulk permit for each url, answering the urls
+   * beyond the bulk burst with an error and leaving the rest unread.
+   */
+  @Test
+  public void testBulkChargedPerUrl() throws IOException, InterruptedException {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      body.append("{\"url\":\"https://www.example.com/").append(i).append("\",\"expiryCode\":\"1\"}\n");
+    }
+    HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(BASE_URL + "/shorty/v1/url/bulk"))
+        .header("Content-Type", "application/x-ndjson")
+        .header("X-API-Key", "bulk")
+        .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+        .build(), HttpResponse.BodyHandlers.ofString());
+    Assertions.assertEquals(200, response.statusCode());
+    // The request took the first permit, leaving four for its urls, and
+    // the error for the fifth is written before the batch of created urls
+    String[] results = response.body().split("\n");
+    Assertions.assertEquals(5, results.length, response.body());
+    Assertions.assertTrue(results[0].contains("\"index\":4,\"message\""), results[0]);
+    for (int i = 1; i < 5; i++) {
+      Assertions.assertTrue(results[i].contains("\"token\""), results[i]);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.gmpatter.shorty.redirect;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+/**
+ * Unit tests for {@link HttpCachePolicy} class.
+ */
+public class HttpCachePolicyTest {
+
+  private final HttpCachePolicy policy = new HttpCachePolicy(true, 60, 302);
+
+  private static ShortUrl shortUrl(String token, long expiryTime) {
+    return new ShortUrl.Builder()
+        .token(token)
+        .originalUrl("https://example.com/" + token)
+        .expiryTime(expiryTime)
+        .build();
+  }
+
+  /**
+   * Test urls are cached until they expire, but no longer than the max age.
+   */
+  @Test
+  public void testMaxAge() {
+    long now = 1_700_000_000_000L;
+    Assertions.assertEquals(60, policy.getMaxAgeSeconds(now + 3_600_000, now));
+    Assertions.assertEquals(10, policy.getMaxAgeSeconds(now + 10_999, now));
+    Assertions.assertEquals(0, policy.getMaxAgeSeconds(now - 1000, now));
+
+    Assertions.assertEquals("public, max-age=60", policy.getCacheControl(60));
+    Assertions.assertSame(policy.getCacheControl(60), policy.getCacheControl(60));
+    Assertions.assertEquals("public, max-age=10", policy.getCacheControl(10));
+  }
+
+  /**
+   * Test the Expires header is the HTTP date the max age from now, and is
+   * only formatted again when it changes.
+   */
+  @Test
+  public void testExpires() {
+    // 2023-11-14T22:13:20Z
+    long now = 1_700_000_000_000L;
+    String expires = policy.getExpires(60, now);
+    Assertions.assertEquals("Tue, 14 Nov 2023 22:14:20 GMT", expires);
+    Assertions.assertSame(expires, policy.getExpires(60, now + 999));
+    Assertions.assertEquals("Tue, 14 Nov 2023 22:13:30 GMT", policy.getExpires(10, now));
+  }
+
+  /**
+   * Test the entity tag changes with the token and expiry, is kept by the
+   * short url rather than built on each request, and is matched by
+   * If-None-Match lists, weak tags and "*".
+   */
+  @Test
+  public void testETag() {
+    ShortUrl shortUrl = shortUrl("abc", 1000);
+    String etag = HttpCachePolicy.getETag(shortUrl);
+    Assertions.assertSame(etag, HttpCachePolicy.getETag(shortUrl));
+    Assertions.assertNotEquals(etag, HttpCachePolicy.getETag(shortUrl("abc", 2000)));
+    Assertions.assertNotEquals(etag, HttpCachePolicy.getETag(shortUrl("abd", 1000)));
+    Assertions.assertTrue(etag.startsWith("\"") && etag.endsWith("\""), etag);
+
+    Assertions.assertTrue(HttpCachePolicy.isNotModified(etag, etag));
+    Assertions.assertTrue(HttpCachePolicy.isNotModified("\"other\", W/" + etag, etag));
+    Assertions.assertTrue(HttpCachePolicy.isNotModified("*", etag));
+    Assertions.assertFalse(HttpCachePolicy.isNotModified("\"other\"", etag));
+    Assertions.assertFalse(HttpCachePolicy.isNotModified(null, etag));
+    Assertions.assertFalse(HttpCachePolicy.isNotModified("", etag));
+  }
+
+  /**
+   * Test the policy is read from the configuration, and an unsupported
+   * redirect status is rejected.
+   */
+  @Test
+  public void testCreate() {
+    HttpCachePolicy configured = HttpCachePolicy.create(Config.builder()
+        .sources(ConfigSources.create(Map.of(
+            "shorty.http-cache.enabled", "false",
+            "shorty.http-cache.max-age-seconds", "5",
+            "shorty.redirect.status", "302")))
+        .build());
+    Assertions.assertFalse(configured.isEnabled());
+    Assertions.assertEquals(302, configured.getRedirectStatus());
+    Assertions.assertEquals(5, configured.getMaxAgeSeconds(Long.MAX_VALUE / 2, 0));
+
+    HttpCachePolicy defaults = HttpCachePolicy.create(Config.empty());
+    Assertions.assertTrue(defaults.isEnabled());
+    Assertions.assertEquals(301, defaults.getRedirectStatus());
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new HttpCachePolicy(true, 60, 200));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new HttpCachePolicy(true, -1, 301));
+  }
+}
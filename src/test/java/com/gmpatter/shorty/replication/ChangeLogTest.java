@@ -0,0 +1,74 @@
+package com.gmpatter.shorty.replication;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ChangeLog} class.
+ */
+public class ChangeLogTest {
+
+  private static byte[] record(int i) {
+    return new byte[] {(byte) i};
+  }
+
+  /**
+   * Test changes are given consecutive offsets and read back in order, in
+   * batches of at most the requested size.
+   */
+  @Test
+  public void testReadsChangesInOrder() throws IOException {
+    ChangeLog log = new ChangeLog(10, 100);
+    for (int i = 0; i < 5; i++) {
+      Assertions.assertEquals(100 + i, log.append(record(i)));
+    }
+    Assertions.assertEquals(105, log.getEndOffset());
+    Assertions.assertEquals(5, log.getAppendCount());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Assertions.assertEquals(3, log.read(101, 3, out));
+    Assertions.assertArrayEquals(new byte[] {1, 2, 3}, out.toByteArray());
+    Assertions.assertEquals(0, log.read(105, 3, new ByteArrayOutputStream()));
+  }
+
+  /**
+   * Test only the latest changes are kept, and reading from an offset that
+   * is no longer kept or is past the end fails.
+   */
+  @Test
+  public void testDropsOldestChanges() throws IOException {
+    ChangeLog log = new ChangeLog(4, 0);
+    for (int i = 0; i < 10; i++) {
+      log.append(record(i));
+    }
+    Assertions.assertEquals(6, log.getStartOffset());
+    Assertions.assertEquals(-1, log.read(5, 10, new ByteArrayOutputStream()));
+    Assertions.assertEquals(-1, log.read(11, 10, new ByteArrayOutputStream()));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Assertions.assertEquals(4, log.read(6, 10, out));
+    Assertions.assertArrayEquals(new byte[] {6, 7, 8, 9}, out.toByteArray());
+  }
+
+  /**
+   * Test waiting for a change completes when one is appended, or when the
+   * wait times out.
+   */
+  @Test
+  public void testAwaitAppend() throws Exception {
+    ChangeLog log = new ChangeLog(4, 0);
+    Assertions.assertFalse(log.awaitAppend(0, 10).toCompletableFuture().get(1, TimeUnit.SECONDS));
+
+    CompletableFuture<Boolean> waiting = log.awaitAppend(0, 10000).toCompletableFuture();
+    Assertions.assertFalse(waiting.isDone());
+    log.append(record(0));
+    Assertions.assertTrue(waiting.get(1, TimeUnit.SECONDS));
+    // Already appended
+    Assertions.assertTrue(log.awaitAppend(0, 10).toCompletableFuture().isDone());
+  }
+}
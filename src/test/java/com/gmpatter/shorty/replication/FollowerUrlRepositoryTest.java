@@ -0,0 +1,167 @@
+package com.gmpatter.shorty.replication;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.MapUrlRepository;
+import com.gmpatter.shorty.persistence.WriteAheadLog;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Unit tests for {@link FollowerUrlRepository} class, replicating from a
+ * {@link LeaderUrlRepository} in memory.
+ */
+public class FollowerUrlRepositoryTest {
+
+  private static final int BATCH_RECORDS = 100;
+
+  private static ShortUrl shortUrl(int i) {
+    return new ShortUrl.Builder()
+        .token("t" + i)
+        .originalUrl("https://example.com/" + i)
+        .expiryTime(Long.MAX_VALUE)
+        .build();
+  }
+
+  private static FollowerUrlRepository follower(LeaderUrlRepository leader) {
+    return new FollowerUrlRepository("leader", MapUrlRepository::new, new InMemoryReplicationClient(leader),
+        0, 5000);
+  }
+
+  /**
+   * Test a follower loads a snapshot, then applies the creates and deletes
+   * made on the leader after it.
+   */
+  @Test
+  public void testSnapshotThenChanges() throws IOException {
+    LeaderUrlRepository leader = new LeaderUrlRepository(new MapUrlRepository(), 1000);
+    for (int i = 0; i < 50; i++) {
+      leader.createUrl(shortUrl(i));
+    }
+    FollowerUrlRepository follower = follower(leader);
+    follower.poll();
+    Assertions.assertEquals(50, follower.size());
+    Assertions.assertEquals(leader.getChangeLog().getEndOffset(), follower.getOffset());
+
+    for (int i = 50; i < 60; i++) {
+      leader.createUrl(shortUrl(i));
+    }
+    leader.deleteUrl("t3");
+    follower.poll();
+    Assertions.assertEquals(59, follower.size());
+    Assertions.assertNull(follower.getUrl("t3"));
+    Assertions.assertEquals("https://example.com/55", follower.getOriginalUrl("t55"));
+    Assertions.assertEquals(0, follower.getLagRecords());
+    Assertions.assertEquals(1, follower.getSnapshotCount());
+  }
+
+  /**
+   * Test creates the leader skips because their token is in use aren't
+   * replicated, so followers keep the url the leader kept.
+   */
+  @Test
+  public void testSkippedCreatesNotReplicated() throws IOException {
+    LeaderUrlRepository leader = new LeaderUrlRepository(new MapUrlRepository(), 1000);
+    FollowerUrlRepository follower = follower(leader);
+    follower.poll();
+    leader.createUrl(shortUrl(1));
+    ShortUrl duplicate = new ShortUrl.Builder()
+        .token("t1")
+        .originalUrl("https://example.com/duplicate")
+        .expiryTime(Long.MAX_VALUE)
+        .build();
+    Assertions.assertNull(leader.createUrl(duplicate));
+    Assertions.assertEquals(1, leader.createUrls(List.of(shortUrl(2), duplicate)).nextSetBit(0));
+    Assertions.assertEquals(2, leader.getChangeLog().getAppendCount());
+
+    follower.poll();
+    Assertions.assertEquals(2, follower.size());
+    Assertions.assertEquals("https://example.com/1", follower.getOriginalUrl("t1"));
+  }
+
+  /**
+   * Test a follower rejects creates and deletes.
+   */
+  @Test
+  public void testWritesAreRejected() {
+    FollowerUrlRepository follower = follower(new LeaderUrlRepository(new MapUrlRepository(), 1000));
+    Assertions.assertThrows(UnsupportedOperationException.class, () -> follower.createUrl(shortUrl(1)));
+    Assertions.assertThrows(UnsupportedOperationException.class, () -> follower.deleteUrl("t1"));
+  }
+
+  /**
+   * Test a follower that falls further behind than the leader keeps changes
+   * loads a new snapshot, which drops urls deleted in the meantime.
+   */
+  @Test
+  public void testReloadsSnapshotWhenTooFarBehind() throws IOException {
+    LeaderUrlRepository leader = new LeaderUrlRepository(new MapUrlRepository(), 10);
+    for (int i = 0; i < 20; i++) {
+      leader.createUrl(shortUrl(i));
+    }
+    FollowerUrlRepository follower = follower(leader);
+    follower.poll();
+    for (int i = 0; i < 15; i++) {
+      leader.deleteUrl("t" + i);
+    }
+    follower.poll();
+    Assertions.assertEquals(2, follower.getSnapshotCount());
+    Assertions.assertEquals(5, follower.size());
+    Assertions.assertNull(follower.getUrl("t0"));
+    Assertions.assertEquals(leader.getChangeLog().getEndOffset(), follower.getOffset());
+  }
+
+  /**
+   * Test the lag is reported until the follower has applied every change.
+   */
+  @Test
+  public void testLagIsReported() throws IOException {
+    LeaderUrlRepository leader = new LeaderUrlRepository(new MapUrlRepository(), 1000);
+    FollowerUrlRepository follower = follower(leader);
+    follower.poll();
+    for (int i = 0; i < 250; i++) {
+      leader.createUrl(shortUrl(i));
+    }
+    follower.poll();
+    Assertions.assertEquals(150, follower.getLagRecords());
+    follower.poll();
+    follower.poll();
+    Assertions.assertEquals(0, follower.getLagRecords());
+    Assertions.assertEquals(250, follower.size());
+    Assertions.assertTrue(follower.getLagMillis() < 1000);
+  }
+
+  /**
+   * A replication client reading straight from a leader in the same process,
+   * in batches of {@link #BATCH_RECORDS} changes.
+   */
+  private static class InMemoryReplicationClient implements ReplicationClient {
+
+    private final LeaderUrlRepository leader;
+
+    InMemoryReplicationClient(LeaderUrlRepository leader) {
+      this.leader = leader;
+    }
+
+    @Override
+    public long snapshot(Consumer<ShortUrl> create) {
+      return leader.snapshot(create);
+    }
+
+    @Override
+    public long changes(long from, long waitMillis, Consumer<ShortUrl> create, Consumer<String> delete)
+        throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      if (leader.getChangeLog().read(from, BATCH_RECORDS, out) < 0) {
+        return -1;
+      }
+      WriteAheadLog.read(new ByteArrayInputStream(out.toByteArray()), "test", create, delete, 0);
+      return leader.getChangeLog().getEndOffset();
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package com.gmpatter.shorty.replication;
+
+import com.gmpatter.shorty.ServerMain;
+import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.service.UrlService;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import io.helidon.webserver.WebServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.helidon.config.ConfigSources.classpath;
+
+/**
+ * Integration tests for a leader and followers replicating over HTTP, each
+ * an in-process server.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ReplicationIT {
+
+  private static final int URLS = 300;
+  private static final long CATCH_UP_TIMEOUT_MILLIS = 10000;
+  private static final String SECRET = "replication-it-secret";
+
+  private static final HttpClient CLIENT = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .build();
+
+  private static String leaderAddress;
+  private static UrlService leader;
+  private static final List<String> followerAddresses = new ArrayList<>();
+  private static final List<UrlService> followers = new ArrayList<>();
+  private static final List<WebServer> servers = new ArrayList<>();
+  private static final List<ShortUrl> urls = new ArrayList<>();
+
+  /**
+   * Start the leader and two followers.
+   */
+  @BeforeAll
+  public static void setup() throws IOException {
+    leaderAddress = freeAddress();
+    Map<String, String> overrides = new HashMap<>();
+    overrides.put("shorty.replication.role", "leader");
+    leader = start(leaderAddress, overrides);
+    for (int i = 0; i < 2; i++) {
+      startFollower();
+    }
+  }
+
+  /**
+   * Shutdown the servers after all tests.
+   */
+  @AfterAll
+  public static void cleanup() {
+    followers.forEach(UrlService::close);
+    servers.forEach(WebServer::shutdown);
+  }
+
+  private static String freeAddress() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return "http://localhost:" + socket.getLocalPort();
+    }
+  }
+
+  private static UrlService start(String address, Map<String, String> overrides) {
+    overrides.put("server.port", address.substring(address.lastIndexOf(':') + 1));
+    overrides.put("shorty.replication.secret", SECRET);
+    // Overrides first, so they take precedence over application.yaml
+    Config config = Config.builder()
+        .sources(ConfigSources.create(overrides), classpath("application.yaml"))
+        .build();
+    UrlService urlService = new UrlService(config);
+    servers.add(ServerMain.startServer(config, urlService));
+    return urlService;
+  }
+
+  private static void startFollower() throws IOException {
+    String address = freeAddress();
+    Map<String, String> overrides = new HashMap<>();
+    overrides.put("shorty.replication.role", "follower");
+    overrides.put("shorty.replication.leader", leaderAddress);
+    overrides.put("shorty.replication.poll-wait-millis", "200");
+    followerAddresses.add(address);
+    followers.add(start(address, overrides));
+  }
+
+  private static HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+    return CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  private static JsonObject status(String address) throws Exception {
+    HttpResponse<String> response = send(HttpRequest.newBuilder(
+        URI.create(address + ReplicationService.CONTEXT_ROOT + "/status")));
+    return Json.createReader(new StringReader(response.body())).readObject();
+  }
+
+  private static void awaitCaughtUp() throws Exception {
+    long leaderOffset = leader.getLeaderRepository().getChangeLog().getEndOffset();
+    long deadline = System.currentTimeMillis() + CATCH_UP_TIMEOUT_MILLIS;
+    for (String address : followerAddresses) {
+      while (status(address).getJsonNumber("offset").longValue() < leaderOffset) {
+        Assertions.assertTrue(System.currentTimeMillis() < deadline, address + " didn't catch up");
+        Thread.sleep(20);
+      }
+    }
+  }
+
+  private static void assertRedirects(String address) throws Exception {
+    for (ShortUrl shortUrl : urls) {
+      HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(address + "/go/" + shortUrl.getToken())));
+      Assertions.assertEquals(301, response.statusCode(), shortUrl.getToken());
+      Assertions.assertEquals(shortUrl.getOriginalUrl(), response.headers().firstValue("Location").orElse(null));
+    }
+  }
+
+  /**
+   * Urls created on the leader are redirected by every follower, which
+   * report their replication status.
+   */
+  @Test
+  @Order(1)
+  public void testFollowersRedirect() throws Exception {
+    for (int i = 0; i < URLS; i++) {
+      urls.add(leader.createUrl("https://www.example.com/" + i, 1));
+    }
+    awaitCaughtUp();
+    for (String address : followerAddresses) {
+      assertRedirects(address);
+      JsonObject status = status(address);
+      Assertions.assertEquals("follower", status.getString("role"));
+      Assertions.assertEquals(0, status.getInt("lagRecords"));
+      Assertions.assertFalse(status.getBoolean("stale"));
+    }
+    Assertions.assertEquals("leader", status(leaderAddress).getString("role"));
+  }
+
+  /**
+   * Deletes on the leader are applied by the followers in order.
+   */
+  @Test
+  @Order(2)
+  public void testDeletesReplicate() throws Exception {
+    ShortUrl deleted = urls.remove(0);
+    leader.deleteUrl(deleted.getToken());
+    urls.add(leader.createUrl("https://www.example.com/after-delete", 1));
+    awaitCaughtUp();
+    for (String address : followerAddresses) {
+      HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(address + "/go/" + deleted.getToken())));
+      Assertions.assertEquals(404, response.statusCode());
+      assertRedirects(address);
+    }
+  }
+
+  /**
+   * A follower started after the urls were created catches up from a
+   * snapshot.
+   */
+  @Test
+  @Order(3)
+  public void testLateFollowerLoadsSnapshot() throws Exception {
+    startFollower();
+    awaitCaughtUp();
+    FollowerUrlRepository late = followers.get(followers.size() - 1).getFollowerRepository();
+    Assertions.assertEquals(1, late.getSnapshotCount());
+    Assertions.assertEquals(URLS, late.size());
+    assertRedirects(followerAddresses.get(followerAddresses.size() - 1));
+  }
+
+  /**
+   * The changes and snapshots need the replication secret.
+   */
+  @Test
+  @Order(4)
+  public void testReplicationEndpointsAreProtected() throws Exception {
+    for (String path : List.of("/snapshot", "/changes?from=0")) {
+      URI uri = URI.create(leaderAddress + ReplicationService.CONTEXT_ROOT + path);
+      HttpResponse<String> response = send(HttpRequest.newBuilder(uri));
+      Assertions.assertEquals(401, response.statusCode(), path);
+      response = send(HttpRequest.newBuilder(uri).header("Authorization", "Bearer wrong"));
+      Assertions.assertEquals(401, response.statusCode(), path);
+    }
+    HttpResponse<String> response = send(HttpRequest.newBuilder(
+        URI.create(leaderAddress + ReplicationService.CONTEXT_ROOT + "/snapshot"))
+        .header("Authorization", "Bearer " + SECRET));
+    Assertions.assertEquals(200, response.statusCode());
+  }
+
+  /**
+   * Followers reject creates and deletes.
+   */
+  @Test
+  @Order(5)
+  public void testFollowersRejectWrites() throws Exception {
+    HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(followerAddresses.get(0) + "/shorty/v1/url"))
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString("{\"url\":\"https://www.example.com/\",\"expiryCode\":\"1\"}")));
+    Assertions.assertEquals(421, response.statusCode());
+    response = send(HttpRequest.newBuilder(URI.create(followerAddresses.get(0) + "/shorty/v1/url/" + urls.get(0).getToken()))
+        .DELETE());
+    Assertions.assertEquals(421, response.statusCode());
+  }
+}
@@ -0,0 +1,125 @@
+package com.gmpatter.shorty.rest;
+
+import com.gmpatter.shorty.service.UrlService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link BulkUrlWriter} class.
+ */
+public class BulkUrlWriterTest extends Mockito {
+
+  private static List<JsonObject> write(UrlService urlService, String body) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new BulkUrlWriter(urlService,
+        new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+        ShortUrlJsonEncoder.getInstance().getHost("http", "localhost"))
+        .write(output);
+    List<JsonObject> results = new ArrayList<>();
+    for (String line : output.toString(StandardCharsets.UTF_8).split("\n")) {
+      results.add(Json.createReader(new StringReader(line)).readObject());
+    }
+    return results;
+  }
+
+  /**
+   * Test newline-delimited requests are created, with an error for each
+   * invalid line.
+   */
+  @Test
+  public void testNewlineDelimited() throws IOException {
+    String body = "{\"url\":\"https://example.com/a\",\"expiryCode\":\"1\"}\n"
+        + "\n"
+        + "not json\n"
+        + "{\"url\":\"\",\"expiryCode\":\"1\"}\n"
+        + "{\"url\":\"https://example.com/b\",\"expiryCode\":2}\n";
+    List<JsonObject> results = write(UrlService.getInstance(), body);
+
+    Assertions.assertEquals(4, results.size());
+    // Errors are written straight away, before the batch is created
+    Assertions.assertEquals(1, results.get(0).getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertTrue(results.get(0).containsKey(UrlEndpoints.ERROR_MESSAGE_FIELD));
+    Assertions.assertEquals(2, results.get(1).getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertEquals(0, results.get(2).getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertEquals(3, results.get(3).getInt(UrlEndpoints.INDEX_FIELD));
+
+    String token = results.get(3).getString(UrlEndpoints.TOKEN_FIELD);
+    Assertions.assertEquals("https://example.com/b", UrlService.getInstance().getOriginalUrl(token));
+    Assertions.assertEquals("http://localhost/go/" + token,
+        results.get(3).getString(UrlEndpoints.SHORT_URL_FIELD));
+  }
+
+  /**
+   * Test a line longer than the limit is answered with an error, without
+   * losing the lines after it, and a final line needn't end with a newline.
+   */
+  @Test
+  public void testLineTooLong() throws IOException {
+    String body = "{\"url\":\"https://example.com/" + "x".repeat(BulkUrlWriter.MAX_LINE_LENGTH)
+        + "\",\"expiryCode\":\"1\"}\n"
+        + "{\"url\":\"https://example.com/c\",\"expiryCode\":\"1\"}";
+    List<JsonObject> results = write(UrlService.getInstance(), body);
+
+    Assertions.assertEquals(2, results.size());
+    Assertions.assertEquals(0, results.get(0).getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertTrue(results.get(0).getString(UrlEndpoints.ERROR_MESSAGE_FIELD).contains("longer than"));
+    Assertions.assertEquals(1, results.get(1).getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertEquals("https://example.com/c", results.get(1).getString(UrlEndpoints.URL_FIELD));
+  }
+
+  /**
+   * Test an array element longer than the limit is answered with an error,
+   * without losing the elements after it, and that commas and brackets in
+   * strings and nested values don't end an element.
+   */
+  @Test
+  public void testArrayElementTooLong() throws IOException {
+    String body = " [ {\"url\":\"https://example.com/" + "x".repeat(BulkUrlWriter.MAX_LINE_LENGTH)
+        + "\",\"expiryCode\":\"1\"},\n"
+        + "{\"url\":\"https://example.com/d?a=1,b=[\\\"]\",\"expiryCode\":\"1\",\"tags\":[1,{\"c\":2}]},\n"
+        + "1 ]";
+    List<JsonObject> results = write(UrlService.getInstance(), body);
+
+    Assertions.assertEquals(3, results.size());
+    Assertions.assertEquals(0, results.get(0).getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertTrue(results.get(0).getString(UrlEndpoints.ERROR_MESSAGE_FIELD).contains("longer than"));
+    Assertions.assertEquals(2, results.get(1).getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertTrue(results.get(1).containsKey(UrlEndpoints.ERROR_MESSAGE_FIELD));
+    Assertions.assertEquals(1, results.get(2).getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertEquals("https://example.com/d?a=1,b=[\"]", results.get(2).getString(UrlEndpoints.URL_FIELD));
+  }
+
+  /**
+   * Test a JSON array of requests is created in batches.
+   */
+  @Test
+  public void testArrayIsCreatedInBatches() throws IOException {
+    UrlService urlService = spy(UrlService.getInstance());
+    StringBuilder body = new StringBuilder("[");
+    int count = BulkUrlWriter.BATCH_SIZE + 10;
+    for (int i = 0; i < count; i++) {
+      body.append(i == 0 ? "" : ",")
+          .append("{\"url\":\"https://example.com/").append(i).append("\",\"expiryCode\":\"3\"}");
+    }
+    body.append("]");
+    List<JsonObject> results = write(urlService, body.toString());
+
+    Assertions.assertEquals(count, results.size());
+    for (int i = 0; i < count; i++) {
+      Assertions.assertEquals(i, results.get(i).getInt(UrlEndpoints.INDEX_FIELD));
+      Assertions.assertEquals("https://example.com/" + i, results.get(i).getString(UrlEndpoints.URL_FIELD));
+    }
+    verify(urlService, times(2)).createUrls(anyList(), anyList(), isNull());
+  }
+}
@@ -0,0 +1,113 @@
+package com.gmpatter.shorty.rest;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+/**
+ * Integration tests for the service Rest API served by the
+ * {@link UrlRoutingService}, running every test of {@link RestApiIT} against
+ * it as well as its own.
+ */
+public class NativeRestApiIT extends RestApiIT {
+
+  private static final String ADMIN_SECRET = "rest-api-it-secret";
+
+  /**
+   * Start the server with the native implementation before all tests,
+   * hiding the setup of {@link RestApiIT}.
+   */
+  @BeforeAll
+  public static void setup() {
+    start(Map.of("shorty.rest.implementation", "native", "shorty.admin.secret", ADMIN_SECRET));
+  }
+
+  /**
+   * POST url should return the same JSON as the JAX-RS resource, with the
+   * short url on the host the request was sent to.
+   */
+  @Test
+  public void testCreateUrlResponse() {
+    WebTarget target = ClientBuilder.newClient().target("http://localhost:9080/shorty/v1");
+    Response postResponse = target
+        .path("/url")
+        .request()
+        .post(Entity.json(Json.createObjectBuilder()
+            .add("url", "https://www.google.co.uk")
+            .add("expiryCode", "1")
+            .build()));
+    Assertions.assertEquals(201, postResponse.getStatus());
+    Assertions.assertEquals("application/json", postResponse.getMediaType().toString());
+    JsonObject created = postResponse.readEntity(JsonObject.class);
+    Assertions.assertEquals("http://localhost:9080/go/" + created.getString("token"), created.getString("shortUrl"));
+    Assertions.assertEquals(4, created.size());
+  }
+
+  /**
+   * POST url should return 400 with an error message for a body that isn't
+   * a JSON object or an expiry code that isn't a number.
+   */
+  @Test
+  public void testCreateUrlInvalidBody() {
+    WebTarget target = ClientBuilder.newClient().target("http://localhost:9080/shorty/v1");
+    Response response = target
+        .path("/url")
+        .request()
+        .post(Entity.json("[1, 2]"));
+    Assertions.assertEquals(400, response.getStatus());
+    Assertions.assertNotNull(response.readEntity(JsonObject.class).getString("message"));
+
+    response = target
+        .path("/url")
+        .request()
+        .post(Entity.json("{\"url\":\"https://www.google.co.uk\",\"expiryCode\":\"x\"}"));
+    Assertions.assertEquals(400, response.getStatus());
+  }
+
+  /**
+   * GET url/export and POST url/import should require the admin secret, and
+   * the import should restore the deleted urls of an export but skip those
+   * still in use.
+   */
+  @Test
+  public void testExportImport() {
+    WebTarget target = ClientBuilder.newClient().target("http://localhost:9080/shorty/v1");
+    String token = target.path("/url")
+        .request()
+        .post(Entity.json("{\"url\":\"https://www.google.co.uk/export\",\"expiryCode\":\"1\"}"))
+        .readEntity(JsonObject.class)
+        .getString("token");
+    Assertions.assertEquals(401, target.path("/url/export").request().get().getStatus());
+    Assertions.assertEquals(401, target.path("/url/import").request()
+        .post(Entity.entity("", BulkUrlWriter.NDJSON)).getStatus());
+
+    Response exportResponse = target
+        .path("/url/export")
+        .request()
+        .header("Authorization", "Bearer " + ADMIN_SECRET)
+        .get();
+    Assertions.assertEquals(200, exportResponse.getStatus());
+    String exported = exportResponse.readEntity(String.class);
+    Assertions.assertTrue(exported.contains("https://www.google.co.uk/export"));
+
+    Assertions.assertEquals(204, target.path("/url/" + token).request().delete().getStatus());
+    Response importResponse = target
+        .path("/url/import")
+        .request()
+        .header("Authorization", "Bearer " + ADMIN_SECRET)
+        .post(Entity.entity(exported, BulkUrlWriter.NDJSON));
+    Assertions.assertEquals(200, importResponse.getStatus());
+    JsonObject imported = importResponse.readEntity(JsonObject.class);
+    Assertions.assertEquals(1, imported.getInt("count"));
+    Assertions.assertEquals(exported.split("\n").length - 1, imported.getInt("skipped"));
+    Assertions.assertEquals(200, target.path("/url/" + token).request().get().getStatus());
+  }
+}
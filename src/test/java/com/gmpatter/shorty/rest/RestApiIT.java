@@ -17,7 +17,9 @@ import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Response;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static io.helidon.config.ConfigSources.classpath;
 
@@ -33,19 +35,31 @@ public class RestApiIT {
    */
   @BeforeAll
   public static void setup() {
+    start(Map.of());
+  }
+
+  /**
+   * Starts the server with the given configuration overrides.
+   *
+   * @param overrides the configuration to override application.yaml with
+   */
+  protected static void start(Map<String, String> overrides) {
+    Map<String, String> sources = new HashMap<>(overrides);
+    sources.put("server.port", "9080");
+    // Overrides first, so they take precedence over application.yaml
     Config config = Config.builder()
-        .sources(classpath("application.yaml"))
-        .sources(ConfigSources.create(Map.of("server.port", "9080")))
+        .sources(ConfigSources.create(sources), classpath("application.yaml"))
         .build();
     server = ServerMain.startServer(config);
   }
 
   /**
-   * Shutdown the server after all tests.
+   * Shutdown the server after all tests, waiting for the port to be freed
+   * for the next test class.
    */
   @AfterAll
   public static void cleanup() {
-    server.shutdown();
+    server.shutdown().await(10, TimeUnit.SECONDS);
   }
 
   /**
@@ -220,5 +234,131 @@ public class RestApiIT {
     Assertions.assertEquals(404, getResponse.getStatus());
   }
 
+  /**
+   * GET go/{token} should return a 301 redirect to the original
+   * url when url exists for given token.
+   */
+  @Test
+  public void testRedirectSuccess() {
+    Client client = ClientBuilder.newClient()
+        .property("jersey.config.client.followRedirects", false);
+    WebTarget target = client.target("http://localhost:9080");
+
+    JsonObject urlBody = Json.createObjectBuilder()
+        .add("url", "https://www.google.co.uk")
+        .add("expiryCode", "0")
+        .build();
+
+    // first create the url
+    Response postResponse = target
+        .path("/shorty/v1/url")
+        .request()
+        .post(Entity.json(urlBody));
+    String token = postResponse.readEntity(JsonObject.class).getString("token");
+
+    Response redirectResponse = target
+        .path("/go/" + token)
+        .request()
+        .get();
+    Assertions.assertEquals(301, redirectResponse.getStatus());
+    Assertions.assertEquals("https://www.google.co.uk", redirectResponse.getHeaderString("Location"));
+
+    // the redirect is counted in the url's stats
+    Response statsResponse = target
+        .path("/shorty/v1/url/" + token + "/stats")
+        .request()
+        .get();
+    Assertions.assertEquals(200, statsResponse.getStatus());
+    Assertions.assertEquals(1, statsResponse.readEntity(JsonObject.class).getInt("clicks"));
+  }
 
+  /**
+   * GET go/{token} should return 404 when url does not
+   * exist for the given token.
+   */
+  @Test
+  public void testRedirectNotFound() {
+    Client client = ClientBuilder.newClient()
+        .property("jersey.config.client.followRedirects", false);
+    Response response = client.target("http://localhost:9080")
+        .path("/go/f347dff")
+        .request()
+        .get();
+    Assertions.assertEquals(404, response.getStatus());
+  }
+
+  /**
+   * POST url/bulk should return 200 and a result line
+   * for each url in the request.
+   */
+  @Test
+  public void testCreateUrlsBulk() {
+    Client client = ClientBuilder.newClient();
+    WebTarget target = client.target("http://localhost:9080/shorty/v1");
+
+    String body = "{\"url\":\"https://www.google.co.uk\",\"expiryCode\":\"0\"}\n"
+        + "{\"url\":\"\",\"expiryCode\":\"0\"}\n";
+    Response postResponse = target
+        .path("/url/bulk")
+        .request()
+        .post(Entity.entity(body, "application/x-ndjson"));
+
+    Assertions.assertEquals(200, postResponse.getStatus());
+    String[] lines = postResponse.readEntity(String.class).split("\n");
+    Assertions.assertEquals(2, lines.length);
+    Assertions.assertTrue(lines[0].contains("\"message\""));
+    Assertions.assertTrue(lines[1].contains("\"token\""));
+  }
+
+  /**
+   * GET url/{token} and go/{token} should have caching headers, and return
+   * 304 without a body or location when If-None-Match has the ETag.
+   */
+  @Test
+  public void testConditionalRequests() {
+    Client client = ClientBuilder.newClient()
+        .property("jersey.config.client.followRedirects", false);
+    WebTarget target = client.target("http://localhost:9080");
+    String token = target
+        .path("/shorty/v1/url")
+        .request()
+        .post(Entity.json("{\"url\":\"https://www.google.co.uk/cached\",\"expiryCode\":\"1\"}"))
+        .readEntity(JsonObject.class)
+        .getString("token");
+
+    Response getResponse = target
+        .path("/shorty/v1/url/" + token)
+        .request()
+        .get();
+    Assertions.assertEquals(200, getResponse.getStatus());
+    String etag = getResponse.getHeaderString("ETag");
+    Assertions.assertNotNull(etag);
+    Assertions.assertEquals("public, max-age=60", getResponse.getHeaderString("Cache-Control"));
+    Assertions.assertNotNull(getResponse.getHeaderString("Expires"));
+
+    Response notModified = target
+        .path("/shorty/v1/url/" + token)
+        .request()
+        .header("If-None-Match", etag)
+        .get();
+    Assertions.assertEquals(304, notModified.getStatus());
+    Assertions.assertEquals(etag, notModified.getHeaderString("ETag"));
+    Assertions.assertFalse(notModified.hasEntity());
+
+    Response redirectResponse = target
+        .path("/go/" + token)
+        .request()
+        .get();
+    Assertions.assertEquals(301, redirectResponse.getStatus());
+    Assertions.assertEquals(etag, redirectResponse.getHeaderString("ETag"));
+    Assertions.assertEquals("public, max-age=60", redirectResponse.getHeaderString("Cache-Control"));
+
+    Response redirectNotModified = target
+        .path("/go/" + token)
+        .request()
+        .header("If-None-Match", "W/" + etag)
+        .get();
+    Assertions.assertEquals(304, redirectNotModified.getStatus());
+    Assertions.assertNull(redirectNotModified.getHeaderString("Location"));
+  }
 }
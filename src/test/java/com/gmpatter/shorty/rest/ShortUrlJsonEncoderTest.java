@@ -0,0 +1,120 @@
+package com.gmpatter.shorty.rest;
+
+import com.gmpatter.shorty.model.ShortUrl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for {@link ShortUrlJsonEncoder} class.
+ */
+public class ShortUrlJsonEncoderTest {
+
+  private final ShortUrlJsonEncoder encoder = new ShortUrlJsonEncoder();
+
+  private static JsonObject parse(byte[] json) {
+    return Json.createReader(new StringReader(new String(json, StandardCharsets.UTF_8))).readObject();
+  }
+
+  private static ShortUrl shortUrl(String originalUrl) {
+    return new ShortUrl.Builder()
+        .token("aZ3kP9q")
+        .originalUrl(originalUrl)
+        .expiryTime(System.currentTimeMillis() + 60000)
+        .build();
+  }
+
+  /**
+   * Test a short url is encoded with the same fields and values as the
+   * <code>JsonObject</code> the endpoints built.
+   */
+  @Test
+  public void testEncodeShortUrl() {
+    ShortUrl shortUrl = shortUrl("https://example.com/path?a=1&b=2");
+    JsonObject json = parse(encoder.encodeShortUrl(encoder.getHost("http", "localhost:8080"), shortUrl));
+
+    Assertions.assertEquals(Json.createObjectBuilder()
+        .add(UrlEndpoints.SHORT_URL_FIELD, "http://localhost:8080/go/aZ3kP9q")
+        .add(UrlEndpoints.URL_FIELD, "https://example.com/path?a=1&b=2")
+        .add(UrlEndpoints.EXPIRY_FIELD, shortUrl.getExpiry())
+        .add(UrlEndpoints.TOKEN_FIELD, "aZ3kP9q")
+        .build(), json);
+  }
+
+  /**
+   * Test quotes, backslashes, control characters and characters outside
+   * ASCII are escaped or encoded so they are read back unchanged.
+   */
+  @Test
+  public void testEscaping() {
+    String url = "https://example.com/\"quoted\"\\back\n\t\u0001/caf\u00e9/\u20ac/\uD83D\uDE00";
+    ShortUrl shortUrl = shortUrl(url);
+    JsonObject json = parse(encoder.encodeShortUrl(encoder.getHost("https", "example.com"), shortUrl));
+    Assertions.assertEquals(url, json.getString(UrlEndpoints.URL_FIELD));
+    Assertions.assertEquals("https://example.com/go/aZ3kP9q", json.getString(UrlEndpoints.SHORT_URL_FIELD));
+
+    String message = "Url \"x\" not found\r\n";
+    Assertions.assertEquals(message, parse(encoder.encodeError(message)).getString(UrlEndpoints.ERROR_MESSAGE_FIELD));
+  }
+
+  /**
+   * Test hosts are cached by authority, and replaced for a different scheme.
+   */
+  @Test
+  public void testHostsCached() {
+    ShortUrlJsonEncoder.Host host = encoder.getHost("http", "localhost:8080");
+    Assertions.assertSame(host, encoder.getHost("http", "localhost:8080"));
+    Assertions.assertEquals("http://localhost:8080", host.getBaseUrl());
+
+    ShortUrlJsonEncoder.Host secure = encoder.getHost("https", "localhost:8080");
+    Assertions.assertNotSame(host, secure);
+    Assertions.assertEquals("https://localhost:8080", secure.getBaseUrl());
+
+    // The cache is bounded, as the hosts come from requests
+    for (int i = 0; i < ShortUrlJsonEncoder.MAX_HOSTS * 2; i++) {
+      Assertions.assertEquals("http://host" + i, encoder.getHost("http", "host" + i).getBaseUrl());
+    }
+  }
+
+  /**
+   * Test writing to a stream gives the same bytes as encoding, including
+   * when a value is larger than the pooled buffers.
+   */
+  @Test
+  public void testWrite() throws IOException {
+    ShortUrlJsonEncoder.Host host = encoder.getHost("http", "localhost");
+    ShortUrl[] shortUrls = {
+        shortUrl("https://example.com/a"),
+        shortUrl("https://example.com/" + "x".repeat(ShortUrlJsonEncoder.MAX_POOLED_BUFFER)),
+        shortUrl("https://example.com/b")
+    };
+    for (ShortUrl shortUrl : shortUrls) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      encoder.writeShortUrl(output, host, shortUrl);
+      Assertions.assertArrayEquals(encoder.encodeShortUrl(host, shortUrl), output.toByteArray());
+      Assertions.assertEquals(shortUrl.getOriginalUrl(), parse(output.toByteArray()).getString(UrlEndpoints.URL_FIELD));
+    }
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    encoder.writeError(output, "Url not found.");
+    Assertions.assertEquals("{\"message\":\"Url not found.\"}", output.toString(StandardCharsets.UTF_8));
+
+    // Bulk results lead with the index of their url
+    output = new ByteArrayOutputStream();
+    encoder.writeError(output, 1234567890123L, "Invalid url.");
+    Assertions.assertEquals("{\"index\":1234567890123,\"message\":\"Invalid url.\"}",
+        output.toString(StandardCharsets.UTF_8));
+    output = new ByteArrayOutputStream();
+    encoder.writeShortUrl(output, host, 0, shortUrls[0]);
+    JsonObject json = parse(output.toByteArray());
+    Assertions.assertEquals(0, json.getInt(UrlEndpoints.INDEX_FIELD));
+    Assertions.assertEquals(parse(encoder.encodeShortUrl(host, shortUrls[0])),
+        Json.createObjectBuilder(json).remove(UrlEndpoints.INDEX_FIELD).build());
+  }
+}
@@ -0,0 +1,149 @@
+package com.gmpatter.shorty.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link TokenGenerator} class.
+ */
+public class TokenGeneratorTest {
+
+  private static final char[] TOKEN_CHARACTERS = "abc".toCharArray();
+
+  /**
+   * Test every token in a small token space is generated exactly
+   * once before the space is exhausted.
+   */
+  @Test
+  public void testGeneratesEveryTokenOnce() {
+    TokenGenerator generator = new TokenGenerator(TOKEN_CHARACTERS, 4, 42,
+        new NodeTokenRangeAllocator(0, 1, 81, null), 9);
+    Set<String> tokens = new HashSet<>();
+    for (int i = 0; i < 81; i++) {
+      String token = generator.nextToken();
+      Assertions.assertEquals(4, token.length());
+      Assertions.assertTrue(tokens.add(token));
+    }
+    Assertions.assertThrows(IllegalStateException.class, generator::nextToken);
+  }
+
+  /**
+   * Test generators on different nodes never generate the same token.
+   */
+  @Test
+  public void testNodesGenerateDisjointTokens() {
+    Set<String> tokens = new HashSet<>();
+    for (int node = 0; node < 3; node++) {
+      TokenGenerator generator = new TokenGenerator(TOKEN_CHARACTERS, 4, 42,
+          new NodeTokenRangeAllocator(node, 3, 81, null), 9);
+      for (int i = 0; i < 27; i++) {
+        Assertions.assertTrue(tokens.add(generator.nextToken()));
+      }
+    }
+  }
+
+  /**
+   * Test a restarted node with a lease file carries on after the
+   * blocks it has already leased.
+   */
+  @Test
+  public void testLeaseFileSurvivesRestart(@TempDir Path dir) {
+    Path leaseFile = dir.resolve("token.lease");
+    Set<String> tokens = new HashSet<>();
+    TokenGenerator generator = new TokenGenerator(TOKEN_CHARACTERS, 4, 42,
+        new NodeTokenRangeAllocator(0, 1, 81, leaseFile), 9);
+    for (int i = 0; i < 5; i++) {
+      tokens.add(generator.nextToken());
+    }
+    TokenGenerator restarted = new TokenGenerator(TOKEN_CHARACTERS, 4, 42,
+        new NodeTokenRangeAllocator(0, 1, 81, leaseFile), 9);
+    for (int i = 0; i < 72; i++) {
+      Assertions.assertTrue(tokens.add(restarted.nextToken()));
+    }
+  }
+
+  /**
+   * Test a generated key is kept in the key file, so a restarted node uses
+   * the same key.
+   */
+  @Test
+  public void testKeyFileSurvivesRestart(@TempDir Path dir) {
+    Path keyFile = dir.resolve("token.key");
+    long key = TokenGenerator.loadOrCreateKey(keyFile);
+    Assertions.assertTrue(Files.exists(keyFile));
+    Assertions.assertEquals(key, TokenGenerator.loadOrCreateKey(keyFile));
+    Assertions.assertNotEquals(key, TokenGenerator.loadOrCreateKey(dir.resolve("other.key")));
+  }
+
+  /**
+   * Test a node without a lease file starts from the given block.
+   */
+  @Test
+  public void testFirstBlockWithoutLeaseFile() {
+    NodeTokenRangeAllocator allocator = new NodeTokenRangeAllocator(1, 2, 1000, null, 3);
+    Assertions.assertEquals(700, allocator.allocate(100));
+    Assertions.assertEquals(900, allocator.allocate(100));
+    Assertions.assertThrows(IllegalStateException.class, () -> allocator.allocate(100));
+  }
+
+  /**
+   * Test the permutation can be inverted.
+   */
+  @Test
+  public void testUnpermute() {
+    TokenGenerator generator = new TokenGenerator("0123456789abcdefghijklmnopqrstuvwxyz".toCharArray(), 7,
+        12345, new NodeTokenRangeAllocator(0, 1, 1L << 40, null), 10000);
+    for (long value = 0; value < 10000; value++) {
+      Assertions.assertEquals(value, generator.unpermute(generator.permute(value)));
+    }
+  }
+
+  /**
+   * Test tokens from an earlier generator with the same key, such as
+   * imported tokens, are never generated once they are reserved, in the
+   * current block or a later one.
+   */
+  @Test
+  public void testReservedTokensAreNotGenerated() {
+    char[] digits = "0123456789".toCharArray();
+    Set<String> imported = new HashSet<>();
+    TokenGenerator original = new TokenGenerator(digits, 6, 42,
+        new NodeTokenRangeAllocator(0, 1, 1000000, null), 100);
+    for (int i = 0; i < 500; i++) {
+      imported.add(original.nextToken());
+    }
+
+    TokenGenerator restored = new TokenGenerator(digits, 6, 42,
+        new NodeTokenRangeAllocator(0, 1, 1000000, null), 100);
+    restored.nextToken();
+    for (String token : imported) {
+      Assertions.assertTrue(restored.reserve(token));
+    }
+    // Tokens that aren't made by the generator don't need reserving
+    Assertions.assertTrue(restored.reserve("12345a"));
+    for (int i = 0; i < 1000; i++) {
+      Assertions.assertFalse(imported.contains(restored.nextToken()));
+    }
+  }
+
+  /**
+   * Test a token far ahead in the node's blocks isn't reserved, as it would
+   * give up too many tokens.
+   */
+  @Test
+  public void testReserveFarAheadIsRejected() {
+    NodeTokenRangeAllocator allocator = new NodeTokenRangeAllocator(0, 1, 1L << 40, null);
+    Assertions.assertTrue(allocator.reserve(5000, 1000));
+    Assertions.assertEquals(6000, allocator.allocate(1000));
+    Assertions.assertFalse(allocator.reserve(1L << 39, 1000));
+    Assertions.assertEquals(7000, allocator.allocate(1000));
+    // Another node's block is never leased here
+    Assertions.assertTrue(new NodeTokenRangeAllocator(0, 2, 1L << 40, null).reserve(1L << 39, 1000));
+  }
+}
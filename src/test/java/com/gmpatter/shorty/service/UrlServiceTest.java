@@ -1,11 +1,28 @@
 package com.gmpatter.shorty.service;
 
+import com.gmpatter.shorty.metrics.MetricsRegistry;
 import com.gmpatter.shorty.model.ShortUrl;
+import com.gmpatter.shorty.persistence.UrlArchive;
 import com.gmpatter.shorty.persistence.UrlRepository;
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import javax.json.Json;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+
 /**
  * Unit tests for {@link UrlService} class.
  */
@@ -23,22 +40,211 @@ public class UrlServiceTest extends Mockito {
   }
 
   /**
-   * Test generateUniqueToken() generates a unique token.
+   * Test generateToken() generates unique tokens without
+   * checking the repository for conflicts.
    */
   @Test
-  public void testGenerateUniqueTokenAvoidsConflicts() {
+  public void testGenerateTokenIsUniqueWithoutRepository() {
     UrlService urlService = spy(UrlService.getInstance());
     UrlRepository urlRepository = mock(UrlRepository.class);
-    ShortUrl shortUrl = mock(ShortUrl.class);
+    when(urlService.getUrlRepository()).thenReturn(urlRepository);
+
+    Set<String> tokens = new HashSet<>();
+    for (int i = 0; i < 100000; i++) {
+      Assertions.assertTrue(tokens.add(urlService.generateToken()));
+    }
+    verifyNoInteractions(urlRepository);
+  }
+
+  /**
+   * Test a url created, read and deleted through the non-blocking API.
+   */
+  @Test
+  public void testAsyncRoundTrip() {
+    UrlService urlService = UrlService.getInstance();
+    ShortUrl created = urlService.createUrlAsync("https://www.example.com/async", 1)
+        .toCompletableFuture().join();
+    Assertions.assertEquals("https://www.example.com/async", created.getOriginalUrl());
+    Assertions.assertEquals(created.getOriginalUrl(),
+        urlService.getOriginalUrlAsync(created.getToken()).toCompletableFuture().join());
+    Assertions.assertEquals(created.getToken(),
+        urlService.getUrlAsync(created.getToken()).toCompletableFuture().join().getToken());
+
+    urlService.deleteUrlAsync(created.getToken()).toCompletableFuture().join();
+    Assertions.assertNull(urlService.getUrlAsync(created.getToken()).toCompletableFuture().join());
+  }
+
+  /**
+   * Test an invalid expiry code fails the stage rather than throwing.
+   */
+  @Test
+  public void testAsyncCreateWithInvalidExpiryCode() {
+    CompletionException e = Assertions.assertThrows(CompletionException.class,
+        () -> UrlService.getInstance().createUrlAsync("https://www.example.com", 9)
+            .toCompletableFuture().join());
+    Assertions.assertInstanceOf(IllegalArgumentException.class, e.getCause());
+  }
 
-    // mock an existing url in the repository
-    String existingToken = "f3eg342";
-    String newToken = "GE535Gx";
-    when(urlService.generateToken()).thenReturn(existingToken, newToken);
+  /**
+   * Test a token the repository finds already in use is replaced by a new
+   * one, rather than the url being lost.
+   */
+  @Test
+  public void testCreateUrlRetriesTokenInUse() {
+    UrlService urlService = spy(UrlService.getInstance());
+    UrlRepository urlRepository = mock(UrlRepository.class);
+    when(urlService.getUrlRepository()).thenReturn(urlRepository);
+    when(urlRepository.createUrl(any())).thenReturn(null).thenAnswer(invocation -> invocation.getArgument(0));
+
+    ShortUrl created = urlService.createUrl("https://www.example.com/retry", 1);
+    Assertions.assertEquals("https://www.example.com/retry", created.getOriginalUrl());
+    verify(urlRepository, times(2)).createUrl(any());
+
+    when(urlRepository.createUrl(any())).thenReturn(null);
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> urlService.createUrl("https://www.example.com/retry", 1));
+  }
+
+  /**
+   * Test urls in a batch whose token the repository finds already in use
+   * are stored again with new tokens, and are left out once no unused token
+   * is found, rather than being returned as if they had been stored.
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCreateUrlsRetriesTokensInUse() {
+    UrlService urlService = spy(UrlService.getInstance());
+    UrlRepository urlRepository = mock(UrlRepository.class);
     when(urlService.getUrlRepository()).thenReturn(urlRepository);
-    when(urlRepository.getUrl(existingToken)).thenReturn(shortUrl);
+    List<List<ShortUrl>> batches = new ArrayList<>();
+    when(urlRepository.createUrls(anyList())).thenAnswer(invocation -> {
+      batches.add(new ArrayList<>((List<ShortUrl>) invocation.getArgument(0)));
+      BitSet skipped = new BitSet();
+      skipped.set(0, batches.size() == 1 ? 1 : 0);
+      return skipped;
+    });
+
+    List<String> urls = List.of("https://www.example.com/a", "https://www.example.com/b");
+    List<ShortUrl> created = urlService.createUrls(urls, List.of(1, 1));
+    Assertions.assertEquals(2, batches.size());
+    Assertions.assertEquals(1, batches.get(1).size());
+    Assertions.assertSame(batches.get(1).get(0), created.get(0));
+    Assertions.assertNotEquals(batches.get(0).get(0).getToken(), created.get(0).getToken());
+    Assertions.assertEquals("https://www.example.com/a", created.get(0).getOriginalUrl());
+    Assertions.assertSame(batches.get(0).get(1), created.get(1));
+
+    BitSet first = new BitSet();
+    first.set(0);
+    when(urlRepository.createUrls(anyList())).thenReturn(first);
+    created = urlService.createUrls(urls.subList(0, 1), List.of(1));
+    Assertions.assertNull(created.get(0));
+    verify(urlRepository, times(2 + UrlService.MAX_TOKEN_ATTEMPTS)).createUrls(anyList());
+  }
+
+  /**
+   * Test an import skips urls whose token is already in use, and restores
+   * urls that were deleted.
+   */
+  @Test
+  public void testImportSkipsTokensInUse() throws IOException {
+    UrlService urlService = UrlService.getInstance();
+    ShortUrl kept = urlService.createUrl("https://www.example.com/kept", 1);
+    ShortUrl deleted = urlService.createUrl("https://www.example.com/deleted", 1);
+    StringBuilder exported = new StringBuilder();
+    for (ShortUrl shortUrl : List.of(kept, deleted)) {
+      exported.append(Json.createObjectBuilder()
+          .add(UrlArchive.TOKEN_FIELD, shortUrl.getToken())
+          .add(UrlArchive.URL_FIELD, "https://www.example.com/imported")
+          .add(UrlArchive.EXPIRY_TIME_FIELD, shortUrl.getExpiryTime())
+          .build()).append('\n');
+    }
+    urlService.deleteUrl(deleted.getToken());
+
+    UrlArchive.ImportResult result = urlService.importUrls(
+        new ByteArrayInputStream(exported.toString().getBytes(StandardCharsets.UTF_8)), UrlArchive.Format.NDJSON);
+    Assertions.assertEquals(1, result.getImported());
+    Assertions.assertEquals(1, result.getSkipped());
+    Assertions.assertEquals("https://www.example.com/kept", urlService.getOriginalUrl(kept.getToken()));
+    Assertions.assertEquals("https://www.example.com/imported", urlService.getOriginalUrl(deleted.getToken()));
+  }
+
+  /**
+   * Test an import skips urls whose token is empty, too long or has
+   * characters that aren't token characters.
+   */
+  @Test
+  public void testImportSkipsInvalidTokens() throws IOException {
+    UrlService urlService = UrlService.getInstance();
+    StringBuilder exported = new StringBuilder();
+    for (String token : List.of("", "a/b", "abcdefghijklmnop")) {
+      exported.append(Json.createObjectBuilder()
+          .add(UrlArchive.TOKEN_FIELD, token)
+          .add(UrlArchive.URL_FIELD, "https://www.example.com/invalid")
+          .add(UrlArchive.EXPIRY_TIME_FIELD, Long.MAX_VALUE)
+          .build()).append('\n');
+    }
+
+    UrlArchive.ImportResult result = urlService.importUrls(
+        new ByteArrayInputStream(exported.toString().getBytes(StandardCharsets.UTF_8)), UrlArchive.Format.NDJSON);
+    Assertions.assertEquals(0, result.getImported());
+    Assertions.assertEquals(3, result.getSkipped());
+    Assertions.assertNull(urlService.getOriginalUrl("a/b"));
+  }
+
+  /**
+   * Test dedup reuses a client's own short urls, singly and in bulk, but
+   * doesn't share them between clients or with unknown clients, so a
+   * client's delete doesn't break another's links.
+   */
+  @Test
+  public void testDedupIsPerClient() {
+    UrlService urlService = new UrlService(Config.builder()
+        .sources(ConfigSources.create(Map.of("shorty.dedup.enabled", "true")),
+            ConfigSources.classpath("application.yaml"))
+        .build());
+    String url = "https://www.example.com/dedup";
+    ShortUrl first = urlService.createUrl(url, 1, "a");
+    Assertions.assertEquals(first.getToken(), urlService.createUrl(url, 1, "a").getToken());
+    ShortUrl other = urlService.createUrl(url, 1, "b");
+    Assertions.assertNotEquals(first.getToken(), other.getToken());
+    Assertions.assertNotEquals(urlService.createUrl(url, 1).getToken(), urlService.createUrl(url, 1).getToken());
+
+    List<ShortUrl> bulk = urlService.createUrls(List.of(url, url, url + "/bulk"), List.of(1, 1, 1), "a");
+    Assertions.assertEquals(first.getToken(), bulk.get(0).getToken());
+    Assertions.assertEquals(first.getToken(), bulk.get(1).getToken());
+    Assertions.assertEquals(bulk.get(2).getToken(), urlService.createUrl(url + "/bulk", 1, "a").getToken());
+
+    urlService.deleteUrl(other.getToken(), "b");
+    Assertions.assertEquals(url, urlService.getOriginalUrl(first.getToken()));
+    Assertions.assertEquals(first.getToken(), urlService.createUrlAsync(url, 1, "a").toCompletableFuture().join()
+        .getToken());
+    Assertions.assertNotEquals(other.getToken(), urlService.createUrl(url, 1, "b").getToken());
+  }
+
+  /**
+   * Test a new service replaces the repository gauges of the one before, and
+   * removes them when it is closed, while closing a replaced service leaves
+   * them alone.
+   */
+  @Test
+  public void testRepositoryMetricsFollowLatestService() {
+    UrlService replaced = new UrlService(Config.create(ConfigSources.classpath("application.yaml")));
+    replaced.createUrl("https://www.example.com/metrics/replaced", 1);
+    UrlService urlService = new UrlService(Config.create(ConfigSources.classpath("application.yaml")));
+    for (int i = 0; i < 10; i++) {
+      urlService.createUrl("https://www.example.com/metrics/" + i, 1);
+    }
+    Assertions.assertEquals(Optional.of("shorty_repository_urls 10"), repositoryUrls());
+
+    replaced.close();
+    Assertions.assertEquals(Optional.of("shorty_repository_urls 10"), repositoryUrls());
+    urlService.close();
+    Assertions.assertEquals(Optional.empty(), repositoryUrls());
+  }
 
-    String uniqueToken = urlService.generateUniqueToken();
-    Assertions.assertEquals(newToken, uniqueToken);
+  private static Optional<String> repositoryUrls() {
+    return MetricsRegistry.getInstance().scrape().lines()
+        .filter(line -> line.startsWith("shorty_repository_urls "))
+        .findFirst();
   }
 }
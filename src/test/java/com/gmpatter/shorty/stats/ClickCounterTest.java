@@ -0,0 +1,96 @@
+package com.gmpatter.shorty.stats;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ClickCounter} class.
+ */
+public class ClickCounterTest {
+
+  /**
+   * Test clicks recorded by many threads are all counted, while the buffers
+   * are drained concurrently.
+   */
+  @Test
+  public void testConcurrentRecord() throws InterruptedException {
+    try (ClickCounter counter = new ClickCounter(1, token -> Long.MAX_VALUE)) {
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      for (int t = 0; t < 8; t++) {
+        executor.submit(() -> {
+          for (int i = 0; i < 100000; i++) {
+            counter.record(i % 2 == 0 ? "even" : "odd");
+          }
+        });
+      }
+      executor.shutdown();
+      Assertions.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+      Assertions.assertEquals(400000, counter.getCount("even"));
+      Assertions.assertEquals(400000, counter.getCount("odd"));
+      Assertions.assertEquals(0, counter.getCount("other"));
+    }
+  }
+
+  /**
+   * Test clicks are counted when the buffer is full.
+   */
+  @Test
+  public void testFullBuffer() {
+    try (ClickCounter counter = new ClickCounter(0, token -> Long.MAX_VALUE)) {
+      for (int i = 0; i < ClickCounter.BUFFER_SIZE * 3; i++) {
+        counter.record("abc");
+      }
+      Assertions.assertEquals(ClickCounter.BUFFER_SIZE * 3, counter.getCount("abc"));
+    }
+  }
+
+  /**
+   * Test counts are removed for deleted and expired tokens, and clicks on
+   * tokens that no longer exist aren't counted.
+   */
+  @Test
+  public void testRemove() {
+    Map<String, Long> expiryTimes = Map.of("a", 10000L, "b", 1000L, "c", 10000L);
+    try (ClickCounter counter = new ClickCounter(0, token -> expiryTimes.getOrDefault(token, -1L))) {
+      counter.record("a");
+      counter.record("b");
+      counter.record("c");
+      counter.record("deleted");
+
+      counter.remove("a");
+      Assertions.assertEquals(0, counter.purgeExpired(1000));
+      Assertions.assertEquals(1, counter.purgeExpired(2500));
+      Assertions.assertEquals(0, counter.getCount("a"));
+      Assertions.assertEquals(0, counter.getCount("b"));
+      Assertions.assertEquals(1, counter.getCount("c"));
+      Assertions.assertEquals(0, counter.getCount("deleted"));
+      Assertions.assertEquals(1, counter.size());
+    }
+  }
+
+  /**
+   * Test the expiry times of tokens first counted when the buffer was full
+   * are looked up on the next drain, so their counts are dropped when they
+   * expire.
+   */
+  @Test
+  public void testFullBufferExpiry() {
+    Map<String, Long> expiryTimes = Map.of("a", 2000L);
+    try (ClickCounter counter = new ClickCounter(0, token -> expiryTimes.getOrDefault(token, -1L))) {
+      for (int i = 0; i < ClickCounter.BUFFER_SIZE * 3; i++) {
+        counter.record("a");
+        counter.record("deleted");
+      }
+      Assertions.assertEquals(ClickCounter.BUFFER_SIZE * 3, counter.getCount("a"));
+      Assertions.assertEquals(0, counter.getCount("deleted"));
+      Assertions.assertEquals(1, counter.purgeExpired(3000));
+      Assertions.assertEquals(0, counter.size());
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.gmpatter.shorty.stats;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link VisitAnalytics} and its sketches.
+ */
+public class VisitAnalyticsTest {
+
+  /**
+   * Test the HyperLogLog estimate is within 10% of the distinct count.
+   */
+  @Test
+  public void testHyperLogLogEstimate() {
+    for (int distinct : new int[] {10, 1000, 100000}) {
+      HyperLogLog visitors = new HyperLogLog();
+      for (int i = 0; i < distinct * 3; i++) {
+        visitors.add(Hashing.hash("visitor-" + (i % distinct)));
+      }
+      Assertions.assertEquals(distinct, visitors.estimate(), distinct * 0.1);
+    }
+  }
+
+  /**
+   * Test the most frequent values are found among many infrequent values.
+   */
+  @Test
+  public void testHeavyHitters() {
+    HeavyHitters referrers = new HeavyHitters();
+    for (int i = 0; i < 10000; i++) {
+      referrers.add("https://rare.example.com/" + i);
+      if (i % 10 == 0) {
+        referrers.add("https://popular.example.com");
+      }
+      if (i % 20 == 0) {
+        referrers.add("https://second.example.com");
+      }
+    }
+    List<Map.Entry<String, Long>> top = referrers.top();
+    Assertions.assertEquals("https://popular.example.com", top.get(0).getKey());
+    Assertions.assertEquals("https://second.example.com", top.get(1).getKey());
+    // Count-Min never under-estimates
+    Assertions.assertTrue(top.get(0).getValue() >= 1000);
+  }
+
+  /**
+   * Test visits are summarised, and analytics are removed when the url
+   * expires or is deleted.
+   */
+  @Test
+  public void testSummary() {
+    long now = System.currentTimeMillis();
+    Map<String, Long> expiryTimes = Map.of("a", now + 60000, "b", now - 1);
+    try (VisitAnalytics analytics = new VisitAnalytics(0, token -> expiryTimes.getOrDefault(token, -1L))) {
+      analytics.record("a", "10.0.0.1", "https://example.com", "curl");
+      analytics.record("a", "10.0.0.2", null, "curl");
+      analytics.record("a", "10.0.0.1", "https://example.com", "curl");
+      analytics.record("b", "10.0.0.1", null, null);
+      analytics.record("missing", "10.0.0.1", null, null);
+
+      AnalyticsSummary summary = analytics.getSummary("a");
+      Assertions.assertEquals(2, summary.getUniqueVisitors());
+      Assertions.assertEquals(Map.entry("https://example.com", 2L), summary.getTopReferrers().get(0));
+      Assertions.assertEquals(Map.entry("curl", 3L), summary.getTopUserAgents().get(0));
+      Assertions.assertEquals(3, Arrays.stream(summary.getVisitsPerMinute()).sum());
+      Assertions.assertNull(analytics.getSummary("missing"));
+      Assertions.assertEquals(2, analytics.size());
+
+      Assertions.assertEquals(1, analytics.purgeExpired(now + 1000));
+      Assertions.assertNull(analytics.getSummary("b"));
+      analytics.remove("a");
+      Assertions.assertEquals(0, analytics.size());
+    }
+  }
+}